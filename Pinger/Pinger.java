@@ -6,13 +6,23 @@ import java.io.*;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 
 import static java.lang.System.exit;
 
 public class Pinger {
     private static ArrayList<Double> rtts = new ArrayList<>();
+    private static ArrayList<Double> echo_rtts = new ArrayList<>();
+    private static final long PROBE_TIMEOUT_NS = 1000L * 1000000L;
 
     public static void main(String[] args) throws Exception {
         Options options = new Options();
@@ -20,10 +30,19 @@ public class Pinger {
         options.addOption(Option.builder("h").hasArg().desc("remote hostname").build());
         options.addOption(Option.builder("r").hasArg().desc("remote port").build());
         options.addOption(Option.builder("c").hasArg().desc("package count").build());
+        options.addOption(Option.builder("t").hasArg(false).desc("tcp mode").build());
+        options.addOption(Option.builder("n").hasArg().desc("concurrent tcp probes").build());
+        options.addOption(Option.builder("e").hasArg().desc("tcp echo size in bytes").build());
         CommandLineParser parser = new DefaultParser();
         CommandLine parsed_args = parser.parse(options, args);
         check_args(parsed_args);
-        if (parsed_args.hasOption("c"))
+        if (parsed_args.hasOption("t") && parsed_args.hasOption("c"))
+            TcpClientMode(parsed_args.getOptionValue("h"), Integer.parseInt(parsed_args.getOptionValue("r")),
+                    Integer.parseInt(parsed_args.getOptionValue("c")), Integer.parseInt(parsed_args.getOptionValue("n", "1")),
+                    Integer.parseInt(parsed_args.getOptionValue("e", "0")));
+        else if (parsed_args.hasOption("t"))
+            TcpServerMode(Integer.parseInt(parsed_args.getOptionValue("l")));
+        else if (parsed_args.hasOption("c"))
             ClientMode(Integer.parseInt(parsed_args.getOptionValue("l")), parsed_args.getOptionValue("h"),
                     Integer.parseInt(parsed_args.getOptionValue("r")), Integer.parseInt(parsed_args.getOptionValue("c")));
         else
@@ -31,7 +50,19 @@ public class Pinger {
     }
 
     private static void check_args(CommandLine args) {
-        if (args.hasOption("c")) {
+        if (args.hasOption("t") && args.hasOption("c")) {
+            // no probe would start, or the echo size makes no sense
+            if (Integer.parseInt(args.getOptionValue("n", "1")) < 1
+                    || Integer.parseInt(args.getOptionValue("e", "0")) < 0) {
+                System.out.println("-n must be at least 1 and -e at least 0");
+                exit(0);
+            }
+            // tcp probes use ephemeral local ports, one per connection
+            if (!args.hasOption("l") && args.hasOption("h") && args.hasOption("r")) return;
+        } else if (args.hasOption("n") || args.hasOption("e")) {
+            System.out.println("-n and -e are only valid for a tcp client (-t -c)");
+            exit(0);
+        } else if (args.hasOption("c")) {
             if (args.hasOption("l") && args.hasOption("h") && args.hasOption("r")) return;
         } else {
             if (args.hasOption("l") && !args.hasOption("h") && !args.hasOption("r")) return;
@@ -76,8 +107,141 @@ public class Pinger {
         System.out.print(String.format("sent=%d ", count));
         System.out.print(String.format("received=%d ", received));
         System.out.print(String.format("lost=%.2f%% ", 100.0 - (100. * received / count)));
-        ImmutableTriple<Double, Double, Double> rtt_statistics = get_rtt_statistics();
+        ImmutableTriple<Double, Double, Double> rtt_statistics = get_rtt_statistics(rtts);
         System.out.println(String.format("rtt min/avg/max=%.0f/%.2f/%.0f", rtt_statistics.left, rtt_statistics.middle, rtt_statistics.right));
+        print_histogram("rtt", rtts);
+    }
+
+    private static class TcpProbe {
+        int seq_num;
+        long start;
+        long connected;
+        boolean echoed;
+        ByteBuffer buf;
+    }
+
+    private static void TcpClientMode(String remote_host, int remote_port, int count, int concurrency, int echo_size) throws Exception {
+        System.out.println("Pinger Start in TCP Client Mode");
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getByName(remote_host), remote_port);
+        Selector selector = Selector.open();
+
+        int started = 0, finished = 0, received = 0;
+        while (finished < count) {
+            // Keep up to concurrency probes in flight
+            while (started < count && selector.keys().size() < concurrency) {
+                TcpProbe probe = new TcpProbe();
+                probe.seq_num = started++;
+                SocketChannel channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                probe.start = System.nanoTime();
+                if (channel.connect(address)) {
+                    SelectionKey key = channel.register(selector, 0, probe);
+                    tcp_connected(key, probe, echo_size);
+                    // Without an echo the probe is complete; no key will fire for it
+                    if (tcp_probe_done(probe, echo_size)) {
+                        key.cancel();
+                        channel.close();
+                        finished++;
+                        received++;
+                    }
+                } else
+                    channel.register(selector, SelectionKey.OP_CONNECT, probe);
+            }
+
+            selector.select(100);
+            Iterator<SelectionKey> ready = selector.selectedKeys().iterator();
+            while (ready.hasNext()) {
+                SelectionKey key = ready.next();
+                ready.remove();
+                TcpProbe probe = (TcpProbe) key.attachment();
+                SocketChannel channel = (SocketChannel) key.channel();
+                try {
+                    if (key.isConnectable() && channel.finishConnect()) {
+                        tcp_connected(key, probe, echo_size);
+                    } else if (key.isWritable()) {
+                        channel.write(probe.buf);
+                        if (!probe.buf.hasRemaining()) {
+                            probe.buf.clear();
+                            probe.buf.limit(echo_size);
+                            key.interestOps(SelectionKey.OP_READ);
+                        }
+                    } else if (key.isReadable()) {
+                        if (channel.read(probe.buf) < 0)
+                            throw new EOFException();
+                        if (!probe.buf.hasRemaining()) {
+                            probe.echoed = true;
+                            double rtt = (System.nanoTime() - probe.connected) / 1e6;
+                            echo_rtts.add(rtt);
+                            System.out.println(String.format("size=%d bytes from=%s seq=%d echo=%.3f",
+                                    echo_size, address.getAddress().getHostAddress(), probe.seq_num, rtt));
+                        }
+                    }
+                } catch (IOException e) {
+                    System.out.println(String.format("seq=%d Failed (%s)", probe.seq_num, e.getMessage()));
+                    key.cancel();
+                    channel.close();
+                    finished++;
+                    continue;
+                }
+                if (tcp_probe_done(probe, echo_size)) {
+                    key.cancel();
+                    channel.close();
+                    finished++;
+                    received++;
+                }
+            }
+
+            // Time out probes that have been outstanding for too long
+            long now = System.nanoTime();
+            for (SelectionKey key : selector.keys()) {
+                TcpProbe probe = (TcpProbe) key.attachment();
+                if (key.isValid() && now - probe.start > PROBE_TIMEOUT_NS) {
+                    System.out.println(String.format("seq=%d Lost", probe.seq_num));
+                    key.cancel();
+                    key.channel().close();
+                    finished++;
+                }
+            }
+            selector.selectNow();
+        }
+        selector.close();
+
+        // print statistics
+        System.out.print(String.format("sent=%d ", count));
+        System.out.print(String.format("received=%d ", received));
+        System.out.print(String.format("lost=%.2f%% ", 100.0 - (100. * received / count)));
+        ImmutableTriple<Double, Double, Double> rtt_statistics = get_rtt_statistics(rtts);
+        System.out.print(String.format("connect min/avg/max=%.3f/%.3f/%.3f", rtt_statistics.left, rtt_statistics.middle, rtt_statistics.right));
+        if (echo_size > 0) {
+            rtt_statistics = get_rtt_statistics(echo_rtts);
+            System.out.print(String.format(" echo min/avg/max=%.3f/%.3f/%.3f", rtt_statistics.left, rtt_statistics.middle, rtt_statistics.right));
+        }
+        System.out.println();
+        print_histogram("connect", rtts);
+        if (echo_size > 0)
+            print_histogram("echo", echo_rtts);
+    }
+
+    private static void tcp_connected(SelectionKey key, TcpProbe probe, int echo_size) {
+        probe.connected = System.nanoTime();
+        double rtt = (probe.connected - probe.start) / 1e6;
+        rtts.add(rtt);
+        System.out.println(String.format("from=%s seq=%d connect=%.3f",
+                ((SocketChannel) key.channel()).socket().getInetAddress().getHostAddress(), probe.seq_num, rtt));
+        if (echo_size <= 0)
+            return;
+
+        // Send seq_num and time stamp, padded to the requested echo size
+        probe.buf = ByteBuffer.allocate(Math.max(echo_size, 12));
+        probe.buf.putInt(probe.seq_num);
+        probe.buf.putLong(System.currentTimeMillis());
+        probe.buf.clear();
+        probe.buf.limit(echo_size);
+        key.interestOps(SelectionKey.OP_WRITE);
+    }
+
+    private static boolean tcp_probe_done(TcpProbe probe, int echo_size) {
+        return probe.connected != 0 && (echo_size <= 0 || probe.echoed);
     }
 
     private static DatagramPacket client_prepare_packet(int seq_num, long time_stamp, InetAddress address, int port) throws IOException {
@@ -133,7 +297,50 @@ public class Pinger {
         }
     }
 
-    private static ImmutableTriple<Double, Double, Double> get_rtt_statistics() {
+    private static void TcpServerMode(int localport) throws Exception {
+        System.out.println("Pinger Start in TCP Server Mode");
+        Selector selector = Selector.open();
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(localport));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        while (true) {
+            selector.select();
+            Iterator<SelectionKey> ready = selector.selectedKeys().iterator();
+            while (ready.hasNext()) {
+                SelectionKey key = ready.next();
+                ready.remove();
+                try {
+                    if (key.isAcceptable()) {
+                        // Accept connection and wait for echo data
+                        SocketChannel channel = serverChannel.accept();
+                        if (channel == null) continue;
+                        channel.configureBlocking(false);
+                        channel.register(selector, SelectionKey.OP_READ, ByteBuffer.allocate(1024));
+                        System.out.print(String.format("time=%d ", System.currentTimeMillis()));
+                        System.out.println("from=" + channel.socket().getInetAddress().getHostAddress());
+                    } else if (key.isReadable() || key.isWritable()) {
+                        // send back whatever has been received
+                        SocketChannel channel = (SocketChannel) key.channel();
+                        ByteBuffer buf = (ByteBuffer) key.attachment();
+                        if (key.isReadable() && channel.read(buf) < 0) {
+                            channel.close();
+                            continue;
+                        }
+                        buf.flip();
+                        channel.write(buf);
+                        buf.compact();
+                        key.interestOps(buf.position() > 0 ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+                    }
+                } catch (IOException e) {
+                    key.cancel();
+                    key.channel().close();
+                }
+            }
+        }
+    }
+
+    private static ImmutableTriple<Double, Double, Double> get_rtt_statistics(ArrayList<Double> rtts) {
         double avg = 0., max = 0, min = 1e9;
         for (double e : rtts) {
             if (e > max) max = e;
@@ -143,4 +350,31 @@ public class Pinger {
         avg /= rtts.size();
         return new ImmutableTriple<>(min, avg, max);
     }
+
+    private static void print_histogram(String name, ArrayList<Double> rtts) {
+        if (rtts.isEmpty()) return;
+        ArrayList<Double> sorted = new ArrayList<>(rtts);
+        Collections.sort(sorted);
+        System.out.println(String.format("%s p50/p90/p99=%.3f/%.3f/%.3f", name, percentile(sorted, 50),
+                percentile(sorted, 90), percentile(sorted, 99)));
+
+        // Power of two buckets, starting from 1/8 ms
+        int[] buckets = new int[16];
+        for (double e : sorted) {
+            int i = 0;
+            for (double bound = 0.125; e >= bound && i < buckets.length - 1; bound *= 2) i++;
+            buckets[i]++;
+        }
+        double bound = 0.125;
+        for (int i = 0; i < buckets.length; i++, bound *= 2) {
+            if (buckets[i] == 0) continue;
+            String range = i == buckets.length - 1 ? String.format(">=%.3f", bound / 2) : String.format("<%.3f", bound);
+            System.out.println(String.format("  %-10s %6d %5.1f%%", range, buckets[i], 100. * buckets[i] / sorted.size()));
+        }
+    }
+
+    private static double percentile(ArrayList<Double> sorted, int p) {
+        int index = (int) Math.ceil(p / 100. * sorted.size()) - 1;
+        return sorted.get(Math.max(index, 0));
+    }
 }
@@ -398,11 +398,13 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
 	}
 
 	private void debug(Object o) {
-	    System.out.println(o);
+	    log.debug("{}", o);
     }
 }
 
 class Graph {
+    private static Logger log = LoggerFactory.getLogger(L3Routing.MODULE_NAME);
+
     ArrayList<IOFSwitch> switches = new ArrayList<IOFSwitch>();
     ArrayList<Host> hosts = new ArrayList<Host>();
     HashMap<IOFSwitch, Integer> switchIds = new HashMap<IOFSwitch, Integer>();
@@ -484,30 +486,29 @@ class Graph {
     }
 
     private void print_cost() {
+        // Matrices are O(n^2) to format; skip unless debugging
+        if (!log.isDebugEnabled()) return;
         int n_switches = this.switches.size();
-        debug("==========================");
-        debug("cost:");
+        StringBuilder sb = new StringBuilder("cost:\n");
         for (int i = 0; i < n_switches; ++i){
             for (int j = 0; j < n_switches; ++j) {
-                System.out.print(costs[i][j]);
-                System.out.print(" ");
+                sb.append(costs[i][j]).append(' ');
             }
-            System.out.println();
+            sb.append('\n');
         }
 
-        debug("nexts:");
+        sb.append("nexts:\n");
         for (int i = 0; i < n_switches; ++i){
             for (int j = 0; j < n_switches; ++j) {
-                System.out.print(this.nexts[i][j]);
-                System.out.print(" ");
+                sb.append(this.nexts[i][j]).append(' ');
             }
-            System.out.println();
+            sb.append('\n');
         }
-        debug("==========================");
+        log.debug(sb.toString());
     }
 
     static void debug(Object o) {
-        System.out.println(o);
+        log.debug("{}", o);
     }
 }
 
@@ -0,0 +1,134 @@
+package edu.wisc.cs.sdn.sr;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Accepts commands for a running router on a TCP port of the loopback
+ * interface, one per line (e.g., echo reload | nc localhost PORT). Each
+ * command is answered with a line starting with "ok" or "error". Connections
+ * are served one at a time on a daemon thread, while other threads keep
+ * forwarding.
+ * <p>
+ * Commands:
+ * <ul>
+ * <li>reload: replace the routing table with the one in the file it was
+ * loaded from, once the file is checked (see Router.reloadRouteTable)</li>
+ * </ul>
+ */
+public class AdminServer implements Runnable
+{
+	/** Time a connection may stay idle before it is closed (in ms) */
+	public static final int IDLE_TIMEOUT = 30 * 1000;
+
+	/** Router the commands are for */
+	private Router router;
+
+	/** Socket accepting connections */
+	private ServerSocket serverSocket;
+
+	/** Thread serving connections */
+	private Thread serverThread;
+
+	private AdminServer(Router router, ServerSocket serverSocket)
+	{
+		this.router = router;
+		this.serverSocket = serverSocket;
+		this.serverThread = new Thread(this, "sr-admin");
+		this.serverThread.setDaemon(true);
+	}
+
+	/**
+	 * Start accepting commands for a router.
+	 * @param router the router
+	 * @param port TCP port to listen on
+	 * @return the server; null if the port cannot be listened on
+	 */
+	public static AdminServer start(Router router, int port)
+	{
+		ServerSocket serverSocket;
+		try
+		{
+			serverSocket = new ServerSocket(port, 0,
+					InetAddress.getLoopbackAddress());
+		}
+		catch (IOException e)
+		{
+			System.err.println("Error starting admin server on port " + port
+					+ ": " + e.getMessage());
+			return null;
+		}
+		AdminServer server = new AdminServer(router, serverSocket);
+		server.serverThread.start();
+		return server;
+	}
+
+	/**
+	 * Stop accepting commands.
+	 */
+	public void shutdown()
+	{
+		try
+		{ this.serverSocket.close(); }
+		catch (IOException e)
+		{ System.err.println("Error closing admin server: " + e.getMessage()); }
+	}
+
+	/**
+	 * Serve connections until the server is shut down.
+	 */
+	public void run()
+	{
+		while (!this.serverSocket.isClosed())
+		{
+			Socket socket;
+			try
+			{ socket = this.serverSocket.accept(); }
+			catch (IOException e)
+			{ return; } // Shut down
+			try
+			{ this.serve(socket); }
+			catch (IOException e)
+			{ System.err.println("Admin connection closed: " + e.getMessage()); }
+			finally
+			{ try { socket.close(); } catch (IOException f) {}; }
+		}
+	}
+
+	private void serve(Socket socket) throws IOException
+	{
+		socket.setSoTimeout(IDLE_TIMEOUT);
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+				socket.getInputStream(), StandardCharsets.US_ASCII));
+		PrintWriter out = new PrintWriter(new OutputStreamWriter(
+				socket.getOutputStream(), StandardCharsets.US_ASCII), true);
+		String line;
+		while ((line = in.readLine()) != null)
+		{
+			String command = line.trim();
+			if (!command.isEmpty())
+			{ out.println(this.execute(command)); }
+		}
+	}
+
+	/**
+	 * @return the answer to a command
+	 */
+	private String execute(String command)
+	{
+		if (command.equals("reload"))
+		{
+			if (!this.router.reloadRouteTable())
+			{ return "error routing table not reloaded; see the router's log"; }
+			return "ok routing table reloaded";
+		}
+		return "error unknown command " + command + "; commands: reload";
+	}
+}
@@ -1,7 +1,12 @@
 package edu.wisc.cs.sdn.sr;
 
+import java.util.Collection;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.wisc.cs.sdn.sr.vns.CommandPacket;
 
 import net.floodlightcontroller.packet.ARP;
 import net.floodlightcontroller.packet.Ethernet;
@@ -21,6 +26,12 @@ public class ArpCache implements Runnable
 	 *  determine the MAC address associated with an IP address */
 	public static final int MAX_SEND_COUNT = 5;
 	
+	/** Offset of frames in the buffers of frames waiting on requests; the
+	 *  bytes before it hold the time the frame's packet was received (see
+	 *  PacketClock.save) until they take the VNS command header when the
+	 *  frame is sent */
+	public static final int HEADROOM = CommandPacket.FRAME_OFFSET;
+	
 	/** Router to which this cache belongs */
 	private Router router;
 	
@@ -29,7 +40,17 @@ public class ArpCache implements Runnable
 	
 	/** Requests for IP address, MAC address pairs that should be added to the 
 	 * cache; maps an IP address to a request */
-	private Map<Integer,ArpRequest> requests;
+	private ConcurrentHashMap<Integer,ArpRequest> requests;
+	
+	/** Incremented whenever an entry is added, changed or removed */
+	private AtomicInteger version;
+	
+	/** Caps on frames waiting on requests */
+	private volatile ArpQueueLimits queueLimits;
+	
+	/** Frames waiting on all requests, and the length of their buffers */
+	private AtomicInteger waitingPackets;
+	private AtomicLong waitingBytes;
 	
 	/** Thread for timing out requests and entries in the cache */
 	private Thread timeoutThread;
@@ -43,6 +64,10 @@ public class ArpCache implements Runnable
 		this.router = router;
 		this.entries = new ConcurrentHashMap<Integer,ArpEntry>();
 		this.requests = new ConcurrentHashMap<Integer,ArpRequest>();
+		this.version = new AtomicInteger();
+		this.queueLimits = ArpQueueLimits.defaults();
+		this.waitingPackets = new AtomicInteger();
+		this.waitingBytes = new AtomicLong();
 		timeoutThread = new Thread(this);
 		timeoutThread.start();
 	}
@@ -70,7 +95,10 @@ public class ArpCache implements Runnable
 			{
 				if ((System.currentTimeMillis() - entry.getTimeAdded()) 
 						> TIMEOUT)
-				{ this.entries.remove(entry.getIp()); }
+				{
+					this.entries.remove(entry.getIp());
+					this.version.incrementAndGet();
+				}
 			}
 		}
 	}
@@ -83,36 +111,50 @@ public class ArpCache implements Runnable
 	 */
 	private void updateArpRequest(ArpRequest request)
 	{
-		if ((System.currentTimeMillis() - request.getLastTimeSent()) 
-				< 1000)
-		{ return; }
-		
-		if (request.getSentCount() >= MAX_SEND_COUNT)
+		// Called by the timeout thread and packet processing threads
+		synchronized(request)
 		{
-			/*********************************************************/
-		    /* TODO: send ICMP host unreachable to the source        */ 
-		    /* address of all packets waiting on this request        */
-			Ethernet ethernet = request.getWaitingPackets().get(0);
-			String destMAC = ethernet.getDestinationMAC().toString();
-			Iface outIface = null;
-			for (Iface iface : this.router.getInterfaces().values()) {
-			    if (iface.getMacAddress().toString().equals(destMAC)) {
-			        outIface = iface;
-			        break;
-                }
-            }
-            this.router.ICMPReply(this.router.generateICMP((byte) 3, (byte) 1, (IPv4) ethernet.getPayload()), outIface);
+			// A resolved request is closed once its frames have been sent
+			if (request.getMac() != null
+					|| (System.currentTimeMillis() - request.getLastTimeSent()) 
+					< 1000)
+			{ return; }
 			
-		    /*********************************************************/
+			if (request.getSentCount() < MAX_SEND_COUNT)
+			{
+				// Send ARP request packet
+				this.sendArpRequest(request);
+				request.incrementSent();
+				return;
+			}
 			
-			this.requests.remove(request.getIpAddress());
-		}
-		else
-		{
-			// Send ARP request packet
-			this.sendArpRequest(request);
-			request.incrementSent();
+			this.requests.remove(request.getIpAddress(), request);
+			request.close();
 		}
+		
+		/*********************************************************/
+	    /* TODO: send ICMP host unreachable to the source        */ 
+	    /* address of all packets waiting on this request        */
+		Collection<byte[]> waitingFrames = request.getWaitingFrames();
+		if (waitingFrames.isEmpty())
+		{ return; }
+		this.release(waitingFrames);
+		this.router.getStats().dropped(RouterStats.Drop.ARP_TIMEOUT,
+				waitingFrames.size());
+		byte[] buf = waitingFrames.iterator().next();
+		Ethernet ethernet = new Ethernet();
+		ethernet.deserialize(buf, HEADROOM, buf.length - HEADROOM);
+		String destMAC = ethernet.getDestinationMAC().toString();
+		Iface outIface = null;
+		for (Iface iface : this.router.getInterfaces().values()) {
+		    if (iface.getMacAddress().toString().equals(destMAC)) {
+		        outIface = iface;
+		        break;
+            }
+        }
+        this.router.sendIcmpError((byte) 3, (byte) 1, (IPv4) ethernet.getPayload(), outIface);
+		
+	    /*********************************************************/
 	}
 	
 	/**
@@ -124,36 +166,283 @@ public class ArpCache implements Runnable
 	 */
 	public ArpRequest insert(MACAddress mac, int ip)
 	{
+		// Publish the entry before closing the request, so a packet that 
+		// finds the request closed is guaranteed to find the entry
+		ArpEntry previous = this.entries.put(ip, new ArpEntry(mac, ip));
+		if (null == previous || !previous.getMac().equals(mac))
+		{ this.version.incrementAndGet(); }
 		ArpRequest request = this.requests.remove(ip);
-		this.entries.put(ip, new ArpEntry(mac, ip));
+		if (request != null)
+		{ this.release(request.close()); }
 		return request;
 	}
 	
+	/**
+	 * Resolve the pending request for an IP address, if any, without
+	 * publishing the entry yet: packets to the address keep waiting on the
+	 * request, behind the frames already waiting, until takeWaitingFrames 
+	 * finds none left. Packets of a flow are thus sent in the order they 
+	 * were received, although the waiting frames are sent by the thread 
+	 * processing the ARP reply. Without a pending request, the entry is 
+	 * inserted as by insert().
+	 * @param mac MAC address corresponding to IP address
+	 * @param ip IP address corresponding to MAC address
+	 * @return the resolved request, whose frames must be sent using 
+	 *         takeWaitingFrames; null if there is none
+	 */
+	public ArpRequest resolve(MACAddress mac, int ip)
+	{
+		ArpRequest request = this.requests.get(ip);
+		if (request != null && request.resolve(mac))
+		{ return request; }
+		if (request != null && request.getMac() != null 
+				&& !request.isClosed())
+		{ return null; } // Being sent by another thread
+		this.insert(mac, ip);
+		return null;
+	}
+	
+	/**
+	 * Take the frames waiting on a resolved request, to be sent. Once none
+	 * are left, the entry is inserted and the request closed, so packets
+	 * that find the request closed are sent after all of its frames.
+	 * @param request request returned by resolve()
+	 * @return buffers of the frames to send, oldest first; null once all
+	 *         frames have been taken
+	 */
+	public Collection<byte[]> takeWaitingFrames(ArpRequest request)
+	{
+		Collection<byte[]> frames;
+		synchronized(request)
+		{
+			frames = request.takeWaitingFrames();
+			if (frames.isEmpty())
+			{
+				this.insert(request.getMac(), request.getIpAddress());
+				return null;
+			}
+		}
+		this.release(frames);
+		return frames;
+	}
+	
+	/**
+	 * Remove the entry for an IP address, if any. Packets sent to the address
+	 * afterwards wait for a new ARP request to be answered.
+	 * @param ip IP address whose entry should be removed
+	 * @return true if an entry was removed, otherwise false
+	 */
+	public boolean remove(int ip)
+	{
+		if (null == this.entries.remove(ip))
+		{ return false; }
+		this.version.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * @return version counter; changes whenever a mapping is added, changed
+	 *         or removed
+	 */
+	public int getVersion()
+	{ return this.version.get(); }
+	
 	/**
 	 * Checks if an IP->MAC mapping is the in the cache.
 	 * @param ip IP address whose MAC address is desired
 	 * @return the IP->MAC mapping from the cache; null if none exists 
 	 */
 	public ArpEntry lookup(int ip)
-	{ return this.entries.get(ip); }
+	{
+		ArpEntry entry = this.entries.get(ip);
+		this.router.getStats().arpLookup(entry != null);
+		return entry;
+	}
+	
+	/**
+	 * @return number of IP->MAC mappings in the cache
+	 */
+	public int size()
+	{ return this.entries.size(); }
+	
+	/**
+	 * @param queueLimits caps on frames waiting on requests
+	 */
+	public void setQueueLimits(ArpQueueLimits queueLimits)
+	{ this.queueLimits = queueLimits; }
 	
 	/**
-	 * Adds an ARP request to the ARP request queue. Adds the packet to the 
-	 * list of packets waiting for this request to be resolved.
+	 * @return caps on frames waiting on requests
+	 */
+	public ArpQueueLimits getQueueLimits()
+	{ return this.queueLimits; }
+	
+	/**
+	 * @return number of frames waiting on all requests
+	 */
+	public int getWaitingPackets()
+	{ return this.waitingPackets.get(); }
+	
+	/**
+	 * @return total length of the buffers of frames waiting on all requests
+	 */
+	public long getWaitingBytes()
+	{ return this.waitingBytes.get(); }
+	
+	/**
+	 * Adds an ARP request to the ARP request queue. Adds the packet, 
+	 * serialized, to the frames waiting for this request to be resolved,
+	 * within the caps on waiting frames; frames dropped to stay within them
+	 * are counted as overflow drops.
 	 * @param etherPacket packet waiting for the MAC for it's next hop IP
 	 * @param outIface interface out which the packet will be sent
 	 * @param nextHopIp the IP address whose MAC should be determined
+	 * @return true if the packet was queued or dropped, false if the MAC 
+	 *         address was resolved in the meantime and the packet can be sent
+	 *         right away
+	 */
+	public boolean waitForArp(Ethernet etherPacket, Iface outIface, 
+			int nextHopIp)
+	{
+		byte[] frame = etherPacket.serialize();
+		byte[] buf = new byte[HEADROOM + frame.length];
+		System.arraycopy(frame, 0, buf, HEADROOM, frame.length);
+		PacketClock.save(buf, 0);
+		while (true)
+		{
+			ArpRequest request = this.requests.computeIfAbsent(nextHopIp,
+					ip -> new ArpRequest(ip, outIface));
+			if (this.enqueue(request, buf))
+			{
+				// The packet is measured when its frame is sent (as
+				// ARP_DELAYED), not by the ARP request it causes
+				PacketClock.clear();
+				this.updateArpRequest(request);
+				return true;
+			}
+			
+			// Request was closed; either resolved or timed out
+			if (this.lookup(nextHopIp) != null)
+			{ return false; }
+			this.requests.remove(nextHopIp, request);
+		}
+	}
+	
+	/**
+	 * Add a frame to the frames waiting on a request, dropping frames as the
+	 * policy says if a cap would be exceeded.
+	 * @param request pending request
+	 * @param buf buffer of the frame, which starts at HEADROOM
+	 * @return true if the frame was added or dropped, false if the request is
+	 *         closed
+	 */
+	private boolean enqueue(ArpRequest request, byte[] buf)
+	{
+		ArpQueueLimits limits = this.queueLimits;
+		boolean dropOldest = 
+				(ArpQueueLimits.Policy.DROP_OLDEST == limits.getPolicy());
+		int dropped = 0;
+		synchronized(request)
+		{
+			if (request.isClosed())
+			{ return false; }
+			
+			// Make room within the request's caps
+			boolean fits = (buf.length <= limits.getRequestBytes());
+			while (fits && (request.getWaitingCount() 
+							>= limits.getRequestPackets()
+					|| request.getWaitingBytes() + buf.length 
+							> limits.getRequestBytes()))
+			{
+				if (!dropOldest)
+				{
+					fits = false;
+					break;
+				}
+				this.release(request.dequeueOldest());
+				dropped++;
+			}
+			
+			// Keep within the caps over all requests, unless older frames
+			// are dropped to make room below
+			if (fits)
+			{
+				int packets = this.waitingPackets.incrementAndGet();
+				long bytes = this.waitingBytes.addAndGet(buf.length);
+				if (!dropOldest && (packets > limits.getTotalPackets()
+						|| bytes > limits.getTotalBytes()))
+				{
+					this.release(buf);
+					fits = false;
+				}
+			}
+			if (fits)
+			{ request.enqueueFrame(buf); }
+			else
+			{ dropped++; }
+		}
+		
+		// Make room within the caps over all requests
+		if (dropOldest)
+		{ dropped += this.dropOverflow(limits); }
+		if (dropped > 0)
+		{ 
+			this.router.getStats().dropped(
+					RouterStats.Drop.ARP_QUEUE_OVERFLOW, dropped); 
+		}
+		return true;
+	}
+	
+	/**
+	 * Drop the oldest frames of the request with the most bytes waiting
+	 * until the frames waiting on all requests are within the caps. Called
+	 * without holding any request's lock.
+	 * @return number of frames dropped
 	 */
-	public void waitForArp(Ethernet etherPacket, Iface outIface, int nextHopIp)
+	private int dropOverflow(ArpQueueLimits limits)
 	{
-		ArpRequest request = this.requests.get(nextHopIp);
-		if (null == request)
+		int dropped = 0;
+		while (this.waitingPackets.get() > limits.getTotalPackets()
+				|| this.waitingBytes.get() > limits.getTotalBytes())
 		{
-			request = new ArpRequest(nextHopIp, outIface);
-			this.requests.put(nextHopIp, request);
+			ArpRequest longest = null;
+			int longestBytes = 0;
+			for (ArpRequest request : this.requests.values())
+			{
+				int bytes = request.getWaitingBytes();
+				if (bytes > longestBytes)
+				{
+					longest = request;
+					longestBytes = bytes;
+				}
+			}
+			byte[] buf = (null == longest) ? null : longest.dequeueOldest();
+			if (null == buf)
+			{ break; }
+			this.release(buf);
+			dropped++;
 		}
-		request.enqueuePacket(etherPacket);
-		this.updateArpRequest(request);
+		return dropped;
+	}
+	
+	/**
+	 * Stop accounting for a frame that no longer waits on a request.
+	 * @param buf buffer of the frame
+	 */
+	private void release(byte[] buf)
+	{
+		this.waitingPackets.decrementAndGet();
+		this.waitingBytes.addAndGet(-buf.length);
+	}
+	
+	/**
+	 * Stop accounting for the frames of a closed request.
+	 * @param bufs buffers of the frames
+	 */
+	private void release(Collection<byte[]> bufs)
+	{
+		for (byte[] buf : bufs)
+		{ this.release(buf); }
 	}
 	
 	/**
@@ -189,9 +478,11 @@ public class ArpCache implements Runnable
 		etherPkt.setPayload(arpPkt);
 		
 		// Send ARP request
-		System.out.println("Send ARP request");
-		System.out.println(etherPkt.toString());
+		this.router.getTracer().packet(PacketTracer.Level.DEBUG, 
+				"Send ARP request", etherPkt, request.getIface());
+		PacketClock.via(RouterStats.Path.ARP);
 		this.router.sendPacket(etherPkt, request.getIface());
+		this.router.getStats().arpSent(true);
 	}
 	
 	/**
@@ -224,8 +515,10 @@ public class ArpCache implements Runnable
 		etherReply.setPayload(arpReply);
 		
 		// Send ARP request
-		System.out.println("Send ARP reply");
-		System.out.println(arpReply.toString());
+		this.router.getTracer().packet(PacketTracer.Level.DEBUG, 
+				"Send ARP reply", etherReply, iface);
+		PacketClock.via(RouterStats.Path.ARP);
 		this.router.sendPacket(etherReply, iface);
+		this.router.getStats().arpSent(false);
 	}
 }
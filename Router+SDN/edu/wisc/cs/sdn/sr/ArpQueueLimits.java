@@ -0,0 +1,152 @@
+package edu.wisc.cs.sdn.sr;
+
+/**
+ * Caps on the frames buffered while the MAC address of their next hop is
+ * being resolved: per pending ARP request, and over all requests. When a cap
+ * is reached, either the arriving frame is dropped, or older frames are
+ * dropped to make room for it; for the cap over all requests, the frames
+ * dropped are the oldest of the request with the most bytes waiting, which
+ * is usually a neighbor that stopped answering.
+ */
+public class ArpQueueLimits
+{
+	/** Which frames to drop when a cap is reached */
+	public enum Policy
+	{ DROP_OLDEST, DROP_NEWEST }
+
+	/** Default caps per request; as a Linux neighbor's unres_qlen_bytes */
+	public static final int DEFAULT_REQUEST_PACKETS = 64;
+	public static final int DEFAULT_REQUEST_BYTES = 208 * 1024;
+
+	/** Default caps over all requests */
+	public static final int DEFAULT_TOTAL_PACKETS = 4096;
+	public static final int DEFAULT_TOTAL_BYTES = 4 * 1024 * 1024;
+
+	/** Most frames and buffer bytes waiting on one request */
+	private final int requestPackets;
+	private final int requestBytes;
+
+	/** Most frames and buffer bytes waiting on all requests */
+	private final int totalPackets;
+	private final int totalBytes;
+
+	/** Which frames to drop when a cap is reached */
+	private final Policy policy;
+
+	/**
+	 * @param requestPackets most frames waiting on one request; at least 1
+	 * @param requestBytes most buffer bytes waiting on one request
+	 * @param totalPackets most frames waiting on all requests; at least 1
+	 * @param totalBytes most buffer bytes waiting on all requests
+	 * @param policy which frames to drop when a cap is reached
+	 */
+	public ArpQueueLimits(int requestPackets, int requestBytes,
+			int totalPackets, int totalBytes, Policy policy)
+	{
+		this.requestPackets = requestPackets;
+		this.requestBytes = requestBytes;
+		this.totalPackets = totalPackets;
+		this.totalBytes = totalBytes;
+		this.policy = policy;
+	}
+
+	/**
+	 * @return the default caps, dropping the oldest frames
+	 */
+	public static ArpQueueLimits defaults()
+	{
+		return new ArpQueueLimits(DEFAULT_REQUEST_PACKETS,
+				DEFAULT_REQUEST_BYTES, DEFAULT_TOTAL_PACKETS,
+				DEFAULT_TOTAL_BYTES, Policy.DROP_OLDEST);
+	}
+
+	/**
+	 * Parse caps from a specification of the form
+	 * [request=packets[/bytes]][,total=packets[/bytes]][,drop=oldest|newest];
+	 * caps that are not given keep their defaults.
+	 * @return the caps; null if the specification is invalid
+	 */
+	public static ArpQueueLimits parse(String spec)
+	{
+		int requestPackets = DEFAULT_REQUEST_PACKETS;
+		int requestBytes = DEFAULT_REQUEST_BYTES;
+		int totalPackets = DEFAULT_TOTAL_PACKETS;
+		int totalBytes = DEFAULT_TOTAL_BYTES;
+		Policy policy = Policy.DROP_OLDEST;
+		try
+		{
+			for (String part : spec.split(","))
+			{
+				String[] keyValue = part.split("=", 2);
+				if (keyValue.length != 2)
+				{ return null; }
+				String[] caps = keyValue[1].split("/", 2);
+				if (keyValue[0].equals("request"))
+				{
+					requestPackets = Integer.parseInt(caps[0]);
+					if (2 == caps.length)
+					{ requestBytes = Integer.parseInt(caps[1]); }
+				}
+				else if (keyValue[0].equals("total"))
+				{
+					totalPackets = Integer.parseInt(caps[0]);
+					if (2 == caps.length)
+					{ totalBytes = Integer.parseInt(caps[1]); }
+				}
+				else if (keyValue[0].equals("drop")
+						&& keyValue[1].equals("oldest"))
+				{ policy = Policy.DROP_OLDEST; }
+				else if (keyValue[0].equals("drop")
+						&& keyValue[1].equals("newest"))
+				{ policy = Policy.DROP_NEWEST; }
+				else
+				{ return null; }
+			}
+		}
+		catch (NumberFormatException e)
+		{ return null; }
+		if (requestPackets < 1 || requestBytes < 1 || totalPackets < 1
+				|| totalBytes < 1)
+		{ return null; }
+		return new ArpQueueLimits(requestPackets, requestBytes, totalPackets,
+				totalBytes, policy);
+	}
+
+	/**
+	 * @return most frames waiting on one request
+	 */
+	public int getRequestPackets()
+	{ return this.requestPackets; }
+
+	/**
+	 * @return most buffer bytes waiting on one request
+	 */
+	public int getRequestBytes()
+	{ return this.requestBytes; }
+
+	/**
+	 * @return most frames waiting on all requests
+	 */
+	public int getTotalPackets()
+	{ return this.totalPackets; }
+
+	/**
+	 * @return most buffer bytes waiting on all requests
+	 */
+	public int getTotalBytes()
+	{ return this.totalBytes; }
+
+	/**
+	 * @return which frames to drop when a cap is reached
+	 */
+	public Policy getPolicy()
+	{ return this.policy; }
+
+	public String toString()
+	{
+		return String.format("request=%d/%d,total=%d/%d,drop=%s",
+				this.requestPackets, this.requestBytes, this.totalPackets,
+				this.totalBytes, (Policy.DROP_OLDEST == this.policy)
+						? "oldest" : "newest");
+	}
+}
@@ -1,12 +1,15 @@
 package edu.wisc.cs.sdn.sr;
 
-import java.util.LinkedList;
-import java.util.List;
+import java.util.ArrayDeque;
+import java.util.Collection;
 
-import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.util.MACAddress;
 
 /**
  * A pending request for obtaining the MAC address for an IP using ARP. 
+ * Frames waiting on the request are kept serialized, each in a buffer of its
+ * own starting at {@link ArpCache#HEADROOM}, so they take little more memory
+ * than their bytes and can be sent without copying once resolved.
  * @author Aaron Gember-Jacobson
  */
 public class ArpRequest 
@@ -23,8 +26,20 @@ public class ArpRequest
 	/** Number of times an ARP request packet has been sent for this request */
 	private int sentCount; 
 	
-	/** List of packets waiting on this request to be resolved */
-	private List<Ethernet> waitingPackets;
+	/** Buffers of frames waiting on this request to be resolved, oldest
+	 * first */
+	private ArrayDeque<byte[]> waitingFrames;
+	
+	/** Total length of the buffers of waiting frames */
+	private int waitingBytes;
+	
+	/** MAC address the IP address resolved to; null until a reply is 
+	 * received */
+	private MACAddress mac;
+	
+	/** Whether the request has been resolved or timed out; no more packets
+	 * can be added once a request is closed */
+	private boolean closed;
 
 	/**
 	 * Create a request for a pending resolution of an IP address's MAC address.
@@ -37,7 +52,10 @@ public class ArpRequest
 		this.iface = iface;
 		this.lastTimeSent = 0;
 		this.sentCount = 0;
-		this.waitingPackets = new LinkedList<Ethernet>();
+		this.waitingFrames = new ArrayDeque<byte[]>();
+		this.waitingBytes = 0;
+		this.mac = null;
+		this.closed = false;
 	}
 	
 	/**
@@ -66,10 +84,73 @@ public class ArpRequest
 	{ return this.sentCount; }
 	
 	/**
-	 * @return list of packets waiting on this request to be resolved
+	 * @return buffers of frames waiting on this request to be resolved, 
+	 *         oldest first; only stable once the request has been closed
+	 */
+	public Collection<byte[]> getWaitingFrames()
+	{ return this.waitingFrames; }
+	
+	/**
+	 * @return number of frames waiting on this request
 	 */
-	public List<Ethernet> getWaitingPackets()
-	{ return this.waitingPackets; }
+	public synchronized int getWaitingCount()
+	{ return this.waitingFrames.size(); }
+	
+	/**
+	 * @return total length of the buffers of frames waiting on this request
+	 */
+	public synchronized int getWaitingBytes()
+	{ return this.waitingBytes; }
+	
+	/**
+	 * @return true if the request has been resolved or timed out
+	 */
+	public synchronized boolean isClosed()
+	{ return this.closed; }
+	
+	/**
+	 * @return MAC address the IP address resolved to; null if no reply has
+	 *         been received
+	 */
+	public synchronized MACAddress getMac()
+	{ return this.mac; }
+	
+	/**
+	 * Record the MAC address the IP address resolved to. Frames can still be
+	 * added until the request is closed.
+	 * @param mac MAC address corresponding to the IP address
+	 * @return true if the request was resolved, false if it was already
+	 *         resolved or is closed
+	 */
+	public synchronized boolean resolve(MACAddress mac)
+	{
+		if (this.closed || this.mac != null)
+		{ return false; }
+		this.mac = mac;
+		return true;
+	}
+	
+	/**
+	 * Remove all frames waiting on this request, to be sent.
+	 * @return buffers of the removed frames, oldest first
+	 */
+	public synchronized Collection<byte[]> takeWaitingFrames()
+	{
+		Collection<byte[]> frames = this.waitingFrames;
+		this.waitingFrames = new ArrayDeque<byte[]>();
+		this.waitingBytes = 0;
+		return frames;
+	}
+	
+	/**
+	 * Close the request, so no more frames are added to it.
+	 * @return buffers of frames waiting on this request to be resolved
+	 */
+	public synchronized Collection<byte[]> close()
+	{
+		this.closed = true;
+		return this.waitingFrames;
+	}
 	
 	/**
 	 * Update the last time an ARP request packet was sent to the current time
@@ -82,11 +163,34 @@ public class ArpRequest
 	}
 	
 	/**
-	 * Add a packet to the list of packets waiting on this request to be
-	 * resolved. All fields of the packet should be correctly filled in except 
-	 * for the destination MAC address in the Ethernet header.
-	 * @param etherPacket packet waiting on this request to be resolved
+	 * Add a frame to the frames waiting on this request to be resolved. All 
+	 * fields of the frame should be correctly filled in except for the MAC
+	 * addresses in the Ethernet header. Callers enforcing caps should hold 
+	 * the request's lock across checking them and adding the frame.
+	 * @param buf buffer of the frame, which starts at ArpCache.HEADROOM
+	 * @return true if the frame was added, false if the request is closed
 	 */
-	public void enqueuePacket(Ethernet etherPacket)
-	{ this.waitingPackets.add(etherPacket); }
+	public synchronized boolean enqueueFrame(byte[] buf)
+	{
+		if (this.closed)
+		{ return false; }
+		this.waitingFrames.addLast(buf);
+		this.waitingBytes += buf.length;
+		return true;
+	}
+	
+	/**
+	 * Remove the frame that has been waiting longest, to make room for 
+	 * others.
+	 * @return buffer of the removed frame; null if the request is closed or
+	 *         no frames are waiting
+	 */
+	public synchronized byte[] dequeueOldest()
+	{
+		if (this.closed || this.waitingFrames.isEmpty())
+		{ return null; }
+		byte[] buf = this.waitingFrames.removeFirst();
+		this.waitingBytes -= buf.length;
+		return buf;
+	}
 }
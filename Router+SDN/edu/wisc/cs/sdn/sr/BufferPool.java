@@ -0,0 +1,82 @@
+package edu.wisc.cs.sdn.sr;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pool of byte buffers in power-of-two size classes. Released buffers are
+ * kept for reuse, up to a fixed number per class, so steady-state use does
+ * not allocate. Not thread-safe; callers synchronize.
+ */
+public class BufferPool
+{
+	/** Size of the smallest buffer handed out */
+	public static final int MIN_SIZE = 1024;
+
+	/** Size of the largest buffer handed out */
+	public static final int MAX_SIZE = 64 * 1024;
+
+	/** Free buffers, indexed by size class */
+	private List<ArrayDeque<byte[]>> free;
+
+	/** Maximum number of free buffers kept per size class */
+	private int maxFreePerClass;
+
+	/**
+	 * Create an empty pool.
+	 * @param maxFreePerClass maximum number of free buffers kept per size
+	 *        class
+	 */
+	public BufferPool(int maxFreePerClass)
+	{
+		int classes = sizeClass(MAX_SIZE) + 1;
+		this.free = new ArrayList<ArrayDeque<byte[]>>(classes);
+		for (int i = 0; i < classes; i++)
+		{ this.free.add(new ArrayDeque<byte[]>()); }
+		this.maxFreePerClass = maxFreePerClass;
+	}
+
+	/**
+	 * Get a buffer of at least a given size.
+	 * @param size minimum size of the buffer; at most MAX_SIZE
+	 * @return a buffer whose length is a power of two; contents are undefined
+	 */
+	public byte[] acquire(int size)
+	{
+		int sizeClass = sizeClass(size);
+		byte[] buf = this.free.get(sizeClass).pollFirst();
+		if (null == buf)
+		{ buf = new byte[MIN_SIZE << sizeClass]; }
+		return buf;
+	}
+
+	/**
+	 * Return a buffer obtained from acquire to the pool.
+	 * @param buf the buffer
+	 */
+	public void release(byte[] buf)
+	{
+		ArrayDeque<byte[]> list = this.free.get(sizeClass(buf.length));
+		if (list.size() < this.maxFreePerClass)
+		{ list.addFirst(buf); }
+	}
+
+	/**
+	 * @param size a buffer size
+	 * @return the size class of the smallest buffer that holds size bytes
+	 */
+	public static int sizeClass(int size)
+	{
+		if (size <= MIN_SIZE)
+		{ return 0; }
+		return 32 - Integer.numberOfLeadingZeros((size - 1) / MIN_SIZE);
+	}
+
+	/**
+	 * @param size a buffer size
+	 * @return length of the buffer acquire would return for the size
+	 */
+	public static int bufferSize(int size)
+	{ return MIN_SIZE << sizeClass(size); }
+}
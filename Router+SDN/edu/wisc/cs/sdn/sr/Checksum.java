@@ -0,0 +1,154 @@
+package edu.wisc.cs.sdn.sr;
+
+import net.floodlightcontroller.packet.IPv4;
+
+/**
+ * Internet checksum helpers that only touch the IPv4 header: verification
+ * over the 20-60 header bytes and incremental updates (RFC 1624) when a
+ * header field changes.
+ */
+public class Checksum
+{
+	/** Maximum length of an IPv4 header (15 words) */
+	public static final int IPV4_MAX_HEADER_LENGTH = 60;
+
+	/**
+	 * Compute the one's complement checksum over an IPv4 header. Over a
+	 * header with a valid checksum field the result is zero.
+	 * @param buf buffer containing the header
+	 * @param offset offset of the header in the buffer
+	 * @param headerLength length of the header in bytes
+	 * @return checksum of the header
+	 */
+	public static int ipv4Header(byte[] buf, int offset, int headerLength)
+	{
+		int sum = 0;
+		for (int i = offset; i < offset + headerLength; i += 2)
+		{ sum += ((buf[i] & 0xff) << 8) | (buf[i + 1] & 0xff); }
+		return fold(sum);
+	}
+
+	/**
+	 * Compute the checksum of a deserialized IPv4 packet's header from its
+	 * fields, without serializing the packet or its payload.
+	 * @param packet the IPv4 packet
+	 * @return checksum of the header; zero if the checksum field is valid
+	 */
+	public static int ipv4Header(IPv4 packet)
+	{
+		int sum = ((((packet.getVersion() & 0xf) << 4)
+				| (packet.getHeaderLength() & 0xf)) << 8)
+				| (packet.getDiffServ() & 0xff);
+		sum += packet.getTotalLength() & 0xffff;
+		sum += packet.getIdentification() & 0xffff;
+		sum += (((packet.getFlags() & 0x7) << 13)
+				| (packet.getFragmentOffset() & 0x1fff));
+		sum += ((packet.getTtl() & 0xff) << 8) | (packet.getProtocol() & 0xff);
+		sum += packet.getChecksum() & 0xffff;
+		sum += (packet.getSourceAddress() >>> 16)
+				+ (packet.getSourceAddress() & 0xffff);
+		sum += (packet.getDestinationAddress() >>> 16)
+				+ (packet.getDestinationAddress() & 0xffff);
+		byte[] options = packet.getOptions();
+		if (options != null)
+		{
+			for (int i = 0; i + 1 < options.length; i += 2)
+			{ sum += ((options[i] & 0xff) << 8) | (options[i + 1] & 0xff); }
+		}
+		return fold(sum);
+	}
+
+	/**
+	 * Check that a buffer holds a complete IPv4 header with a valid checksum.
+	 * @param buf buffer containing the header
+	 * @param offset offset of the header in the buffer
+	 * @param available number of bytes available from offset
+	 * @return length of the header in bytes if it is valid, otherwise -1
+	 */
+	public static int verifyIpv4Header(byte[] buf, int offset, int available)
+	{
+		if (available < FastPath.IPV4_MIN_HEADER_LENGTH)
+		{ return -1; }
+		int headerLength = (buf[offset] & 0x0f) * 4;
+		if ((buf[offset] & 0xf0) != 0x40
+				|| headerLength < FastPath.IPV4_MIN_HEADER_LENGTH
+				|| headerLength > available)
+		{ return -1; }
+		if (ipv4Header(buf, offset, headerLength) != 0)
+		{ return -1; }
+		return headerLength;
+	}
+
+	/**
+	 * Adjust a checksum for a 16-bit word of the covered data changing from
+	 * oldWord to newWord (RFC 1624, eqn. 3).
+	 * @param checksum current checksum
+	 * @param oldWord previous value of the word
+	 * @param newWord new value of the word
+	 * @return updated checksum
+	 */
+	public static int adjust(int checksum, int oldWord, int newWord)
+	{
+		int sum = (~checksum & 0xffff) + (~oldWord & 0xffff)
+				+ (newWord & 0xffff);
+		return fold(sum);
+	}
+
+	/**
+	 * Adjust a checksum for a 32-bit value (e.g., an IP address) of the
+	 * covered data changing.
+	 * @param checksum current checksum
+	 * @param oldValue previous value
+	 * @param newValue new value
+	 * @return updated checksum
+	 */
+	public static int adjust32(int checksum, int oldValue, int newValue)
+	{
+		int sum = (~checksum & 0xffff)
+				+ (~oldValue >>> 16) + (~oldValue & 0xffff)
+				+ (newValue >>> 16) + (newValue & 0xffff);
+		return fold(sum);
+	}
+
+	/**
+	 * Decrement the TTL of an IPv4 header in a buffer and patch its checksum.
+	 * @param buf buffer containing the header
+	 * @param offset offset of the header in the buffer
+	 */
+	public static void decrementTtl(byte[] buf, int offset)
+	{
+		int ttlOffset = offset + FastPath.IPV4_TTL_OFFSET;
+		int checksumOffset = offset + FastPath.IPV4_CHECKSUM_OFFSET;
+		int oldWord = FastPath.getShort(buf, ttlOffset);
+		buf[ttlOffset]--;
+		FastPath.putShort(buf, checksumOffset, adjust(
+				FastPath.getShort(buf, checksumOffset), oldWord,
+				FastPath.getShort(buf, ttlOffset)));
+	}
+
+	/**
+	 * Decrement the TTL of a deserialized IPv4 packet and patch its checksum,
+	 * so it does not have to be recomputed when the packet is serialized.
+	 * @param packet the IPv4 packet
+	 */
+	public static void decrementTtl(IPv4 packet)
+	{
+		int oldWord = ((packet.getTtl() & 0xff) << 8)
+				| (packet.getProtocol() & 0xff);
+		packet.setTtl((byte)(packet.getTtl() - 1));
+		int newWord = ((packet.getTtl() & 0xff) << 8)
+				| (packet.getProtocol() & 0xff);
+		packet.setChecksum((short)adjust(packet.getChecksum() & 0xffff,
+				oldWord, newWord));
+	}
+
+	/**
+	 * Fold carries of a one's complement sum and complement the result.
+	 */
+	private static int fold(int sum)
+	{
+		sum = (sum & 0xffff) + (sum >>> 16);
+		sum = (sum & 0xffff) + (sum >>> 16);
+		return ~sum & 0xffff;
+	}
+}
@@ -0,0 +1,272 @@
+package edu.wisc.cs.sdn.sr;
+
+import edu.wisc.cs.sdn.sr.acl.Acl;
+import edu.wisc.cs.sdn.sr.acl.AclRule;
+import edu.wisc.cs.sdn.sr.flow.FlowMonitor;
+import edu.wisc.cs.sdn.sr.nat.Flow;
+import edu.wisc.cs.sdn.sr.nat.Napt;
+import edu.wisc.cs.sdn.sr.vns.PacketPipeline;
+
+import net.floodlightcontroller.packet.IPv4;
+
+/**
+ * Forwards transit IPv4 frames directly in the buffer they were received in,
+ * without building an Ethernet/IPv4/transport object tree, and answers pings
+ * to the router's addresses by turning the request into the reply in the
+ * same buffer. Anything the fast path cannot handle (ARP, other traffic for
+ * the router itself, fragmented pings, expired TTLs, missing routes or ARP
+ * entries, VLAN tags, bad checksums, packets larger than the outgoing
+ * interface's MTU) is left untouched for the regular packet handling in
+ * {@link Router}.
+ */
+public class FastPath
+{
+	/** Offset of the EtherType field within an Ethernet frame */
+	public static final int ETHER_TYPE_OFFSET = 12;
+
+	/** Length of an untagged Ethernet header */
+	public static final int ETHER_HEADER_LENGTH = 14;
+
+	/** Length of an IPv4 header without options */
+	public static final int IPV4_MIN_HEADER_LENGTH = 20;
+
+	/** Offsets of IPv4 header fields, relative to the start of the header */
+	public static final int IPV4_TOTAL_LENGTH_OFFSET = 2;
+	public static final int IPV4_TTL_OFFSET = 8;
+	public static final int IPV4_PROTOCOL_OFFSET = 9;
+	public static final int IPV4_CHECKSUM_OFFSET = 10;
+	public static final int IPV4_SRC_OFFSET = 12;
+	public static final int IPV4_DST_OFFSET = 16;
+	
+	/** Offset of the IPv4 flags and fragment offset field */
+	public static final int IPV4_FRAGMENT_OFFSET = 6;
+	
+	/** Length of an ICMP header */
+	public static final int ICMP_HEADER_LENGTH = 8;
+	
+	/** Offset of the checksum within an ICMP header */
+	public static final int ICMP_CHECKSUM_OFFSET = 2;
+	
+	/** ICMP types and code of echo requests and replies */
+	public static final int ICMP_ECHO_REQUEST = 8;
+	public static final int ICMP_ECHO_REPLY = 0;
+
+	/** Router on whose behalf frames are forwarded */
+	private Router router;
+
+	/**
+	 * Create a fast path for a router.
+	 * @param router router on whose behalf frames are forwarded
+	 */
+	public FastPath(Router router)
+	{ this.router = router; }
+
+	/**
+	 * Try to forward a received Ethernet frame without deserializing it. On
+	 * success the frame is rewritten in place (MAC addresses, TTL, checksum)
+	 * and sent out the next hop interface; the bytes directly preceding the
+	 * frame are reused for the VNS command header.
+	 * @param buf buffer containing the frame
+	 * @param offset offset of the Ethernet header in the buffer
+	 * @param length length of the frame
+	 * @param inIface interface on which the frame was received
+	 * @return true if the frame was forwarded, answered, or denied by the
+	 *         ACL, false if it should be handled by the regular (slow) path;
+	 *         the buffer is unmodified in that case
+	 */
+	public boolean forward(byte[] buf, int offset, int length, Iface inIface)
+	{
+		// Only untagged IPv4 with a complete, valid header
+		if (length < ETHER_HEADER_LENGTH + IPV4_MIN_HEADER_LENGTH
+				|| getShort(buf, offset + ETHER_TYPE_OFFSET) != 0x0800)
+		{ return false; }
+		int ip = offset + ETHER_HEADER_LENGTH;
+		int headerLength = Checksum.verifyIpv4Header(buf, ip, 
+				length - ETHER_HEADER_LENGTH);
+		if (headerLength < 0)
+		{ return false; }
+		int totalLength = getShort(buf, ip + IPV4_TOTAL_LENGTH_OFFSET);
+		if (totalLength < headerLength
+				|| totalLength > length - ETHER_HEADER_LENGTH)
+		{ return false; }
+
+		// Packets for a NAPT flow are routed to the flow's inside address
+		int dstIp = getInt(buf, ip + IPV4_DST_OFFSET);
+		Napt napt = this.router.getNapt();
+		Flow natFlow = null;
+		if (napt != null && napt.isOutside(inIface)
+				&& dstIp == napt.getExternalAddress())
+		{
+			natFlow = napt.inbound(buf, ip, totalLength);
+			if (null == natFlow)
+			{ return false; }
+			dstIp = natFlow.getInsideAddress();
+		}
+
+		// Pings to the router are answered here; other packets for the
+		// router itself and expired packets need ICMP/RIP
+		if (this.router.isLocalAddress(dstIp))
+		{
+			return null == natFlow && this.echoReply(buf, offset, length, 
+					ip, headerLength, totalLength, inIface);
+		}
+		int ttl = buf[ip + IPV4_TTL_OFFSET] & 0xff;
+		if (0 == ttl)
+		{ return false; }
+
+		// Denied packets are dropped here; a permitted packet's hit is only
+		// counted once the fast path forwards it, since the slow path checks
+		// the packets it is handed again
+		Acl acl = this.router.getAcl();
+		AclRule aclRule = null;
+		if (acl != null)
+		{
+			aclRule = acl.classify(buf, ip, totalLength);
+			if (!acl.isPermitted(aclRule))
+			{
+				acl.hit(aclRule);
+				this.router.getStats().dropped(RouterStats.Drop.ACL_DENIED);
+				return true;
+			}
+		}
+
+		// Resolve next hop; unknown routes and ARP misses take the slow path
+		ForwardingCache.Entry next =
+				this.router.getForwardingCache().lookup(dstIp);
+		if (null == next)
+		{ return false; }
+		// Equal-cost next hops: hash the flow as received, before any
+		// translation, as the slow path does
+		if (next.isMultipath())
+		{ next = next.path(PacketPipeline.flowHash(buf, offset, length)); }
+		Iface outIface = next.getOutIface();
+		if (totalLength > outIface.getMtu())
+		{ return false; }
+
+		// Packets leaving through the outside interface need a NAPT flow
+		boolean natOutbound = false;
+		if (napt != null && null == natFlow && napt.isInside(inIface)
+				&& napt.isOutside(outIface))
+		{
+			natFlow = napt.outbound(buf, ip, totalLength);
+			if (null == natFlow)
+			{ return false; }
+			natOutbound = true;
+		}
+		if (acl != null)
+		{ acl.hit(aclRule); }
+
+		// Log the frame as received, before it is rewritten
+		if (this.router.getLogFile() != null)
+		{ this.router.getLogFile().dump(buf, offset, length); }
+		this.router.getTracer().packet(PacketTracer.Level.DEBUG,
+				"*** -> Received packet", buf, offset, length, inIface);
+
+		// Rewrite Ethernet addresses, TTL, translated addresses and ports, and
+		// checksums in place
+		System.arraycopy(next.getMacHeader(), 0, buf, offset, 12);
+		Checksum.decrementTtl(buf, ip);
+		if (natFlow != null)
+		{ napt.translate(buf, ip, natFlow, natOutbound); }
+
+		// Account the packet as it leaves, as the slow path does
+		FlowMonitor flows = this.router.getFlowMonitor();
+		if (flows != null)
+		{ flows.account(buf, ip, totalLength, inIface, outIface); }
+
+		PacketClock.via(RouterStats.Path.FAST_FORWARD);
+		this.router.sendFrame(buf, offset, length, outIface);
+		this.router.getStats().forwarded(true);
+		return true;
+	}
+
+	/**
+	 * Answer an unfragmented ICMP echo request for the router by rewriting 
+	 * it into the reply: the Ethernet and IP addresses are swapped, which 
+	 * leaves the IP checksum unchanged, and the ICMP type is set to echo 
+	 * reply, with the ICMP checksum patched for that word. The reply goes
+	 * back out the interface the request arrived on, to the MAC address it
+	 * came from.
+	 * @param ip offset of the IPv4 header in the buffer
+	 * @param headerLength length of the IPv4 header; checked
+	 * @param totalLength IPv4 total length; checked
+	 * @return true if the request was answered or denied by the ACL, false 
+	 *         if it should be handled by the regular (slow) path; the 
+	 *         buffer is unmodified in that case
+	 */
+	private boolean echoReply(byte[] buf, int offset, int length, int ip,
+			int headerLength, int totalLength, Iface inIface)
+	{
+		// Only requests to an interface's own (unicast) address: a reply to
+		// a multicast group the router listens on must not come from the
+		// group's address
+		int icmp = ip + headerLength;
+		if (Util.isMulticast(getInt(buf, ip + IPV4_DST_OFFSET))
+				|| buf[ip + IPV4_PROTOCOL_OFFSET] != IPv4.PROTOCOL_ICMP
+				|| totalLength < headerLength + ICMP_HEADER_LENGTH
+				|| (getShort(buf, ip + IPV4_FRAGMENT_OFFSET) & 0x3fff) != 0
+				|| buf[icmp] != ICMP_ECHO_REQUEST || buf[icmp + 1] != 0
+				|| totalLength > inIface.getMtu()
+				|| null == inIface.getMacBytes())
+		{ return false; }
+		
+		Acl acl = this.router.getAcl();
+		if (acl != null && !acl.permits(buf, ip, totalLength))
+		{
+			this.router.getStats().dropped(RouterStats.Drop.ACL_DENIED);
+			return true;
+		}
+		
+		// Log the frame as received, before it is rewritten
+		if (this.router.getLogFile() != null)
+		{ this.router.getLogFile().dump(buf, offset, length); }
+		this.router.getTracer().packet(PacketTracer.Level.DEBUG,
+				"*** -> Received packet", buf, offset, length, inIface);
+		
+		// Reply to the sender's MAC address from the interface's
+		System.arraycopy(buf, offset + 6, buf, offset, 6);
+		System.arraycopy(inIface.getMacBytes(), 0, buf, offset + 6, 6);
+		
+		// Reply from the address that was pinged
+		int srcIp = getInt(buf, ip + IPV4_SRC_OFFSET);
+		System.arraycopy(buf, ip + IPV4_DST_OFFSET, buf, ip + IPV4_SRC_OFFSET, 
+				4);
+		putInt(buf, ip + IPV4_DST_OFFSET, srcIp);
+		
+		// Echo request to reply: only the type changes, so the checksum
+		// grows by the difference; added directly with end-around carry, 
+		// rather than with Checksum.adjust, which yields 0x0000 instead of 
+		// 0xffff for a message of zeros
+		int checksumOffset = icmp + ICMP_CHECKSUM_OFFSET;
+		buf[icmp] = ICMP_ECHO_REPLY;
+		int checksum = getShort(buf, checksumOffset) 
+				+ ((ICMP_ECHO_REQUEST - ICMP_ECHO_REPLY) << 8);
+		putShort(buf, checksumOffset, (checksum & 0xffff) + (checksum >>> 16));
+		
+		PacketClock.via(RouterStats.Path.ICMP);
+		this.router.sendFrame(buf, offset, length, inIface);
+		this.router.getStats().icmpSent((byte)ICMP_ECHO_REPLY);
+		return true;
+	}
+
+	static int getShort(byte[] buf, int offset)
+	{ return ((buf[offset] & 0xff) << 8) | (buf[offset + 1] & 0xff); }
+
+	static void putShort(byte[] buf, int offset, int value)
+	{
+		buf[offset] = (byte)(value >> 8);
+		buf[offset + 1] = (byte)value;
+	}
+
+	static int getInt(byte[] buf, int offset)
+	{
+		return ((buf[offset] & 0xff) << 24) | ((buf[offset + 1] & 0xff) << 16)
+				| ((buf[offset + 2] & 0xff) << 8) | (buf[offset + 3] & 0xff);
+	}
+
+	static void putInt(byte[] buf, int offset, int value)
+	{
+		putShort(buf, offset, value >>> 16);
+		putShort(buf, offset + 2, value);
+	}
+}
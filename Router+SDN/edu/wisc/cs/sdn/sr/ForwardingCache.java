@@ -0,0 +1,212 @@
+package edu.wisc.cs.sdn.sr;
+
+import java.util.Arrays;
+
+import net.floodlightcontroller.util.MACAddress;
+
+/**
+ * Per-destination cache of forwarding decisions. Maps a destination IP
+ * address to the outgoing interface and the precomputed Ethernet addresses
+ * for the next hop, so a packet to a known destination costs one array probe
+ * instead of a route lookup, an interface lookup and an ARP lookup. Entries
+ * are stamped with the route table's and ARP cache's version counters and
+ * are ignored once either has changed. A destination with equal-cost next
+ * hops is cached once all next hops are resolved, with one decision per next
+ * hop; until then its packets take the slow path.
+ */
+public class ForwardingCache
+{
+	/** Default number of slots; must be a power of two */
+	public static final int DEFAULT_SIZE = 4096;
+
+	/** A resolved forwarding decision for one destination */
+	public static class Entry
+	{
+		/** Destination IP address */
+		private final int dstIp;
+
+		/** Route table version the entry was resolved against */
+		private final int routeVersion;
+
+		/** ARP cache version the entry was resolved against */
+		private final int arpVersion;
+
+		/** Interface out which packets to the destination are sent */
+		private final Iface outIface;
+
+		/** Destination MAC followed by source MAC, as they appear at the
+		 * start of an Ethernet header */
+		private final byte[] macHeader;
+
+		/** Next hop's and outgoing interface's MAC addresses, for packets
+		 * that are not forwarded by the fast path */
+		private final MACAddress destinationMac;
+		private final MACAddress sourceMac;
+
+		/** Route with equal-cost next hops, and the decision for each next
+		 * hop; null for a single next hop */
+		private final RouteTableEntry route;
+		private final Entry[] paths;
+
+		private Entry(int dstIp, int routeVersion, int arpVersion,
+				Iface outIface, byte[] macHeader)
+		{
+			this.dstIp = dstIp;
+			this.routeVersion = routeVersion;
+			this.arpVersion = arpVersion;
+			this.outIface = outIface;
+			this.macHeader = macHeader;
+			this.destinationMac = new MACAddress(
+					Arrays.copyOfRange(macHeader, 0, 6));
+			this.sourceMac = new MACAddress(
+					Arrays.copyOfRange(macHeader, 6, 12));
+			this.route = null;
+			this.paths = null;
+		}
+
+		private Entry(int dstIp, int routeVersion, int arpVersion,
+				RouteTableEntry route, Entry[] paths)
+		{
+			this.dstIp = dstIp;
+			this.routeVersion = routeVersion;
+			this.arpVersion = arpVersion;
+			this.outIface = null;
+			this.macHeader = null;
+			this.destinationMac = null;
+			this.sourceMac = null;
+			this.route = route;
+			this.paths = paths;
+		}
+
+		/**
+		 * @return true if the destination has equal-cost next hops; the
+		 *         decision for a flow must then be taken from path()
+		 */
+		public boolean isMultipath()
+		{ return this.paths != null; }
+
+		/**
+		 * @param flowHash hash of the flow a packet belongs to
+		 * @return decision for the flow
+		 */
+		public Entry path(int flowHash)
+		{
+			if (null == this.paths)
+			{ return this; }
+			return this.paths[this.route.select(flowHash)];
+		}
+
+		/**
+		 * @return interface out which packets to the destination are sent
+		 */
+		public Iface getOutIface()
+		{ return this.outIface; }
+
+		/**
+		 * @return destination MAC followed by source MAC (12 bytes); must not
+		 *         be modified
+		 */
+		public byte[] getMacHeader()
+		{ return this.macHeader; }
+
+		/**
+		 * @return MAC address of the next hop
+		 */
+		public MACAddress getDestinationMac()
+		{ return this.destinationMac; }
+
+		/**
+		 * @return MAC address of the outgoing interface
+		 */
+		public MACAddress getSourceMac()
+		{ return this.sourceMac; }
+	}
+
+	/** Router whose forwarding decisions are cached */
+	private Router router;
+
+	/** Cached entries, indexed by a hash of the destination */
+	private Entry[] slots;
+
+	/**
+	 * Create an empty forwarding cache for a router.
+	 * @param router router whose forwarding decisions are cached
+	 * @param size number of slots; must be a power of two
+	 */
+	public ForwardingCache(Router router, int size)
+	{
+		this.router = router;
+		this.slots = new Entry[size];
+	}
+
+	/**
+	 * Get the forwarding decision for a destination, resolving and caching
+	 * it if it is not cached or out of date.
+	 * @param dstIp destination IP address
+	 * @return the forwarding decision; null if there is no route or the next
+	 *         hop's MAC address is not known
+	 */
+	public Entry lookup(int dstIp)
+	{
+		// Read versions first, so an entry resolved concurrently with a
+		// change is stamped with the old version and not used afterwards
+		int routeVersion = this.router.getRouteTable().getVersion();
+		int arpVersion = this.router.getArpCache().getVersion();
+		int slot = hash(dstIp) & (this.slots.length - 1);
+		Entry entry = this.slots[slot];
+		if (entry != null && entry.dstIp == dstIp
+				&& entry.routeVersion == routeVersion
+				&& entry.arpVersion == arpVersion)
+		{ return entry; }
+
+		RouteTableEntry route = this.router.getRouteTable().lookup(dstIp);
+		if (null == route)
+		{ return null; }
+		RouteTableEntry.NextHop[] nextHops = route.getNextHops();
+		Entry[] paths = new Entry[nextHops.length];
+		for (int i = 0; i < nextHops.length; i++)
+		{
+			paths[i] = this.resolve(dstIp, routeVersion, arpVersion,
+					nextHops[i]);
+			if (null == paths[i])
+			{ return null; }
+		}
+		if (1 == paths.length)
+		{ entry = paths[0]; }
+		else
+		{ entry = new Entry(dstIp, routeVersion, arpVersion, route, paths); }
+		this.slots[slot] = entry;
+		return entry;
+	}
+
+	/**
+	 * @return the forwarding decision for a next hop; null if the next hop's
+	 *         MAC address is not known
+	 */
+	private Entry resolve(int dstIp, int routeVersion, int arpVersion,
+			RouteTableEntry.NextHop nextHop)
+	{
+		Iface outIface = this.router.getInterface(nextHop.getInterface());
+		if (null == outIface)
+		{ return null; }
+		int nextHopIp = nextHop.getGatewayAddress();
+		if (0 == nextHopIp)
+		{ nextHopIp = dstIp; }
+		ArpEntry arpEntry = this.router.getArpCache().lookup(nextHopIp);
+		if (null == arpEntry)
+		{ return null; }
+
+		byte[] macHeader = new byte[12];
+		System.arraycopy(arpEntry.getMac().toBytes(), 0, macHeader, 0, 6);
+		System.arraycopy(outIface.getMacAddress().toBytes(), 0, macHeader, 6,
+				6);
+		return new Entry(dstIp, routeVersion, arpVersion, outIface,
+				macHeader);
+	}
+
+	private static int hash(int ip)
+	{
+		int h = ip * 0x9e3779b9;
+		return h ^ (h >>> 16);
+	}
+}
@@ -0,0 +1,190 @@
+package edu.wisc.cs.sdn.sr;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.floodlightcontroller.packet.IPv4;
+
+/**
+ * IPv4 fragmentation of serialized frames (RFC 791), and helpers for
+ * writing IPv4 headers from deserialized packets.
+ */
+public class Fragmentation
+{
+	/** Default MTU of an interface */
+	public static final int DEFAULT_MTU = 1500;
+
+	/** Smallest MTU every IPv4 link must support */
+	public static final int MIN_MTU = 68;
+
+	/** Option types with this bit set are copied into every fragment */
+	private static final int OPTION_COPIED = 0x80;
+
+	/**
+	 * Split an Ethernet frame carrying an IPv4 packet into frames whose IPv4
+	 * packets fit within an MTU. Each fragment is placed in a new buffer, at
+	 * the given offset, so headers can be prepended without copying.
+	 * @param frame buffer containing the frame
+	 * @param offset offset of the Ethernet header in the buffer
+	 * @param length length of the frame
+	 * @param mtu largest IPv4 packet the outgoing link carries
+	 * @param headroom offset of the Ethernet header in each fragment's buffer
+	 * @return buffers holding the fragments, each starting at headroom and
+	 *         extending to the end of the buffer; null if the packet must not
+	 *         be fragmented (DF set) or is malformed
+	 */
+	public static List<byte[]> fragment(byte[] frame, int offset, int length,
+			int mtu, int headroom)
+	{
+		int ip = offset + FastPath.ETHER_HEADER_LENGTH;
+		int headerLength = (frame[ip] & 0x0f) * 4;
+		int totalLength = FastPath.getShort(frame,
+				ip + FastPath.IPV4_TOTAL_LENGTH_OFFSET);
+		if (headerLength < FastPath.IPV4_MIN_HEADER_LENGTH
+				|| totalLength < headerLength
+				|| totalLength > length - FastPath.ETHER_HEADER_LENGTH)
+		{ return null; }
+		int flagsOffset = FastPath.getShort(frame, ip + 6);
+		if ((flagsOffset & (IPv4.IPV4_FLAGS_DONTFRAG << 13)) != 0)
+		{ return null; }
+
+		// Headers of later fragments only keep options marked as copied
+		byte[] laterOptions = copiedOptions(frame, ip + 20, headerLength - 20);
+		int laterHeaderLength = 20 + laterOptions.length;
+		if (mtu < laterHeaderLength + 8 || mtu < headerLength + 8)
+		{ return null; }
+
+		List<byte[]> fragments = new ArrayList<byte[]>();
+		boolean moreFragments = (flagsOffset
+				& (IPv4.IPV4_FLAGS_MOREFRAG << 13)) != 0;
+		int baseOffset = (flagsOffset & 0x1fff) * 8;
+		int payloadLength = totalLength - headerLength;
+		int position = 0;
+		while (position < payloadLength)
+		{
+			int fragmentHeaderLength = (0 == position)
+					? headerLength : laterHeaderLength;
+			int chunk = Math.min(payloadLength - position,
+					(mtu - fragmentHeaderLength) & ~7);
+			boolean last = (position + chunk == payloadLength);
+			int fragmentLength = fragmentHeaderLength + chunk;
+
+			byte[] buf = new byte[headroom + FastPath.ETHER_HEADER_LENGTH
+					+ fragmentLength];
+			int fragmentIp = headroom + FastPath.ETHER_HEADER_LENGTH;
+			System.arraycopy(frame, offset, buf, headroom,
+					FastPath.ETHER_HEADER_LENGTH);
+			System.arraycopy(frame, ip, buf, fragmentIp, 20);
+			if (0 == position)
+			{
+				System.arraycopy(frame, ip + 20, buf, fragmentIp + 20,
+						headerLength - 20);
+			}
+			else
+			{
+				System.arraycopy(laterOptions, 0, buf, fragmentIp + 20,
+						laterOptions.length);
+			}
+			System.arraycopy(frame, ip + headerLength + position, buf,
+					fragmentIp + fragmentHeaderLength, chunk);
+
+			buf[fragmentIp] = (byte)(0x40 | (fragmentHeaderLength / 4));
+			FastPath.putShort(buf,
+					fragmentIp + FastPath.IPV4_TOTAL_LENGTH_OFFSET,
+					fragmentLength);
+			int flags = (flagsOffset >> 13) & ~IPv4.IPV4_FLAGS_MOREFRAG;
+			if (!last || moreFragments)
+			{ flags |= IPv4.IPV4_FLAGS_MOREFRAG; }
+			FastPath.putShort(buf, fragmentIp + 6,
+					(flags << 13) | ((baseOffset + position) / 8));
+			FastPath.putShort(buf,
+					fragmentIp + FastPath.IPV4_CHECKSUM_OFFSET, 0);
+			FastPath.putShort(buf,
+					fragmentIp + FastPath.IPV4_CHECKSUM_OFFSET,
+					Checksum.ipv4Header(buf, fragmentIp,
+							fragmentHeaderLength));
+
+			fragments.add(buf);
+			position += chunk;
+		}
+		return fragments;
+	}
+
+	/**
+	 * @param packet an IPv4 packet
+	 * @return true if the packet is a fragment of a larger datagram
+	 */
+	public static boolean isFragment(IPv4 packet)
+	{
+		return packet.getFragmentOffset() != 0
+				|| (packet.getFlags() & IPv4.IPV4_FLAGS_MOREFRAG) != 0;
+	}
+
+	/**
+	 * Write the header of a deserialized IPv4 packet, as its fields are set,
+	 * without serializing the payload.
+	 * @param bb buffer to write the header to
+	 * @param packet the IPv4 packet
+	 */
+	public static void writeHeader(ByteBuffer bb, IPv4 packet)
+	{
+		int start = bb.position();
+		int headerLength = (packet.getHeaderLength() & 0xf) * 4;
+		bb.put((byte)(((packet.getVersion() & 0xf) << 4)
+				| (packet.getHeaderLength() & 0xf)));
+		bb.put(packet.getDiffServ());
+		bb.putShort(packet.getTotalLength());
+		bb.putShort(packet.getIdentification());
+		bb.putShort((short)(((packet.getFlags() & 0x7) << 13)
+				| (packet.getFragmentOffset() & 0x1fff)));
+		bb.put(packet.getTtl());
+		bb.put(packet.getProtocol());
+		bb.putShort(packet.getChecksum());
+		bb.putInt(packet.getSourceAddress());
+		bb.putInt(packet.getDestinationAddress());
+		byte[] options = packet.getOptions();
+		if (options != null)
+		{
+			bb.put(options, 0, Math.min(options.length,
+					headerLength - FastPath.IPV4_MIN_HEADER_LENGTH));
+		}
+		bb.position(start + headerLength);
+	}
+
+	/**
+	 * Collect the options that must be copied into every fragment, padded to
+	 * a multiple of 4 bytes.
+	 */
+	private static byte[] copiedOptions(byte[] buf, int offset, int length)
+	{
+		byte[] copied = new byte[length];
+		int copiedLength = 0;
+		int i = offset;
+		while (i < offset + length)
+		{
+			int type = buf[i] & 0xff;
+			if (0 == type)
+			{ break; }
+			if (1 == type)
+			{
+				i++;
+				continue;
+			}
+			if (i + 1 >= offset + length)
+			{ break; }
+			int optionLength = buf[i + 1] & 0xff;
+			if (optionLength < 2 || i + optionLength > offset + length)
+			{ break; }
+			if ((type & OPTION_COPIED) != 0)
+			{
+				System.arraycopy(buf, i, copied, copiedLength, optionLength);
+				copiedLength += optionLength;
+			}
+			i += optionLength;
+		}
+		byte[] padded = new byte[(copiedLength + 3) & ~3];
+		System.arraycopy(copied, 0, padded, 0, copiedLength);
+		return padded;
+	}
+}
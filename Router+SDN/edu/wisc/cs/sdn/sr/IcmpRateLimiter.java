@@ -0,0 +1,131 @@
+package edu.wisc.cs.sdn.sr;
+
+/**
+ * Token-bucket rate limiting of the ICMP errors generated by the router,
+ * both in total and per destination (the source of the offending packet).
+ * Each bucket refills at its rate and holds at most one second's worth of
+ * tokens; an error is sent only if both its destination's bucket and the
+ * global bucket hold a token. Per-destination buckets live in a fixed,
+ * direct-mapped table, so a flood of distinct sources cannot grow memory;
+ * a destination whose slot is taken over starts with a full bucket.
+ */
+public class IcmpRateLimiter
+{
+	/** Default limit on ICMP errors sent per second, in total */
+	public static final int DEFAULT_GLOBAL_RATE = 1000;
+
+	/** Default limit on ICMP errors sent per second to one destination */
+	public static final int DEFAULT_DESTINATION_RATE = 10;
+
+	/** Number of per-destination buckets; must be a power of two */
+	public static final int DESTINATION_SLOTS = 1024;
+
+	private static final long NANOS_PER_SECOND = 1000000000L;
+
+	/** A token bucket; tokens are scaled by NANOS_PER_SECOND, so refills
+	 * stay integral */
+	private static class Bucket
+	{
+		/** Destination the bucket belongs to; unused for the global bucket */
+		int address;
+
+		/** Tokens in the bucket, times NANOS_PER_SECOND */
+		long credit;
+
+		/** Time at which the bucket was last refilled */
+		long lastRefill;
+
+		Bucket(int address, long capacity, long now)
+		{
+			this.address = address;
+			this.credit = capacity;
+			this.lastRefill = now;
+		}
+
+		void refill(int rate, long capacity, long now)
+		{
+			long elapsed = now - this.lastRefill;
+			this.lastRefill = now;
+			if (elapsed >= NANOS_PER_SECOND)
+			{ this.credit = capacity; }
+			else
+			{ this.credit = Math.min(capacity, this.credit + elapsed * rate); }
+		}
+	}
+
+	/** Errors per second, in total; 0 for no limit */
+	private int globalRate;
+
+	/** Errors per second to one destination; 0 for no limit */
+	private int destinationRate;
+
+	/** Bucket limiting all errors */
+	private Bucket global;
+
+	/** Buckets limiting errors per destination, indexed by a hash */
+	private Bucket[] destinations;
+
+	/**
+	 * Create a rate limiter.
+	 * @param globalRate errors per second, in total; 0 for no limit
+	 * @param destinationRate errors per second to one destination; 0 for no
+	 *        limit
+	 */
+	public IcmpRateLimiter(int globalRate, int destinationRate)
+	{
+		this.globalRate = globalRate;
+		this.destinationRate = destinationRate;
+		long now = System.nanoTime();
+		this.global = new Bucket(0, capacity(globalRate), now);
+		this.destinations = new Bucket[DESTINATION_SLOTS];
+	}
+
+	/**
+	 * Take a token for sending an ICMP error.
+	 * @param address destination of the ICMP error
+	 * @return true if the error may be sent, false if it must be suppressed
+	 */
+	public synchronized boolean allow(int address)
+	{
+		long now = System.nanoTime();
+		Bucket destination = null;
+		if (this.destinationRate > 0)
+		{
+			int slot = hash(address) & (DESTINATION_SLOTS - 1);
+			destination = this.destinations[slot];
+			if (null == destination || destination.address != address)
+			{
+				destination = new Bucket(address,
+						capacity(this.destinationRate), now);
+				this.destinations[slot] = destination;
+			}
+			else
+			{
+				destination.refill(this.destinationRate,
+						capacity(this.destinationRate), now);
+			}
+			if (destination.credit < NANOS_PER_SECOND)
+			{ return false; }
+		}
+		if (this.globalRate > 0)
+		{
+			this.global.refill(this.globalRate, capacity(this.globalRate),
+					now);
+			if (this.global.credit < NANOS_PER_SECOND)
+			{ return false; }
+			this.global.credit -= NANOS_PER_SECOND;
+		}
+		if (destination != null)
+		{ destination.credit -= NANOS_PER_SECOND; }
+		return true;
+	}
+
+	private static long capacity(int rate)
+	{ return Math.max(1, rate) * NANOS_PER_SECOND; }
+
+	private static int hash(int address)
+	{
+		int h = address * 0x9e3779b9;
+		return h ^ (h >>> 16);
+	}
+}
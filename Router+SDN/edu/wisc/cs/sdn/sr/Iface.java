@@ -1,5 +1,6 @@
 package edu.wisc.cs.sdn.sr;
 
+import edu.wisc.cs.sdn.sr.qos.OutputQueue;
 import net.floodlightcontroller.packet.IPv4;
 import net.floodlightcontroller.util.MACAddress;
 
@@ -10,25 +11,81 @@ import net.floodlightcontroller.util.MACAddress;
 public class Iface 
 {
 	private String name;
+	private int index;
+	private byte[] wireName;
+	private RouterStats.InterfaceCounters counters;
 	private MACAddress macAddress;
+	private byte[] macBytes;
 	private int ipAddress;
     private int subnetMask;
+	private int mtu;
+	private volatile OutputQueue outputQueue;
 	
-	public Iface(String name)
+	public Iface(String name, int index, 
+			RouterStats.InterfaceCounters counters)
 	{
 		this.name = name;
+		this.index = index;
+		this.counters = counters;
+		this.wireName = new byte[InterfaceIndex.WIRE_NAME_LENGTH];
+		byte[] nameBytes = name.getBytes();
+		System.arraycopy(nameBytes, 0, this.wireName, 0, 
+				Math.min(nameBytes.length, this.wireName.length));
 		this.macAddress = null;
 		this.ipAddress = 0;
+		this.mtu = Fragmentation.DEFAULT_MTU;
 	}
 	
 	public String getName()
 	{ return this.name; }
 	
+	/**
+	 * @return position of the interface in the router's interface table
+	 */
+	public int getIndex()
+	{ return this.index; }
+	
+	/**
+	 * @return name as carried in VNS commands: NUL-padded to 
+	 *         InterfaceIndex.WIRE_NAME_LENGTH bytes; must not be modified
+	 */
+	public byte[] getWireName()
+	{ return this.wireName; }
+	
+	/**
+	 * @return packet and byte counters for the interface
+	 */
+	public RouterStats.InterfaceCounters getCounters()
+	{ return this.counters; }
+	
+	/**
+	 * @return queues frames wait in before they are sent out the interface;
+	 *         null if frames are sent right away
+	 */
+	public OutputQueue getOutputQueue()
+	{ return this.outputQueue; }
+	
+	/**
+	 * @param outputQueue queues frames wait in before they are sent out the
+	 *        interface; null to send frames right away
+	 */
+	public void setOutputQueue(OutputQueue outputQueue)
+	{ this.outputQueue = outputQueue; }
+	
 	public void setMacAddress(MACAddress mac)
-	{ this.macAddress = mac; }
+	{
+		this.macAddress = mac;
+		this.macBytes = (null == mac) ? null : mac.toBytes();
+	}
 	
 	public MACAddress getMacAddress()
 	{ return this.macAddress; }
+	
+	/**
+	 * @return MAC address of the interface as bytes; must not be modified
+	 */
+	public byte[] getMacBytes()
+	{ return this.macBytes; }
 
 	public void setIpAddress(int ip)
 	{ this.ipAddress = ip; }
@@ -41,6 +98,18 @@ public class Iface
 	
 	public int getSubnetMask()
 	{ return this.subnetMask; }
+	
+	/**
+	 * @param mtu largest IPv4 packet the interface's link carries
+	 */
+	public void setMtu(int mtu)
+	{ this.mtu = mtu; }
+	
+	/**
+	 * @return largest IPv4 packet the interface's link carries
+	 */
+	public int getMtu()
+	{ return this.mtu; }
 
 	public String toString()
 	{
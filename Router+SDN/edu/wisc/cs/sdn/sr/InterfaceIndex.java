@@ -0,0 +1,147 @@
+package edu.wisc.cs.sdn.sr;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Immutable lookup structures over a router's interfaces, built once the
+ * interfaces are known: interfaces by integer index, interfaces by the
+ * fixed-length name carried in VNS commands, and the set of IP addresses
+ * (interface addresses plus multicast groups) handled by the router itself.
+ * All lookups are array probes on primitives, so the data plane never
+ * creates, hashes or compares strings.
+ */
+public class InterfaceIndex
+{
+	/** Length of an interface name in VNS commands */
+	public static final int WIRE_NAME_LENGTH = 16;
+
+	/** Interfaces, indexed by {@link Iface#getIndex()} */
+	private Iface[] byIndex;
+
+	/** Open-addressed table of interfaces, keyed by wire name */
+	private Iface[] byWireName;
+
+	/** Open-addressed set of local addresses; 0 marks an empty slot */
+	private int[] localAddresses;
+
+	/**
+	 * Build the lookup structures for a set of interfaces.
+	 * @param ifaces the router's interfaces; each interface's index must be
+	 *        unique and less than the number of interfaces
+	 * @param groups multicast addresses the router listens on
+	 */
+	public InterfaceIndex(Collection<Iface> ifaces, int... groups)
+	{
+		this.byIndex = new Iface[ifaces.size()];
+		this.byWireName = new Iface[tableSize(ifaces.size())];
+		this.localAddresses = new int[tableSize(ifaces.size() + groups.length)];
+		for (Iface iface : ifaces)
+		{
+			this.byIndex[iface.getIndex()] = iface;
+			byte[] name = iface.getWireName();
+			int mask = this.byWireName.length - 1;
+			int slot = hashName(name, 0) & mask;
+			while (this.byWireName[slot] != null)
+			{ slot = (slot + 1) & mask; }
+			this.byWireName[slot] = iface;
+			this.addLocal(iface.getIpAddress());
+		}
+		for (int group : groups)
+		{ this.addLocal(group); }
+	}
+
+	/**
+	 * @return number of interfaces
+	 */
+	public int size()
+	{ return this.byIndex.length; }
+
+	/**
+	 * @param index index of the desired interface
+	 * @return requested interface; null if the index is out of range
+	 */
+	public Iface get(int index)
+	{
+		if (index < 0 || index >= this.byIndex.length)
+		{ return null; }
+		return this.byIndex[index];
+	}
+
+	/**
+	 * Get an interface by the name carried in a VNS command.
+	 * @param buf buffer containing the name
+	 * @param offset offset of the WIRE_NAME_LENGTH-byte, NUL-padded name
+	 * @return requested interface; null if no interface has that name
+	 */
+	public Iface get(byte[] buf, int offset)
+	{
+		int mask = this.byWireName.length - 1;
+		int slot = hashName(buf, offset) & mask;
+		Iface iface;
+		while ((iface = this.byWireName[slot]) != null)
+		{
+			if (Arrays.equals(iface.getWireName(), 0, WIRE_NAME_LENGTH,
+					buf, offset, offset + WIRE_NAME_LENGTH))
+			{ return iface; }
+			slot = (slot + 1) & mask;
+		}
+		return null;
+	}
+
+	/**
+	 * @param address an IP address
+	 * @return true if the address belongs to one of the interfaces or is a
+	 *         multicast group the router listens on
+	 */
+	public boolean isLocal(int address)
+	{
+		if (0 == address)
+		{ return false; }
+		int mask = this.localAddresses.length - 1;
+		int slot = hashAddress(address) & mask;
+		int candidate;
+		while ((candidate = this.localAddresses[slot]) != 0)
+		{
+			if (candidate == address)
+			{ return true; }
+			slot = (slot + 1) & mask;
+		}
+		return false;
+	}
+
+	private void addLocal(int address)
+	{
+		if (0 == address)
+		{ return; }
+		int mask = this.localAddresses.length - 1;
+		int slot = hashAddress(address) & mask;
+		while (this.localAddresses[slot] != 0)
+		{
+			if (this.localAddresses[slot] == address)
+			{ return; }
+			slot = (slot + 1) & mask;
+		}
+		this.localAddresses[slot] = address;
+	}
+
+	/**
+	 * Smallest power of two that keeps the load factor at or below 1/2.
+	 */
+	private static int tableSize(int entries)
+	{ return Integer.highestOneBit(Math.max(1, entries) * 2 - 1) << 1; }
+
+	private static int hashAddress(int address)
+	{
+		int h = address * 0x9e3779b9;
+		return h ^ (h >>> 16);
+	}
+
+	private static int hashName(byte[] buf, int offset)
+	{
+		int h = 0;
+		for (int i = offset; i < offset + WIRE_NAME_LENGTH; i++)
+		{ h = h * 31 + buf[i]; }
+		return h ^ (h >>> 16);
+	}
+}
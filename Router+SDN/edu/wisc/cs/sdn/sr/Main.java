@@ -1,6 +1,19 @@
 package edu.wisc.cs.sdn.sr;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import edu.wisc.cs.sdn.sr.acl.Acl;
+import edu.wisc.cs.sdn.sr.metrics.MetricsServer;
+import edu.wisc.cs.sdn.sr.flow.FlowConfig;
+import edu.wisc.cs.sdn.sr.flow.FlowMonitor;
+import edu.wisc.cs.sdn.sr.nat.Napt;
+import edu.wisc.cs.sdn.sr.qos.QosConfig;
+import edu.wisc.cs.sdn.sr.qos.TokenBucket;
 import edu.wisc.cs.sdn.sr.vns.Command;
+import edu.wisc.cs.sdn.sr.vns.SendQueue;
 import edu.wisc.cs.sdn.sr.vns.VNSComm;
 
 public class Main 
@@ -21,6 +34,20 @@ public class Main
 		String template = null;
 		short port = DEFAULT_PORT;
 		short topo = DEFAULT_TOPO;
+		int workers = 0;
+		String trace = null;
+		int metricsPort = 0;
+		int adminPort = 0;
+		String icmpRates = null;
+		int flushDelay = SendQueue.DEFAULT_FLUSH_DELAY_MICROS;
+		String mtus = null;
+		String aclFile = null;
+		String nat = null;
+		String qos = null;
+		String shaping = null;
+		String arpQueue = null;
+		String flows = null;
+		boolean pooled = false;
 		Router router = null;
 		VNSComm vnsComm = null;
 		
@@ -51,11 +78,99 @@ public class Main
 			{ routeTableFile = args[++i]; }
 			else if (arg.equals("-T"))
 			{ template = args[++i]; }
+			else if (arg.equals("-w"))
+			{ workers = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-d"))
+			{ trace = args[++i]; }
+			else if (arg.equals("-m"))
+			{ metricsPort = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-C"))
+			{ adminPort = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-i"))
+			{ icmpRates = args[++i]; }
+			else if (arg.equals("-a"))
+			{ aclFile = args[++i]; }
+			else if (arg.equals("-n"))
+			{ nat = args[++i]; }
+			else if (arg.equals("-q"))
+			{ qos = args[++i]; }
+			else if (arg.equals("-S"))
+			{ shaping = args[++i]; }
+			else if (arg.equals("-M"))
+			{ mtus = args[++i]; }
+			else if (arg.equals("-A"))
+			{ arpQueue = args[++i]; }
+			else if (arg.equals("-F"))
+			{ flows = args[++i]; }
+			else if (arg.equals("-o"))
+			{ pooled = true; }
+			else if (arg.equals("-b"))
+			{
+				String delay = args[++i];
+				flushDelay = delay.equals("off") ? -1 : Integer.parseInt(delay);
+			}
 		}
 		
 		// Create router instance
 		router = new Router(topo, host, user, template);
 		
+		// Configure packet tracing
+		if (trace != null && !router.getTracer().configure(trace))
+		{
+			System.err.println("Invalid trace specification "+trace);
+			usage();
+			System.exit(1);
+		}
+		
+		// Limit the rate of generated ICMP errors
+		if (icmpRates != null)
+		{
+			String[] rates = icmpRates.split(",");
+			int globalRate = Integer.parseInt(rates[0]);
+			int destinationRate = (rates.length > 1)
+					? Integer.parseInt(rates[1])
+					: IcmpRateLimiter.DEFAULT_DESTINATION_RATE;
+			router.setIcmpLimiter(new IcmpRateLimiter(globalRate,
+					destinationRate));
+		}
+		
+		// Cap the frames waiting for ARP, if not the default
+		if (arpQueue != null)
+		{
+			ArpQueueLimits arpQueueLimits = ArpQueueLimits.parse(arpQueue);
+			if (null == arpQueueLimits)
+			{
+				System.err.println("Invalid ARP queue specification "+arpQueue);
+				usage();
+				System.exit(1);
+			}
+			router.getArpCache().setQueueLimits(arpQueueLimits);
+			System.out.println("Limiting frames waiting for ARP to "
+					+ arpQueueLimits);
+		}
+		
+		// Load the access control list, if any
+		if (aclFile != null)
+		{
+			Acl acl = Acl.load(aclFile);
+			if (null == acl)
+			{
+				System.err.println("Error setting up ACL from file "+aclFile);
+				System.exit(1);
+			}
+			router.setAcl(acl);
+			System.out.println(String.format(
+					"Loaded ACL with %d rules in %d tuples", 
+					acl.getRules().size(), acl.getTupleCount()));
+		}
+		
+		// Expose counters through JMX and, if requested, over HTTP
+		MetricsServer metricsServer = new MetricsServer(
+				router.getStats().getRegistry());
+		metricsServer.registerMBean();
+		if (metricsPort > 0 && !metricsServer.startHttp(metricsPort))
+		{ System.exit(1); }
+		
 		// Load routing table from file
 		/*if (null == template)
 		{ router.loadRouteTable(rtable); }
@@ -80,6 +195,7 @@ public class Main
 		else
 		{ System.out.println("Requesting topology "+topo); }
 		vnsComm = new VNSComm(router);
+		vnsComm.setPooled(pooled);
 		router.setVNSComm(vnsComm);
 		if (!vnsComm.connectToServer(port, server))
 		{ System.exit(1); }
@@ -99,12 +215,95 @@ public class Main
 		}
 	
 		vnsComm.readFromServerExpect(Command.VNS_HW_INFO);	
+		
+		// Set interface MTUs, if not the default
+		if (mtus != null && !setMtus(router, mtus))
+		{
+			System.err.println("Invalid MTU specification "+mtus);
+			System.exit(1);
+		}
+		
+		// Translate traffic leaving through the outside interface, if requested
+		if (nat != null && !setNapt(router, nat))
+		{
+			System.err.println("Invalid NAT specification "+nat);
+			System.exit(1);
+		}
+		
+		// Account forwarded flows and export their records, if requested
+		if (flows != null)
+		{
+			FlowConfig flowConfig = FlowConfig.parse(flows);
+			if (null == flowConfig)
+			{
+				System.err.println("Invalid flow export specification "+flows);
+				usage();
+				System.exit(1);
+			}
+			FlowMonitor flowMonitor = FlowMonitor.start(flowConfig);
+			if (null == flowMonitor)
+			{ System.exit(1); }
+			router.setFlowMonitor(flowMonitor);
+			System.out.println("Exporting flow records: "+flowConfig);
+		}
+		
+		// Batch packets written to the server, unless disabled
+		if (flushDelay >= 0)
+		{ vnsComm.startSendQueue(flushDelay); }
 
+		// Shaping needs output queues; without classes, use one per interface
+		if (shaping != null && null == qos)
+		{ qos = "fifo"; }
+		
+		// Queue frames per interface and traffic class, if requested
+		if (qos != null)
+		{
+			QosConfig qosConfig;
+			if (qos.equals("default"))
+			{ qosConfig = QosConfig.defaults(); }
+			else if (qos.equals("fifo"))
+			{ qosConfig = QosConfig.fifo(); }
+			else
+			{ qosConfig = QosConfig.load(qos); }
+			if (null == qosConfig)
+			{
+				System.err.println("Error setting up QoS from file "+qos);
+				System.exit(1);
+			}
+			vnsComm.startQos(qosConfig);
+		}
+		
+		// Limit the rate at which interfaces send, if requested
+		if (shaping != null && !setShapers(router, shaping))
+		{
+			System.err.println("Invalid shaping specification "+shaping);
+			System.exit(1);
+		}
+		
 		// Call router init (for RIP subsystem, etc.)
 		router.init();
 		
+		// Accept commands, e.g., to reload the routing table, if requested
+		AdminServer adminServer = null;
+		if (adminPort > 0)
+		{
+			adminServer = AdminServer.start(router, adminPort);
+			if (null == adminServer)
+			{ System.exit(1); }
+		}
+		
+		// Process packets on worker threads, if requested
+		if (workers > 0)
+		{ vnsComm.startPipeline(workers); }
+		
 		// Read messages from the server until the server closes the connection
 		while (vnsComm.readFromServer());
+		vnsComm.stopPipeline();
+		vnsComm.stopQos();
+		vnsComm.stopSendQueue();
+		metricsServer.stopHttp();
+		if (adminServer != null)
+		{ adminServer.shutdown(); }
 		
 		// Shutdown the router
 		router.destroy();
@@ -112,13 +311,179 @@ public class Main
 		System.exit(0);
 	}
 	
+	/**
+	 * Set interface MTUs from a specification of the form mtu (for all
+	 * interfaces) or iface=mtu[,iface=mtu...].
+	 * @return true if the specification was valid, otherwise false
+	 */
+	static boolean setMtus(Router router, String spec)
+	{
+		try
+		{
+			for (String part : spec.split(","))
+			{
+				String[] ifaceMtu = part.split("=", 2);
+				int mtu = Integer.parseInt(ifaceMtu[ifaceMtu.length - 1]);
+				if (mtu < Fragmentation.MIN_MTU)
+				{ return false; }
+				if (1 == ifaceMtu.length)
+				{
+					for (Iface iface : router.getInterfaces().values())
+					{ iface.setMtu(mtu); }
+				}
+				else
+				{
+					Iface iface = router.getInterface(ifaceMtu[0]);
+					if (null == iface)
+					{ return false; }
+					iface.setMtu(mtu);
+				}
+			}
+		}
+		catch (NumberFormatException e)
+		{ return false; }
+		return true;
+	}
+	
+	/**
+	 * Shape output from a specification of the form rate[/burst] (for all
+	 * interfaces) or iface=rate[/burst][,iface=rate[/burst]...], where rate
+	 * is in bits per second, optionally followed by k, M, or G, and burst is
+	 * in bytes; by default the burst is what the rate allows in 10 ms, but at
+	 * least two full-sized frames. Interfaces must have output queues.
+	 * @return true if the specification was valid, otherwise false
+	 */
+	static boolean setShapers(Router router, String spec)
+	{
+		try
+		{
+			for (String part : spec.split(","))
+			{
+				String[] ifaceRate = part.split("=", 2);
+				String[] rateBurst = ifaceRate[ifaceRate.length - 1].split("/", 2);
+				long rate = parseRate(rateBurst[0]);
+				int burst = (2 == rateBurst.length) 
+						? Integer.parseInt(rateBurst[1]) : 0;
+				if (rate < 8 || burst < 0)
+				{ return false; }
+				
+				Collection<Iface> ifaces;
+				if (1 == ifaceRate.length)
+				{ ifaces = router.getInterfaces().values(); }
+				else
+				{
+					Iface iface = router.getInterface(ifaceRate[0]);
+					if (null == iface)
+					{ return false; }
+					ifaces = Collections.singletonList(iface);
+				}
+				
+				for (Iface iface : ifaces)
+				{
+					int ifaceBurst = burst;
+					if (0 == ifaceBurst)
+					{
+						ifaceBurst = (int)Math.min(Integer.MAX_VALUE, rate / 800);
+						ifaceBurst = Math.max(ifaceBurst, 
+								2 * (iface.getMtu() + FastPath.ETHER_HEADER_LENGTH));
+					}
+					iface.getOutputQueue().setShaper(
+							new TokenBucket(rate, ifaceBurst));
+					System.out.println(String.format(
+							"Shaping %s to %d bits/s with a %d byte burst",
+							iface.getName(), rate, ifaceBurst));
+				}
+			}
+		}
+		catch (NumberFormatException e)
+		{ return false; }
+		return true;
+	}
+	
+	/**
+	 * @return rate in bits per second from a number optionally followed by 
+	 *         k, M, or G
+	 * @throws NumberFormatException if the rate is invalid
+	 */
+	private static long parseRate(String rate)
+	{
+		long multiplier = 1;
+		char unit = rate.isEmpty() ? ' ' : rate.charAt(rate.length() - 1);
+		if ('k' == unit || 'K' == unit)
+		{ multiplier = 1000L; }
+		else if ('M' == unit || 'm' == unit)
+		{ multiplier = 1000L * 1000; }
+		else if ('G' == unit || 'g' == unit)
+		{ multiplier = 1000L * 1000 * 1000; }
+		if (multiplier > 1)
+		{ rate = rate.substring(0, rate.length() - 1); }
+		return (long)(Double.parseDouble(rate) * multiplier);
+	}
+	
+	/**
+	 * Enable address and port translation from a specification of the form
+	 * outside_iface[,inside=iface[+iface...]]; by default all other
+	 * interfaces are inside.
+	 * @return true if the specification was valid, otherwise false
+	 */
+	static boolean setNapt(Router router, String spec)
+	{
+		String[] parts = spec.split(",");
+		Iface outside = router.getInterface(parts[0]);
+		if (null == outside || parts.length > 2)
+		{ return false; }
+		List<Iface> inside = new ArrayList<Iface>();
+		if (1 == parts.length)
+		{ inside.addAll(router.getInterfaces().values()); }
+		else
+		{
+			if (!parts[1].startsWith("inside="))
+			{ return false; }
+			for (String name : parts[1].substring("inside=".length()).split("\\+"))
+			{
+				Iface iface = router.getInterface(name);
+				if (null == iface)
+				{ return false; }
+				inside.add(iface);
+			}
+		}
+		inside.remove(outside);
+		router.setNapt(new Napt(outside, inside));
+		System.out.println(String.format(
+				"Translating traffic from %d inside interfaces to %s (%s)",
+				inside.size(), outside.getName(),
+				Util.intToDottedDecimal(outside.getIpAddress())));
+		return true;
+	}
+	
 	static void usage()
 	{
 		System.out.println("Simple Router Client");
 		System.out.println("Main [-h] [-v host] [-s server] [-p port]");
 		System.out.println("     [-T template_name] [-u username]");
-		System.out.println("     [-t topo_id] [-r routing_table]");
-		System.out.println("     [-l log_file]");
+		System.out.println("     [-t topo_id] [-r routing_table] [-a acl_file]");
+		System.out.println("     [-l log_file] [-w worker_threads] [-m metrics_port]");
+		System.out.println("     [-C admin_port]");
+		System.out.println("     [-i icmp_errors_per_sec[,per_destination]]");
+		System.out.println("     [-b flush_delay_us|off] [-M mtu|iface=mtu[,iface=mtu]]");
+		System.out.println("     [-n outside_iface[,inside=iface[+iface]]] [-q qos_file|default]");
+		System.out.println("     [-S rate[/burst]|iface=rate[/burst][,iface=rate[/burst]]]");
+		System.out.println("     [-A [request=packets[/bytes]][,total=packets[/bytes]][,drop=oldest|newest]]");
+		System.out.println("     [-F udp:host:port|file:path[,sample=N][,inactive=s][,active=s][,flows=N]]");
+		System.out.println("     [-d level[,sample=N][,iface=if[+if]][,proto=p[+p]]] [-o]");
+		System.out.println("  trace levels: off, error, info, debug; protocols: arp, icmp,");
+		System.out.println("  tcp, udp, rip, other");
+		System.out.println("  an ICMP rate of 0 disables that limit");
+		System.out.println("  a flush delay of 0 (default) writes as soon as no more frames are queued");
+		System.out.println("  -o reuses each thread's packet objects for the frames it receives");
+		System.out.println("  ARP queue defaults: " + ArpQueueLimits.defaults());
+		System.out.println(String.format(
+				"  flow export writes IPFIX; defaults inactive=%d active=%d flows=%d",
+				FlowConfig.DEFAULT_INACTIVE_TIMEOUT / 1000,
+				FlowConfig.DEFAULT_ACTIVE_TIMEOUT / 1000,
+				FlowConfig.DEFAULT_CAPACITY));
+		System.out.println("  the admin port takes the command reload, which reloads the routing");
+		System.out.println("  table file, unless RIP is running");
 		System.out.println(String.format("  defaults server=%s port=%d host=%s", 
 				DEFAULT_SERVER, DEFAULT_PORT, DEFAULT_HOST));
 	}
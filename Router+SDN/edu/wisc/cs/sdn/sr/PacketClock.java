@@ -0,0 +1,115 @@
+package edu.wisc.cs.sdn.sr;
+
+/**
+ * Measures the time packets spend in the router, from when the command
+ * carrying a packet is read from the VNS server until the first frame the
+ * packet causes the router to send (the forwarded packet, an ICMP message, or
+ * an ARP or RIP response). The receive time follows the packet on the thread
+ * processing it; frames parked waiting for ARP carry theirs in the headroom
+ * of their buffer. Before sending, the router names the path the frame is
+ * sent by, and the time is recorded in that path's histogram.
+ */
+public class PacketClock
+{
+	/** Bytes of headroom used to save a receive time in a frame's buffer */
+	public static final int SAVED_LENGTH = 9;
+
+	/** Packet being processed by a thread */
+	private static class State
+	{
+		/** Whether a packet is being processed and has not caused a frame to
+		 * be sent yet */
+		boolean pending;
+
+		/** Time (System.nanoTime()) at which the packet was received */
+		long received;
+
+		/** Path by which the next frame is sent */
+		RouterStats.Path path = RouterStats.Path.SLOW_FORWARD;
+	}
+
+	private static final ThreadLocal<State> STATE = new ThreadLocal<State>() {
+		@Override
+		protected State initialValue()
+		{ return new State(); }
+	};
+
+	private PacketClock()
+	{ }
+
+	/**
+	 * Start measuring a packet processed by the current thread.
+	 * @param nanos time (System.nanoTime()) at which the packet was received
+	 */
+	public static void received(long nanos)
+	{
+		State state = STATE.get();
+		state.pending = true;
+		state.received = nanos;
+		state.path = RouterStats.Path.SLOW_FORWARD;
+	}
+
+	/**
+	 * Set the path by which the current thread sends its next frame.
+	 */
+	public static void via(RouterStats.Path path)
+	{ STATE.get().path = path; }
+
+	/**
+	 * Record the time the packet processed by the current thread spent in
+	 * the router, if it has not caused a frame to be sent yet. Called when a
+	 * frame is sent.
+	 * @param stats statistics to record the time in
+	 */
+	public static void sent(RouterStats stats)
+	{
+		State state = STATE.get();
+		if (!state.pending)
+		{ return; }
+		state.pending = false;
+		stats.latency(state.path, System.nanoTime() - state.received);
+	}
+
+	/**
+	 * Stop measuring the packet processed by the current thread.
+	 */
+	public static void clear()
+	{ STATE.get().pending = false; }
+
+	/**
+	 * Save the receive time of the packet processed by the current thread in
+	 * a buffer, so it can be measured once the frame is sent by another
+	 * packet or thread.
+	 * @param buf buffer to save the time in
+	 * @param offset offset of the SAVED_LENGTH bytes to save the time in
+	 */
+	public static void save(byte[] buf, int offset)
+	{
+		State state = STATE.get();
+		buf[offset] = (byte)(state.pending ? 1 : 0);
+		long received = state.received;
+		for (int i = SAVED_LENGTH - 1; i > 0; i--)
+		{
+			buf[offset + i] = (byte)received;
+			received >>>= 8;
+		}
+	}
+
+	/**
+	 * Resume measuring a packet whose receive time was saved in a buffer, on
+	 * the current thread, in place of the packet being processed.
+	 * @param buf buffer the time was saved in
+	 * @param offset offset of the SAVED_LENGTH bytes the time was saved in
+	 * @param path path by which the frame is sent
+	 */
+	public static void restore(byte[] buf, int offset, RouterStats.Path path)
+	{
+		State state = STATE.get();
+		state.pending = (buf[offset] != 0);
+		long received = 0;
+		for (int i = 1; i < SAVED_LENGTH; i++)
+		{ received = (received << 8) | (buf[offset + i] & 0xff); }
+		state.received = received;
+		state.path = path;
+	}
+}
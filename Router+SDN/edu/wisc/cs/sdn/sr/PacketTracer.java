@@ -0,0 +1,343 @@
+package edu.wisc.cs.sdn.sr;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.UDP;
+
+/**
+ * Level-gated tracing of router events and packets. Callers only hand over
+ * constant messages and packet references; a packet is copied when it passes
+ * the level, interface, protocol and sampling checks, and all formatting
+ * happens on a background thread draining a bounded ring of trace records.
+ * With tracing off, tracing costs one comparison per call site.
+ */
+public class PacketTracer
+{
+	/** Trace levels, from least to most verbose */
+	public enum Level { OFF, ERROR, INFO, DEBUG }
+
+	/** Protocol classes that can be selected with a protocol filter */
+	public static final int PROTO_ARP = 1;
+	public static final int PROTO_ICMP = 2;
+	public static final int PROTO_TCP = 4;
+	public static final int PROTO_UDP = 8;
+	public static final int PROTO_RIP = 16;
+	public static final int PROTO_OTHER = 32;
+	public static final int PROTO_ALL = 63;
+
+	/** Number of trace records that can be waiting to be printed */
+	public static final int RING_SIZE = 4096;
+
+	/** A trace record waiting to be formatted */
+	private static class Record
+	{
+		long time;
+		Level level;
+		String message;
+		String ifaceName;
+		byte[] frame;
+	}
+
+	/** Most verbose level that is traced */
+	private volatile int level;
+
+	/** Trace 1 in this many packets that pass the filters */
+	private volatile int sampleRate;
+
+	/** Protocol classes to trace; bitwise OR of PROTO_* */
+	private volatile int protocols;
+
+	/** Names of interfaces to trace packets for; null for all interfaces */
+	private volatile Set<String> ifaces;
+
+	/** Number of packets that passed the filters, for sampling */
+	private AtomicLong sampleCounter;
+
+	/** Number of records dropped because the ring was full */
+	private AtomicLong dropped;
+
+	/** Records waiting to be formatted by the sink thread */
+	private BlockingQueue<Record> ring;
+
+	/** Thread formatting and printing trace records */
+	private Thread sinkThread;
+
+	/**
+	 * Create a tracer that traces errors only.
+	 */
+	public PacketTracer()
+	{
+		this.level = Level.ERROR.ordinal();
+		this.sampleRate = 1;
+		this.protocols = PROTO_ALL;
+		this.ifaces = null;
+		this.sampleCounter = new AtomicLong();
+		this.dropped = new AtomicLong();
+		this.ring = new ArrayBlockingQueue<Record>(RING_SIZE);
+		this.sinkThread = null;
+	}
+
+	/**
+	 * Configure the tracer from a specification of the form
+	 * level[,sample=N][,iface=name[+name...]][,proto=p[+p...]], where level
+	 * is off, error, info or debug and protocols are arp, icmp, tcp, udp,
+	 * rip or other.
+	 * @param spec tracing specification
+	 * @return true if the specification was valid, otherwise false
+	 */
+	public boolean configure(String spec)
+	{
+		String[] parts = spec.split(",");
+		Level newLevel = null;
+		for (Level l : Level.values())
+		{
+			if (l.name().equalsIgnoreCase(parts[0]))
+			{ newLevel = l; }
+		}
+		if (null == newLevel)
+		{ return false; }
+
+		int newSampleRate = 1;
+		int newProtocols = PROTO_ALL;
+		Set<String> newIfaces = null;
+		for (int i = 1; i < parts.length; i++)
+		{
+			String[] option = parts[i].split("=", 2);
+			if (option.length != 2)
+			{ return false; }
+			if (option[0].equals("sample"))
+			{
+				try
+				{ newSampleRate = Integer.parseInt(option[1]); }
+				catch (NumberFormatException e)
+				{ return false; }
+				if (newSampleRate < 1)
+				{ return false; }
+			}
+			else if (option[0].equals("iface"))
+			{
+				newIfaces = new HashSet<String>();
+				for (String name : option[1].split("\\+"))
+				{ newIfaces.add(name); }
+			}
+			else if (option[0].equals("proto"))
+			{
+				newProtocols = 0;
+				for (String name : option[1].split("\\+"))
+				{
+					int proto = protocolByName(name);
+					if (0 == proto)
+					{ return false; }
+					newProtocols |= proto;
+				}
+			}
+			else
+			{ return false; }
+		}
+
+		this.sampleRate = newSampleRate;
+		this.protocols = newProtocols;
+		this.ifaces = newIfaces;
+		this.level = newLevel.ordinal();
+		return true;
+	}
+
+	/**
+	 * @param level a trace level
+	 * @return true if events at the level are traced
+	 */
+	public boolean isEnabled(Level level)
+	{ return level.ordinal() <= this.level; }
+
+	/**
+	 * Trace an event.
+	 * @param level level of the event
+	 * @param message constant description of the event
+	 */
+	public void trace(Level level, String message)
+	{
+		if (!this.isEnabled(level))
+		{ return; }
+		this.enqueue(level, message, null, null);
+	}
+
+	/**
+	 * Trace a packet, if it passes the level, filters and sampling.
+	 * @param level level of the event
+	 * @param message constant description of the event
+	 * @param etherPacket the packet
+	 * @param iface interface the packet was received or sent on
+	 */
+	public void packet(Level level, String message, Ethernet etherPacket,
+			Iface iface)
+	{
+		if (!this.isEnabled(level)
+				|| !this.passes(classify(etherPacket), iface))
+		{ return; }
+		this.enqueue(level, message, iface, etherPacket.serialize());
+	}
+
+	/**
+	 * Trace a serialized packet, if it passes the level, filters and
+	 * sampling.
+	 * @param level level of the event
+	 * @param message constant description of the event
+	 * @param buf buffer containing the frame
+	 * @param offset offset of the frame in the buffer
+	 * @param length length of the frame
+	 * @param iface interface the packet was received or sent on
+	 */
+	public void packet(Level level, String message, byte[] buf, int offset,
+			int length, Iface iface)
+	{
+		if (!this.isEnabled(level)
+				|| !this.passes(classify(buf, offset, length), iface))
+		{ return; }
+		byte[] frame = new byte[length];
+		System.arraycopy(buf, offset, frame, 0, length);
+		this.enqueue(level, message, iface, frame);
+	}
+
+	/**
+	 * @return number of trace records dropped because the sink fell behind
+	 */
+	public long getDropped()
+	{ return this.dropped.get(); }
+
+	private boolean passes(int protocol, Iface iface)
+	{
+		if (0 == (protocol & this.protocols))
+		{ return false; }
+		Set<String> ifaceFilter = this.ifaces;
+		if (ifaceFilter != null
+				&& (null == iface || !ifaceFilter.contains(iface.getName())))
+		{ return false; }
+		int rate = this.sampleRate;
+		return 1 == rate || 0 == this.sampleCounter.incrementAndGet() % rate;
+	}
+
+	private void enqueue(Level level, String message, Iface iface,
+			byte[] frame)
+	{
+		Record record = new Record();
+		record.time = System.currentTimeMillis();
+		record.level = level;
+		record.message = message;
+		record.ifaceName = (null == iface) ? null : iface.getName();
+		record.frame = frame;
+		this.startSink();
+		if (!this.ring.offer(record))
+		{ this.dropped.incrementAndGet(); }
+	}
+
+	private synchronized void startSink()
+	{
+		if (this.sinkThread != null)
+		{ return; }
+		this.sinkThread = new Thread(new Runnable() {
+			public void run() { drain(); }
+		}, "sr-tracer");
+		this.sinkThread.setDaemon(true);
+		this.sinkThread.start();
+	}
+
+	private void drain()
+	{
+		while (true)
+		{
+			Record record;
+			try
+			{ record = this.ring.take(); }
+			catch (InterruptedException e)
+			{ break; }
+			System.out.println(format(record));
+		}
+	}
+
+	private static String format(Record record)
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%tT.%<tL %-5s ", record.time, record.level));
+		if (record.ifaceName != null)
+		{ sb.append('[').append(record.ifaceName).append("] "); }
+		sb.append(record.message);
+		if (record.frame != null)
+		{
+			try
+			{
+				Ethernet etherPacket = new Ethernet();
+				etherPacket.deserialize(record.frame, 0, record.frame.length);
+				sb.append(": ");
+				sb.append(etherPacket.toString().replace("\n", "\n\t"));
+			}
+			catch (RuntimeException e)
+			{ sb.append(": <").append(record.frame.length).append(" bytes>"); }
+		}
+		return sb.toString();
+	}
+
+	private static int protocolByName(String name)
+	{
+		if (name.equals("arp")) { return PROTO_ARP; }
+		if (name.equals("icmp")) { return PROTO_ICMP; }
+		if (name.equals("tcp")) { return PROTO_TCP; }
+		if (name.equals("udp")) { return PROTO_UDP; }
+		if (name.equals("rip")) { return PROTO_RIP; }
+		if (name.equals("other")) { return PROTO_OTHER; }
+		return 0;
+	}
+
+	private static int classify(Ethernet etherPacket)
+	{
+		if (etherPacket.getEtherType() == Ethernet.TYPE_ARP)
+		{ return PROTO_ARP; }
+		if (etherPacket.getEtherType() != Ethernet.TYPE_IPv4)
+		{ return PROTO_OTHER; }
+		IPv4 ipPacket = (IPv4)etherPacket.getPayload();
+		int port = -1;
+		if (ipPacket.getPayload() instanceof UDP)
+		{ port = ((UDP)ipPacket.getPayload()).getDestinationPort(); }
+		return classifyIp(ipPacket.getProtocol(), port);
+	}
+
+	private static int classify(byte[] buf, int offset, int length)
+	{
+		if (length < FastPath.ETHER_HEADER_LENGTH)
+		{ return PROTO_OTHER; }
+		int etherType = FastPath.getShort(buf,
+				offset + FastPath.ETHER_TYPE_OFFSET);
+		if (0x0806 == etherType)
+		{ return PROTO_ARP; }
+		int ip = offset + FastPath.ETHER_HEADER_LENGTH;
+		if (etherType != 0x0800
+				|| length < FastPath.ETHER_HEADER_LENGTH
+						+ FastPath.IPV4_MIN_HEADER_LENGTH)
+		{ return PROTO_OTHER; }
+		int headerLength = (buf[ip] & 0x0f) * 4;
+		int port = -1;
+		if (length >= FastPath.ETHER_HEADER_LENGTH + headerLength + 4)
+		{ port = FastPath.getShort(buf, ip + headerLength + 2); }
+		return classifyIp(buf[ip + FastPath.IPV4_PROTOCOL_OFFSET], port);
+	}
+
+	private static int classifyIp(byte protocol, int udpDestinationPort)
+	{
+		switch (protocol)
+		{
+		case IPv4.PROTOCOL_ICMP:
+			return PROTO_ICMP;
+		case IPv4.PROTOCOL_TCP:
+			return PROTO_TCP;
+		case IPv4.PROTOCOL_UDP:
+			return (UDP.RIP_PORT == udpDestinationPort) ? PROTO_RIP : PROTO_UDP;
+		default:
+			return PROTO_OTHER;
+		}
+	}
+}
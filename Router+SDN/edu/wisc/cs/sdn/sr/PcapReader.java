@@ -0,0 +1,150 @@
+package edu.wisc.cs.sdn.sr;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Reads Ethernet frames from a PCAP file, such as one written by
+ * {@link DumpFile}. Files in either byte order and with microsecond or
+ * nanosecond timestamps are accepted.
+ */
+public class PcapReader
+{
+	private static final int TCPDUMP_MAGIC = 0xa1b2c3d4;
+	private static final int TCPDUMP_MAGIC_NANOS = 0xa1b23c4d;
+	private static final int LINKTYPE_ETHERNET = 1;
+
+	/** Largest record accepted */
+	private static final int MAX_RECORD_LENGTH = 256 * 1024;
+
+	private DataInputStream inStream;
+
+	/** Whether fields are little-endian */
+	private boolean swapped;
+
+	/** Whether timestamps have nanosecond resolution */
+	private boolean nanos;
+
+	/** Current record: timestamp (in ns), captured bytes, and length of the
+	 * frame on the wire */
+	private long timestamp;
+	private byte[] frame;
+	private int originalLength;
+
+	private PcapReader(DataInputStream inStream)
+	{ this.inStream = inStream; }
+
+	/**
+	 * Open a PCAP file and read its header.
+	 * @param filename name of the file
+	 * @return the reader, or null if the file could not be opened or is not a
+	 *         PCAP file of Ethernet frames
+	 */
+	public static PcapReader open(String filename)
+	{
+		PcapReader reader;
+		try
+		{
+			reader = new PcapReader(new DataInputStream(
+					new BufferedInputStream(new FileInputStream(filename))));
+		}
+		catch (IOException e)
+		{
+			System.err.println("Cannot open " + filename);
+			return null;
+		}
+
+		if (!reader.readHeader())
+		{
+			System.err.println(filename + " is not a PCAP file of Ethernet frames");
+			reader.close();
+			return null;
+		}
+		return reader;
+	}
+
+	private boolean readHeader()
+	{
+		try
+		{
+			int magic = this.inStream.readInt();
+			if (TCPDUMP_MAGIC == magic || TCPDUMP_MAGIC_NANOS == magic)
+			{ this.swapped = false; }
+			else if (TCPDUMP_MAGIC == Integer.reverseBytes(magic)
+					|| TCPDUMP_MAGIC_NANOS == Integer.reverseBytes(magic))
+			{
+				this.swapped = true;
+				magic = Integer.reverseBytes(magic);
+			}
+			else
+			{ return false; }
+			this.nanos = (TCPDUMP_MAGIC_NANOS == magic);
+
+			// Version, time zone, timestamp accuracy, snapshot length
+			this.inStream.readFully(new byte[16]);
+			return (LINKTYPE_ETHERNET == this.readInt());
+		}
+		catch (IOException e)
+		{ return false; }
+	}
+
+	/**
+	 * Read the next record.
+	 * @return true if a record was read, false at the end of the file
+	 * @throws IOException if the file could not be read or is truncated
+	 */
+	public boolean next() throws IOException
+	{
+		int seconds;
+		try
+		{ seconds = this.readInt(); }
+		catch (EOFException e)
+		{ return false; }
+		long fraction = this.readInt() & 0xffffffffL;
+		int capturedLength = this.readInt();
+		this.originalLength = this.readInt();
+		if (capturedLength < 0 || capturedLength > MAX_RECORD_LENGTH)
+		{ throw new IOException("Invalid record length " + capturedLength); }
+
+		this.timestamp = (seconds & 0xffffffffL) * 1000 * 1000 * 1000
+				+ (this.nanos ? fraction : fraction * 1000);
+		this.frame = new byte[capturedLength];
+		this.inStream.readFully(this.frame);
+		return true;
+	}
+
+	/**
+	 * @return time the current frame was captured (in ns since the epoch)
+	 */
+	public long getTimestamp()
+	{ return this.timestamp; }
+
+	/**
+	 * @return captured bytes of the current frame
+	 */
+	public byte[] getFrame()
+	{ return this.frame; }
+
+	/**
+	 * @return length of the current frame on the wire; more than the
+	 *         captured bytes if the frame was truncated
+	 */
+	public int getOriginalLength()
+	{ return this.originalLength; }
+
+	public void close()
+	{
+		try
+		{ this.inStream.close(); }
+		catch (IOException e) { }
+	}
+
+	private int readInt() throws IOException
+	{
+		int value = this.inStream.readInt();
+		return this.swapped ? Integer.reverseBytes(value) : value;
+	}
+}
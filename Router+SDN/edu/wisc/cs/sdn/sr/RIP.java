@@ -11,7 +11,7 @@ import java.util.List;
  * @author Anubhavnidhi Abhashkumar and Aaron Gember-Jacobson
  */
 public class RIP implements Runnable {
-    private static final int RIP_MULTICAST_IP = 0xE0000009;
+    static final int RIP_MULTICAST_IP = 0xE0000009;
     private static final byte[] BROADCAST_MAC = {(byte) 0xFF, (byte) 0xFF,
             (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF};
 
@@ -35,16 +35,30 @@ public class RIP implements Runnable {
      */
     private Thread tasksThread;
 
+    /**
+     * Whether RIP maintains the route table
+     */
+    private volatile boolean active;
+
     public RIP(Router router) {
         this.router = router;
         this.tasksThread = new Thread(this);
     }
 
+    /**
+     * @return true if RIP maintains the route table, i.e., the router does
+     *         not use static routing
+     */
+    public boolean isActive() {
+        return this.active;
+    }
+
     public void init() {
         // If we are using static routing, then don't do anything
         if (this.router.getRouteTable().getEntries().size() > 0) {
             return;
         }
+        this.active = true;
 
         System.out.println("RIP: Build initial routing table");
         assert this.router.getInterfaces().values().size() > 0;
@@ -63,6 +77,7 @@ public class RIP implements Runnable {
         for (Iface iface : this.router.getInterfaces().values()) {
             Ethernet ethernet = wrapRipv2(RIPv2.COMMAND_REQUEST, null, iface);
             this.router.sendPacket(ethernet, iface);
+            this.router.getStats().ripSent(true);
         }
 
 
@@ -92,15 +107,31 @@ public class RIP implements Runnable {
 
         /*********************************************************************/
         /* TODO: Handle RIP packet                                           */
+        this.router.getStats().ripReceived(
+                ripPacket.getCommand() == RIPv2.COMMAND_REQUEST);
         if (ripPacket.getCommand() == RIPv2.COMMAND_RESPONSE) {
             List<RIPv2Entry> riPv2Entries = ripPacket.getEntries();
-            for (RIPv2Entry riPv2Entry : riPv2Entries) {
-                RouteTableEntry r = this.router.getRouteTable().findEntry(riPv2Entry.getAddress(), riPv2Entry.getSubnetMask());
-                if (r != null) {
-                    if (riPv2Entry.getMetric() <= 15 && r.metric >= riPv2Entry.getMetric() + 1)
-                        this.router.getRouteTable().updateEntry(riPv2Entry.getAddress(), riPv2Entry.getSubnetMask(), ipPacket.getSourceAddress(), inIface.getName(), riPv2Entry.getMetric() + 1);
-                } else {
-                    this.router.getRouteTable().addEntry(riPv2Entry.getAddress(), ipPacket.getSourceAddress(), riPv2Entry.getSubnetMask(), inIface.getName(), riPv2Entry.getMetric() + 1);
+            // Responses may be handled by several packet processing threads;
+            // find-then-add/update must not interleave
+            synchronized (this) {
+                for (RIPv2Entry riPv2Entry : riPv2Entries) {
+                    RouteTableEntry r = this.router.getRouteTable().findEntry(riPv2Entry.getAddress(), riPv2Entry.getSubnetMask());
+                    if (r != null) {
+                        int metric = riPv2Entry.getMetric() + 1;
+                        if (riPv2Entry.getMetric() <= 15 && r.getMetric() > metric) {
+                            this.router.getRouteTable().updateEntry(riPv2Entry.getAddress(), riPv2Entry.getSubnetMask(), ipPacket.getSourceAddress(), inIface.getName(), metric);
+                            this.router.getStats().ripRouteChanged();
+                        } else if (riPv2Entry.getMetric() <= 15 && r.getMetric() == metric) {
+                            // Equal cost: confirm the next hop, or add it to the others
+                            if (!this.router.getRouteTable().refreshNextHop(riPv2Entry.getAddress(), riPv2Entry.getSubnetMask(), ipPacket.getSourceAddress(), inIface.getName())
+                                    && this.router.getRouteTable().addNextHop(riPv2Entry.getAddress(), ipPacket.getSourceAddress(), riPv2Entry.getSubnetMask(), inIface.getName(), metric)) {
+                                this.router.getStats().ripRouteChanged();
+                            }
+                        }
+                    } else {
+                        this.router.getRouteTable().addEntry(riPv2Entry.getAddress(), ipPacket.getSourceAddress(), riPv2Entry.getSubnetMask(), inIface.getName(), riPv2Entry.getMetric() + 1);
+                        this.router.getStats().ripRouteChanged();
+                    }
                 }
             }
         } else {
@@ -132,10 +163,19 @@ public class RIP implements Runnable {
                 RIPresponse(iface);
             }
 
-            // Time out old entries
+            // Time out old next hops, and entries when their last next hop goes
+            long now = System.currentTimeMillis();
             for (RouteTableEntry entry : this.router.getRouteTable().getEntries()) {
-                if (entry.metric > 0 && System.currentTimeMillis() - entry.timeAdded > TIMEOUT * 1000) {
-                    this.router.getRouteTable().removeEntry(entry.getDestinationAddress(), entry.getMaskAddress());
+                if (entry.getMetric() == 0) {
+                    continue;
+                }
+                for (RouteTableEntry.NextHop nextHop : entry.getNextHops()) {
+                    if (now - nextHop.getRefreshed() > TIMEOUT * 1000) {
+                        // Kept if a response refreshed it meanwhile
+                        if (this.router.getRouteTable().removeNextHop(entry.getDestinationAddress(), entry.getMaskAddress(), nextHop.getGatewayAddress(), nextHop.getInterface(), nextHop.getRefreshed())) {
+                            this.router.getStats().ripRouteExpired();
+                        }
+                    }
                 }
             }
         }
@@ -198,11 +238,12 @@ public class RIP implements Runnable {
         List<RIPv2Entry> entriesToSend = new LinkedList<>();
         for (RouteTableEntry entry : entries) {
             // Split horizon, if a entry is towards this interface, then it will not broadcast through this interface.
-            if (!entry.getInterface().equals(outIface.getName())) {
-                entriesToSend.add(new RIPv2Entry(entry.getDestinationAddress(), entry.getMaskAddress(), entry.metric));
+            if (!entry.usesInterface(outIface.getName())) {
+                entriesToSend.add(new RIPv2Entry(entry.getDestinationAddress(), entry.getMaskAddress(), entry.getMetric()));
             }
         }
         Ethernet ethernet = wrapRipv2(RIPv2.COMMAND_RESPONSE, entriesToSend, outIface);
         this.router.sendPacket(ethernet, outIface);
+        this.router.getStats().ripSent(false);
     }
 }
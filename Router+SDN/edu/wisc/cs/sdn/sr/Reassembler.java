@@ -0,0 +1,441 @@
+package edu.wisc.cs.sdn.sr;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.floodlightcontroller.packet.Data;
+import net.floodlightcontroller.packet.IPv4;
+
+/**
+ * Reassembles IPv4 datagrams addressed to the router (or to an emulated host)
+ * from their fragments.
+ * Payloads are collected in pooled buffers; incomplete datagrams are kept on
+ * a timing wheel and discarded after TIMEOUT. The buffers held by incomplete
+ * datagrams are capped, so a flood of fragments that never complete cannot
+ * exhaust memory. Room is made by discarding the oldest incomplete datagrams
+ * rather than refusing new ones, and a source holding its share of the cap
+ * gives up its own first, so such a flood cannot keep other datagrams from
+ * being reassembled until its fragments time out.
+ */
+public class Reassembler implements Runnable
+{
+	/** Time after which an incomplete datagram is discarded (in ms) */
+	public static final int TIMEOUT = 30 * 1000;
+
+	/** Granularity of the timing wheel (in ms) */
+	public static final int TICK = 500;
+
+	/** Number of slots on the timing wheel; covers more than TIMEOUT */
+	public static final int WHEEL_SLOTS = 64;
+
+	/** Default cap on buffer memory held by incomplete datagrams (in bytes) */
+	public static final int DEFAULT_MEMORY_LIMIT = 4 * 1024 * 1024;
+
+	/** A source may hold at most 1/SOURCE_SHARE of the memory cap */
+	public static final int SOURCE_SHARE = 4;
+
+	/** Maximum number of disjoint byte ranges tracked per datagram */
+	public static final int MAX_RANGES = 32;
+
+	/** Largest IPv4 datagram */
+	private static final int MAX_DATAGRAM = 0xffff;
+
+	/** Identifies the fragments of one datagram (RFC 791) */
+	private static class Key
+	{
+		final int source;
+		final int destination;
+		final short identification;
+		final byte protocol;
+
+		Key(IPv4 packet)
+		{
+			this.source = packet.getSourceAddress();
+			this.destination = packet.getDestinationAddress();
+			this.identification = packet.getIdentification();
+			this.protocol = packet.getProtocol();
+		}
+
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof Key))
+			{ return false; }
+			Key other = (Key)o;
+			return this.source == other.source
+					&& this.destination == other.destination
+					&& this.identification == other.identification
+					&& this.protocol == other.protocol;
+		}
+
+		public int hashCode()
+		{
+			int h = this.source;
+			h = h * 31 + this.destination;
+			h = h * 31 + this.identification;
+			return h * 31 + this.protocol;
+		}
+	}
+
+	/** A datagram being reassembled */
+	private static class Datagram
+	{
+		Key key;
+
+		/** Payload received so far, at its offset in the datagram */
+		byte[] buf;
+
+		/** Start and end of received byte ranges, sorted and disjoint */
+		int[] ranges = new int[2 * MAX_RANGES];
+		int rangeCount;
+
+		/** Length of the payload; -1 until the last fragment is received */
+		int payloadLength = -1;
+
+		/** Header of the first fragment, which supplies the datagram's header;
+		 * null until received. Copied, as the fragment's packet objects may be
+		 * reused for later frames */
+		byte[] header;
+
+		/** Time at which the datagram is discarded */
+		long deadline;
+
+		/** Neighbours in the timing wheel slot */
+		Datagram prev;
+		Datagram next;
+		int slot;
+	}
+
+	/** Counters for datagrams reassembled and fragments dropped */
+	private RouterStats stats;
+
+	/** Incomplete datagrams, oldest first */
+	private Map<Key,Datagram> datagrams;
+
+	/** Incomplete datagrams, linked by the slot of their deadline */
+	private Datagram[] wheel;
+
+	/** Time of the last wheel tick */
+	private long lastTick;
+
+	/** Buffers for payloads */
+	private BufferPool pool;
+
+	/** Cap on buffer memory held by incomplete datagrams (in bytes) */
+	private int memoryLimit;
+
+	/** Buffer memory held by incomplete datagrams (in bytes) */
+	private int memoryUsed;
+
+	/** Buffer memory held by the incomplete datagrams of each source */
+	private Map<Integer,Integer> memoryBySource;
+
+	/** Thread for timing out incomplete datagrams */
+	private Thread timeoutThread;
+
+	/**
+	 * Create a reassembler and start its timeout thread.
+	 * @param stats counters for datagrams reassembled and fragments dropped
+	 * @param memoryLimit cap on buffer memory held by incomplete datagrams
+	 */
+	public Reassembler(RouterStats stats, int memoryLimit)
+	{
+		this.stats = stats;
+		this.datagrams = new LinkedHashMap<Key,Datagram>();
+		this.wheel = new Datagram[WHEEL_SLOTS];
+		this.lastTick = System.currentTimeMillis();
+		this.pool = new BufferPool(8);
+		this.memoryLimit = memoryLimit;
+		this.memoryUsed = 0;
+		this.memoryBySource = new HashMap<Integer,Integer>();
+		this.timeoutThread = new Thread(this, "sr-reassembly");
+		this.timeoutThread.setDaemon(true);
+		this.timeoutThread.start();
+	}
+
+	/**
+	 * @return buffer memory held by incomplete datagrams (in bytes)
+	 */
+	public synchronized int getMemoryUsed()
+	{ return this.memoryUsed; }
+
+	/**
+	 * Add a fragment to the datagram it belongs to.
+	 * @param fragment a fragment addressed to the router; its payload must be
+	 *        unparsed (Data)
+	 * @return the complete datagram, if this fragment completed it, with its
+	 *         payload parsed; otherwise null
+	 */
+	public synchronized IPv4 add(IPv4 fragment)
+	{
+		if (!(fragment.getPayload() instanceof Data))
+		{ return null; }
+		byte[] data = ((Data)fragment.getPayload()).getData();
+		int headerLength = fragment.getHeaderLength() * 4;
+		int start = fragment.getFragmentOffset() * 8;
+		int length = Math.min(data.length,
+				(fragment.getTotalLength() & 0xffff) - headerLength);
+		int end = start + length;
+		boolean last = (fragment.getFlags() & IPv4.IPV4_FLAGS_MOREFRAG) == 0;
+		if (length < 0 || end + headerLength > MAX_DATAGRAM
+				|| (!last && (length & 7) != 0))
+		{
+			this.stats.dropped(RouterStats.Drop.BAD_FRAGMENT);
+			return null;
+		}
+
+		Key key = new Key(fragment);
+		Datagram datagram = this.datagrams.get(key);
+		if (null == datagram)
+		{
+			if (!this.reserve(key.source, BufferPool.bufferSize(end), null))
+			{
+				this.stats.dropped(RouterStats.Drop.REASSEMBLY_OVERFLOW);
+				return null;
+			}
+			datagram = new Datagram();
+			datagram.key = key;
+			datagram.buf = this.pool.acquire(end);
+			datagram.deadline = System.currentTimeMillis() + TIMEOUT;
+			this.datagrams.put(key, datagram);
+			this.schedule(datagram);
+		}
+
+		// The last fragment fixes the length; conflicting fragments spoil
+		// the datagram
+		if (last)
+		{
+			if (datagram.payloadLength >= 0 && datagram.payloadLength != end)
+			{
+				this.discard(datagram, RouterStats.Drop.BAD_FRAGMENT);
+				return null;
+			}
+			datagram.payloadLength = end;
+		}
+		if (datagram.payloadLength >= 0 && end > datagram.payloadLength)
+		{
+			this.discard(datagram, RouterStats.Drop.BAD_FRAGMENT);
+			return null;
+		}
+
+		// Make room for the fragment and copy it in place
+		if (end > datagram.buf.length)
+		{
+			int size = BufferPool.bufferSize(end);
+			if (!this.reserve(key.source, size - datagram.buf.length,
+					datagram))
+			{
+				this.discard(datagram, RouterStats.Drop.REASSEMBLY_OVERFLOW);
+				return null;
+			}
+			byte[] buf = this.pool.acquire(end);
+			System.arraycopy(datagram.buf, 0, buf, 0, datagram.buf.length);
+			this.pool.release(datagram.buf);
+			datagram.buf = buf;
+		}
+		System.arraycopy(data, 0, datagram.buf, start, length);
+		if (0 == start)
+		{
+			datagram.header = new byte[headerLength];
+			Fragmentation.writeHeader(ByteBuffer.wrap(datagram.header),
+					fragment);
+		}
+		if (!addRange(datagram, start, end))
+		{
+			this.discard(datagram, RouterStats.Drop.BAD_FRAGMENT);
+			return null;
+		}
+
+		// Complete once a single range covers the whole payload
+		if (null == datagram.header || datagram.payloadLength < 0
+				|| datagram.rangeCount != 1 || datagram.ranges[0] != 0
+				|| datagram.ranges[1] != datagram.payloadLength)
+		{ return null; }
+		IPv4 whole = this.build(datagram);
+		this.remove(datagram);
+		this.stats.reassembled();
+		return whole;
+	}
+
+	/**
+	 * Discard incomplete datagrams whose time is up, every TICK ms.
+	 */
+	public void run()
+	{
+		while (true)
+		{
+			try
+			{ Thread.sleep(TICK); }
+			catch (InterruptedException e)
+			{ break; }
+			this.expire(System.currentTimeMillis());
+		}
+	}
+
+	private synchronized void expire(long now)
+	{
+		// Visit each slot passed since the last tick once
+		long fromTick = this.lastTick / TICK;
+		long toTick = now / TICK;
+		if (toTick - fromTick >= WHEEL_SLOTS)
+		{ fromTick = toTick - WHEEL_SLOTS + 1; }
+		for (long tick = fromTick; tick <= toTick; tick++)
+		{
+			Datagram datagram = this.wheel[(int)(tick % WHEEL_SLOTS)];
+			while (datagram != null)
+			{
+				Datagram next = datagram.next;
+				if (datagram.deadline <= now)
+				{ this.discard(datagram, RouterStats.Drop.REASSEMBLY_TIMEOUT); }
+				datagram = next;
+			}
+		}
+		this.lastTick = now;
+	}
+
+	/**
+	 * Build the complete datagram: the first fragment's header, without
+	 * fragmentation fields, followed by the payload.
+	 */
+	private IPv4 build(Datagram datagram)
+	{
+		int headerLength = datagram.header.length;
+		int totalLength = headerLength + datagram.payloadLength;
+		byte[] packet = new byte[totalLength];
+		ByteBuffer bb = ByteBuffer.wrap(packet);
+		bb.put(datagram.header);
+		bb.put(datagram.buf, 0, datagram.payloadLength);
+		FastPath.putShort(packet, FastPath.IPV4_TOTAL_LENGTH_OFFSET,
+				totalLength);
+		FastPath.putShort(packet, 6, FastPath.getShort(datagram.header, 6)
+				& ~(IPv4.IPV4_FLAGS_MOREFRAG << 13) & 0xe000);
+		FastPath.putShort(packet, FastPath.IPV4_CHECKSUM_OFFSET, 0);
+		FastPath.putShort(packet, FastPath.IPV4_CHECKSUM_OFFSET,
+				Checksum.ipv4Header(packet, 0, headerLength));
+
+		IPv4 whole = new IPv4();
+		whole.deserialize(packet, 0, totalLength);
+		return whole;
+	}
+
+	/**
+	 * Record a received byte range, merging it with overlapping and adjacent
+	 * ranges.
+	 * @return false if the datagram has too many disjoint ranges
+	 */
+	private static boolean addRange(Datagram datagram, int start, int end)
+	{
+		int[] ranges = datagram.ranges;
+		int count = datagram.rangeCount;
+
+		// Find the first range that ends at or after start
+		int i = 0;
+		while (i < count && ranges[2 * i + 1] < start)
+		{ i++; }
+
+		// Merge all ranges that overlap or touch [start, end)
+		int j = i;
+		while (j < count && ranges[2 * j] <= end)
+		{
+			start = Math.min(start, ranges[2 * j]);
+			end = Math.max(end, ranges[2 * j + 1]);
+			j++;
+		}
+
+		int newCount = count - (j - i) + 1;
+		if (newCount > MAX_RANGES)
+		{ return false; }
+		System.arraycopy(ranges, 2 * j, ranges, 2 * (i + 1),
+				2 * (count - j));
+		ranges[2 * i] = start;
+		ranges[2 * i + 1] = end;
+		datagram.rangeCount = newCount;
+		return true;
+	}
+
+	/**
+	 * Reserve buffer memory for a source's datagram, discarding the source's
+	 * oldest incomplete datagrams while it would exceed its share of the
+	 * cap, then the oldest of any source while the cap would be exceeded.
+	 * @param source source address of the datagram
+	 * @param bytes memory to reserve
+	 * @param keep datagram the memory is for, which is not discarded; null
+	 *        for a new datagram
+	 * @return false if there is no room even without the other datagrams
+	 */
+	private boolean reserve(int source, int bytes, Datagram keep)
+	{
+		Integer held = this.memoryBySource.get(source);
+		while ((null == held ? 0 : held) + bytes 
+				> this.memoryLimit / SOURCE_SHARE)
+		{
+			if (!this.discardOldest(source, keep))
+			{ return false; }
+			held = this.memoryBySource.get(source);
+		}
+		while (this.memoryUsed + bytes > this.memoryLimit)
+		{
+			if (!this.discardOldest(null, keep))
+			{ return false; }
+		}
+		this.memoryUsed += bytes;
+		this.memoryBySource.merge(source, bytes, Integer::sum);
+		return true;
+	}
+
+	/**
+	 * Discard the oldest incomplete datagram, of a source if given.
+	 * @param keep datagram that is not discarded; null if none
+	 * @return false if there is no datagram to discard
+	 */
+	private boolean discardOldest(Integer source, Datagram keep)
+	{
+		for (Datagram datagram : this.datagrams.values())
+		{
+			if (datagram != keep 
+					&& (null == source || datagram.key.source == source))
+			{
+				this.discard(datagram, RouterStats.Drop.REASSEMBLY_OVERFLOW);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void schedule(Datagram datagram)
+	{
+		datagram.slot = (int)((datagram.deadline / TICK) % WHEEL_SLOTS);
+		datagram.prev = null;
+		datagram.next = this.wheel[datagram.slot];
+		if (datagram.next != null)
+		{ datagram.next.prev = datagram; }
+		this.wheel[datagram.slot] = datagram;
+	}
+
+	private void discard(Datagram datagram, RouterStats.Drop reason)
+	{
+		this.remove(datagram);
+		this.stats.dropped(reason);
+	}
+
+	private void remove(Datagram datagram)
+	{
+		this.datagrams.remove(datagram.key);
+		if (datagram.prev != null)
+		{ datagram.prev.next = datagram.next; }
+		else
+		{ this.wheel[datagram.slot] = datagram.next; }
+		if (datagram.next != null)
+		{ datagram.next.prev = datagram.prev; }
+		this.memoryUsed -= datagram.buf.length;
+		int held = this.memoryBySource.get(datagram.key.source)
+				- datagram.buf.length;
+		if (0 == held)
+		{ this.memoryBySource.remove(datagram.key.source); }
+		else
+		{ this.memoryBySource.put(datagram.key.source, held); }
+		this.pool.release(datagram.buf);
+		datagram.buf = null;
+	}
+}
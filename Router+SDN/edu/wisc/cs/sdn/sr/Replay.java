@@ -0,0 +1,338 @@
+package edu.wisc.cs.sdn.sr;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+import net.floodlightcontroller.util.MACAddress;
+
+import edu.wisc.cs.sdn.sr.vns.ReplayComm;
+
+/**
+ * Replays the frames in a PCAP file through the router without a VNS server,
+ * as fast as possible or with their original timing, and reports the
+ * forwarding rate and the latency of each stage of packet processing. Frames
+ * the router sent (those from one of its interfaces' MAC addresses, as in
+ * files written with -l) are skipped; every other frame is received on the
+ * interface whose MAC address it is addressed to, or the default interface.
+ */
+public class Replay
+{
+	public static void main(String[] args)
+	{
+		String pcapFile = null;
+		String hardwareFile = null;
+		String routeTableFile = null;
+		String defaultIfaceName = null;
+		String outputFile = null;
+		double speed = 0;
+		int loops = 1;
+		int warmupLoops = 0;
+
+		// Parse arguments
+		for (int i = 0; i < args.length; i++)
+		{
+			String arg = args[i];
+			if (arg.equals("-h"))
+			{
+				usage();
+				System.exit(0);
+			}
+			else if (arg.equals("-f"))
+			{ pcapFile = args[++i]; }
+			else if (arg.equals("-H"))
+			{ hardwareFile = args[++i]; }
+			else if (arg.equals("-r"))
+			{ routeTableFile = args[++i]; }
+			else if (arg.equals("-i"))
+			{ defaultIfaceName = args[++i]; }
+			else if (arg.equals("-o"))
+			{ outputFile = args[++i]; }
+			else if (arg.equals("-t"))
+			{ speed = Double.parseDouble(args[++i]); }
+			else if (arg.equals("-n"))
+			{ loops = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-W"))
+			{ warmupLoops = Integer.parseInt(args[++i]); }
+		}
+		if (null == pcapFile || null == hardwareFile || null == routeTableFile
+				|| loops < 1 || warmupLoops < 0 || speed < 0)
+		{
+			usage();
+			System.exit(1);
+		}
+
+		// Set up a router with the interfaces and routes of the recording
+		Router router = new Router((short)0, "replay", "replay", null);
+		ReplayComm replayComm = new ReplayComm(router);
+		router.setVNSComm(replayComm);
+		List<ArpEntry> staticArp = new ArrayList<ArpEntry>();
+		if (!loadHardware(router, hardwareFile, staticArp))
+		{ System.exit(1); }
+		router.loadRouteTable(routeTableFile);
+		if (!router.getRouteTable().verify(router.getInterfaces()))
+		{
+			System.err.println("Routing table not consistent with hardware");
+			System.exit(1);
+		}
+		Iface defaultIface = null;
+		if (defaultIfaceName != null)
+		{
+			defaultIface = router.getInterface(defaultIfaceName);
+			if (null == defaultIface)
+			{
+				System.err.println("No interface " + defaultIfaceName);
+				System.exit(1);
+			}
+		}
+
+		// Load the frames the router should receive
+		List<byte[]> frames = new ArrayList<byte[]>();
+		List<Iface> inIfaces = new ArrayList<Iface>();
+		List<Long> timestamps = new ArrayList<Long>();
+		int skipped = 0;
+		PcapReader reader = PcapReader.open(pcapFile);
+		if (null == reader)
+		{ System.exit(1); }
+		try
+		{
+			while (reader.next())
+			{
+				byte[] frame = reader.getFrame();
+				Iface inIface = receivingInterface(router, frame, defaultIface);
+				if (null == inIface)
+				{
+					skipped++;
+					continue;
+				}
+				frames.add(frame);
+				inIfaces.add(inIface);
+				timestamps.add(reader.getTimestamp());
+			}
+		}
+		catch (IOException e)
+		{
+			System.err.println("Error reading " + pcapFile + ": " + e.getMessage());
+			System.exit(1);
+		}
+		finally
+		{ reader.close(); }
+		if (frames.isEmpty())
+		{
+			System.err.println("No frames to replay in " + pcapFile);
+			System.exit(1);
+		}
+		System.out.println(String.format(
+				"Replaying %d frames (%d sent by the router skipped), %d times",
+				frames.size(), skipped, loops));
+
+		// Replay, discarding the statistics of warm-up rounds
+		long frameBytes = 0;
+		int fastPathFrames = 0;
+		long elapsed = 0;
+		for (int loop = 0; loop < warmupLoops + loops; loop++)
+		{
+			if (loop == warmupLoops)
+			{
+				replayComm.reset();
+				if (outputFile != null)
+				{
+					DumpFile output = DumpFile.open(outputFile);
+					if (null == output)
+					{ System.exit(1); }
+					replayComm.setOutput(output);
+				}
+			}
+
+			// Static ARP entries would otherwise time out during long runs
+			for (ArpEntry entry : staticArp)
+			{ router.getArpCache().insert(entry.getMac(), entry.getIp()); }
+
+			long start = System.nanoTime();
+			long firstTimestamp = timestamps.get(0);
+			for (int i = 0; i < frames.size(); i++)
+			{
+				if (speed > 0)
+				{
+					waitUntil(start + (long)((timestamps.get(i) - firstTimestamp)
+							/ speed));
+				}
+				boolean fastPath = replayComm.inject(frames.get(i),
+						inIfaces.get(i));
+				if (loop >= warmupLoops)
+				{
+					frameBytes += frames.get(i).length;
+					if (fastPath)
+					{ fastPathFrames++; }
+				}
+			}
+			if (loop >= warmupLoops)
+			{ elapsed += System.nanoTime() - start; }
+		}
+
+		// Report rates and latencies
+		long frameCount = (long)frames.size() * loops;
+		double seconds = elapsed / 1e9;
+		System.out.println(String.format(
+				"%d frames in %.3f s: %.0f frames/s, %.1f Mbit/s",
+				frameCount, seconds, frameCount / seconds,
+				frameBytes * 8 / seconds / 1e6));
+		System.out.println(String.format(
+				"%d frames forwarded by the fast path; %d frames (%d bytes) sent",
+				fastPathFrames, replayComm.getFramesSent(),
+				replayComm.getBytesSent()));
+		System.out.println(String.format("%-18s %9s %8s %8s %8s %8s %9s",
+				"stage (ns)", "count", "mean", "p50", "p90", "p99", "max"));
+		for (ReplayComm.Samples samples : replayComm.getSamples())
+		{
+			System.out.println(String.format(
+					"%-18s %9d %8d %8d %8d %8d %9d", samples.getName(),
+					samples.getCount(), samples.getMean(),
+					samples.getPercentile(50), samples.getPercentile(90),
+					samples.getPercentile(99), samples.getPercentile(100)));
+		}
+
+		router.destroy();
+		if (replayComm.getOutput() != null)
+		{ replayComm.getOutput().close(); }
+		System.exit(0);
+	}
+
+	/**
+	 * Add interfaces and static ARP entries from a file. Each line describes
+	 * an interface or an ARP entry:
+	 * <pre>
+	 * name ip mask mac
+	 * arp ip mac
+	 * </pre>
+	 * Blank lines and text following # are ignored.
+	 * @return true if the file was read, otherwise false
+	 */
+	static boolean loadHardware(Router router, String filename,
+			List<ArpEntry> staticArp)
+	{
+		BufferedReader reader = null;
+		try
+		{
+			reader = new BufferedReader(new FileReader(filename));
+			int lineNumber = 0;
+			String line;
+			while ((line = reader.readLine()) != null)
+			{
+				lineNumber++;
+				int comment = line.indexOf('#');
+				if (comment >= 0)
+				{ line = line.substring(0, comment); }
+				line = line.trim();
+				if (line.isEmpty())
+				{ continue; }
+
+				String[] fields = line.split("\\s+");
+				if (fields[0].equals("arp") && 3 == fields.length)
+				{
+					staticArp.add(new ArpEntry(MACAddress.valueOf(fields[2]),
+							Util.dottedDecimalToInt(fields[1])));
+				}
+				else if (4 == fields.length)
+				{
+					Iface iface = router.addInterface(fields[0]);
+					iface.setIpAddress(Util.dottedDecimalToInt(fields[1]));
+					iface.setSubnetMask(Util.dottedDecimalToInt(fields[2]));
+					iface.setMacAddress(MACAddress.valueOf(fields[3]));
+				}
+				else
+				{
+					System.err.println("Invalid entry in hardware file "
+							+ filename + " line " + lineNumber);
+					return false;
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			System.err.println(e.toString());
+			return false;
+		}
+		catch (IllegalArgumentException e)
+		{
+			System.err.println("Invalid address in hardware file " + filename
+					+ ": " + e.getMessage());
+			return false;
+		}
+		finally
+		{
+			if (reader != null)
+			{ try { reader.close(); } catch (IOException f) {}; }
+		}
+		if (router.getInterfaces().isEmpty())
+		{
+			System.err.println("No interfaces in hardware file " + filename);
+			return false;
+		}
+		router.indexInterfaces();
+		return true;
+	}
+
+	/**
+	 * @return interface on which the router receives a frame; null if the
+	 *         router sent the frame, or the frame is too short
+	 */
+	private static Iface receivingInterface(Router router, byte[] frame,
+			Iface defaultIface)
+	{
+		if (frame.length < FastPath.ETHER_HEADER_LENGTH)
+		{ return null; }
+		byte[] destination = Arrays.copyOfRange(frame, 0, 6);
+		byte[] source = Arrays.copyOfRange(frame, 6, 12);
+		Iface receiving = defaultIface;
+		for (Iface iface : router.getInterfaces().values())
+		{
+			byte[] mac = iface.getMacAddress().toBytes();
+			if (Arrays.equals(mac, source))
+			{ return null; }
+			if (Arrays.equals(mac, destination))
+			{ receiving = iface; }
+		}
+		if (null == receiving)
+		{
+			// The interface listed first in the hardware file
+			for (Iface iface : router.getInterfaces().values())
+			{
+				if (0 == iface.getIndex())
+				{ receiving = iface; }
+			}
+		}
+		return receiving;
+	}
+
+	/**
+	 * Wait until a point in time, sleeping while it is far off and spinning
+	 * once it is close.
+	 * @param deadline the point in time (in ns, as System.nanoTime)
+	 */
+	private static void waitUntil(long deadline)
+	{
+		long remaining;
+		while ((remaining = deadline - System.nanoTime()) > 0)
+		{
+			if (remaining > 100 * 1000)
+			{ LockSupport.parkNanos(remaining - 50 * 1000); }
+		}
+	}
+
+	static void usage()
+	{
+		System.out.println("PCAP Replay");
+		System.out.println("Replay -f pcap_file -H hardware_file -r routing_table");
+		System.out.println("       [-i default_iface] [-o output_pcap] [-t speed]");
+		System.out.println("       [-n loops] [-W warmup_loops]");
+		System.out.println("  hardware file lines: name ip mask mac, or arp ip mac");
+		System.out.println("  -t replays with the original timing, sped up by the");
+		System.out.println("  given factor (1 for real time); by default frames are");
+		System.out.println("  replayed as fast as possible");
+	}
+}
@@ -4,39 +4,108 @@ import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
- * Route table for a router.
+ * Route table for a router. The entries are an immutable snapshot, published
+ * through a volatile reference: lookups read the current snapshot without
+ * locking, and modifications, serialized on a separate lock, build a new
+ * snapshot and publish it in one write, so packet processing threads never
+ * wait for each other or for RIP, and never see a partially updated table.
+ * A destination with several equal-cost next hops has one entry holding all
+ * of them.
  * @author Aaron Gember-Jacobson
  */
 public class RouteTable 
 {
-	/** Entries in the route table */
-	private List<RouteTableEntry> entries; 
+	/** Pattern of a line in a route table file */
+	private static final Pattern LINE_PATTERN;
+	static
+	{
+		String ipPattern = "(\\d+\\.\\d+\\.\\d+\\.\\d+)";
+		String ifacePattern = "([a-zA-Z0-9]+)";
+		LINE_PATTERN = Pattern.compile(String.format(
+				"\\s*%s\\s+%s\\s+%s\\s+%s\\s*", 
+				ipPattern, ipPattern, ipPattern, ifacePattern));
+	}
+	
+	/** Entries in the route table; never modified once published */
+	private volatile RouteTableEntry[] entries; 
+	
+	/** Lock serializing modifications of the route table */
+	private final Object writeLock = new Object();
+	
+	/** Incremented whenever the route table changes */
+	private volatile int version;
 	
 	/**
 	 * Initialize an empty route table.
 	 */
 	public RouteTable()
-	{ this.entries = new LinkedList<RouteTableEntry>(); }
+	{ this.entries = new RouteTableEntry[0]; }
+	
+	/**
+	 * @return version counter; changes whenever the route table changes
+	 */
+	public int getVersion()
+	{ return this.version; }
 	
 	/**
-	 * @return entries in the route table
+	 * @return entries in the route table; an unmodifiable snapshot, which is
+	 *         not affected by later modifications
 	 */
 	public List<RouteTableEntry> getEntries()
-	{ return this.entries; }
+	{ return Collections.unmodifiableList(Arrays.asList(this.entries)); }
+	
+	/**
+	 * @return number of entries in the route table
+	 */
+	public int size()
+	{ return this.entries.length; }
 	
 	/**
-	 * Populate the route table from a file.
+	 * Replace the contents of the route table with the routes in a file. The
+	 * file is read and checked in full before the table changes, so lookups
+	 * see either the old routes or the new ones, and a file with an invalid
+	 * entry leaves the table as it was.
 	 * @param filename name of the file containing the static route table
 	 * @return true if route table was successfully loaded, otherwise false
 	 */
 	public boolean load(String filename)
+	{
+		RouteTableEntry[] loaded = parse(filename);
+		if (null == loaded)
+		{ return false; }
+		this.replace(loaded);
+		return true;
+	}
+	
+	/**
+	 * Replace all entries in the route table at once.
+	 * @param entries new entries; not modified afterwards
+	 */
+	public void replace(RouteTableEntry[] entries)
+	{
+		synchronized(this.writeLock)
+		{ this.publish(entries); }
+	}
+	
+	/**
+	 * Read routes from a file. Lines name a destination, gateway, mask, and
+	 * interface; lines with the same destination and mask add equal-cost 
+	 * next hops.
+	 * @param filename name of the file containing the static route table
+	 * @return entries for the routes in the file; null if the file could not
+	 *         be read or has an invalid entry
+	 */
+	public static RouteTableEntry[] parse(String filename)
 	{
 		// Open the file
 		BufferedReader reader;
@@ -48,10 +117,15 @@ public class RouteTable
 		catch (FileNotFoundException e) 
 		{
 			System.err.println(e.toString());
-			return false;
+			return null;
 		}
 		
-		boolean clearRoutingTable = true;
+		List<Integer> destinations = new ArrayList<Integer>();
+		List<Integer> masks = new ArrayList<Integer>();
+		List<List<RouteTableEntry.NextHop>> nextHops = 
+				new ArrayList<List<RouteTableEntry.NextHop>>();
+		Map<Long,Integer> indices = new HashMap<Long,Integer>();
+		int lineNumber = 0;
 		while (true)
 		{
 			// Read a route entry from the file
@@ -62,25 +136,24 @@ public class RouteTable
 			{
 				System.err.println(e.toString());
 				try { reader.close(); } catch (IOException f) {};
-				return false;
+				return null;
 			}
 			
 			// Stop if we have reached the end of the file
 			if (null == line)
 			{ break; }
+			lineNumber++;
+			if (line.trim().isEmpty())
+			{ continue; }
 			
 			// Parse fields for route entry
-			String ipPattern = "(\\d+\\.\\d+\\.\\d+\\.\\d+)";
-			String ifacePattern = "([a-zA-Z0-9]+)";
-			Pattern pattern = Pattern.compile(String.format(
-                        "%s\\s+%s\\s+%s\\s+%s", 
-                        ipPattern, ipPattern, ipPattern, ifacePattern));
-			Matcher matcher = pattern.matcher(line);
-			if (!matcher.matches() || matcher.groupCount() != 4)
+			Matcher matcher = LINE_PATTERN.matcher(line);
+			if (!matcher.matches())
 			{
-				System.err.println("Invalid entry in routing table file");
+				System.err.println("Invalid entry in routing table file "
+						+ filename + " line " + lineNumber);
 				try { reader.close(); } catch (IOException f) {};
-				return false;
+				return null;
 			}
 
 			int dstIp = Util.dottedDecimalToInt(matcher.group(1));
@@ -88,7 +161,7 @@ public class RouteTable
 			{
 				System.err.println("Error loading routing table, cannot convert " + matcher.group(1) + " to valid IP");
 				try { reader.close(); } catch (IOException f) {};
-				return false;
+				return null;
 			}
 			
 			int gwIp = Util.dottedDecimalToInt(matcher.group(2));
@@ -98,28 +171,40 @@ public class RouteTable
 			{
 				System.err.println("Error loading routing table, cannot convert " + matcher.group(3) + " to valid IP");
 				try { reader.close(); } catch (IOException f) {};
-				return false;
+				return null;
 			}
 			
-			String iface = matcher.group(4).trim();
-			
+			String iface = matcher.group(4);
 			
-			// If we successfully read the first entry from the file, then
-			// flush the current route table
-			if (clearRoutingTable)
+			// Add an entry; repeated destinations add equal-cost next hops
+			long key = ((long)dstIp << 32) | (maskIp & 0xffffffffL);
+			Integer index = indices.get(key);
+			if (null == index)
 			{
-				System.out.println("Loading routing table from server, clear local routing table");
-				entries.clear();
-				clearRoutingTable = false;
+				index = destinations.size();
+				indices.put(key, index);
+				destinations.add(dstIp);
+				masks.add(maskIp);
+				nextHops.add(new ArrayList<RouteTableEntry.NextHop>(1));
 			}
-			
-			// Add an entry to the route table
-			this.addEntry(dstIp, gwIp, maskIp, iface, 1);
+			boolean duplicate = false;
+			for (RouteTableEntry.NextHop nextHop : nextHops.get(index))
+			{ duplicate |= nextHop.is(gwIp, iface); }
+			if (!duplicate)
+			{ nextHops.get(index).add(new RouteTableEntry.NextHop(gwIp, iface)); }
 		}
 	
 		// Close the file
 		try { reader.close(); } catch (IOException f) {};
-		return true;
+		
+		RouteTableEntry[] entries = new RouteTableEntry[destinations.size()];
+		for (int i = 0; i < entries.length; i++)
+		{
+			List<RouteTableEntry.NextHop> hops = nextHops.get(i);
+			entries[i] = new RouteTableEntry(destinations.get(i), masks.get(i),
+					hops.toArray(new RouteTableEntry.NextHop[hops.size()]), 1);
+		}
+		return entries;
 	}
 	
 	/**
@@ -133,88 +218,245 @@ public class RouteTable
 	public void addEntry(int dstIp, int gwIp, int maskIp, String iface, int metric)
 	{
 		RouteTableEntry entry = new RouteTableEntry(dstIp, gwIp, maskIp, iface, metric);
-        synchronized(this.entries)
-        { 
-            this.entries.add(entry);
-        }
+		synchronized(this.writeLock)
+		{ 
+			RouteTableEntry[] entries = Arrays.copyOf(this.entries, 
+					this.entries.length + 1);
+			entries[entries.length - 1] = entry;
+			this.publish(entries);
+		}
+	}
+	
+	/**
+	 * Add an equal-cost next hop to the entry for a destination, or add an 
+	 * entry if there is none.
+	 * @param dstIp destination IP
+	 * @param gwIp gateway IP of the next hop
+	 * @param maskIp subnet mask
+	 * @param iface router interface of the next hop
+	 * @param metric metric of the route; if an entry exists with a different
+	 *        metric, nothing is added
+	 * @return true if the route table changed, otherwise false
+	 */
+	public boolean addNextHop(int dstIp, int gwIp, int maskIp, String iface,
+			int metric)
+	{
+		synchronized(this.writeLock)
+		{
+			int index = indexOf(this.entries, dstIp, maskIp);
+			if (index < 0)
+			{
+				this.addEntry(dstIp, gwIp, maskIp, iface, metric);
+				return true;
+			}
+			RouteTableEntry entry = this.entries[index];
+			if (entry.getMetric() != metric || entry.indexOf(gwIp, iface) >= 0)
+			{ return false; }
+			RouteTableEntry.NextHop[] oldHops = entry.getNextHops();
+			RouteTableEntry.NextHop[] nextHops = 
+					new RouteTableEntry.NextHop[oldHops.length + 1];
+			System.arraycopy(oldHops, 0, nextHops, 0, oldHops.length);
+			nextHops[oldHops.length] = new RouteTableEntry.NextHop(gwIp, iface);
+			this.set(index, new RouteTableEntry(dstIp, maskIp, nextHops, metric));
+		}
+		return true;
+	}
+	
+	/**
+	 * Note that a next hop of the entry for a destination was confirmed, e.g.,
+	 * by a RIP response. The entry is replaced by one holding a refreshed 
+	 * copy of the next hop; forwarding does not change, so the version stays
+	 * and cached forwarding decisions remain valid.
+	 * @param dstIp destination IP of the entry
+	 * @param maskIp subnet mask of the entry
+	 * @param gwIp gateway IP of the next hop
+	 * @param iface router interface of the next hop
+	 * @return true if a matching next hop was found, otherwise false
+	 */
+	public boolean refreshNextHop(int dstIp, int maskIp, int gwIp, 
+			String iface)
+	{
+		synchronized(this.writeLock)
+		{
+			int entryIndex = indexOf(this.entries, dstIp, maskIp);
+			if (entryIndex < 0)
+			{ return false; }
+			RouteTableEntry entry = this.entries[entryIndex];
+			int index = entry.indexOf(gwIp, iface);
+			if (index < 0)
+			{ return false; }
+			RouteTableEntry.NextHop[] nextHops = entry.getNextHops().clone();
+			nextHops[index] = nextHops[index].refreshed();
+			RouteTableEntry[] entries = this.entries.clone();
+			entries[entryIndex] = new RouteTableEntry(dstIp, maskIp, nextHops,
+					entry.getMetric());
+			this.entries = entries;
+		}
+		return true;
+	}
+	
+	/**
+	 * Remove a next hop from the entry for a destination, and the entry if it
+	 * was the last next hop, unless the next hop was refreshed since it was
+	 * found to be stale.
+	 * @param dstIp destination IP of the entry
+	 * @param maskIp subnet mask of the entry
+	 * @param gwIp gateway IP of the next hop to remove
+	 * @param iface router interface of the next hop to remove
+	 * @param refreshed time the next hop was last refreshed, as seen by the
+	 *        caller
+	 * @return true if a matching next hop was found and removed, otherwise 
+	 *         false
+	 */
+	public boolean removeNextHop(int dstIp, int maskIp, int gwIp, String iface,
+			long refreshed)
+	{
+		synchronized(this.writeLock)
+		{
+			int entryIndex = indexOf(this.entries, dstIp, maskIp);
+			if (entryIndex < 0)
+			{ return false; }
+			RouteTableEntry entry = this.entries[entryIndex];
+			int index = entry.indexOf(gwIp, iface);
+			if (index < 0 
+					|| entry.getNextHops()[index].getRefreshed() != refreshed)
+			{ return false; }
+			RouteTableEntry.NextHop[] oldHops = entry.getNextHops();
+			if (1 == oldHops.length)
+			{ this.remove(entryIndex); }
+			else
+			{
+				RouteTableEntry.NextHop[] nextHops = 
+						new RouteTableEntry.NextHop[oldHops.length - 1];
+				System.arraycopy(oldHops, 0, nextHops, 0, index);
+				System.arraycopy(oldHops, index + 1, nextHops, index, 
+						nextHops.length - index);
+				this.set(entryIndex, new RouteTableEntry(dstIp, maskIp, 
+						nextHops, entry.getMetric()));
+			}
+		}
+		return true;
 	}
 	
 	/**
 	 * Remove an entry from the route table.
 	 * @param dstIp destination IP of the entry to remove
-     * @param maskIp subnet mask of the entry to remove
-     * @return true if a matching entry was found and removed, otherwise false
+	 * @param maskIp subnet mask of the entry to remove
+	 * @return true if a matching entry was found and removed, otherwise false
 	 */
 	public boolean removeEntry(int dstIp, int maskIp)
 	{ 
-        synchronized(this.entries)
-        {
-            RouteTableEntry entry = this.findEntry(dstIp, maskIp);
-            if (null == entry)
-            { return false; }
-            this.entries.remove(entry);
-        }
-        return true;
-    }
-	
-	/**
-	 * Update an entry in the route table.
+		synchronized(this.writeLock)
+		{
+			int index = indexOf(this.entries, dstIp, maskIp);
+			if (index < 0)
+			{ return false; }
+			this.remove(index);
+		}
+		return true;
+	}
+	
+	/**
+	 * Update an entry in the route table, replacing all its next hops.
 	 * @param dstIp destination IP of the entry to update
-     * @param maskIp subnet mask of the entry to update
+	 * @param maskIp subnet mask of the entry to update
 	 * @param gwIp new gateway IP address for matching entry
 	 * @param ifaceName new router interface name for matching entry
-     * @return true if a matching entry was found and updated, otherwise false
+	 * @return true if a matching entry was found and updated, otherwise false
 	 */
 	public boolean updateEntry(int dstIp, int maskIp, int gwIp, 
-            String ifaceName, int metric)
-	{
-        synchronized(this.entries)
-        {
-            RouteTableEntry entry = this.findEntry(dstIp, maskIp);
-            if (null == entry) { return false; }
-            entry.setGatewayAddress(gwIp);
-            entry.setInterface(ifaceName);
-            entry.metric = metric;
-            entry.timeAdded = System.currentTimeMillis();
-        }
-        return true;
+			String ifaceName, int metric)
+	{
+		synchronized(this.writeLock)
+		{
+			// Replace the entry, so concurrent lookups never see a gateway
+			// and interface from different updates
+			int index = indexOf(this.entries, dstIp, maskIp);
+			if (index < 0) { return false; }
+			this.set(index, 
+					new RouteTableEntry(dstIp, gwIp, maskIp, ifaceName, metric));
+		}
+		return true;
+	}
+	
+	/**
+	 * Publish a copy of the entries with one entry replaced; the caller must
+	 * hold the write lock.
+	 */
+	private void set(int index, RouteTableEntry entry)
+	{
+		RouteTableEntry[] entries = this.entries.clone();
+		entries[index] = entry;
+		this.publish(entries);
+	}
+	
+	/**
+	 * Publish a copy of the entries with one entry removed; the caller must
+	 * hold the write lock.
+	 */
+	private void remove(int index)
+	{
+		RouteTableEntry[] entries = 
+				new RouteTableEntry[this.entries.length - 1];
+		System.arraycopy(this.entries, 0, entries, 0, index);
+		System.arraycopy(this.entries, index + 1, entries, index, 
+				entries.length - index);
+		this.publish(entries);
+	}
+	
+	/**
+	 * Make a new snapshot of the entries visible to lookups; the caller must
+	 * hold the write lock.
+	 * @param entries new entries; not modified afterwards
+	 */
+	private void publish(RouteTableEntry[] entries)
+	{
+		this.entries = entries;
+		this.version++;
+	}
+	
+	/**
+	 * @return index of the entry for a destination and mask; -1 if there is
+	 *         none
+	 */
+	private static int indexOf(RouteTableEntry[] entries, int dstIp, 
+			int maskIp)
+	{
+		for (int i = 0; i < entries.length; i++)
+		{
+			if ((entries[i].getDestinationAddress() == dstIp)
+					&& (entries[i].getMaskAddress() == maskIp))
+			{ return i; }
+		}
+		return -1;
 	}
 
-    /**
+	/**
 	 * Find an entry in the route table.
 	 * @param dstIp destination IP of the entry to find
-     * @param maskIp subnet mask of the entry to find
-     * @return a matching entry if one was found, otherwise null
-	 */
-    public RouteTableEntry findEntry(int dstIp, int maskIp)
-    {
-        synchronized(this.entries)
-        {
-            for (RouteTableEntry entry : this.entries)
-            {
-                if ((entry.getDestinationAddress() == dstIp)
-                    && (entry.getMaskAddress() == maskIp)) 
-                { return entry; }
-            }
-        }
-        return null;
-    }
+	 * @param maskIp subnet mask of the entry to find
+	 * @return a matching entry if one was found, otherwise null
+	 */
+	public RouteTableEntry findEntry(int dstIp, int maskIp)
+	{
+		RouteTableEntry[] entries = this.entries;
+		int index = indexOf(entries, dstIp, maskIp);
+		return (index < 0) ? null : entries[index];
+	}
 
-    public RouteTableEntry lookup(int dstIP) {
-		synchronized(this.entries) {
-			RouteTableEntry bestMatchEntry = null;
-			for (RouteTableEntry entry : this.entries) {
-				int mask = entry.getMaskAddress();
-				int maskedDstIP = dstIP & mask;
-				int maskedEntryIP = entry.getDestinationAddress() & mask;
-				if (maskedDstIP == maskedEntryIP) {
-					if ((bestMatchEntry == null) || (mask > bestMatchEntry.getMaskAddress())) { 
-						bestMatchEntry = entry; 
-					}
+	public RouteTableEntry lookup(int dstIP) {
+		RouteTableEntry bestMatchEntry = null;
+		for (RouteTableEntry entry : this.entries) {
+			int mask = entry.getMaskAddress();
+			int maskedDstIP = dstIP & mask;
+			int maskedEntryIP = entry.getDestinationAddress() & mask;
+			if (maskedDstIP == maskedEntryIP) {
+				if ((bestMatchEntry == null) || (mask > bestMatchEntry.getMaskAddress())) { 
+					bestMatchEntry = entry; 
 				}
 			}
-			return bestMatchEntry;
 		}
+		return bestMatchEntry;
 	}
 
 	/**
@@ -224,29 +466,39 @@ public class RouteTable
 	 * @return true if all entries refer to a valid interface, otherwise false
 	 */
 	public boolean verify(Map<String,Iface> interfaces)
+	{ return verify(this.entries, interfaces); }
+	
+	/**
+	 * Verify the interface specified in route table entries refer to valid
+	 * router interfaces.
+	 * @param entries route table entries
+	 * @param interfaces list of router interfaces
+	 * @return true if all entries refer to a valid interface, otherwise false
+	 */
+	public static boolean verify(RouteTableEntry[] entries, 
+			Map<String,Iface> interfaces)
 	{
-        synchronized(this.entries)
-        { 
-            for (RouteTableEntry entry : this.entries)
-            {
-                if (!interfaces.containsKey(entry.getInterface()))
-                { return false; }
-            }
-        }
+		for (RouteTableEntry entry : entries)
+		{
+			for (RouteTableEntry.NextHop nextHop : entry.getNextHops())
+			{
+				if (!interfaces.containsKey(nextHop.getInterface()))
+				{ return false; }
+			}
+		}
 		return true;
 	}
 	
 	public String toString()
 	{
-        synchronized(this.entries)
-        { 
-            if (0 == this.entries.size())
-            { return " * warning* Routing table empty"; }
-            
-            String result = "Destination\tGateway\t\tMask\t\tIface\n";
-            for (RouteTableEntry entry : entries)
-            { result += entry.toString()+"\n"; }
-		    return result;
-        }
+		RouteTableEntry[] entries = this.entries;
+		if (0 == entries.length)
+		{ return " * warning* Routing table empty"; }
+		
+		StringBuilder result = new StringBuilder(
+				"Destination\tGateway\t\tMask\t\tIface\n");
+		for (RouteTableEntry entry : entries)
+		{ result.append(entry.toString()).append("\n"); }
+		return result.toString();
 	}
 }
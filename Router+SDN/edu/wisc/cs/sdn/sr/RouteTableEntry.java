@@ -4,28 +4,95 @@ import net.floodlightcontroller.packet.RIPv2;
 import net.floodlightcontroller.packet.RIPv2Entry;
 
 /**
- * An entry in a route table.
+ * An entry in a route table. An entry has one or more equal-cost next hops;
+ * packets are spread over them by flow, using rendezvous hashing, so each
+ * flow stays on one next hop and only the flows of a next hop that goes away
+ * move to another.
  * @author Aaron Gember-Jacobson and Anubhavnidhi Abhashkumar
  */
 public class RouteTableEntry 
 {
-	/** Destination IP address */
-	private int destinationAddress;
+	/** A gateway and the interface through which it is reached */
+	public static class NextHop
+	{
+		/** Gateway IP address; 0 if the destination is directly connected */
+		private final int gatewayAddress;
+		
+		/** Name of the router interface out which packets should be sent */
+		private final String interfaceName;
+		
+		/** Seed of the next hop's flow weights */
+		private final int key;
+		
+		/** When the next hop was last learned or confirmed (in ms) */
+		private final long refreshed;
+		
+		public NextHop(int gatewayAddress, String interfaceName)
+		{ this(gatewayAddress, interfaceName, System.currentTimeMillis()); }
+		
+		private NextHop(int gatewayAddress, String interfaceName, 
+				long refreshed)
+		{
+			this.gatewayAddress = gatewayAddress;
+			this.interfaceName = interfaceName;
+			this.key = gatewayAddress * 0x9e3779b9 + interfaceName.hashCode();
+			this.refreshed = refreshed;
+		}
+		
+		/**
+		 * @return gateway IP address; 0 if the destination is directly
+		 *         connected
+		 */
+		public int getGatewayAddress()
+		{ return this.gatewayAddress; }
+		
+		/**
+		 * @return name of the router interface out which packets should be 
+		 *         sent
+		 */
+		public String getInterface()
+		{ return this.interfaceName; }
+		
+		/**
+		 * @return when the next hop was last learned or confirmed (in ms)
+		 */
+		public long getRefreshed()
+		{ return this.refreshed; }
+		
+		/**
+		 * @return a copy of the next hop, confirmed now, e.g., by a RIP 
+		 *         response
+		 */
+		public NextHop refreshed()
+		{ 
+			return new NextHop(this.gatewayAddress, this.interfaceName, 
+					System.currentTimeMillis());
+		}
+		
+		/**
+		 * @return true if the next hop is the given gateway and interface
+		 */
+		public boolean is(int gatewayAddress, String interfaceName)
+		{
+			return this.gatewayAddress == gatewayAddress
+					&& this.interfaceName.equals(interfaceName);
+		}
+	}
 	
-	/** Gateway IP address */
-	private int gatewayAddress;
+	/** Destination IP address */
+	private final int destinationAddress;
 	
 	/** Subnet mask */
-	private int maskAddress;
+	private final int maskAddress;
 	
-	/** Name of the router interface out which packets should be sent to reach
-	 * the destination or gateway */
-	private String interfaceName;
+	/** Equal-cost next hops; at least one */
+	private final NextHop[] nextHops;
 	
-	//private int timer = 0;
-	public int metric;
+	/** Hop count to the destination */
+	private final int metric;
 
-	public long timeAdded = 0;
+	/** When the entry was created (in ms) */
+	private final long timeAdded;
 	
 	/**
 	 * Create a new route table entry.
@@ -37,11 +104,24 @@ public class RouteTableEntry
 	 */
 	public RouteTableEntry(int destinationAddress, int gatewayAddress, 
 			int maskAddress, String ifaceName, int metric)
+	{
+		this(destinationAddress, maskAddress, 
+				new NextHop[] { new NextHop(gatewayAddress, ifaceName) }, 
+				metric);
+	}
+	
+	/**
+	 * Create a new route table entry with equal-cost next hops.
+	 * @param destinationAddress destination IP address
+	 * @param maskAddress subnet mask
+	 * @param nextHops next hops; at least one, and not modified afterwards
+	 */
+	public RouteTableEntry(int destinationAddress, int maskAddress, 
+			NextHop[] nextHops, int metric)
 	{
 		this.destinationAddress = destinationAddress;
-		this.gatewayAddress = gatewayAddress;
 		this.maskAddress = maskAddress;
-		this.interfaceName = ifaceName;
+		this.nextHops = nextHops;
 		this.metric = metric;
 		this.timeAdded = System.currentTimeMillis();
 	}
@@ -54,13 +134,10 @@ public class RouteTableEntry
 	{ return this.destinationAddress; }
 	
 	/**
-	 * @return gateway IP address
+	 * @return gateway IP address of the first next hop
 	 */
 	public int getGatewayAddress()
-	{ return this.gatewayAddress; }
-
-    public void setGatewayAddress(int gatewayAddress)
-    { this.gatewayAddress = gatewayAddress; }
+	{ return this.nextHops[0].getGatewayAddress(); }
 	
 	/**
 	 * @return subnet mask 
@@ -70,25 +147,119 @@ public class RouteTableEntry
 	
 	/**
 	 * @return name of the router interface out which packets should be sent to 
-	 *         reach the destination or gateway
+	 *         reach the destination or gateway of the first next hop
 	 */
 	public String getInterface()
-	{ return this.interfaceName; }
-
-    public void setInterface(String interfaceName)
-    { this.interfaceName = interfaceName; }
+	{ return this.nextHops[0].getInterface(); }
+	
+	/**
+	 * @return hop count to the destination
+	 */
+	public int getMetric()
+	{ return this.metric; }
 	
+	/**
+	 * @return when the entry was created (in ms)
+	 */
+	public long getTimeAdded()
+	{ return this.timeAdded; }
+	
+	/**
+	 * @return equal-cost next hops; must not be modified
+	 */
+	public NextHop[] getNextHops()
+	{ return this.nextHops; }
+	
+	/**
+	 * @return true if there is more than one next hop
+	 */
+	public boolean isMultipath()
+	{ return this.nextHops.length > 1; }
+	
+	/**
+	 * @param interfaceName name of a router interface
+	 * @return true if any next hop is reached through the interface
+	 */
+	public boolean usesInterface(String interfaceName)
+	{
+		for (NextHop nextHop : this.nextHops)
+		{
+			if (nextHop.getInterface().equals(interfaceName))
+			{ return true; }
+		}
+		return false;
+	}
+	
+	/**
+	 * @return index of the next hop matching a gateway and interface; -1 if
+	 *         there is none
+	 */
+	public int indexOf(int gatewayAddress, String interfaceName)
+	{
+		for (int i = 0; i < this.nextHops.length; i++)
+		{
+			if (this.nextHops[i].is(gatewayAddress, interfaceName))
+			{ return i; }
+		}
+		return -1;
+	}
+	
+	/**
+	 * Choose the next hop for a flow: the one with the highest weight for 
+	 * the flow's hash, so the choice only changes for the flows of next hops
+	 * that are removed, or that move to a next hop that is added.
+	 * @param flowHash hash of the flow
+	 * @return index of the next hop
+	 */
+	public int select(int flowHash)
+	{
+		if (1 == this.nextHops.length)
+		{ return 0; }
+		int best = 0;
+		int bestWeight = Integer.MIN_VALUE;
+		for (int i = 0; i < this.nextHops.length; i++)
+		{
+			int weight = flowHash ^ this.nextHops[i].key;
+			weight *= 0x85ebca6b;
+			weight ^= (weight >>> 13);
+			weight *= 0xc2b2ae35;
+			weight ^= (weight >>> 16);
+			if (weight > bestWeight)
+			{
+				best = i;
+				bestWeight = weight;
+			}
+		}
+		return best;
+	}
+	
+	/**
+	 * @param flowHash hash of the flow
+	 * @return next hop for a flow
+	 */
+	public NextHop getNextHop(int flowHash)
+	{ return this.nextHops[this.select(flowHash)]; }
+	
+	/**
+	 * @return one line per next hop
+	 */
 	public String toString()
 	{
 		String result = "";
-		result += Util.intToDottedDecimal(destinationAddress) + "\t";
-        String gwString = Util.intToDottedDecimal(gatewayAddress);
-		result += gwString + "\t";
-        if (gwString.length() < 8)
-        { result += "\t"; }
-		result += Util.intToDottedDecimal(maskAddress) + "\t";
-		result += interfaceName + "\t";
-		result += metric;
+		for (NextHop nextHop : this.nextHops)
+		{
+			if (result.length() > 0)
+			{ result += "\n"; }
+			result += Util.intToDottedDecimal(destinationAddress) + "\t";
+			String gwString = Util.intToDottedDecimal(
+					nextHop.getGatewayAddress());
+			result += gwString + "\t";
+			if (gwString.length() < 8)
+			{ result += "\t"; }
+			result += Util.intToDottedDecimal(maskAddress) + "\t";
+			result += nextHop.getInterface() + "\t";
+			result += metric;
+		}
 		return result;
 	}
 }
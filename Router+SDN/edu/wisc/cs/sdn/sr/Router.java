@@ -1,11 +1,19 @@
 package edu.wisc.cs.sdn.sr;
 
 import java.nio.ByteBuffer;
-import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 
+import edu.wisc.cs.sdn.sr.acl.Acl;
+import edu.wisc.cs.sdn.sr.acl.AclRule;
+import edu.wisc.cs.sdn.sr.flow.FlowMonitor;
+import edu.wisc.cs.sdn.sr.metrics.MetricRegistry;
+import edu.wisc.cs.sdn.sr.nat.Napt;
+import edu.wisc.cs.sdn.sr.vns.CommandPacket;
+import edu.wisc.cs.sdn.sr.vns.PacketPipeline;
 import edu.wisc.cs.sdn.sr.vns.VNSComm;
 
 import net.floodlightcontroller.packet.*;
@@ -33,9 +41,15 @@ public class Router
 	/** List of the router's interfaces; maps interface name's to interfaces */
 	private Map<String,Iface> interfaces;
 	
+	/** Lookup structures over the interfaces, for the data plane */
+	private volatile InterfaceIndex interfaceIndex;
+	
 	/** Routing table for the router */
 	private RouteTable routeTable;
 	
+	/** File from which the routing table was loaded; null if none */
+	private volatile String routeTableFile;
+	
 	/** ARP cache for the router */
 	private ArpCache arpCache;
 	
@@ -49,6 +63,33 @@ public class Router
     /** RIP subsystem */
     private RIP rip;
 	
+	/** Byte-level forwarding path for transit IPv4 traffic */
+	private FastPath fastPath;
+	
+	/** Tracing of packets and events */
+	private PacketTracer tracer;
+	
+	/** Cached next hop interface and MAC addresses per destination */
+	private ForwardingCache forwardingCache;
+	
+	/** Packet, drop, ARP and RIP counters */
+	private RouterStats stats;
+	
+	/** Rate limiting of generated ICMP errors */
+	private IcmpRateLimiter icmpLimiter;
+	
+	/** Reassembly of fragmented datagrams addressed to the router */
+	private Reassembler reassembler;
+	
+	/** Filter applied to received IPv4 packets; null if none */
+	private volatile Acl acl;
+	
+	/** Address and port translation; null if disabled */
+	private volatile Napt napt;
+	
+	/** Accounting of forwarded flows; null if disabled */
+	private volatile FlowMonitor flowMonitor;
+	
 	/**
 	 * Creates a router for a specific topology, host, and user.
 	 * @param topo topology ID for the router
@@ -63,11 +104,43 @@ public class Router
 		this.setUser(user);
 		this.template = template;
 		this.logfile = null;
+		this.stats = new RouterStats(new MetricRegistry());
 		this.interfaces = new HashMap<String,Iface>();
+		this.interfaceIndex = new InterfaceIndex(this.interfaces.values(),
+				RIP.RIP_MULTICAST_IP);
 		this.routeTable = new RouteTable();
 		this.arpCache = new ArpCache(this);
 		this.vnsComm = null;
         this.rip = new RIP(this);
+		this.fastPath = new FastPath(this);
+		this.tracer = new PacketTracer();
+		this.icmpLimiter = new IcmpRateLimiter(
+				IcmpRateLimiter.DEFAULT_GLOBAL_RATE,
+				IcmpRateLimiter.DEFAULT_DESTINATION_RATE);
+		this.forwardingCache = new ForwardingCache(this, 
+				ForwardingCache.DEFAULT_SIZE);
+		this.reassembler = new Reassembler(this.stats,
+				Reassembler.DEFAULT_MEMORY_LIMIT);
+		
+		MetricRegistry registry = this.stats.getRegistry();
+		registry.gauge("sr_route_table_entries", "Entries in the route table",
+				() -> this.routeTable.size());
+		registry.gauge("sr_arp_cache_entries", "Entries in the ARP cache",
+				() -> this.arpCache.size());
+		registry.gauge("sr_arp_waiting_packets", 
+				"Frames waiting for their next hop's MAC address",
+				() -> this.arpCache.getWaitingPackets());
+		registry.gauge("sr_arp_waiting_bytes", 
+				"Buffer memory held by frames waiting for ARP",
+				() -> this.arpCache.getWaitingBytes());
+		registry.gauge("sr_trace_dropped", 
+				"Trace records dropped because the sink fell behind",
+				() -> this.tracer.getDropped());
+		registry.gauge("sr_reassembly_memory_bytes",
+				"Buffer memory held by incomplete datagrams",
+				() -> this.reassembler.getMemoryUsed());
+		registry.gauge("sr_acl_rules", "Rules in the access control list",
+				() -> (null == this.acl) ? 0 : this.acl.getRules().size());
 	}
 	
 	public void init()
@@ -135,6 +208,124 @@ public class Router
 	public RouteTable getRouteTable()
 	{ return this.routeTable; }
 	
+	/**
+	 * @return ARP cache for the router
+	 */
+	public ArpCache getArpCache()
+	{ return this.arpCache; }
+	
+	/**
+	 * @return cached next hop interface and MAC addresses per destination
+	 */
+	public ForwardingCache getForwardingCache()
+	{ return this.forwardingCache; }
+	
+	/**
+	 * @param icmpLimiter rate limiting of generated ICMP errors
+	 */
+	public void setIcmpLimiter(IcmpRateLimiter icmpLimiter)
+	{ this.icmpLimiter = icmpLimiter; }
+	
+	/**
+	 * @return filter applied to received IPv4 packets; null if none
+	 */
+	public Acl getAcl()
+	{ return this.acl; }
+	
+	/**
+	 * Install a filter for received IPv4 packets, and export its per-rule hit
+	 * counters. Meant to be called once, before packets are processed.
+	 * @param acl the filter; null to permit all packets
+	 */
+	public void setAcl(Acl acl)
+	{
+		this.acl = acl;
+		if (null == acl)
+		{ return; }
+		MetricRegistry registry = this.stats.getRegistry();
+		String help = "Packets to which an access control list rule applied";
+		for (AclRule rule : acl.getRules())
+		{
+			registry.gauge("sr_acl_rule_hits", help, rule::getHits,
+					"line", Integer.toString(rule.getLine()),
+					"action", rule.getAction().name().toLowerCase());
+		}
+		registry.gauge("sr_acl_rule_hits", help, acl::getDefaultHits,
+				"line", "default",
+				"action", acl.getDefaultAction().name().toLowerCase());
+	}
+	
+	/**
+	 * @return address and port translation; null if disabled
+	 */
+	public Napt getNapt()
+	{ return this.napt; }
+	
+	/**
+	 * Enable address and port translation, and export its counters. Meant to
+	 * be called once, before packets are processed.
+	 * @param napt the translation
+	 */
+	public void setNapt(Napt napt)
+	{
+		this.napt = napt;
+		MetricRegistry registry = this.stats.getRegistry();
+		registry.gauge("sr_napt_flows", "Flows in the NAPT connection table",
+				napt::getFlowCount);
+		registry.gauge("sr_napt_flows_created", "NAPT flows created",
+				napt::getFlowsCreated);
+		registry.gauge("sr_napt_flows_expired", "NAPT flows expired",
+				napt::getFlowsExpired);
+	}
+	
+	/**
+	 * @return accounting of forwarded flows; null if disabled
+	 */
+	public FlowMonitor getFlowMonitor()
+	{ return this.flowMonitor; }
+	
+	/**
+	 * Enable accounting of forwarded flows, and export its counters. Meant to
+	 * be called once, before packets are processed; the accounting is shut
+	 * down, exporting the remaining flows, when the router is destroyed.
+	 * @param flowMonitor the accounting
+	 */
+	public void setFlowMonitor(FlowMonitor flowMonitor)
+	{
+		this.flowMonitor = flowMonitor;
+		MetricRegistry registry = this.stats.getRegistry();
+		registry.gauge("sr_flows", "Flows being accounted",
+				flowMonitor::getFlowCount);
+		registry.gauge("sr_flow_packets_sampled", "Packets accounted to flows",
+				flowMonitor::getPacketsSampled);
+		registry.gauge("sr_flow_records_exported", "Flow records exported",
+				flowMonitor::getRecordsExported);
+		registry.gauge("sr_flow_records_dropped",
+				"Flow records lost before they were exported",
+				flowMonitor::getRecordsDropped);
+		registry.gauge("sr_flow_export_errors",
+				"Flow export messages that could not be written",
+				flowMonitor::getExportErrors);
+	}
+	
+	/**
+	 * @return packet, drop, ARP and RIP counters
+	 */
+	public RouterStats getStats()
+	{ return this.stats; }
+	
+	/**
+	 * @return tracing of packets and events
+	 */
+	public PacketTracer getTracer()
+	{ return this.tracer; }
+	
+	/**
+	 * @return byte-level forwarding path for transit IPv4 traffic
+	 */
+	public FastPath getFastPath()
+	{ return this.fastPath; }
+	
 	/**
 	 * @return list of the router's interfaces; maps interface name's to
 	 * 	       interfaces
@@ -147,12 +338,20 @@ public class Router
 	 */
 	public void setVNSComm(VNSComm vnsComm)
 	{ this.vnsComm = vnsComm; }
+
+	/**
+	 * @return Virtual Network System communication manager for the router
+	 */
+	public VNSComm getVNSComm()
+	{ return this.vnsComm; }
 	
 	/**
 	 * Close the PCAP dump file for the router, if logging is enabled.
 	 */
 	public void destroy()
 	{
+		if (this.flowMonitor != null)
+		{ this.flowMonitor.shutdown(); }
 		if (logfile != null)
 		{ this.logfile.close(); }
 	}
@@ -169,6 +368,7 @@ public class Router
 					+ routeTableFile);
 			exit(1);
 		}
+		this.routeTableFile = routeTableFile;
 		
 		System.out.println("Loading routing table");
 		System.out.println("---------------------------------------------");
@@ -176,17 +376,86 @@ public class Router
 		System.out.println("---------------------------------------------");
 	}
 	
+	/**
+	 * @return file from which the routing table was loaded; null if none
+	 */
+	public String getRouteTableFile()
+	{ return this.routeTableFile; }
+	
+	/**
+	 * Load the routing table again from the file it was loaded from, while
+	 * the router forwards packets. The new table is read and checked against
+	 * the router's interfaces before it replaces the old one in a single 
+	 * step; if it is invalid, the old table stays in use. A table maintained
+	 * by RIP is not reloaded, since the routes RIP learned would be lost.
+	 * @return true if the routing table was replaced, otherwise false
+	 */
+	public boolean reloadRouteTable()
+	{
+		String routeTableFile = this.routeTableFile;
+		if (null == routeTableFile)
+		{
+			System.err.println("Not reloading routing table: it was not "
+					+ "loaded from a file");
+			return false;
+		}
+		if (this.rip.isActive())
+		{
+			System.err.println("WARNING: not reloading routing table: RIP "
+					+ "is running, and the routes it learned would be lost");
+			return false;
+		}
+		
+		long start = System.nanoTime();
+		RouteTableEntry[] entries = RouteTable.parse(routeTableFile);
+		if (null == entries)
+		{
+			System.err.println("Error reloading routing table from file "
+					+ routeTableFile + "; keeping current table");
+			return false;
+		}
+		if (!RouteTable.verify(entries, this.interfaces))
+		{
+			System.err.println("Routing table in file " + routeTableFile
+					+ " not consistent with hardware; keeping current table");
+			return false;
+		}
+		this.routeTable.replace(entries);
+		System.out.println(String.format(
+				"Reloaded routing table from file %s: %d entries in %d ms",
+				routeTableFile, entries.length,
+				(System.nanoTime() - start) / 1000000));
+		return true;
+	}
+	
 	/**
 	 * Add an interface to the router.
 	 * @param ifaceName the name of the interface
 	 */
 	public Iface addInterface(String ifaceName)
 	{
-		Iface iface = new Iface(ifaceName);
+		Iface iface = new Iface(ifaceName, this.interfaces.size(),
+				this.stats.newInterfaceCounters(ifaceName));
 		this.interfaces.put(ifaceName, iface);
 		return iface;
 	}
 	
+	/**
+	 * Rebuild the data plane's interface lookup structures; must be called
+	 * once interfaces have been added and their addresses set.
+	 */
+	public void indexInterfaces()
+	{
+		this.interfaceIndex = new InterfaceIndex(this.interfaces.values(),
+				RIP.RIP_MULTICAST_IP);
+	}
+	
+	/**
+	 * @return lookup structures over the router's interfaces
+	 */
+	public InterfaceIndex getInterfaceIndex()
+	{ return this.interfaceIndex; }
+	
 	/**
 	 * Gets an interface on the router by the interface's name.
 	 * @param ifaceName name of the desired interface
@@ -204,9 +473,57 @@ public class Router
 	 * @return true if the packet was sent successfully, otherwise false
 	 */
 	public boolean sendPacket(Ethernet etherPacket, Iface iface) {
-		return this.vnsComm.sendPacket(etherPacket, iface.getName());
+		// Packets built by the router have no length until serialized; the
+		// frame serialized to check it is the one sent
+		if (etherPacket.getEtherType() == Ethernet.TYPE_IPv4) {
+			int length = ((IPv4) etherPacket.getPayload()).getTotalLength() & 0xffff;
+			if (0 == length || length > iface.getMtu()) {
+				byte[] frame = etherPacket.serialize();
+				if (frame.length - FastPath.ETHER_HEADER_LENGTH > iface.getMtu()) {
+					return sendFragments(frame, 0, frame.length, iface);
+				}
+				return this.vnsComm.sendPacket(etherPacket, frame, iface);
+			}
+		}
+		return this.vnsComm.sendPacket(etherPacket, iface);
 	}
 	
+	/**
+	 * Fragment a serialized frame to fit an interface's MTU and send the
+	 * fragments.
+	 * @param frame buffer containing the frame
+	 * @param offset offset of the frame in the buffer
+	 * @param length length of the frame
+	 * @return true if all fragments were sent successfully, otherwise false
+	 */
+	private boolean sendFragments(byte[] frame, int offset, int length, Iface iface) {
+		List<byte[]> fragments = Fragmentation.fragment(frame, offset, length,
+				iface.getMtu(), CommandPacket.FRAME_OFFSET);
+		if (null == fragments) {
+			this.stats.dropped(RouterStats.Drop.FRAG_NEEDED);
+			return false;
+		}
+		this.stats.fragmented(fragments.size());
+		boolean sent = true;
+		for (byte[] fragment : fragments) {
+			sent &= sendFrame(fragment, CommandPacket.FRAME_OFFSET,
+					fragment.length - CommandPacket.FRAME_OFFSET, iface);
+		}
+		return sent;
+	}
+	
+	/**
+	 * Send an already serialized Ethernet frame out a specific interface.
+	 * @param buf buffer containing the frame; the VNS command header is
+	 *        written into the bytes directly preceding the frame
+	 * @param offset offset of the frame in the buffer
+	 * @param length length of the frame
+	 * @param iface interface on which to send the frame
+	 * @return true if the frame was sent successfully, otherwise false
+	 */
+	public boolean sendFrame(byte[] buf, int offset, int length, Iface iface)
+	{ return this.vnsComm.sendFrame(buf, offset, length, iface); }
+	
 	/**
 	 * Handle an Ethernet packet received on a specific interface.
 	 * @param etherPacket the Ethernet packet that was received
@@ -214,8 +531,8 @@ public class Router
 	 */
 	public void handlePacket(Ethernet etherPacket, Iface inIface)
 	{
-		 System.out.println("*** -> Received packet: " +
-                etherPacket.toString().replace("\n", "\n\t"));
+		this.tracer.packet(PacketTracer.Level.DEBUG, "*** -> Received packet",
+				etherPacket, inIface);
 
 		/********************************************************************/
 		/* TODO: Handle packets                                             */
@@ -223,19 +540,40 @@ public class Router
 		if (payloadType == etherPacket.TYPE_IPv4) {
 			IPv4 ipPacket = (IPv4) etherPacket.getPayload();
 			if (packetCorrect(ipPacket)) {
+				if (!aclPermits(ipPacket)) {
+					this.stats.dropped(RouterStats.Drop.ACL_DENIED);
+					this.tracer.packet(PacketTracer.Level.INFO, "Packet denied by ACL",
+							etherPacket, inIface);
+					return;
+				}
+				// Equal-cost next hops are chosen by the flow as received, as
+				// the fast path does, so a flow keeps its path either way
+				int flowHash = PacketPipeline.flowHash(ipPacket);
+				Napt napt = this.napt;
+				if (napt != null && napt.isOutside(inIface)) {
+					napt.translateInbound(ipPacket);
+				}
 				if (destinedSelf(ipPacket)) {
+					if (Fragmentation.isFragment(ipPacket)) {
+						ipPacket = this.reassembler.add(ipPacket);
+						if (null == ipPacket) return;
+						etherPacket.setPayload(ipPacket);
+						ipPacket.setParent(etherPacket);
+					}
 					respond(ipPacket, inIface);
 				} else {
-					forward(ipPacket, inIface);
+					forward(ipPacket, inIface, flowHash);
 				}
 			} else {
-				System.out.println("Received an IPv4 packet with wrong checksum.");
+				this.stats.dropped(RouterStats.Drop.BAD_CHECKSUM);
+				this.tracer.trace(PacketTracer.Level.INFO, "Received an IPv4 packet with wrong checksum.");
 			}
 		} else if (payloadType == etherPacket.TYPE_ARP) {
 			handleArpPacket(etherPacket, inIface);
 		} else {
-			System.out.println("The network layer packet type not support now:");
-			System.out.println(payloadType);
+			this.stats.dropped(RouterStats.Drop.UNSUPPORTED);
+			this.tracer.packet(PacketTracer.Level.INFO, "The network layer packet type not support now",
+					etherPacket, inIface);
 		}
 
 
@@ -273,23 +611,33 @@ public class Router
 			// Update ARP cache with contents of ARP reply
 		    int senderIp = ByteBuffer.wrap(
 				    arpPacket.getSenderProtocolAddress()).getInt();
-			ArpRequest request = this.arpCache.insert(
+			ArpRequest request = this.arpCache.resolve(
 					new MACAddress(arpPacket.getSenderHardwareAddress()),
 					senderIp);
-			// Process pending ARP request entry, if there is one
-			if (request != null)
+			// Process pending ARP request entry, if there is one; packets
+			// queued meanwhile are sent in turn
+			if (request == null)
+			{ break; }
+			Iface outIface = request.getIface();
+			byte[] sourceMAC = outIface.getMacBytes();
+			byte[] destMAC = request.getMac().toBytes();
+			Collection<byte[]> waitingFrames;
+			while ((waitingFrames = this.arpCache.takeWaitingFrames(request)) 
+					!= null)
 			{
-				int gatewayIP = request.getIpAddress();
-				Iface outIface = request.getIface();
-				String sourceMAC = outIface.getMacAddress().toString();
-				String destMAC = arpCache.lookup(gatewayIP).getMac().toString();
-				for (Ethernet packet : request.getWaitingPackets())
+				for (byte[] buf : waitingFrames)
 				{
 					/*********************************************************/
 					/* TODO: send packet waiting on this request             */
-					packet.setSourceMACAddress(sourceMAC);
-					packet.setDestinationMACAddress(destMAC);
-					sendPacket(packet, outIface);
+					int length = buf.length - ArpCache.HEADROOM;
+					PacketClock.restore(buf, 0, RouterStats.Path.ARP_DELAYED);
+					System.arraycopy(destMAC, 0, buf, ArpCache.HEADROOM, 6);
+					System.arraycopy(sourceMAC, 0, buf, ArpCache.HEADROOM + 6, 6);
+					if (length - FastPath.ETHER_HEADER_LENGTH > outIface.getMtu())
+					{ sendFragments(buf, ArpCache.HEADROOM, length, outIface); }
+					else
+					{ sendFrame(buf, ArpCache.HEADROOM, length, outIface); }
+					this.stats.forwarded(false);
 					/*********************************************************/
 				}
 			}
@@ -298,85 +646,222 @@ public class Router
 	}
 
 	private boolean packetCorrect(IPv4 packet) {
-		short checksum = packet.getChecksum();
-		packet.setChecksum((short)0);
-		byte[] bytes = packet.serialize();
-		packet.deserialize(bytes, 0, bytes.length);
-		short checksumNew = packet.getChecksum();
-		return checksum == checksumNew;
+		// Checksum covers only the header, so there's no need to serialize
+		return Checksum.ipv4Header(packet) == 0;
 	}
 
 	private boolean destinedSelf(IPv4 packet) {
-		int address = packet.getDestinationAddress();
-		if (address == Util.dottedDecimalToInt("224.0.0.9")) return true;
-		for (Iface iface :interfaces.values()) {
-			if (address == iface.getIpAddress()) return true;
-		}
-		return false;
+		return isLocalAddress(packet.getDestinationAddress());
 	}
 
-	private void forward(IPv4 packet, Iface inIface) {
+	/**
+	 * @param address an IP address
+	 * @return true if packets to the address are handled by the router itself
+	 */
+	boolean isLocalAddress(int address) {
+		return this.interfaceIndex.isLocal(address);
+	}
+
+	private void forward(IPv4 packet, Iface inIface, int flowHash) {
 		if (packet.getTtl() == 0) {
-			ICMPReply(generateICMP((byte) 11, (byte) 0, packet), inIface);
+			this.stats.dropped(RouterStats.Drop.TTL_EXPIRED);
+			sendIcmpError((byte) 11, (byte) 0, packet, inIface);
 			return;
 		}
-		packet.setTtl((byte)(packet.getTtl() - 1));
-		packet.resetChecksum();
+		Checksum.decrementTtl(packet);
 
-		// Local: get gateway IP addr & get local interface by looking up
+		// Known destination: interface and MAC addresses are cached
 		int destIPAddress = packet.getDestinationAddress();
+		Ethernet etherPacket = (Ethernet) packet.getParent();
+		ForwardingCache.Entry next = forwardingCache.lookup(destIPAddress);
+		if (next != null && next.isMultipath()) {
+			next = next.path(flowHash);
+		}
+		if (next != null) {
+			if (!fitsMtu(packet, next.getOutIface(), inIface)) return;
+			if (!translateOutbound(packet, inIface, next.getOutIface())) return;
+			accountFlow(packet, inIface, next.getOutIface());
+			etherPacket.setSourceMACAddress(next.getSourceMac());
+			etherPacket.setDestinationMACAddress(next.getDestinationMac());
+			sendPacket(etherPacket, next.getOutIface());
+			this.stats.forwarded(false);
+			return;
+		}
+
+		// Local: get gateway IP addr & get local interface by looking up
 		RouteTableEntry entry = routeTable.lookup(destIPAddress);
 		if (entry == null) {
-			ICMPReply(generateICMP((byte) 3, (byte) 0, packet), inIface);
+			this.stats.dropped(RouterStats.Drop.NO_ROUTE);
+			sendIcmpError((byte) 3, (byte) 0, packet, inIface);
 			return;
 		}
-		Iface outIface = this.interfaces.get(entry.getInterface());
-		int gateWayAddress = entry.getGatewayAddress();
+		// Equal-cost next hops: keep each flow on one of them
+		RouteTableEntry.NextHop nextHop = entry.isMultipath()
+				? entry.getNextHop(flowHash)
+				: entry.getNextHops()[0];
+		Iface outIface = this.interfaces.get(nextHop.getInterface());
+		if (!fitsMtu(packet, outIface, inIface)) return;
+		if (!translateOutbound(packet, inIface, outIface)) return;
+		accountFlow(packet, inIface, outIface);
+		int gateWayAddress = nextHop.getGatewayAddress();
 		gateWayAddress = gateWayAddress == 0 ? destIPAddress : gateWayAddress;
 
-		Ethernet etherPacket = (Ethernet) packet.getParent();
 		ArpEntry destMACAddress = arpCache.lookup(gateWayAddress);
-		if (destMACAddress != null) {
-			// Packet : set packet Source and Dest MAC addr
-			etherPacket.setSourceMACAddress(outIface.getMacAddress().toString());
-			etherPacket.setDestinationMACAddress(destMACAddress.getMac().toString());
-			sendPacket(etherPacket, outIface);
-		} else {
-			arpCache.waitForArp(etherPacket, outIface, gateWayAddress);
+		if (destMACAddress == null) {
+			if (arpCache.waitForArp(etherPacket, outIface, gateWayAddress)) return;
+			// Resolved by another thread while queueing
+			destMACAddress = arpCache.lookup(gateWayAddress);
 		}
+		// Packet : set packet Source and Dest MAC addr
+		etherPacket.setSourceMACAddress(outIface.getMacAddress());
+		etherPacket.setDestinationMACAddress(destMACAddress.getMac());
+		sendPacket(etherPacket, outIface);
+		this.stats.forwarded(false);
 	}
 	
+	/**
+	 * Check a received packet against the ACL, if any. Ports are only
+	 * matched for TCP and UDP packets that are not non-initial fragments.
+	 */
+	private boolean aclPermits(IPv4 packet) {
+		Acl acl = this.acl;
+		if (null == acl) return true;
+		int srcPort = AclRule.NO_PORT;
+		int dstPort = AclRule.NO_PORT;
+		IPacket payload = packet.getPayload();
+		if (payload instanceof TCP) {
+			srcPort = ((TCP) payload).getSourcePort() & 0xffff;
+			dstPort = ((TCP) payload).getDestinationPort() & 0xffff;
+		} else if (payload instanceof UDP) {
+			srcPort = ((UDP) payload).getSourcePort() & 0xffff;
+			dstPort = ((UDP) payload).getDestinationPort() & 0xffff;
+		}
+		return acl.permits(packet.getSourceAddress(),
+				packet.getDestinationAddress(), packet.getProtocol() & 0xff,
+				srcPort, dstPort);
+	}
+
+	/**
+	 * Translate a packet forwarded from an inside to the outside interface,
+	 * if address and port translation is enabled.
+	 * @return false if the packet must be dropped, otherwise true
+	 */
+	private boolean translateOutbound(IPv4 packet, Iface inIface, Iface outIface) {
+		Napt napt = this.napt;
+		if (null == napt || !napt.isInside(inIface) || !napt.isOutside(outIface)) {
+			return true;
+		}
+		if (napt.translateOutbound(packet)) return true;
+		this.stats.dropped(RouterStats.Drop.NAT_FAILED);
+		return false;
+	}
+
+	/**
+	 * Account a forwarded packet to its flow, if flow accounting is enabled.
+	 * Packets are accounted as they leave, after address translation.
+	 */
+	private void accountFlow(IPv4 packet, Iface inIface, Iface outIface) {
+		FlowMonitor flowMonitor = this.flowMonitor;
+		if (flowMonitor != null) flowMonitor.account(packet, inIface, outIface);
+	}
+
+	/**
+	 * Check whether a packet can be sent out an interface, either as is or
+	 * fragmented. Oversized packets with DF set are dropped with an ICMP
+	 * fragmentation needed error carrying the interface's MTU.
+	 */
+	private boolean fitsMtu(IPv4 packet, Iface outIface, Iface inIface) {
+		if ((packet.getTotalLength() & 0xffff) <= outIface.getMtu()
+				|| (packet.getFlags() & IPv4.IPV4_FLAGS_DONTFRAG) == 0) {
+			return true;
+		}
+		this.stats.dropped(RouterStats.Drop.FRAG_NEEDED);
+		sendIcmpError((byte) 3, (byte) 4, outIface.getMtu(), packet, inIface);
+		return false;
+	}
+
 	private void respond(IPv4 packet, Iface inIface) {
 		byte protocol = packet.getProtocol();
 		if (protocol == packet.PROTOCOL_ICMP) {
 			ICMP icmpPacket = (ICMP) packet.getPayload();
 			if (icmpPacket.getIcmpType() == 8 && icmpPacket.getIcmpCode() == 0) {
+				// Reply from the address that was pinged, as the fast path does,
+				// or from the interface if a multicast group was pinged
+				int srcIp = packet.getDestinationAddress();
+				if (Util.isMulticast(srcIp)) srcIp = inIface.getIpAddress();
 				ICMP icmp = setICMP(icmpPacket, (byte) 0, (byte) 0, null);
-				ICMPReply(icmp, inIface);
+				ICMPReply(icmp, srcIp, inIface);
 			}
 		} else if (protocol == packet.PROTOCOL_TCP) {
-			ICMPReply(generateICMP((byte) 3, (byte) 3, packet), inIface);
+			sendIcmpError((byte) 3, (byte) 3, packet, inIface);
 
 		} else {
 			assert protocol == packet.PROTOCOL_UDP;
 			UDP udpPacket = (UDP) packet.getPayload();
 			if (udpPacket.getDestinationPort() == 520) {
+				PacketClock.via(RouterStats.Path.RIP);
 				this.rip.handlePacket((Ethernet) packet.getParent(), inIface);
 			} else {
-				ICMPReply(generateICMP((byte) 3, (byte) 3, packet), inIface);
+				sendIcmpError((byte) 3, (byte) 3, packet, inIface);
 			}
 		}
 	}
 
 	public void ICMPReply(ICMP icmp, Iface outIface) {
+		ICMPReply(icmp, outIface.getIpAddress(), outIface);
+	}
+
+	/**
+	 * Send an ICMP message back to the source of the packet it answers, to
+	 * the MAC address the packet came from.
+	 * @param icmp the ICMP message; its parent is the packet it answers
+	 * @param srcIp source address of the message
+	 * @param outIface interface out which the message should be sent
+	 */
+	public void ICMPReply(ICMP icmp, int srcIp, Iface outIface) {
 		IPv4 iPv4 = (IPv4) icmp.getParent();
 		Ethernet ethernet = (Ethernet) iPv4.getParent();
 		iPv4.setPayload(icmp);
 		iPv4.setDestinationAddress(iPv4.getSourceAddress());
-		iPv4.setSourceAddress(outIface.getIpAddress());
+		iPv4.setSourceAddress(srcIp);
 		ethernet.setDestinationMACAddress(ethernet.getSourceMACAddress());
-		ethernet.setSourceMACAddress(outIface.getMacAddress().toString());
+		ethernet.setSourceMACAddress(outIface.getMacBytes());
+		PacketClock.via(RouterStats.Path.ICMP);
 		sendPacket(ethernet, outIface);
+		this.stats.icmpSent(icmp.getIcmpType());
+	}
+
+	/**
+	 * Send an ICMP error about a packet back to the packet's source, unless
+	 * the rate limit for ICMP errors has been reached.
+	 * @param type ICMP type
+	 * @param code ICMP code
+	 * @param packet the offending packet
+	 * @param outIface interface out which the error should be sent
+	 * @return true if the error was sent, false if it was suppressed
+	 */
+	public boolean sendIcmpError(byte type, byte code, IPv4 packet, Iface outIface) {
+		return sendIcmpError(type, code, 0, packet, outIface);
+	}
+
+	/**
+	 * Send an ICMP error about a packet back to the packet's source, unless
+	 * the rate limit for ICMP errors has been reached.
+	 * @param type ICMP type
+	 * @param code ICMP code
+	 * @param rest value of the 4 bytes following the ICMP checksum (e.g., the
+	 *        next-hop MTU for fragmentation needed)
+	 * @param packet the offending packet
+	 * @param outIface interface out which the error should be sent
+	 * @return true if the error was sent, false if it was suppressed
+	 */
+	public boolean sendIcmpError(byte type, byte code, int rest, IPv4 packet, Iface outIface) {
+		if (!this.icmpLimiter.allow(packet.getSourceAddress())) {
+			this.stats.icmpSuppressed(type);
+			return false;
+		}
+		ICMPReply(generateICMP(type, code, rest, packet), outIface);
+		return true;
 	}
 
 	public ICMP setICMP(ICMP icmp, byte type, byte code, IPv4 parent) {
@@ -388,24 +873,70 @@ public class Router
 	}
 
 	public ICMP generateICMP(byte type, byte code, IPv4 parent) {
+		return generateICMP(type, code, 0, parent);
+	}
+
+	public ICMP generateICMP(byte type, byte code, int rest, IPv4 parent) {
 		ICMP icmp = new ICMP();
 		icmp.setIcmpType(type);
 		icmp.setIcmpCode(code);
+		// Quote the parent before resetChecksum clears its checksum field
+		appendTruncatedParent(icmp, rest, parent);
 		icmp.setParent(parent);
 		icmp.resetChecksum();
-		appendTruncatedParent(icmp, parent);
 		return icmp;
 	}
 
-	private void appendTruncatedParent(ICMP icmp, IPv4 iPv4) {
-		int headLength = iPv4.getHeaderLength();
-		byte[] payload = iPv4.serialize();
-		payload = Arrays.copyOfRange(payload, 0, headLength * 4 + 8);
+	private void appendTruncatedParent(ICMP icmp, int rest, IPv4 iPv4) {
+		// The 4 bytes after the checksum, then the IP header and first 8
+		// payload bytes, built from fields rather than by serializing the
+		// whole packet
+		int headLength = iPv4.getHeaderLength() * 4;
+		byte[] payload = new byte[4 + headLength + 8];
+		ByteBuffer bb = ByteBuffer.wrap(payload);
+		bb.putInt(rest);
+		Fragmentation.writeHeader(bb, iPv4);
+		putTransportPrefix(bb, iPv4.getPayload());
 		IPacket payloadPacket = new Data().setData(payload);
 		icmp.setPayload(payloadPacket);
 		payloadPacket.setParent(icmp);
 	}
 
+	/**
+	 * Write the first (up to) 8 bytes of a transport header to a buffer.
+	 */
+	private static void putTransportPrefix(ByteBuffer bb, IPacket transport) {
+		if (transport instanceof UDP) {
+			UDP udp = (UDP) transport;
+			bb.putShort(udp.getSourcePort());
+			bb.putShort(udp.getDestinationPort());
+			bb.putShort(udp.getLength());
+			bb.putShort(udp.getChecksum());
+			return;
+		}
+		if (transport instanceof TCP) {
+			TCP tcp = (TCP) transport;
+			bb.putShort(tcp.getSourcePort());
+			bb.putShort(tcp.getDestinationPort());
+			bb.putInt(tcp.getSequence());
+			return;
+		}
+		if (transport instanceof ICMP) {
+			ICMP icmp = (ICMP) transport;
+			bb.put(icmp.getIcmpType());
+			bb.put(icmp.getIcmpCode());
+			bb.putShort(icmp.getChecksum());
+			transport = icmp.getPayload();
+		}
+		if (null == transport) {
+			return;
+		}
+		byte[] data = (transport instanceof Data) ? ((Data) transport).getData() : transport.serialize();
+		if (data != null) {
+			bb.put(data, 0, Math.min(data.length, bb.remaining()));
+		}
+	}
+
 	private void debug(Object x) {
 		System.out.println(x);
 	}
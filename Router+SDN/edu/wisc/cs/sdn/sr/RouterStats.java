@@ -0,0 +1,368 @@
+package edu.wisc.cs.sdn.sr;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import edu.wisc.cs.sdn.sr.metrics.Histogram;
+import edu.wisc.cs.sdn.sr.metrics.MetricRegistry;
+
+/**
+ * Counters for the router's data and control plane, registered with a
+ * {@link MetricRegistry} so they can be exported. Per-interface packet and
+ * byte counters live in each interface's {@link InterfaceCounters}; the time
+ * packets spend in the router is measured by {@link PacketClock}.
+ */
+public class RouterStats
+{
+	/** Reasons for which the router drops a packet */
+	public enum Drop
+	{
+		BAD_CHECKSUM, TTL_EXPIRED, NO_ROUTE, ARP_TIMEOUT, UNSUPPORTED,
+		NO_INTERFACE, FRAG_NEEDED, BAD_FRAGMENT, REASSEMBLY_TIMEOUT,
+		REASSEMBLY_OVERFLOW, ACL_DENIED, NAT_FAILED, ARP_QUEUE_OVERFLOW,
+		SEND_FAILED
+	}
+
+	/** Paths by which a received packet causes the router to send a frame */
+	public enum Path
+	{
+		FAST_FORWARD, SLOW_FORWARD, ARP_DELAYED, ICMP, ARP, RIP
+	}
+
+	/** Packet and byte counters for one interface */
+	public static class InterfaceCounters
+	{
+		private final LongAdder rxPackets;
+		private final LongAdder rxBytes;
+		private final LongAdder txPackets;
+		private final LongAdder txBytes;
+
+		private InterfaceCounters(MetricRegistry registry, String ifaceName)
+		{
+			this.rxPackets = registry.counter("sr_iface_rx_packets_total",
+					"Frames received on an interface", "iface", ifaceName);
+			this.rxBytes = registry.counter("sr_iface_rx_bytes_total",
+					"Bytes received on an interface", "iface", ifaceName);
+			this.txPackets = registry.counter("sr_iface_tx_packets_total",
+					"Frames sent on an interface", "iface", ifaceName);
+			this.txBytes = registry.counter("sr_iface_tx_bytes_total",
+					"Bytes sent on an interface", "iface", ifaceName);
+		}
+
+		/**
+		 * Count a received frame.
+		 * @param length length of the frame in bytes
+		 */
+		public void received(int length)
+		{
+			this.rxPackets.increment();
+			this.rxBytes.add(length);
+		}
+
+		/**
+		 * Count a sent frame.
+		 * @param length length of the frame in bytes
+		 */
+		public void sent(int length)
+		{
+			this.txPackets.increment();
+			this.txBytes.add(length);
+		}
+	}
+
+	/** Registry the counters are registered with */
+	private MetricRegistry registry;
+
+	/** Dropped packets, indexed by Drop.ordinal() */
+	private LongAdder[] drops;
+
+	/** Time from receiving a packet to sending the frame it caused, indexed
+	 * by Path.ordinal() */
+	private Histogram[] latencies;
+
+	/** ICMP messages generated by the router, by type */
+	private LongAdder icmpEchoReplies;
+	private LongAdder icmpUnreachables;
+	private LongAdder icmpTimeExceeded;
+	private LongAdder icmpOther;
+
+	/** ICMP errors suppressed by rate limiting, by type */
+	private LongAdder icmpSuppressedUnreachables;
+	private LongAdder icmpSuppressedTimeExceeded;
+	private LongAdder icmpSuppressedOther;
+
+	/** Packets forwarded in the receive buffer and as deserialized objects */
+	private LongAdder fastPathForwarded;
+	private LongAdder slowPathForwarded;
+
+	/** Fragments created on output and datagrams reassembled */
+	private LongAdder fragmentsCreated;
+	private LongAdder datagramsReassembled;
+
+	/** ARP cache lookups that found and did not find a mapping */
+	private LongAdder arpHits;
+	private LongAdder arpMisses;
+
+	/** ARP requests and replies sent */
+	private LongAdder arpRequestsSent;
+	private LongAdder arpRepliesSent;
+
+	/** RIP messages received and sent, and routes changed by RIP */
+	private LongAdder ripRequestsReceived;
+	private LongAdder ripResponsesReceived;
+	private LongAdder ripRequestsSent;
+	private LongAdder ripResponsesSent;
+	private LongAdder ripRoutesChanged;
+	private LongAdder ripRoutesExpired;
+
+	/**
+	 * Create the router's counters and register them.
+	 * @param registry registry to register the counters with
+	 */
+	public RouterStats(MetricRegistry registry)
+	{
+		this.registry = registry;
+		this.drops = new LongAdder[Drop.values().length];
+		for (Drop reason : Drop.values())
+		{
+			this.drops[reason.ordinal()] = registry.counter(
+					"sr_dropped_packets_total", "Packets dropped by the router",
+					"reason", reason.name().toLowerCase());
+		}
+
+		this.latencies = new Histogram[Path.values().length];
+		for (Path path : Path.values())
+		{
+			this.latencies[path.ordinal()] = registry.histogram(
+					"sr_packet_latency_nanoseconds",
+					"Time from receiving a packet to sending the frame it caused",
+					"path", path.name().toLowerCase());
+		}
+
+		String icmpHelp = "ICMP messages generated by the router";
+		this.icmpEchoReplies = registry.counter("sr_icmp_sent_total",
+				icmpHelp, "type", "echo_reply");
+		this.icmpUnreachables = registry.counter("sr_icmp_sent_total",
+				icmpHelp, "type", "dest_unreachable");
+		this.icmpTimeExceeded = registry.counter("sr_icmp_sent_total",
+				icmpHelp, "type", "time_exceeded");
+		this.icmpOther = registry.counter("sr_icmp_sent_total",
+				icmpHelp, "type", "other");
+		String suppressedHelp = "ICMP errors suppressed by rate limiting";
+		this.icmpSuppressedUnreachables = registry.counter(
+				"sr_icmp_suppressed_total", suppressedHelp,
+				"type", "dest_unreachable");
+		this.icmpSuppressedTimeExceeded = registry.counter(
+				"sr_icmp_suppressed_total", suppressedHelp,
+				"type", "time_exceeded");
+		this.icmpSuppressedOther = registry.counter(
+				"sr_icmp_suppressed_total", suppressedHelp, "type", "other");
+
+		String forwardedHelp = "Packets forwarded by the router";
+		this.fastPathForwarded = registry.counter(
+				"sr_forwarded_packets_total", forwardedHelp, "path", "fast");
+		this.slowPathForwarded = registry.counter(
+				"sr_forwarded_packets_total", forwardedHelp, "path", "slow");
+
+		this.fragmentsCreated = registry.counter("sr_fragments_created_total",
+				"Fragments created for packets exceeding an interface's MTU");
+		this.datagramsReassembled = registry.counter(
+				"sr_datagrams_reassembled_total",
+				"Datagrams addressed to the router reassembled from fragments");
+
+		String arpLookupHelp = "ARP cache lookups";
+		this.arpHits = registry.counter("sr_arp_lookups_total",
+				arpLookupHelp, "result", "hit");
+		this.arpMisses = registry.counter("sr_arp_lookups_total",
+				arpLookupHelp, "result", "miss");
+		String arpSentHelp = "ARP messages sent by the router";
+		this.arpRequestsSent = registry.counter("sr_arp_sent_total",
+				arpSentHelp, "op", "request");
+		this.arpRepliesSent = registry.counter("sr_arp_sent_total",
+				arpSentHelp, "op", "reply");
+
+		String ripReceivedHelp = "RIP messages received by the router";
+		this.ripRequestsReceived = registry.counter("sr_rip_received_total",
+				ripReceivedHelp, "command", "request");
+		this.ripResponsesReceived = registry.counter("sr_rip_received_total",
+				ripReceivedHelp, "command", "response");
+		String ripSentHelp = "RIP messages sent by the router";
+		this.ripRequestsSent = registry.counter("sr_rip_sent_total",
+				ripSentHelp, "command", "request");
+		this.ripResponsesSent = registry.counter("sr_rip_sent_total",
+				ripSentHelp, "command", "response");
+		this.ripRoutesChanged = registry.counter("sr_rip_routes_changed_total",
+				"Routes added or updated from RIP responses");
+		this.ripRoutesExpired = registry.counter("sr_rip_routes_expired_total",
+				"Routes removed because they were not refreshed");
+	}
+
+	/**
+	 * @return registry the counters are registered with
+	 */
+	public MetricRegistry getRegistry()
+	{ return this.registry; }
+
+	/**
+	 * Create and register the counters for an interface.
+	 * @param ifaceName name of the interface
+	 * @return the interface's counters
+	 */
+	public InterfaceCounters newInterfaceCounters(String ifaceName)
+	{ return new InterfaceCounters(this.registry, ifaceName); }
+
+	/**
+	 * Count a dropped packet.
+	 * @param reason why the packet was dropped
+	 */
+	public void dropped(Drop reason)
+	{ this.drops[reason.ordinal()].increment(); }
+
+	/**
+	 * Count a dropped packet.
+	 * @param reason why the packet was dropped
+	 * @param count number of packets dropped
+	 */
+	public void dropped(Drop reason, int count)
+	{ this.drops[reason.ordinal()].add(count); }
+
+	/**
+	 * Record the time a packet spent in the router.
+	 * @param path path by which the packet caused a frame to be sent
+	 * @param nanos time from receiving the packet to sending the frame
+	 */
+	public void latency(Path path, long nanos)
+	{ this.latencies[path.ordinal()].record(nanos); }
+
+	/**
+	 * @param path path by which packets caused frames to be sent
+	 * @return time packets sent by the path spent in the router
+	 */
+	public Histogram getLatency(Path path)
+	{ return this.latencies[path.ordinal()]; }
+
+	/**
+	 * Count an ICMP message generated by the router.
+	 * @param type ICMP type of the message
+	 */
+	public void icmpSent(byte type)
+	{
+		switch (type)
+		{
+		case 0:
+			this.icmpEchoReplies.increment();
+			break;
+		case 3:
+			this.icmpUnreachables.increment();
+			break;
+		case 11:
+			this.icmpTimeExceeded.increment();
+			break;
+		default:
+			this.icmpOther.increment();
+		}
+	}
+
+	/**
+	 * Count an ICMP error suppressed by rate limiting.
+	 * @param type ICMP type of the error
+	 */
+	public void icmpSuppressed(byte type)
+	{
+		switch (type)
+		{
+		case 3:
+			this.icmpSuppressedUnreachables.increment();
+			break;
+		case 11:
+			this.icmpSuppressedTimeExceeded.increment();
+			break;
+		default:
+			this.icmpSuppressedOther.increment();
+		}
+	}
+
+	/**
+	 * Count a forwarded packet.
+	 * @param fastPath true if the packet was forwarded by the fast path
+	 */
+	public void forwarded(boolean fastPath)
+	{
+		if (fastPath)
+		{ this.fastPathForwarded.increment(); }
+		else
+		{ this.slowPathForwarded.increment(); }
+	}
+
+	/**
+	 * Count the fragments a packet was split into.
+	 * @param count number of fragments
+	 */
+	public void fragmented(int count)
+	{ this.fragmentsCreated.add(count); }
+
+	/**
+	 * Count a datagram reassembled from fragments.
+	 */
+	public void reassembled()
+	{ this.datagramsReassembled.increment(); }
+
+	/**
+	 * Count an ARP cache lookup.
+	 * @param hit true if the lookup found a mapping
+	 */
+	public void arpLookup(boolean hit)
+	{
+		if (hit)
+		{ this.arpHits.increment(); }
+		else
+		{ this.arpMisses.increment(); }
+	}
+
+	/**
+	 * Count an ARP message sent by the router.
+	 * @param request true for a request, false for a reply
+	 */
+	public void arpSent(boolean request)
+	{
+		if (request)
+		{ this.arpRequestsSent.increment(); }
+		else
+		{ this.arpRepliesSent.increment(); }
+	}
+
+	/**
+	 * Count a RIP message received by the router.
+	 * @param request true for a request, false for a response
+	 */
+	public void ripReceived(boolean request)
+	{
+		if (request)
+		{ this.ripRequestsReceived.increment(); }
+		else
+		{ this.ripResponsesReceived.increment(); }
+	}
+
+	/**
+	 * Count a RIP message sent by the router.
+	 * @param request true for a request, false for a response
+	 */
+	public void ripSent(boolean request)
+	{
+		if (request)
+		{ this.ripRequestsSent.increment(); }
+		else
+		{ this.ripResponsesSent.increment(); }
+	}
+
+	/**
+	 * Count a route added or updated from a RIP response.
+	 */
+	public void ripRouteChanged()
+	{ this.ripRoutesChanged.increment(); }
+
+	/**
+	 * Count a route removed because it was not refreshed.
+	 */
+	public void ripRouteExpired()
+	{ this.ripRoutesExpired.increment(); }
+}
@@ -39,4 +39,12 @@ public class Util
 		catch (UnknownHostException e) 
 		{ return 0; }
 	}
+	
+	/**
+	 * Check whether an IP address is a multicast (class D) address.
+	 * @param ip integer representing an IP address
+	 * @return true if the address is in 224.0.0.0/4, otherwise false
+	 */
+	public static boolean isMulticast(int ip)
+	{ return (ip & 0xF0000000) == 0xE0000000; }
 }
@@ -0,0 +1,384 @@
+package edu.wisc.cs.sdn.sr.acl;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import edu.wisc.cs.sdn.sr.Util;
+
+/**
+ * An access control list compiled for tuple space search. Rules are grouped
+ * into tuples by their source and destination prefix lengths; each tuple is a
+ * hash table keyed by the masked addresses. Classifying a packet costs one
+ * hash probe per tuple, so it depends on the number of distinct prefix length
+ * pairs rather than on the number of rules. Tuples are searched in order of
+ * their highest priority rule, and the search stops once no remaining tuple
+ * can hold a rule that takes precedence over the best match so far.
+ * <p>
+ * The first matching rule in list order determines the action; packets that
+ * match no rule get the default action. An Acl is immutable once compiled,
+ * apart from its hit counters, so it can be used by any number of threads.
+ */
+public class Acl
+{
+	/** Rules in list order */
+	private List<AclRule> rules;
+
+	/** Action for packets matching no rule */
+	private AclRule.Action defaultAction;
+
+	/** Packets that matched no rule */
+	private LongAdder defaultHits;
+
+	/** Tuples, by ascending index of their highest priority rule */
+	private Tuple[] tuples;
+
+	/**
+	 * Compile an ACL.
+	 * @param rules rules in list order; their indices must be ascending
+	 * @param defaultAction action for packets matching no rule
+	 */
+	public Acl(List<AclRule> rules, AclRule.Action defaultAction)
+	{
+		this.rules = Collections.unmodifiableList(
+				new ArrayList<AclRule>(rules));
+		this.defaultAction = defaultAction;
+		this.defaultHits = new LongAdder();
+
+		// Group rules by prefix length pair, keeping list order in each group
+		Map<Integer,List<AclRule>> groups =
+				new HashMap<Integer,List<AclRule>>();
+		for (AclRule rule : rules)
+		{
+			Integer pair = (rule.getSrcPrefixLength() << 8)
+					| rule.getDstPrefixLength();
+			List<AclRule> group = groups.get(pair);
+			if (null == group)
+			{
+				group = new ArrayList<AclRule>();
+				groups.put(pair, group);
+			}
+			group.add(rule);
+		}
+		List<Tuple> tuples = new ArrayList<Tuple>();
+		for (List<AclRule> group : groups.values())
+		{ tuples.add(new Tuple(group)); }
+		Collections.sort(tuples, new Comparator<Tuple>() {
+			public int compare(Tuple a, Tuple b)
+			{ return Integer.compare(a.firstIndex, b.firstIndex); }
+		});
+		this.tuples = tuples.toArray(new Tuple[tuples.size()]);
+	}
+
+	/**
+	 * @return rules in list order
+	 */
+	public List<AclRule> getRules()
+	{ return this.rules; }
+
+	/**
+	 * @return action for packets matching no rule
+	 */
+	public AclRule.Action getDefaultAction()
+	{ return this.defaultAction; }
+
+	/**
+	 * @return number of packets that matched no rule
+	 */
+	public long getDefaultHits()
+	{ return this.defaultHits.sum(); }
+
+	/**
+	 * @return number of distinct prefix length pairs, i.e., hash probes per
+	 *         lookup in the worst case
+	 */
+	public int getTupleCount()
+	{ return this.tuples.length; }
+
+	/**
+	 * Find the first rule matching a packet.
+	 * @param srcAddress source IP address
+	 * @param dstAddress destination IP address
+	 * @param protocol IP protocol number
+	 * @param srcPort source port, or AclRule.NO_PORT
+	 * @param dstPort destination port, or AclRule.NO_PORT
+	 * @return the first matching rule, or null if no rule matches
+	 */
+	public AclRule classify(int srcAddress, int dstAddress, int protocol,
+			int srcPort, int dstPort)
+	{
+		AclRule best = null;
+		for (Tuple tuple : this.tuples)
+		{
+			if (best != null && tuple.firstIndex > best.getIndex())
+			{ break; }
+			AclRule rule = tuple.lookup(srcAddress, dstAddress, protocol,
+					srcPort, dstPort);
+			if (rule != null
+					&& (null == best || rule.getIndex() < best.getIndex()))
+			{ best = rule; }
+		}
+		return best;
+	}
+
+	/**
+	 * Decide whether a packet is permitted, and count the hit on the rule that
+	 * decided it.
+	 * @return true if the packet is permitted, false if it must be dropped
+	 */
+	public boolean permits(int srcAddress, int dstAddress, int protocol,
+			int srcPort, int dstPort)
+	{
+		AclRule rule = this.classify(srcAddress, dstAddress, protocol,
+				srcPort, dstPort);
+		this.hit(rule);
+		return this.isPermitted(rule);
+	}
+
+	/**
+	 * @param rule rule that decided a packet; null for the default action
+	 * @return true if the packet is permitted, false if it must be dropped
+	 */
+	public boolean isPermitted(AclRule rule)
+	{
+		AclRule.Action action = (null == rule) ? this.defaultAction
+				: rule.getAction();
+		return AclRule.Action.PERMIT == action;
+	}
+
+	/**
+	 * Count a packet decided by a rule.
+	 * @param rule rule that decided the packet; null for the default action
+	 */
+	public void hit(AclRule rule)
+	{
+		if (null == rule)
+		{ this.defaultHits.increment(); }
+		else
+		{ rule.hit(); }
+	}
+
+	/**
+	 * Find the first rule matching a serialized IPv4 packet, without counting
+	 * the hit, for callers that may still hand the packet to another path.
+	 * Ports are only read from TCP and UDP packets that are not non-initial
+	 * fragments.
+	 * @param buf buffer containing the packet
+	 * @param ip offset of the IPv4 header in the buffer
+	 * @param length bytes of the packet available in the buffer
+	 * @return the first matching rule, or null if no rule matches
+	 */
+	public AclRule classify(byte[] buf, int ip, int length)
+	{
+		int headerLength = (buf[ip] & 0x0f) * 4;
+		int protocol = buf[ip + 9] & 0xff;
+		int fragmentOffset = ((buf[ip + 6] & 0x1f) << 8) | (buf[ip + 7] & 0xff);
+		int srcPort = AclRule.NO_PORT;
+		int dstPort = AclRule.NO_PORT;
+		if ((6 == protocol || 17 == protocol) && 0 == fragmentOffset
+				&& length >= headerLength + 4)
+		{
+			int l4 = ip + headerLength;
+			srcPort = ((buf[l4] & 0xff) << 8) | (buf[l4 + 1] & 0xff);
+			dstPort = ((buf[l4 + 2] & 0xff) << 8) | (buf[l4 + 3] & 0xff);
+		}
+		return this.classify(getInt(buf, ip + 12), getInt(buf, ip + 16),
+				protocol, srcPort, dstPort);
+	}
+
+	/**
+	 * Decide whether a serialized IPv4 packet is permitted, and count the hit.
+	 * @param buf buffer containing the packet
+	 * @param ip offset of the IPv4 header in the buffer
+	 * @param length bytes of the packet available in the buffer
+	 * @return true if the packet is permitted, false if it must be dropped
+	 */
+	public boolean permits(byte[] buf, int ip, int length)
+	{
+		AclRule rule = this.classify(buf, ip, length);
+		this.hit(rule);
+		return this.isPermitted(rule);
+	}
+
+	/**
+	 * Load an ACL from a file. Each line holds one rule:
+	 * <pre>
+	 * permit|deny protocol source source_ports destination destination_ports
+	 * </pre>
+	 * where protocol is any, icmp, tcp, udp or a protocol number; addresses
+	 * are any, an address, or address/prefix_length; and ports are any, a
+	 * port, or low-high. A line "default permit|deny" sets the action for
+	 * packets matching no rule (permit if absent). Blank lines and text
+	 * following # are ignored.
+	 * @param filename name of the file containing the ACL
+	 * @return the compiled ACL, or null if the file could not be read or
+	 *         contains an invalid line
+	 */
+	public static Acl load(String filename)
+	{
+		List<AclRule> rules = new ArrayList<AclRule>();
+		AclRule.Action defaultAction = AclRule.Action.PERMIT;
+		BufferedReader reader = null;
+		try
+		{
+			reader = new BufferedReader(new FileReader(filename));
+			int lineNumber = 0;
+			String line;
+			while ((line = reader.readLine()) != null)
+			{
+				lineNumber++;
+				int comment = line.indexOf('#');
+				if (comment >= 0)
+				{ line = line.substring(0, comment); }
+				line = line.trim();
+				if (line.isEmpty())
+				{ continue; }
+
+				String[] fields = line.split("\\s+");
+				if (2 == fields.length && fields[0].equals("default"))
+				{
+					defaultAction = parseAction(fields[1]);
+					if (null == defaultAction)
+					{
+						System.err.println(error(filename, lineNumber));
+						return null;
+					}
+					continue;
+				}
+				AclRule rule = (6 == fields.length)
+						? parseRule(fields, rules.size(), lineNumber) : null;
+				if (null == rule)
+				{
+					System.err.println(error(filename, lineNumber));
+					return null;
+				}
+				rules.add(rule);
+			}
+		}
+		catch (IOException e)
+		{
+			System.err.println(e.toString());
+			return null;
+		}
+		finally
+		{
+			if (reader != null)
+			{ try { reader.close(); } catch (IOException f) {}; }
+		}
+		return new Acl(rules, defaultAction);
+	}
+
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder();
+		for (AclRule rule : this.rules)
+		{
+			sb.append(String.format("%5d %s (%d hits)\n", rule.getLine(),
+					rule.toString(), rule.getHits()));
+		}
+		sb.append(String.format("      default %s (%d hits)\n",
+				this.defaultAction.name().toLowerCase(),
+				this.defaultHits.sum()));
+		return sb.toString();
+	}
+
+	private static String error(String filename, int lineNumber)
+	{ return "Invalid entry in ACL file " + filename + " line " + lineNumber; }
+
+	private static AclRule.Action parseAction(String field)
+	{
+		if (field.equals("permit"))
+		{ return AclRule.Action.PERMIT; }
+		if (field.equals("deny"))
+		{ return AclRule.Action.DENY; }
+		return null;
+	}
+
+	private static AclRule parseRule(String[] fields, int index, int line)
+	{
+		AclRule.Action action = parseAction(fields[0]);
+		int protocol = parseProtocol(fields[1]);
+		int[] src = parsePrefix(fields[2]);
+		int[] srcPorts = parsePorts(fields[3]);
+		int[] dst = parsePrefix(fields[4]);
+		int[] dstPorts = parsePorts(fields[5]);
+		if (null == action || protocol < AclRule.ANY_PROTOCOL || null == src
+				|| null == srcPorts || null == dst || null == dstPorts)
+		{ return null; }
+		return new AclRule(index, line, action, protocol, src[0], src[1],
+				srcPorts[0], srcPorts[1], dst[0], dst[1], dstPorts[0],
+				dstPorts[1]);
+	}
+
+	/** @return protocol number, ANY_PROTOCOL, or less than that if invalid */
+	private static int parseProtocol(String field)
+	{
+		if (field.equals("any"))
+		{ return AclRule.ANY_PROTOCOL; }
+		if (field.equals("icmp"))
+		{ return 1; }
+		if (field.equals("tcp"))
+		{ return 6; }
+		if (field.equals("udp"))
+		{ return 17; }
+		try
+		{
+			int protocol = Integer.parseInt(field);
+			return (protocol >= 0 && protocol <= 0xff) ? protocol : -2;
+		}
+		catch (NumberFormatException e)
+		{ return -2; }
+	}
+
+	/** @return address and prefix length, or null if invalid */
+	private static int[] parsePrefix(String field)
+	{
+		if (field.equals("any"))
+		{ return new int[] { 0, 0 }; }
+		String[] parts = field.split("/", 2);
+		if (!parts[0].matches("\\d{1,3}(\\.\\d{1,3}){3}"))
+		{ return null; }
+		int prefixLength = 32;
+		if (2 == parts.length)
+		{
+			try
+			{ prefixLength = Integer.parseInt(parts[1]); }
+			catch (NumberFormatException e)
+			{ return null; }
+			if (prefixLength < 0 || prefixLength > 32)
+			{ return null; }
+		}
+		return new int[] { Util.dottedDecimalToInt(parts[0]), prefixLength };
+	}
+
+	/** @return lowest and highest port, or null if invalid */
+	private static int[] parsePorts(String field)
+	{
+		if (field.equals("any"))
+		{ return new int[] { 0, 0xffff }; }
+		String[] parts = field.split("-", 2);
+		try
+		{
+			int low = Integer.parseInt(parts[0]);
+			int high = (2 == parts.length) ? Integer.parseInt(parts[1]) : low;
+			if (low < 0 || high > 0xffff || low > high)
+			{ return null; }
+			return new int[] { low, high };
+		}
+		catch (NumberFormatException e)
+		{ return null; }
+	}
+
+	private static int getInt(byte[] buf, int offset)
+	{
+		return ((buf[offset] & 0xff) << 24) | ((buf[offset + 1] & 0xff) << 16)
+				| ((buf[offset + 2] & 0xff) << 8) | (buf[offset + 3] & 0xff);
+	}
+}
@@ -0,0 +1,156 @@
+package edu.wisc.cs.sdn.sr.acl;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import edu.wisc.cs.sdn.sr.Util;
+
+/**
+ * A rule of an access control list: an action applied to packets whose
+ * protocol, source and destination prefixes, and source and destination
+ * port ranges all match. Rules are immutable, apart from their hit counter.
+ */
+public class AclRule
+{
+	/** What to do with a matching packet */
+	public enum Action { PERMIT, DENY }
+
+	/** Matches any protocol */
+	public static final int ANY_PROTOCOL = -1;
+
+	/** Port passed for packets without ports (or whose ports are unknown) */
+	public static final int NO_PORT = -1;
+
+	/** Position of the rule in the list; lower positions take precedence */
+	private int index;
+
+	/** Line of the file the rule was loaded from, or 0 */
+	private int line;
+
+	private Action action;
+	private int protocol;
+	private int srcAddress;
+	private int srcPrefixLength;
+	private int dstAddress;
+	private int dstPrefixLength;
+	private int srcPortLow;
+	private int srcPortHigh;
+	private int dstPortLow;
+	private int dstPortHigh;
+
+	/** Number of packets the rule has been applied to */
+	private LongAdder hits;
+
+	/**
+	 * Create a rule. A port range of 0-65535 matches packets without ports,
+	 * any narrower range only matches TCP and UDP packets.
+	 * @param index position of the rule in the list
+	 * @param line line of the file the rule was loaded from, or 0
+	 * @param action what to do with a matching packet
+	 * @param protocol IP protocol number, or ANY_PROTOCOL
+	 */
+	public AclRule(int index, int line, Action action, int protocol,
+			int srcAddress, int srcPrefixLength, int srcPortLow,
+			int srcPortHigh, int dstAddress, int dstPrefixLength,
+			int dstPortLow, int dstPortHigh)
+	{
+		this.index = index;
+		this.line = line;
+		this.action = action;
+		this.protocol = protocol;
+		this.srcPrefixLength = srcPrefixLength;
+		this.srcAddress = srcAddress & mask(srcPrefixLength);
+		this.dstPrefixLength = dstPrefixLength;
+		this.dstAddress = dstAddress & mask(dstPrefixLength);
+		this.srcPortLow = srcPortLow;
+		this.srcPortHigh = srcPortHigh;
+		this.dstPortLow = dstPortLow;
+		this.dstPortHigh = dstPortHigh;
+		this.hits = new LongAdder();
+	}
+
+	public int getIndex()
+	{ return this.index; }
+
+	public int getLine()
+	{ return this.line; }
+
+	public Action getAction()
+	{ return this.action; }
+
+	public int getProtocol()
+	{ return this.protocol; }
+
+	public int getSrcAddress()
+	{ return this.srcAddress; }
+
+	public int getSrcPrefixLength()
+	{ return this.srcPrefixLength; }
+
+	public int getDstAddress()
+	{ return this.dstAddress; }
+
+	public int getDstPrefixLength()
+	{ return this.dstPrefixLength; }
+
+	/**
+	 * @return number of packets the rule has been applied to
+	 */
+	public long getHits()
+	{ return this.hits.sum(); }
+
+	void hit()
+	{ this.hits.increment(); }
+
+	/**
+	 * Check the fields that are not part of a rule's tuple: protocol and
+	 * ports. Addresses are matched by the tuple lookup.
+	 */
+	boolean matchesRest(int protocol, int srcPort, int dstPort)
+	{
+		return (ANY_PROTOCOL == this.protocol || protocol == this.protocol)
+				&& matchesPort(srcPort, this.srcPortLow, this.srcPortHigh)
+				&& matchesPort(dstPort, this.dstPortLow, this.dstPortHigh);
+	}
+
+	private static boolean matchesPort(int port, int low, int high)
+	{
+		if (NO_PORT == port)
+		{ return 0 == low && 0xffff == high; }
+		return port >= low && port <= high;
+	}
+
+	/**
+	 * @param prefixLength length of a prefix, 0 to 32
+	 * @return network mask for the prefix
+	 */
+	static int mask(int prefixLength)
+	{ return (0 == prefixLength) ? 0 : -1 << (32 - prefixLength); }
+
+	public String toString()
+	{
+		return String.format("%s %s %s %s %s %s",
+				this.action.name().toLowerCase(),
+				(ANY_PROTOCOL == this.protocol) ? "any"
+						: Integer.toString(this.protocol),
+				prefixToString(this.srcAddress, this.srcPrefixLength),
+				portsToString(this.srcPortLow, this.srcPortHigh),
+				prefixToString(this.dstAddress, this.dstPrefixLength),
+				portsToString(this.dstPortLow, this.dstPortHigh));
+	}
+
+	private static String prefixToString(int address, int prefixLength)
+	{
+		if (0 == prefixLength)
+		{ return "any"; }
+		return Util.intToDottedDecimal(address) + "/" + prefixLength;
+	}
+
+	private static String portsToString(int low, int high)
+	{
+		if (0 == low && 0xffff == high)
+		{ return "any"; }
+		if (low == high)
+		{ return Integer.toString(low); }
+		return low + "-" + high;
+	}
+}
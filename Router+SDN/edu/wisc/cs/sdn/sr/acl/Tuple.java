@@ -0,0 +1,103 @@
+package edu.wisc.cs.sdn.sr.acl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Rules of an ACL that share a source and destination prefix length, in an
+ * open addressing hash table keyed by their masked source and destination
+ * addresses. Rules with the same key form a bucket, in list order; protocol
+ * and ports are checked by scanning the bucket.
+ */
+class Tuple
+{
+	/** Masks applied to packet addresses before probing */
+	final int srcMask;
+	final int dstMask;
+
+	/** Index of the highest priority rule in the tuple */
+	final int firstIndex;
+
+	/** Keys of the hash table: masked source and destination addresses */
+	private long[] keys;
+
+	/** Buckets of the hash table; null for empty slots */
+	private AclRule[][] buckets;
+
+	/**
+	 * Build a tuple.
+	 * @param rules rules with the same prefix lengths, in list order
+	 */
+	Tuple(List<AclRule> rules)
+	{
+		AclRule first = rules.get(0);
+		this.srcMask = AclRule.mask(first.getSrcPrefixLength());
+		this.dstMask = AclRule.mask(first.getDstPrefixLength());
+		this.firstIndex = first.getIndex();
+
+		// Size for a load factor of at most 1/2
+		int capacity = 2;
+		while (capacity < 2 * rules.size())
+		{ capacity <<= 1; }
+		this.keys = new long[capacity];
+		List<List<AclRule>> slots = new ArrayList<List<AclRule>>(capacity);
+		for (int i = 0; i < capacity; i++)
+		{ slots.add(null); }
+
+		for (AclRule rule : rules)
+		{
+			long key = key(rule.getSrcAddress(), rule.getDstAddress());
+			int slot = hash(key) & (capacity - 1);
+			while (slots.get(slot) != null && this.keys[slot] != key)
+			{ slot = (slot + 1) & (capacity - 1); }
+			if (null == slots.get(slot))
+			{
+				this.keys[slot] = key;
+				slots.set(slot, new ArrayList<AclRule>());
+			}
+			slots.get(slot).add(rule);
+		}
+
+		this.buckets = new AclRule[capacity][];
+		for (int i = 0; i < capacity; i++)
+		{
+			List<AclRule> bucket = slots.get(i);
+			if (bucket != null)
+			{ this.buckets[i] = bucket.toArray(new AclRule[bucket.size()]); }
+		}
+	}
+
+	/**
+	 * @return the first rule of the tuple matching a packet, or null
+	 */
+	AclRule lookup(int srcAddress, int dstAddress, int protocol, int srcPort,
+			int dstPort)
+	{
+		long key = key(srcAddress & this.srcMask, dstAddress & this.dstMask);
+		int mask = this.keys.length - 1;
+		int slot = hash(key) & mask;
+		while (this.buckets[slot] != null)
+		{
+			if (this.keys[slot] == key)
+			{
+				for (AclRule rule : this.buckets[slot])
+				{
+					if (rule.matchesRest(protocol, srcPort, dstPort))
+					{ return rule; }
+				}
+				return null;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return null;
+	}
+
+	private static long key(int srcAddress, int dstAddress)
+	{ return ((long)srcAddress << 32) | (dstAddress & 0xffffffffL); }
+
+	private static int hash(long key)
+	{
+		key *= 0x9e3779b97f4a7c15L;
+		return (int)(key ^ (key >>> 32));
+	}
+}
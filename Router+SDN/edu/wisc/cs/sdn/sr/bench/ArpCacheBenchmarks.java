@@ -0,0 +1,95 @@
+package edu.wisc.cs.sdn.sr.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.floodlightcontroller.util.MACAddress;
+
+import edu.wisc.cs.sdn.sr.ArpCache;
+import edu.wisc.cs.sdn.sr.ArpEntry;
+import edu.wisc.cs.sdn.sr.Router;
+
+/**
+ * Benchmarks of ArpCache.lookup, for addresses in and not in a cache of 1024
+ * entries, and of ArpCache.insert refreshing an entry.
+ */
+public class ArpCacheBenchmarks
+{
+	/** Entries in the cache; a power of two */
+	private static final int ENTRIES = 1024;
+
+	/** First address in the cache */
+	private static final int BASE_IP = RouterBenchmarks.ETH2_IP + 1;
+
+	private ArpCacheBenchmarks()
+	{ }
+
+	/**
+	 * @return the benchmarks
+	 */
+	public static List<Benchmark> create()
+	{
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		benchmarks.add(new CacheBenchmark("arpCache.lookup.hit") {
+			@Override
+			public long run(int i)
+			{
+				ArpEntry entry = this.arpCache.lookup(BASE_IP + i);
+				return (null == entry) ? 0 : entry.getIp();
+			}
+		});
+		benchmarks.add(new CacheBenchmark("arpCache.lookup.miss") {
+			@Override
+			public long run(int i)
+			{
+				ArpEntry entry = this.arpCache.lookup(BASE_IP + ENTRIES + i);
+				return (null == entry) ? 0 : entry.getIp();
+			}
+		});
+		benchmarks.add(new CacheBenchmark("arpCache.insert") {
+			@Override
+			public long run(int i)
+			{
+				return (null == this.arpCache.insert(this.macs[i], BASE_IP + i))
+						? 0 : 1;
+			}
+		});
+		return benchmarks;
+	}
+
+	/** Benchmark of a cache holding ENTRIES addresses */
+	private static abstract class CacheBenchmark extends Benchmark
+	{
+		protected Router router;
+		protected ArpCache arpCache;
+		protected MACAddress[] macs;
+
+		CacheBenchmark(String name)
+		{ super(name, ENTRIES); }
+
+		@Override
+		public void setUp()
+		{
+			this.router = RouterBenchmarks.createRouter();
+			this.arpCache = this.router.getArpCache();
+			this.macs = new MACAddress[ENTRIES];
+			for (int i = 0; i < ENTRIES; i++)
+			{
+				this.macs[i] = new MACAddress(new byte[] { 0x02, 0, 0, 1,
+						(byte)(i >> 8), (byte)i });
+			}
+		}
+
+		@Override
+		public void prepare()
+		{
+			// Entries would otherwise time out during long runs
+			for (int i = 0; i < ENTRIES; i++)
+			{ this.arpCache.insert(this.macs[i], BASE_IP + i); }
+		}
+
+		@Override
+		public void tearDown()
+		{ this.router.destroy(); }
+	}
+}
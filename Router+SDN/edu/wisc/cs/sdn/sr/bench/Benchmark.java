@@ -0,0 +1,59 @@
+package edu.wisc.cs.sdn.sr.bench;
+
+/**
+ * An operation measured by the {@link BenchmarkRunner}. The runner sets the
+ * benchmark up once, then repeatedly prepares a batch of operations and runs
+ * them; only running the operations is measured, so state an operation
+ * consumes (e.g., packets the router modifies) is rebuilt by
+ * {@link #prepare()} without skewing the results.
+ */
+public abstract class Benchmark
+{
+	/** Name of the benchmark, e.g., routeTable.lookup.1k */
+	private String name;
+
+	/** Operations run after each call to prepare */
+	private int batchSize;
+
+	/**
+	 * @param name name of the benchmark
+	 * @param batchSize operations run after each call to prepare; at least 1
+	 */
+	protected Benchmark(String name, int batchSize)
+	{
+		this.name = name;
+		this.batchSize = batchSize;
+	}
+
+	public String getName()
+	{ return this.name; }
+
+	public int getBatchSize()
+	{ return this.batchSize; }
+
+	/**
+	 * Set up state used by all batches. Not measured.
+	 */
+	public void setUp()
+	{ }
+
+	/**
+	 * Prepare state for the next batch of operations. Not measured.
+	 */
+	public void prepare()
+	{ }
+
+	/**
+	 * Run an operation.
+	 * @param i index of the operation within its batch
+	 * @return a value depending on the operation's result, consumed by the
+	 *         runner so the operation cannot be optimized away
+	 */
+	public abstract long run(int i);
+
+	/**
+	 * Release state set up for the benchmark. Not measured.
+	 */
+	public void tearDown()
+	{ }
+}
@@ -0,0 +1,297 @@
+package edu.wisc.cs.sdn.sr.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import edu.wisc.cs.sdn.sr.vns.CommandPacketBenchmarks;
+
+/**
+ * Runs benchmarks of the router's data plane and reports the time (ns/op)
+ * and memory (B/op) each operation takes. Each benchmark is warmed up, then
+ * measured for several iterations of fixed duration; the reported time is
+ * the mean over iterations, with the standard deviation between them, and
+ * the reported memory is what the measuring thread allocated per operation.
+ * By default each benchmark runs in a JVM of its own, so the JIT compiler
+ * optimizes it as it would the router, free of the profiles of the
+ * benchmarks run before it.
+ */
+public class BenchmarkRunner
+{
+	private static final long NANOS_PER_MILLI = 1000L * 1000;
+
+	/** Sink for the values returned by operations */
+	private static volatile long sink;
+
+	/** Time and memory of one benchmark */
+	private static class Result
+	{
+		private double[] nanosPerOp;
+		private long ops;
+		private long bytes;
+
+		private double getMean()
+		{
+			double total = 0;
+			for (double value : this.nanosPerOp)
+			{ total += value; }
+			return total / this.nanosPerOp.length;
+		}
+
+		private double getDeviation()
+		{
+			double mean = this.getMean();
+			double squares = 0;
+			for (double value : this.nanosPerOp)
+			{ squares += (value - mean) * (value - mean); }
+			return (this.nanosPerOp.length < 2) ? 0
+					: Math.sqrt(squares / (this.nanosPerOp.length - 1));
+		}
+	}
+
+	public static void main(String[] args)
+	{
+		String filter = ".*";
+		int warmupIterations = 5;
+		int iterations = 5;
+		long iterationMillis = 1000;
+		int forks = 1;
+		boolean list = false;
+		boolean header = true;
+
+		// Parse arguments
+		for (int i = 0; i < args.length; i++)
+		{
+			String arg = args[i];
+			if (arg.equals("-h"))
+			{
+				usage();
+				System.exit(0);
+			}
+			else if (arg.equals("-b"))
+			{ filter = args[++i]; }
+			else if (arg.equals("-w"))
+			{ warmupIterations = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-i"))
+			{ iterations = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-t"))
+			{ iterationMillis = Long.parseLong(args[++i]); }
+			else if (arg.equals("-f"))
+			{ forks = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-l"))
+			{ list = true; }
+			else if (arg.equals("-x"))
+			{ header = false; }
+		}
+		if (warmupIterations < 0 || iterations < 1 || iterationMillis < 1
+				|| forks < 0)
+		{
+			usage();
+			System.exit(1);
+		}
+
+		Pattern pattern = Pattern.compile(filter);
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		for (Benchmark benchmark : allBenchmarks())
+		{
+			if (pattern.matcher(benchmark.getName()).find())
+			{ benchmarks.add(benchmark); }
+		}
+		if (list)
+		{
+			for (Benchmark benchmark : benchmarks)
+			{ System.out.println(benchmark.getName()); }
+			System.exit(0);
+		}
+		if (benchmarks.isEmpty())
+		{
+			System.err.println("No benchmarks match " + filter);
+			System.exit(1);
+		}
+
+		if (header)
+		{
+			System.out.println(String.format("%-36s %12s %10s %10s %12s",
+					"benchmark", "ns/op", "+-", "B/op", "ops"));
+		}
+		for (Benchmark benchmark : benchmarks)
+		{
+			if (0 == forks)
+			{
+				Result result = measure(benchmark, warmupIterations,
+						iterations, iterationMillis * NANOS_PER_MILLI);
+				report(benchmark, result);
+			}
+			else
+			{
+				for (int fork = 0; fork < forks; fork++)
+				{
+					if (!fork(benchmark, warmupIterations, iterations,
+							iterationMillis))
+					{ System.exit(1); }
+				}
+			}
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * @return all benchmarks, in the order they are run
+	 */
+	static List<Benchmark> allBenchmarks()
+	{
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		benchmarks.addAll(RouterBenchmarks.create());
+		benchmarks.addAll(FastPathBenchmarks.create());
+		benchmarks.addAll(RouteTableBenchmarks.create());
+		benchmarks.addAll(ArpCacheBenchmarks.create());
+		benchmarks.addAll(PacketBenchmarks.create());
+		benchmarks.addAll(CommandPacketBenchmarks.create());
+		return benchmarks;
+	}
+
+	/**
+	 * Run a benchmark in a new JVM with the same class path, which reports
+	 * its result on the standard output.
+	 * @return true if the benchmark ran successfully, otherwise false
+	 */
+	private static boolean fork(Benchmark benchmark, int warmupIterations,
+			int iterations, long iterationMillis)
+	{
+		List<String> command = new ArrayList<String>();
+		command.add(System.getProperty("java.home") + File.separator + "bin"
+				+ File.separator + "java");
+		command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(BenchmarkRunner.class.getName());
+		command.add("-b");
+		command.add("^" + Pattern.quote(benchmark.getName()) + "$");
+		command.add("-w");
+		command.add(Integer.toString(warmupIterations));
+		command.add("-i");
+		command.add(Integer.toString(iterations));
+		command.add("-t");
+		command.add(Long.toString(iterationMillis));
+		command.add("-f");
+		command.add("0");
+		command.add("-x");
+		try
+		{
+			Process process = new ProcessBuilder(command).inheritIO().start();
+			if (process.waitFor() != 0)
+			{
+				System.err.println("Benchmark " + benchmark.getName()
+						+ " failed");
+				return false;
+			}
+			return true;
+		}
+		catch (IOException e)
+		{
+			System.err.println("Unable to start JVM: " + e.getMessage());
+			return false;
+		}
+		catch (InterruptedException e)
+		{ return false; }
+	}
+
+	/**
+	 * Warm up and measure a benchmark in this JVM.
+	 * @param iterationNanos time spent running operations in each iteration
+	 */
+	private static Result measure(Benchmark benchmark, int warmupIterations,
+			int iterations, long iterationNanos)
+	{
+		benchmark.setUp();
+		Result result = new Result();
+		result.nanosPerOp = new double[iterations];
+		long probeBytes = allocationProbeBytes();
+		int batchSize = benchmark.getBatchSize();
+		long value = 0;
+		for (int iteration = -warmupIterations; iteration < iterations;
+				iteration++)
+		{
+			long ops = 0;
+			long nanos = 0;
+			long bytes = 0;
+			while (nanos < iterationNanos)
+			{
+				benchmark.prepare();
+				long bytesBefore = allocatedBytes();
+				long start = System.nanoTime();
+				for (int i = 0; i < batchSize; i++)
+				{ value ^= benchmark.run(i); }
+				nanos += System.nanoTime() - start;
+				bytes += allocatedBytes() - bytesBefore - probeBytes;
+				ops += batchSize;
+			}
+			if (iteration >= 0)
+			{
+				result.nanosPerOp[iteration] = (double)nanos / ops;
+				result.ops += ops;
+				result.bytes += bytes;
+			}
+		}
+		sink = value;
+		benchmark.tearDown();
+		return result;
+	}
+
+	private static void report(Benchmark benchmark, Result result)
+	{
+		String bytesPerOp = (allocatedBytes() < 0) ? "n/a"
+				: String.format("%.1f", Math.max(0.0,
+						(double)result.bytes / result.ops));
+		System.out.println(String.format("%-36s %12.1f %10.1f %10s %12d",
+				benchmark.getName(), result.getMean(), result.getDeviation(),
+				bytesPerOp, result.ops));
+	}
+
+	/**
+	 * @return bytes allocated by the current thread so far; -1 if the JVM
+	 *         cannot tell
+	 */
+	private static long allocatedBytes()
+	{
+		java.lang.management.ThreadMXBean threads =
+				ManagementFactory.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean))
+		{ return -1; }
+		com.sun.management.ThreadMXBean sunThreads =
+				(com.sun.management.ThreadMXBean)threads;
+		if (!sunThreads.isThreadAllocatedMemoryEnabled())
+		{ return -1; }
+		return sunThreads.getThreadAllocatedBytes(
+				Thread.currentThread().getId());
+	}
+
+	/**
+	 * @return bytes allocated by measuring allocation itself
+	 */
+	private static long allocationProbeBytes()
+	{
+		long probeBytes = Long.MAX_VALUE;
+		for (int i = 0; i < 10; i++)
+		{
+			long before = allocatedBytes();
+			probeBytes = Math.min(probeBytes, allocatedBytes() - before);
+		}
+		return probeBytes;
+	}
+
+	static void usage()
+	{
+		System.out.println("Data Plane Benchmarks");
+		System.out.println("BenchmarkRunner [-b regex] [-w warmup_iterations]");
+		System.out.println("                [-i iterations] [-t iteration_ms]");
+		System.out.println("                [-f forks] [-l]");
+		System.out.println("  -b runs the benchmarks whose names match; -l lists them");
+		System.out.println("  -f 0 runs all benchmarks in this JVM");
+		System.out.println("  defaults: 5 warmup and 5 measured iterations of 1000 ms,");
+		System.out.println("  1 fork per benchmark");
+	}
+}
@@ -0,0 +1,93 @@
+package edu.wisc.cs.sdn.sr.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.wisc.cs.sdn.sr.FastPath;
+import edu.wisc.cs.sdn.sr.Iface;
+import edu.wisc.cs.sdn.sr.Router;
+import edu.wisc.cs.sdn.sr.vns.CommandPacket;
+import edu.wisc.cs.sdn.sr.vns.ReplayComm;
+
+/**
+ * Benchmarks of FastPath.forward on frames still in their receive buffers:
+ * forwarding a datagram and answering a ping. The frames are copied into
+ * fresh receive buffers before each batch, since both rewrite them in place.
+ */
+public class FastPathBenchmarks
+{
+	private static final int BATCH_SIZE = 256;
+
+	private FastPathBenchmarks()
+	{ }
+
+	/**
+	 * @return the benchmarks
+	 */
+	public static List<Benchmark> create()
+	{
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		benchmarks.add(new Forward("fastPath.forward",
+				Frames.udp(RouterBenchmarks.HOST_A_MAC,
+						RouterBenchmarks.ETH0_MAC, RouterBenchmarks.HOST_A_IP,
+						RouterBenchmarks.HOST_B_IP, (byte)64, 64)));
+		benchmarks.add(new Forward("fastPath.icmpEcho",
+				Frames.icmpEcho(RouterBenchmarks.HOST_A_MAC,
+						RouterBenchmarks.ETH0_MAC, RouterBenchmarks.HOST_A_IP,
+						RouterBenchmarks.ETH0_IP)));
+		return benchmarks;
+	}
+
+	/** FastPath.forward for a frame received on eth0 */
+	private static class Forward extends Benchmark
+	{
+		private byte[] frame;
+		private Router router;
+		private FastPath fastPath;
+		private ReplayComm replayComm;
+		private Iface inIface;
+		private byte[][] buffers;
+
+		Forward(String name, byte[] frame)
+		{
+			super(name, BATCH_SIZE);
+			this.frame = frame;
+		}
+
+		@Override
+		public void setUp()
+		{
+			this.router = RouterBenchmarks.createRouter();
+			this.fastPath = this.router.getFastPath();
+			this.replayComm = (ReplayComm)this.router.getVNSComm();
+			this.inIface = this.router.getInterface("eth0");
+			this.buffers = new byte[this.getBatchSize()][
+					CommandPacket.FRAME_OFFSET + this.frame.length];
+		}
+
+		@Override
+		public void prepare()
+		{
+			RouterBenchmarks.refreshArp(this.router);
+			for (byte[] buf : this.buffers)
+			{
+				System.arraycopy(this.frame, 0, buf, 
+						CommandPacket.FRAME_OFFSET, this.frame.length);
+			}
+		}
+
+		@Override
+		public long run(int i)
+		{
+			if (!this.fastPath.forward(this.buffers[i],
+					CommandPacket.FRAME_OFFSET, this.frame.length,
+					this.inIface))
+			{ throw new IllegalStateException("Frame left the fast path"); }
+			return this.replayComm.getFramesSent();
+		}
+
+		@Override
+		public void tearDown()
+		{ this.router.destroy(); }
+	}
+}
@@ -0,0 +1,109 @@
+package edu.wisc.cs.sdn.sr.bench;
+
+import net.floodlightcontroller.packet.ARP;
+import net.floodlightcontroller.packet.Data;
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.ICMP;
+import net.floodlightcontroller.packet.IPacket;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.TCP;
+import net.floodlightcontroller.packet.UDP;
+import net.floodlightcontroller.util.MACAddress;
+
+/**
+ * Builds the serialized frames used by benchmarks.
+ */
+public class Frames
+{
+	private Frames()
+	{ }
+
+	/**
+	 * @return a UDP datagram
+	 */
+	public static byte[] udp(MACAddress srcMac, MACAddress dstMac, int srcIp,
+			int dstIp, byte ttl, int payloadLength)
+	{
+		UDP udpPacket = new UDP();
+		udpPacket.setSourcePort((short)5000);
+		udpPacket.setDestinationPort((short)5001);
+		udpPacket.setPayload(new Data(new byte[payloadLength]));
+		return ip(srcMac, dstMac, srcIp, dstIp, ttl, IPv4.PROTOCOL_UDP,
+				udpPacket);
+	}
+
+	/**
+	 * @return a TCP SYN segment
+	 */
+	public static byte[] tcpSyn(MACAddress srcMac, MACAddress dstMac,
+			int srcIp, int dstIp)
+	{
+		TCP tcpPacket = new TCP();
+		tcpPacket.setSourcePort((short)40000);
+		tcpPacket.setDestinationPort((short)80);
+		tcpPacket.setSequence(1);
+		tcpPacket.setDataOffset((byte)5);
+		tcpPacket.setFlags((short)0x02);
+		tcpPacket.setWindowSize((short)65535);
+		tcpPacket.setPayload(new Data(new byte[0]));
+		return ip(srcMac, dstMac, srcIp, dstIp, (byte)64, IPv4.PROTOCOL_TCP,
+				tcpPacket);
+	}
+
+	/**
+	 * @return an ICMP echo request with 56 bytes of data, as sent by ping
+	 */
+	public static byte[] icmpEcho(MACAddress srcMac, MACAddress dstMac,
+			int srcIp, int dstIp)
+	{
+		ICMP icmpPacket = new ICMP();
+		icmpPacket.setIcmpType(ICMP.TYPE_ECHO_REQUEST);
+		icmpPacket.setPayload(new Data(new byte[4 + 56]));
+		return ip(srcMac, dstMac, srcIp, dstIp, (byte)64, IPv4.PROTOCOL_ICMP,
+				icmpPacket);
+	}
+
+	/**
+	 * @return a broadcast ARP request
+	 */
+	public static byte[] arpRequest(MACAddress srcMac, int srcIp,
+			int targetIp)
+	{
+		ARP arpPacket = new ARP();
+		arpPacket.setHardwareType(ARP.HW_TYPE_ETHERNET);
+		arpPacket.setProtocolType(ARP.PROTO_TYPE_IP);
+		arpPacket.setHardwareAddressLength(
+				(byte)Ethernet.DATALAYER_ADDRESS_LENGTH);
+		arpPacket.setProtocolAddressLength((byte)4);
+		arpPacket.setOpCode(ARP.OP_REQUEST);
+		arpPacket.setSenderHardwareAddress(srcMac.toBytes());
+		arpPacket.setSenderProtocolAddress(srcIp);
+		arpPacket.setTargetHardwareAddress(
+				new byte[Ethernet.DATALAYER_ADDRESS_LENGTH]);
+		arpPacket.setTargetProtocolAddress(targetIp);
+		Ethernet etherPacket = new Ethernet();
+		etherPacket.setSourceMACAddress(srcMac.toBytes());
+		etherPacket.setDestinationMACAddress(
+				MACAddress.valueOf("ff:ff:ff:ff:ff:ff").toBytes());
+		etherPacket.setEtherType(Ethernet.TYPE_ARP);
+		etherPacket.setPayload(arpPacket);
+		return etherPacket.serialize();
+	}
+
+	private static byte[] ip(MACAddress srcMac, MACAddress dstMac, int srcIp,
+			int dstIp, byte ttl, byte protocol, IPacket payload)
+	{
+		IPv4 ipPacket = new IPv4();
+		ipPacket.setTtl(ttl);
+		ipPacket.setProtocol(protocol);
+		ipPacket.setSourceAddress(srcIp);
+		ipPacket.setDestinationAddress(dstIp);
+		ipPacket.setPayload(payload);
+		Ethernet etherPacket = new Ethernet();
+		etherPacket.setSourceMACAddress(srcMac.toBytes());
+		etherPacket.setDestinationMACAddress(dstMac.toBytes());
+		etherPacket.setEtherType(Ethernet.TYPE_IPv4);
+		etherPacket.setPayload(ipPacket);
+		return etherPacket.serialize();
+	}
+}
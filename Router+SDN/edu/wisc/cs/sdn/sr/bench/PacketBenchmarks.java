@@ -0,0 +1,90 @@
+package edu.wisc.cs.sdn.sr.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.floodlightcontroller.packet.Ethernet;
+
+/**
+ * Benchmarks of Ethernet.deserialize and Ethernet.serialize for common
+ * packet types: small and full-sized UDP datagrams, TCP SYNs, pings, and ARP
+ * requests.
+ */
+public class PacketBenchmarks
+{
+	private static final int BATCH_SIZE = 256;
+
+	private PacketBenchmarks()
+	{ }
+
+	/**
+	 * @return the benchmarks
+	 */
+	public static List<Benchmark> create()
+	{
+		String[] names = { "udp64", "udp1472", "tcpSyn", "icmpEcho", "arp" };
+		byte[][] frames = {
+				Frames.udp(RouterBenchmarks.HOST_A_MAC,
+						RouterBenchmarks.ETH0_MAC, RouterBenchmarks.HOST_A_IP,
+						RouterBenchmarks.HOST_B_IP, (byte)64, 64),
+				Frames.udp(RouterBenchmarks.HOST_A_MAC,
+						RouterBenchmarks.ETH0_MAC, RouterBenchmarks.HOST_A_IP,
+						RouterBenchmarks.HOST_B_IP, (byte)64, 1472),
+				Frames.tcpSyn(RouterBenchmarks.HOST_A_MAC,
+						RouterBenchmarks.ETH0_MAC, RouterBenchmarks.HOST_A_IP,
+						RouterBenchmarks.HOST_B_IP),
+				Frames.icmpEcho(RouterBenchmarks.HOST_A_MAC,
+						RouterBenchmarks.ETH0_MAC, RouterBenchmarks.HOST_A_IP,
+						RouterBenchmarks.ETH0_IP),
+				Frames.arpRequest(RouterBenchmarks.HOST_A_MAC,
+						RouterBenchmarks.HOST_A_IP, RouterBenchmarks.ETH0_IP) };
+
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		for (int i = 0; i < names.length; i++)
+		{
+			benchmarks.add(new Deserialize(
+					"ethernet.deserialize." + names[i], frames[i]));
+		}
+		for (int i = 0; i < names.length; i++)
+		{
+			benchmarks.add(new Serialize(
+					"ethernet.serialize." + names[i], frames[i]));
+		}
+		return benchmarks;
+	}
+
+	private static class Deserialize extends Benchmark
+	{
+		private byte[] frame;
+
+		Deserialize(String name, byte[] frame)
+		{
+			super(name, BATCH_SIZE);
+			this.frame = frame;
+		}
+
+		@Override
+		public long run(int i)
+		{
+			Ethernet etherPacket = new Ethernet();
+			etherPacket.deserialize(this.frame, 0, this.frame.length);
+			return etherPacket.getEtherType();
+		}
+	}
+
+	private static class Serialize extends Benchmark
+	{
+		private Ethernet etherPacket;
+
+		Serialize(String name, byte[] frame)
+		{
+			super(name, BATCH_SIZE);
+			this.etherPacket = new Ethernet();
+			this.etherPacket.deserialize(frame, 0, frame.length);
+		}
+
+		@Override
+		public long run(int i)
+		{ return this.etherPacket.serialize().length; }
+	}
+}
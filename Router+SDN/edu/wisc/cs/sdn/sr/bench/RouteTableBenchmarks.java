@@ -0,0 +1,87 @@
+package edu.wisc.cs.sdn.sr.bench;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import edu.wisc.cs.sdn.sr.RouteTable;
+import edu.wisc.cs.sdn.sr.RouteTableEntry;
+
+/**
+ * Benchmarks of RouteTable.lookup with tables of 10, 1k, and 100k routes.
+ * Routes are random /24 prefixes, with every tenth a /16, and destinations
+ * fall within random routes.
+ */
+public class RouteTableBenchmarks
+{
+	/** Destinations looked up, round robin; a power of two */
+	private static final int DESTINATIONS = 1024;
+
+	private RouteTableBenchmarks()
+	{ }
+
+	/**
+	 * @return the benchmarks
+	 */
+	public static List<Benchmark> create()
+	{
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		benchmarks.add(new Lookup("routeTable.lookup.10", 10));
+		benchmarks.add(new Lookup("routeTable.lookup.1k", 1000));
+		benchmarks.add(new Lookup("routeTable.lookup.100k", 100 * 1000));
+		return benchmarks;
+	}
+
+	private static class Lookup extends Benchmark
+	{
+		private int routes;
+		private RouteTable routeTable;
+		private int[] destinations;
+
+		Lookup(String name, int routes)
+		{
+			super(name, DESTINATIONS);
+			this.routes = routes;
+		}
+
+		@Override
+		public void setUp()
+		{
+			Random random = new Random(42);
+			this.routeTable = new RouteTable();
+			List<Integer> prefixes = new ArrayList<Integer>();
+			List<Integer> masks = new ArrayList<Integer>();
+			Set<Long> added = new HashSet<Long>();
+			while (prefixes.size() < this.routes)
+			{
+				int mask = (0 == prefixes.size() % 10) ? 0xffff0000 : 0xffffff00;
+				// Unicast prefixes, outside 0.0.0.0/8
+				int prefix = ((1 + random.nextInt(223)) << 24
+						| random.nextInt(1 << 24)) & mask;
+				if (!added.add(((long)prefix << 32) | (mask & 0xffffffffL)))
+				{ continue; }
+				prefixes.add(prefix);
+				masks.add(mask);
+				this.routeTable.addEntry(prefix, 0, mask, "eth0", 0);
+			}
+
+			this.destinations = new int[DESTINATIONS];
+			for (int i = 0; i < DESTINATIONS; i++)
+			{
+				int route = random.nextInt(this.routes);
+				this.destinations[i] = prefixes.get(route)
+						| (random.nextInt() & ~masks.get(route));
+			}
+		}
+
+		@Override
+		public long run(int i)
+		{
+			RouteTableEntry entry = this.routeTable.lookup(
+					this.destinations[i]);
+			return (null == entry) ? 0 : entry.getMaskAddress();
+		}
+	}
+}
@@ -0,0 +1,190 @@
+package edu.wisc.cs.sdn.sr.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.util.MACAddress;
+
+import edu.wisc.cs.sdn.sr.IcmpRateLimiter;
+import edu.wisc.cs.sdn.sr.Iface;
+import edu.wisc.cs.sdn.sr.Router;
+import edu.wisc.cs.sdn.sr.Util;
+import edu.wisc.cs.sdn.sr.vns.ReplayComm;
+
+/**
+ * Benchmarks of Router.handlePacket: forwarding a datagram, answering a
+ * ping, sending a time exceeded error, and queueing a datagram whose next
+ * hop is not in the ARP cache. Frames are deserialized before each batch, so
+ * only the router's handling is measured; frames the router sends are
+ * serialized and captured by a {@link ReplayComm}.
+ */
+public class RouterBenchmarks
+{
+	/** Addresses of the benchmark router's interfaces and hosts */
+	static final MACAddress ETH0_MAC = MACAddress.valueOf("02:00:00:00:01:01");
+	static final MACAddress ETH1_MAC = MACAddress.valueOf("02:00:00:00:02:01");
+	static final MACAddress ETH2_MAC = MACAddress.valueOf("02:00:00:00:03:01");
+	static final MACAddress HOST_A_MAC = MACAddress.valueOf("02:00:00:00:01:0a");
+	static final MACAddress HOST_B_MAC = MACAddress.valueOf("02:00:00:00:02:0a");
+	static final int ETH0_IP = Util.dottedDecimalToInt("10.0.1.1");
+	static final int ETH1_IP = Util.dottedDecimalToInt("10.0.2.1");
+	static final int ETH2_IP = Util.dottedDecimalToInt("10.128.0.1");
+	static final int HOST_A_IP = Util.dottedDecimalToInt("10.0.1.10");
+	static final int HOST_B_IP = Util.dottedDecimalToInt("10.0.2.10");
+
+	/** Addresses on eth2's subnet that are never resolved */
+	private static final int UNRESOLVED_BASE =
+			Util.dottedDecimalToInt("10.128.1.0");
+	private static final int UNRESOLVED_COUNT = 256;
+
+	private static final int BATCH_SIZE = 256;
+
+	private RouterBenchmarks()
+	{ }
+
+	/**
+	 * @return the benchmarks
+	 */
+	public static List<Benchmark> create()
+	{
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		benchmarks.add(new HandlePacket("router.handlePacket.forward",
+				Frames.udp(HOST_A_MAC, ETH0_MAC, HOST_A_IP, HOST_B_IP,
+						(byte)64, 64), false));
+		benchmarks.add(new HandlePacket("router.handlePacket.icmpEcho",
+				Frames.icmpEcho(HOST_A_MAC, ETH0_MAC, HOST_A_IP, ETH0_IP),
+				false));
+		benchmarks.add(new HandlePacket("router.handlePacket.ttlExceeded",
+				Frames.udp(HOST_A_MAC, ETH0_MAC, HOST_A_IP, HOST_B_IP,
+						(byte)0, 64), false));
+		benchmarks.add(new HandlePacket("router.handlePacket.arpMiss",
+				null, true));
+		return benchmarks;
+	}
+
+	/**
+	 * Create a router with three interfaces, without connecting to a
+	 * server: eth0 (10.0.1.1/24) and eth1 (10.0.2.1/24), each with a host in
+	 * the ARP cache, and eth2 (10.128.0.1/9). ICMP errors are not rate
+	 * limited.
+	 */
+	static Router createRouter()
+	{
+		Router router = new Router((short)0, "bench", "bench", null);
+		router.setVNSComm(new ReplayComm(router));
+		addInterface(router, "eth0", ETH0_IP, "255.255.255.0", ETH0_MAC);
+		addInterface(router, "eth1", ETH1_IP, "255.255.255.0", ETH1_MAC);
+		addInterface(router, "eth2", ETH2_IP, "255.128.0.0", ETH2_MAC);
+		router.indexInterfaces();
+		for (Iface iface : router.getInterfaces().values())
+		{
+			router.getRouteTable().addEntry(
+					iface.getIpAddress() & iface.getSubnetMask(), 0,
+					iface.getSubnetMask(), iface.getName(), 0);
+		}
+		router.setIcmpLimiter(new IcmpRateLimiter(0, 0));
+		refreshArp(router);
+		return router;
+	}
+
+	/**
+	 * Insert the hosts in the router's ARP cache again, so they do not time
+	 * out during long runs.
+	 */
+	static void refreshArp(Router router)
+	{
+		router.getArpCache().insert(HOST_A_MAC, HOST_A_IP);
+		router.getArpCache().insert(HOST_B_MAC, HOST_B_IP);
+	}
+
+	private static void addInterface(Router router, String name, int ip,
+			String mask, MACAddress mac)
+	{
+		Iface iface = router.addInterface(name);
+		iface.setIpAddress(ip);
+		iface.setSubnetMask(Util.dottedDecimalToInt(mask));
+		iface.setMacAddress(mac);
+	}
+
+	/** Router.handlePacket for a frame received on eth0 */
+	private static class HandlePacket extends Benchmark
+	{
+		/** Frames handled, round robin */
+		private byte[][] frames;
+
+		/** Whether frames go to unresolved addresses, whose pending ARP
+		 * requests are dropped before each batch */
+		private boolean arpMiss;
+
+		private Router router;
+		private ReplayComm replayComm;
+		private Iface inIface;
+		private Ethernet[] packets;
+
+		/**
+		 * @param frame frame to handle; ignored for ARP misses, which send
+		 *        a frame to each of the unresolved addresses in turn
+		 */
+		HandlePacket(String name, byte[] frame, boolean arpMiss)
+		{
+			super(name, arpMiss ? UNRESOLVED_COUNT : BATCH_SIZE);
+			this.arpMiss = arpMiss;
+			if (arpMiss)
+			{
+				this.frames = new byte[UNRESOLVED_COUNT][];
+				for (int i = 0; i < UNRESOLVED_COUNT; i++)
+				{
+					this.frames[i] = Frames.udp(HOST_A_MAC, ETH0_MAC,
+							HOST_A_IP, UNRESOLVED_BASE + i, (byte)64, 64);
+				}
+			}
+			else
+			{ this.frames = new byte[][] { frame }; }
+		}
+
+		@Override
+		public void setUp()
+		{
+			this.router = createRouter();
+			this.replayComm = (ReplayComm)this.router.getVNSComm();
+			this.inIface = this.router.getInterface("eth0");
+			this.packets = new Ethernet[this.getBatchSize()];
+		}
+
+		@Override
+		public void prepare()
+		{
+			refreshArp(this.router);
+			if (this.arpMiss)
+			{
+				// Answer and forget the previous batch's requests, so each
+				// frame starts a new one
+				for (int i = 0; i < UNRESOLVED_COUNT; i++)
+				{
+					this.router.getArpCache().insert(HOST_B_MAC,
+							UNRESOLVED_BASE + i);
+					this.router.getArpCache().remove(UNRESOLVED_BASE + i);
+				}
+			}
+			for (int i = 0; i < this.packets.length; i++)
+			{
+				byte[] frame = this.frames[i % this.frames.length].clone();
+				Ethernet etherPacket = new Ethernet();
+				etherPacket.deserialize(frame, 0, frame.length);
+				this.packets[i] = etherPacket;
+			}
+		}
+
+		@Override
+		public long run(int i)
+		{
+			this.router.handlePacket(this.packets[i], this.inIface);
+			return this.replayComm.getFramesSent();
+		}
+
+		@Override
+		public void tearDown()
+		{ this.router.destroy(); }
+	}
+}
@@ -0,0 +1,283 @@
+package edu.wisc.cs.sdn.sr.flow;
+
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed-size table of the flows being accounted, keyed by 5-tuple and
+ * receiving interface. The table is split into independently locked stripes;
+ * each stripe is an open addressing table of long keys, with the counters of
+ * its flows in parallel arrays, so accounting a packet neither boxes keys nor
+ * allocates. Stripes are at most half full; once a stripe holds its share of
+ * the flows, adding a flow evicts the least recently seen flow near the new
+ * flow's slot.
+ */
+class FlowCache
+{
+	/** Number of stripes */
+	static final int STRIPE_BITS = 6;
+	static final int STRIPES = 1 << STRIPE_BITS;
+
+	/** Fewest flows a table holds: one per stripe */
+	static final int MIN_CAPACITY = STRIPES;
+
+	/** Slots searched for a flow to evict when a stripe is full */
+	private static final int EVICTION_WINDOW = 8;
+
+	/** TCP flags after which a flow ends: FIN and RST */
+	private static final int TCP_FIN_RST = 0x05;
+
+	/** Part of the table, with its own lock */
+	private static class Stripe
+	{
+		/** Keys, two longs per slot */
+		long[] keys;
+
+		/** Counters of the flows; a slot is empty if its packet count is 0 */
+		long[] packets;
+		long[] octets;
+		long[] first;
+		long[] last;
+		int[] outIfaces;
+		int[] tcpFlags;
+
+		int size;
+
+		Stripe(int slots)
+		{
+			this.keys = new long[2 * slots];
+			this.packets = new long[slots];
+			this.octets = new long[slots];
+			this.first = new long[slots];
+			this.last = new long[slots];
+			this.outIfaces = new int[slots];
+			this.tcpFlags = new int[slots];
+		}
+	}
+
+	private Stripe[] stripes;
+
+	/** Mask of slot indices within a stripe */
+	private int mask;
+
+	/** Most flows held by a stripe */
+	private int maxStripeSize;
+
+	/** Number of flows in the table */
+	private LongAdder size;
+
+	/**
+	 * @param capacity most flows the table holds; at least MIN_CAPACITY
+	 */
+	FlowCache(int capacity)
+	{
+		this.maxStripeSize = Math.max(1, capacity / STRIPES);
+		int slots = Integer.highestOneBit(2 * this.maxStripeSize - 1) << 1;
+		this.mask = slots - 1;
+		this.stripes = new Stripe[STRIPES];
+		for (int i = 0; i < STRIPES; i++)
+		{ this.stripes[i] = new Stripe(slots); }
+		this.size = new LongAdder();
+	}
+
+	/**
+	 * @return number of flows in the table
+	 */
+	long size()
+	{ return this.size.sum(); }
+
+	/**
+	 * Account a packet to its flow, adding the flow if it is not in the
+	 * table.
+	 * @param ports source port in the upper and destination port in the
+	 *        lower 16 bits
+	 * @param octets length of the IP packet
+	 * @param now current time (in ms)
+	 * @return the flow evicted to make room for the packet's flow; null if
+	 *         none was
+	 */
+	FlowRecord add(int sourceAddress, int destinationAddress, int protocol,
+			int ports, int inIface, int outIface, int tcpFlags, int octets,
+			long now)
+	{
+		long hi = keyHi(sourceAddress, destinationAddress);
+		long lo = keyLo(protocol, ports, inIface);
+		int hash = hash(hi, lo);
+		Stripe stripe = this.stripes[hash >>> (32 - STRIPE_BITS)];
+		synchronized (stripe)
+		{
+			int slot = hash & this.mask;
+			while (stripe.packets[slot] != 0)
+			{
+				if (stripe.keys[2 * slot] == hi
+						&& stripe.keys[2 * slot + 1] == lo)
+				{
+					stripe.packets[slot]++;
+					stripe.octets[slot] += octets;
+					stripe.last[slot] = now;
+					stripe.outIfaces[slot] = outIface;
+					stripe.tcpFlags[slot] |= tcpFlags;
+					return null;
+				}
+				slot = (slot + 1) & this.mask;
+			}
+
+			FlowRecord evicted = null;
+			if (stripe.size >= this.maxStripeSize)
+			{
+				evicted = this.remove(stripe, this.victim(stripe, hash),
+						FlowRecord.LACK_OF_RESOURCES);
+				slot = hash & this.mask;
+				while (stripe.packets[slot] != 0)
+				{ slot = (slot + 1) & this.mask; }
+			}
+			stripe.keys[2 * slot] = hi;
+			stripe.keys[2 * slot + 1] = lo;
+			stripe.packets[slot] = 1;
+			stripe.octets[slot] = octets;
+			stripe.first[slot] = now;
+			stripe.last[slot] = now;
+			stripe.outIfaces[slot] = outIface;
+			stripe.tcpFlags[slot] = tcpFlags;
+			stripe.size++;
+			this.size.increment();
+			return evicted;
+		}
+	}
+
+	/**
+	 * Remove the flows that ended, or all flows.
+	 * @param now current time (in ms)
+	 * @param inactiveTimeout idle time after which a flow ends (in ms)
+	 * @param activeTimeout age after which a flow ends (in ms)
+	 * @param all true to remove all flows
+	 * @param records list to add the records of the removed flows to
+	 */
+	void expire(long now, int inactiveTimeout, int activeTimeout,
+			boolean all, List<FlowRecord> records)
+	{
+		for (Stripe stripe : this.stripes)
+		{
+			synchronized (stripe)
+			{
+				// Removing a flow shifts later flows back into its slot, so
+				// the slot is checked again
+				int slot = 0;
+				while (slot <= this.mask)
+				{
+					int reason = (0 == stripe.packets[slot]) ? 0
+							: endReason(stripe, slot, now, inactiveTimeout,
+									activeTimeout, all);
+					if (reason != 0)
+					{ records.add(this.remove(stripe, slot, reason)); }
+					else
+					{ slot++; }
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return why the flow in a slot ended; 0 if it has not
+	 */
+	private static int endReason(Stripe stripe, int slot, long now,
+			int inactiveTimeout, int activeTimeout, boolean all)
+	{
+		if (all)
+		{ return FlowRecord.FORCED_END; }
+		if (now - stripe.last[slot] >= inactiveTimeout)
+		{ return FlowRecord.IDLE_TIMEOUT; }
+		if ((stripe.tcpFlags[slot] & TCP_FIN_RST) != 0)
+		{ return FlowRecord.END_DETECTED; }
+		if (now - stripe.first[slot] >= activeTimeout)
+		{ return FlowRecord.ACTIVE_TIMEOUT; }
+		return 0;
+	}
+
+	/**
+	 * Choose the flow to evict: the least recently seen of the flows in the
+	 * EVICTION_WINDOW slots starting at a new flow's slot, or the first flow
+	 * after them if they are all empty.
+	 */
+	private int victim(Stripe stripe, int hash)
+	{
+		int victim = -1;
+		int slot = hash & this.mask;
+		for (int i = 0; victim < 0 || i < EVICTION_WINDOW; i++)
+		{
+			if (stripe.packets[slot] != 0 && (victim < 0
+					|| stripe.last[slot] < stripe.last[victim]))
+			{ victim = slot; }
+			slot = (slot + 1) & this.mask;
+		}
+		return victim;
+	}
+
+	/**
+	 * Remove the flow in a slot, shifting later flows of its cluster back.
+	 * @return record of the removed flow
+	 */
+	private FlowRecord remove(Stripe stripe, int slot, int reason)
+	{
+		FlowRecord record = new FlowRecord();
+		long hi = stripe.keys[2 * slot];
+		long lo = stripe.keys[2 * slot + 1];
+		record.sourceAddress = (int)(hi >>> 32);
+		record.destinationAddress = (int)hi;
+		record.protocol = (int)(lo >>> 48) & 0xff;
+		record.sourcePort = (int)(lo >>> 32) & 0xffff;
+		record.destinationPort = (int)(lo >>> 16) & 0xffff;
+		record.inIface = (int)lo & 0xffff;
+		record.outIface = stripe.outIfaces[slot];
+		record.tcpFlags = stripe.tcpFlags[slot];
+		record.octets = stripe.octets[slot];
+		record.packets = stripe.packets[slot];
+		record.first = stripe.first[slot];
+		record.last = stripe.last[slot];
+		record.endReason = reason;
+
+		int hole = slot;
+		slot = (slot + 1) & this.mask;
+		while (stripe.packets[slot] != 0)
+		{
+			int home = hash(stripe.keys[2 * slot], stripe.keys[2 * slot + 1])
+					& this.mask;
+			if (((slot - home) & this.mask) >= ((slot - hole) & this.mask))
+			{
+				stripe.keys[2 * hole] = stripe.keys[2 * slot];
+				stripe.keys[2 * hole + 1] = stripe.keys[2 * slot + 1];
+				stripe.packets[hole] = stripe.packets[slot];
+				stripe.octets[hole] = stripe.octets[slot];
+				stripe.first[hole] = stripe.first[slot];
+				stripe.last[hole] = stripe.last[slot];
+				stripe.outIfaces[hole] = stripe.outIfaces[slot];
+				stripe.tcpFlags[hole] = stripe.tcpFlags[slot];
+				hole = slot;
+			}
+			slot = (slot + 1) & this.mask;
+		}
+		stripe.packets[hole] = 0;
+		stripe.size--;
+		this.size.decrement();
+		return record;
+	}
+
+	private static long keyHi(int sourceAddress, int destinationAddress)
+	{
+		return ((long)sourceAddress << 32)
+				| (destinationAddress & 0xffffffffL);
+	}
+
+	private static long keyLo(int protocol, int ports, int inIface)
+	{
+		return ((long)(protocol & 0xff) << 48)
+				| ((ports & 0xffffffffL) << 16) | (inIface & 0xffff);
+	}
+
+	private static int hash(long hi, long lo)
+	{
+		long h = (hi * 0x9e3779b97f4a7c15L) ^ lo;
+		h *= 0xc2b2ae3d27d4eb4fL;
+		return (int)(h ^ (h >>> 32));
+	}
+}
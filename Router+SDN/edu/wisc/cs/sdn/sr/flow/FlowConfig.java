@@ -0,0 +1,160 @@
+package edu.wisc.cs.sdn.sr.flow;
+
+/**
+ * Settings of flow accounting: where flow records are exported (an IPFIX
+ * collector over UDP, or a local file of IPFIX messages), the packet sampling
+ * rate, the timeouts after which flows are exported, and the size of the
+ * flow table.
+ */
+public class FlowConfig
+{
+	/** Default idle time after which a flow is exported (in ms) */
+	public static final int DEFAULT_INACTIVE_TIMEOUT = 15 * 1000;
+
+	/** Default age after which a flow is exported, even if active (in ms) */
+	public static final int DEFAULT_ACTIVE_TIMEOUT = 60 * 1000;
+
+	/** Default number of flows the table holds */
+	public static final int DEFAULT_CAPACITY = 16 * 1024;
+
+	/** Collector's host and port; null if records are written to a file */
+	private final String host;
+	private final int port;
+
+	/** File records are written to; null if records are sent to a
+	 * collector */
+	private final String file;
+
+	/** One in how many forwarded packets is accounted */
+	private final int sampling;
+
+	private final int inactiveTimeout;
+	private final int activeTimeout;
+	private final int capacity;
+
+	private FlowConfig(String host, int port, String file, int sampling,
+			int inactiveTimeout, int activeTimeout, int capacity)
+	{
+		this.host = host;
+		this.port = port;
+		this.file = file;
+		this.sampling = sampling;
+		this.inactiveTimeout = inactiveTimeout;
+		this.activeTimeout = activeTimeout;
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Parse settings from a specification of the form
+	 * udp:host:port|file:path[,sample=N][,inactive=s][,active=s][,flows=N];
+	 * settings that are not given keep their defaults.
+	 * @return the settings; null if the specification is invalid
+	 */
+	public static FlowConfig parse(String spec)
+	{
+		String[] parts = spec.split(",");
+		String host = null;
+		int port = 0;
+		String file = null;
+		int sampling = 1;
+		int inactiveTimeout = DEFAULT_INACTIVE_TIMEOUT;
+		int activeTimeout = DEFAULT_ACTIVE_TIMEOUT;
+		int capacity = DEFAULT_CAPACITY;
+		try
+		{
+			if (parts[0].startsWith("udp:"))
+			{
+				int colon = parts[0].lastIndexOf(':');
+				if (colon <= "udp:".length())
+				{ return null; }
+				host = parts[0].substring("udp:".length(), colon);
+				port = Integer.parseInt(parts[0].substring(colon + 1));
+				if (port < 1 || port > 0xffff)
+				{ return null; }
+			}
+			else if (parts[0].startsWith("file:")
+					&& parts[0].length() > "file:".length())
+			{ file = parts[0].substring("file:".length()); }
+			else
+			{ return null; }
+
+			for (int i = 1; i < parts.length; i++)
+			{
+				String[] keyValue = parts[i].split("=", 2);
+				if (keyValue.length != 2)
+				{ return null; }
+				int value = Integer.parseInt(keyValue[1]);
+				if (keyValue[0].equals("sample"))
+				{ sampling = value; }
+				else if (keyValue[0].equals("inactive"))
+				{ inactiveTimeout = value * 1000; }
+				else if (keyValue[0].equals("active"))
+				{ activeTimeout = value * 1000; }
+				else if (keyValue[0].equals("flows"))
+				{ capacity = value; }
+				else
+				{ return null; }
+			}
+		}
+		catch (NumberFormatException e)
+		{ return null; }
+		if (sampling < 1 || inactiveTimeout < 1000 || activeTimeout < 1000
+				|| capacity < FlowCache.MIN_CAPACITY)
+		{ return null; }
+		return new FlowConfig(host, port, file, sampling, inactiveTimeout,
+				activeTimeout, capacity);
+	}
+
+	/**
+	 * @return collector's host name or address; null if records are written
+	 *         to a file
+	 */
+	public String getHost()
+	{ return this.host; }
+
+	/**
+	 * @return collector's UDP port
+	 */
+	public int getPort()
+	{ return this.port; }
+
+	/**
+	 * @return file records are written to; null if records are sent to a
+	 *         collector
+	 */
+	public String getFile()
+	{ return this.file; }
+
+	/**
+	 * @return one in how many forwarded packets is accounted
+	 */
+	public int getSampling()
+	{ return this.sampling; }
+
+	/**
+	 * @return idle time after which a flow is exported (in ms)
+	 */
+	public int getInactiveTimeout()
+	{ return this.inactiveTimeout; }
+
+	/**
+	 * @return age after which a flow is exported, even if active (in ms)
+	 */
+	public int getActiveTimeout()
+	{ return this.activeTimeout; }
+
+	/**
+	 * @return number of flows the table holds
+	 */
+	public int getCapacity()
+	{ return this.capacity; }
+
+	public String toString()
+	{
+		return String.format("%s,sample=%d,inactive=%d,active=%d,flows=%d",
+				(null == this.file) ? "udp:" + this.host + ":" + this.port
+						: "file:" + this.file, this.sampling,
+				this.inactiveTimeout / 1000, this.activeTimeout / 1000,
+				this.capacity);
+	}
+}
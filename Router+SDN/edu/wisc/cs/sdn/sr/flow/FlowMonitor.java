@@ -0,0 +1,283 @@
+package edu.wisc.cs.sdn.sr.flow;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+import edu.wisc.cs.sdn.sr.Iface;
+import net.floodlightcontroller.packet.ICMP;
+import net.floodlightcontroller.packet.IPacket;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.TCP;
+import net.floodlightcontroller.packet.UDP;
+
+/**
+ * Flow accounting of forwarded IPv4 packets, with export of flow records in
+ * the style of NetFlow/IPFIX. Packets are accounted (optionally one in N, at
+ * random) to their flow: source and destination address, protocol, ports (the
+ * type and code for ICMP) and receiving interface. A flow is exported once it
+ * has been idle for the inactive timeout, has seen a TCP FIN or RST, has been
+ * active for the active timeout, or is evicted from a full table; a thread
+ * collects ended flows every second and writes them in batches.
+ * <p>
+ * Accounting is available for serialized packets (used by the fast path)
+ * and for deserialized packets. Fragments, whose transport header need not be
+ * complete, and packets too short for their transport header are accounted
+ * with ports 0.
+ */
+public class FlowMonitor implements Runnable
+{
+	/** Interval at which ended flows are collected and exported (in ms) */
+	public static final int EXPORT_INTERVAL = 1000;
+
+	/** Evicted flows held until the next export; more are dropped */
+	private static final int MAX_EVICTED = 4096;
+
+	private static final int PROTOCOL_ICMP = 1;
+	private static final int PROTOCOL_TCP = 6;
+	private static final int PROTOCOL_UDP = 17;
+
+	private FlowConfig config;
+
+	/** Flows being accounted */
+	private FlowCache flows;
+
+	/** Flows evicted from the table, waiting to be exported */
+	private BlockingQueue<FlowRecord> evicted;
+
+	private IpfixWriter writer;
+
+	/** Counters, for statistics */
+	private LongAdder packetsSampled;
+	private LongAdder recordsExported;
+	private LongAdder recordsDropped;
+	private LongAdder exportErrors;
+
+	/** Thread for exporting flows */
+	private Thread exportThread;
+
+	private FlowMonitor(FlowConfig config, IpfixWriter writer)
+	{
+		this.config = config;
+		this.flows = new FlowCache(config.getCapacity());
+		this.evicted = new ArrayBlockingQueue<FlowRecord>(MAX_EVICTED);
+		this.writer = writer;
+		this.packetsSampled = new LongAdder();
+		this.recordsExported = new LongAdder();
+		this.recordsDropped = new LongAdder();
+		this.exportErrors = new LongAdder();
+		this.exportThread = new Thread(this, "sr-flows");
+		this.exportThread.setDaemon(true);
+	}
+
+	/**
+	 * Open the destination of flow records and start exporting flows.
+	 * @param config where records are exported, sampling, timeouts and size
+	 *        of the flow table
+	 * @return the flow accounting; null if the destination cannot be opened
+	 */
+	public static FlowMonitor start(FlowConfig config)
+	{
+		IpfixWriter writer = IpfixWriter.open(config);
+		if (null == writer)
+		{ return null; }
+		FlowMonitor monitor = new FlowMonitor(config, writer);
+		monitor.exportThread.start();
+		return monitor;
+	}
+
+	/**
+	 * @return settings of flow accounting
+	 */
+	public FlowConfig getConfig()
+	{ return this.config; }
+
+	/**
+	 * @return number of flows being accounted
+	 */
+	public long getFlowCount()
+	{ return this.flows.size(); }
+
+	/**
+	 * @return number of packets accounted so far
+	 */
+	public long getPacketsSampled()
+	{ return this.packetsSampled.sum(); }
+
+	/**
+	 * @return number of flow records written so far
+	 */
+	public long getRecordsExported()
+	{ return this.recordsExported.sum(); }
+
+	/**
+	 * @return number of flow records lost because evicted flows piled up, or
+	 *         they could not be written
+	 */
+	public long getRecordsDropped()
+	{ return this.recordsDropped.sum(); }
+
+	/**
+	 * @return number of messages that could not be written
+	 */
+	public long getExportErrors()
+	{ return this.exportErrors.sum(); }
+
+	/**
+	 * Export ended flows every EXPORT_INTERVAL ms.
+	 */
+	public void run()
+	{
+		List<FlowRecord> records = new ArrayList<FlowRecord>();
+		while (true)
+		{
+			try
+			{ Thread.sleep(EXPORT_INTERVAL); }
+			catch (InterruptedException e)
+			{ break; }
+			this.export(false, records);
+		}
+	}
+
+	/**
+	 * Stop exporting, export all flows still being accounted, and close the
+	 * destination.
+	 */
+	public void shutdown()
+	{
+		this.exportThread.interrupt();
+		try
+		{ this.exportThread.join(); }
+		catch (InterruptedException e)
+		{ Thread.currentThread().interrupt(); }
+		this.export(true, new ArrayList<FlowRecord>());
+		this.writer.close();
+	}
+
+	private void export(boolean all, List<FlowRecord> records)
+	{
+		records.clear();
+		this.evicted.drainTo(records);
+		this.flows.expire(System.currentTimeMillis(),
+				this.config.getInactiveTimeout(), this.config.getActiveTimeout(),
+				all, records);
+		if (records.isEmpty())
+		{ return; }
+		int failed = this.writer.write(records);
+		int lost = Math.min(records.size(), failed * IpfixWriter.MAX_RECORDS);
+		this.recordsExported.add(records.size() - lost);
+		this.recordsDropped.add(lost);
+		this.exportErrors.add(failed);
+		records.clear();
+	}
+
+	/**
+	 * @return true if a packet is to be accounted
+	 */
+	private boolean sample()
+	{
+		int sampling = this.config.getSampling();
+		return sampling <= 1
+				|| ThreadLocalRandom.current().nextInt(sampling) == 0;
+	}
+
+	private void add(int sourceAddress, int destinationAddress, int protocol,
+			int ports, Iface inIface, Iface outIface, int tcpFlags,
+			int octets)
+	{
+		this.packetsSampled.increment();
+		FlowRecord record = this.flows.add(sourceAddress, destinationAddress,
+				protocol, ports, inIface.getIndex() + 1,
+				outIface.getIndex() + 1, tcpFlags, octets,
+				System.currentTimeMillis());
+		if (record != null && !this.evicted.offer(record))
+		{ this.recordsDropped.increment(); }
+	}
+
+	/*********************************************************************/
+	/* Serialized packets                                                */
+	/*********************************************************************/
+
+	/**
+	 * Account a packet that is forwarded.
+	 * @param buf buffer containing the packet
+	 * @param ip offset of the IPv4 header; the header is valid
+	 * @param totalLength IPv4 total length; checked against the buffer
+	 * @param inIface interface on which the packet was received
+	 * @param outIface interface out which the packet is sent
+	 */
+	public void account(byte[] buf, int ip, int totalLength, Iface inIface,
+			Iface outIface)
+	{
+		if (!this.sample())
+		{ return; }
+		int protocol = buf[ip + 9] & 0xff;
+		int transport = ip + (buf[ip] & 0x0f) * 4;
+		int end = ip + totalLength;
+		if ((getShort(buf, ip + 6) & 0x3fff) != 0)
+		{ end = transport; } // Fragment: no transport header
+		int ports = 0;
+		int tcpFlags = 0;
+		if (PROTOCOL_TCP == protocol && transport + 20 <= end)
+		{
+			ports = getInt(buf, transport);
+			tcpFlags = buf[transport + 13] & 0xff;
+		}
+		else if (PROTOCOL_UDP == protocol && transport + 8 <= end)
+		{ ports = getInt(buf, transport); }
+		else if (PROTOCOL_ICMP == protocol && transport + 4 <= end)
+		{ ports = getShort(buf, transport); }
+		this.add(getInt(buf, ip + 12), getInt(buf, ip + 16), protocol, ports,
+				inIface, outIface, tcpFlags, totalLength);
+	}
+
+	private static int getShort(byte[] buf, int offset)
+	{ return ((buf[offset] & 0xff) << 8) | (buf[offset + 1] & 0xff); }
+
+	private static int getInt(byte[] buf, int offset)
+	{ return (getShort(buf, offset) << 16) | getShort(buf, offset + 2); }
+
+	/*********************************************************************/
+	/* Deserialized packets                                              */
+	/*********************************************************************/
+
+	/**
+	 * Account a packet that is forwarded.
+	 * @param packet the packet
+	 * @param inIface interface on which the packet was received
+	 * @param outIface interface out which the packet is sent
+	 */
+	public void account(IPv4 packet, Iface inIface, Iface outIface)
+	{
+		if (!this.sample())
+		{ return; }
+		int ports = 0;
+		int tcpFlags = 0;
+		IPacket payload = packet.getPayload();
+		if (payload instanceof TCP)
+		{
+			TCP tcp = (TCP)payload;
+			ports = ((tcp.getSourcePort() & 0xffff) << 16)
+					| (tcp.getDestinationPort() & 0xffff);
+			tcpFlags = tcp.getFlags() & 0xff;
+		}
+		else if (payload instanceof UDP)
+		{
+			UDP udp = (UDP)payload;
+			ports = ((udp.getSourcePort() & 0xffff) << 16)
+					| (udp.getDestinationPort() & 0xffff);
+		}
+		else if (payload instanceof ICMP)
+		{
+			ICMP icmp = (ICMP)payload;
+			ports = ((icmp.getIcmpType() & 0xff) << 8)
+					| (icmp.getIcmpCode() & 0xff);
+		}
+		this.add(packet.getSourceAddress(), packet.getDestinationAddress(),
+				packet.getProtocol() & 0xff, ports, inIface, outIface,
+				tcpFlags, packet.getTotalLength() & 0xffff);
+	}
+}
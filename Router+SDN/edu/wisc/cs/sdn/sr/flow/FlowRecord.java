@@ -0,0 +1,43 @@
+package edu.wisc.cs.sdn.sr.flow;
+
+/**
+ * A flow removed from the flow table, to be exported: the packets forwarded
+ * with the same 5-tuple, received on the same interface, between the flow's
+ * first and last packet.
+ */
+class FlowRecord
+{
+	/** Why flows end, as IPFIX flowEndReason values */
+	static final int IDLE_TIMEOUT = 1;
+	static final int ACTIVE_TIMEOUT = 2;
+	static final int END_DETECTED = 3;
+	static final int FORCED_END = 4;
+	static final int LACK_OF_RESOURCES = 5;
+
+	int sourceAddress;
+	int destinationAddress;
+	int protocol;
+
+	/** Transport ports; for ICMP, the source port is 0 and the destination
+	 * port holds the type and code (type * 256 + code) */
+	int sourcePort;
+	int destinationPort;
+
+	/** TCP flags of all the flow's packets, or'd */
+	int tcpFlags;
+
+	/** Indices of the interfaces the flow was received and last sent on */
+	int inIface;
+	int outIface;
+
+	/** Bytes (of IP packets) and packets accounted */
+	long octets;
+	long packets;
+
+	/** Times at which the first and last packets were seen (in ms) */
+	long first;
+	long last;
+
+	/** Why the flow ended */
+	int endReason;
+}
@@ -0,0 +1,213 @@
+package edu.wisc.cs.sdn.sr.flow;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Writes flow records as IPFIX messages (RFC 7011), to a collector over UDP
+ * or to a file of consecutive messages (RFC 5655). Each message carries the
+ * template before its records, so a collector that restarts, or a reader
+ * starting anywhere in a file, can decode every message on its own.
+ * Messages are kept below a typical Ethernet MTU.
+ */
+class IpfixWriter
+{
+	private static final int VERSION = 10;
+	private static final int TEMPLATE_SET_ID = 2;
+	private static final int TEMPLATE_ID = 256;
+
+	/** Largest message written */
+	static final int MAX_MESSAGE_LENGTH = 1400;
+
+	private static final int MESSAGE_HEADER_LENGTH = 16;
+	private static final int SET_HEADER_LENGTH = 4;
+
+	/** Information elements of a record, as {element ID, length} */
+	private static final int[][] FIELDS = {
+		{ 8, 4 },    // sourceIPv4Address
+		{ 12, 4 },   // destinationIPv4Address
+		{ 7, 2 },    // sourceTransportPort
+		{ 11, 2 },   // destinationTransportPort
+		{ 4, 1 },    // protocolIdentifier
+		{ 6, 2 },    // tcpControlBits
+		{ 10, 4 },   // ingressInterface
+		{ 14, 4 },   // egressInterface
+		{ 1, 8 },    // octetDeltaCount
+		{ 2, 8 },    // packetDeltaCount
+		{ 152, 8 },  // flowStartMilliseconds
+		{ 153, 8 },  // flowEndMilliseconds
+		{ 136, 1 },  // flowEndReason
+		{ 305, 4 },  // samplingPacketInterval
+	};
+
+	private static final int TEMPLATE_SET_LENGTH = SET_HEADER_LENGTH + 4
+			+ 4 * FIELDS.length;
+
+	private static final int RECORD_LENGTH = recordLength();
+
+	/** Most records in a message */
+	static final int MAX_RECORDS = (MAX_MESSAGE_LENGTH
+			- MESSAGE_HEADER_LENGTH - TEMPLATE_SET_LENGTH
+			- SET_HEADER_LENGTH) / RECORD_LENGTH;
+
+	/** Socket and collector records are sent to; null if written to a
+	 * file */
+	private DatagramSocket socket;
+	private InetSocketAddress collector;
+
+	/** File records are written to; null if sent to a collector */
+	private OutputStream file;
+
+	/** One in how many packets was accounted, exported with each record */
+	private int sampling;
+
+	/** Records written before the next message, as its sequence number */
+	private long sequence;
+
+	private ByteBuffer message;
+
+	private IpfixWriter(int sampling)
+	{
+		this.sampling = sampling;
+		this.message = ByteBuffer.allocate(MAX_MESSAGE_LENGTH);
+	}
+
+	/**
+	 * Open the destination of flow records.
+	 * @param config where records are exported, and the sampling rate
+	 * @return the writer; null if the destination cannot be opened
+	 */
+	static IpfixWriter open(FlowConfig config)
+	{
+		IpfixWriter writer = new IpfixWriter(config.getSampling());
+		try
+		{
+			if (config.getFile() != null)
+			{ writer.file = new FileOutputStream(config.getFile()); }
+			else
+			{
+				writer.collector = new InetSocketAddress(config.getHost(),
+						config.getPort());
+				if (writer.collector.isUnresolved())
+				{
+					System.err.println("Unknown flow collector "
+							+ config.getHost());
+					return null;
+				}
+				writer.socket = new DatagramSocket();
+			}
+		}
+		catch (IOException e)
+		{
+			System.err.println("Cannot open flow export: " + e.getMessage());
+			return null;
+		}
+		return writer;
+	}
+
+	/**
+	 * Write records, in as few messages as fit them.
+	 * @param records the records
+	 * @return number of messages that could not be written
+	 */
+	int write(List<FlowRecord> records)
+	{
+		int failed = 0;
+		for (int start = 0; start < records.size(); start += MAX_RECORDS)
+		{
+			int end = Math.min(records.size(), start + MAX_RECORDS);
+			this.encode(records.subList(start, end));
+			try
+			{
+				if (this.file != null)
+				{
+					this.file.write(this.message.array(), 0,
+							this.message.position());
+				}
+				else
+				{
+					this.socket.send(new DatagramPacket(this.message.array(),
+							this.message.position(), this.collector));
+				}
+			}
+			catch (IOException e)
+			{ failed++; }
+		}
+		return failed;
+	}
+
+	/**
+	 * Flush and close the destination.
+	 */
+	void close()
+	{
+		try
+		{
+			if (this.file != null)
+			{ this.file.close(); }
+		}
+		catch (IOException e)
+		{ System.err.println("Error closing flow export: " + e.getMessage()); }
+		if (this.socket != null)
+		{ this.socket.close(); }
+	}
+
+	private void encode(List<FlowRecord> records)
+	{
+		ByteBuffer bb = this.message;
+		bb.clear();
+		int length = MESSAGE_HEADER_LENGTH + TEMPLATE_SET_LENGTH
+				+ SET_HEADER_LENGTH + records.size() * RECORD_LENGTH;
+		bb.putShort((short)VERSION);
+		bb.putShort((short)length);
+		bb.putInt((int)(System.currentTimeMillis() / 1000));
+		bb.putInt((int)this.sequence);
+		bb.putInt(0); // Observation domain
+
+		bb.putShort((short)TEMPLATE_SET_ID);
+		bb.putShort((short)TEMPLATE_SET_LENGTH);
+		bb.putShort((short)TEMPLATE_ID);
+		bb.putShort((short)FIELDS.length);
+		for (int[] field : FIELDS)
+		{
+			bb.putShort((short)field[0]);
+			bb.putShort((short)field[1]);
+		}
+
+		bb.putShort((short)TEMPLATE_ID);
+		bb.putShort((short)(SET_HEADER_LENGTH
+				+ records.size() * RECORD_LENGTH));
+		for (FlowRecord record : records)
+		{
+			bb.putInt(record.sourceAddress);
+			bb.putInt(record.destinationAddress);
+			bb.putShort((short)record.sourcePort);
+			bb.putShort((short)record.destinationPort);
+			bb.put((byte)record.protocol);
+			bb.putShort((short)record.tcpFlags);
+			bb.putInt(record.inIface);
+			bb.putInt(record.outIface);
+			bb.putLong(record.octets);
+			bb.putLong(record.packets);
+			bb.putLong(record.first);
+			bb.putLong(record.last);
+			bb.put((byte)record.endReason);
+			bb.putInt(this.sampling);
+		}
+		this.sequence += records.size();
+	}
+
+	private static int recordLength()
+	{
+		int length = 0;
+		for (int[] field : FIELDS)
+		{ length += field[1]; }
+		return length;
+	}
+}
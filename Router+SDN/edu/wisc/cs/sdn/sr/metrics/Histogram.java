@@ -0,0 +1,108 @@
+package edu.wisc.cs.sdn.sr.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Distribution of durations, counted in fixed buckets growing in 1-2-5 steps
+ * from 250 ns to 10 s. Each bucket is a {@link LongAdder}, so recording from
+ * several packet processing threads does not contend; cumulative counts are
+ * only computed when the histogram is read.
+ */
+public class Histogram
+{
+	/** Upper bounds (in nanoseconds) of the buckets, inclusive; longer
+	 * durations are counted in a last, unbounded bucket */
+	public static final long[] BOUNDS = {
+		250L, 500L,
+		1000L, 2000L, 5000L,
+		10000L, 20000L, 50000L,
+		100000L, 200000L, 500000L,
+		1000000L, 2000000L, 5000000L,
+		10000000L, 20000000L, 50000000L,
+		100000000L, 200000000L, 500000000L,
+		1000000000L, 2000000000L, 5000000000L,
+		10000000000L };
+
+	/** Durations counted in each bucket; not cumulative */
+	private final LongAdder[] counts;
+
+	/** Sum of all durations recorded */
+	private final LongAdder sum;
+
+	/**
+	 * Create an empty histogram.
+	 */
+	public Histogram()
+	{
+		this.counts = new LongAdder[BOUNDS.length + 1];
+		for (int i = 0; i < this.counts.length; i++)
+		{ this.counts[i] = new LongAdder(); }
+		this.sum = new LongAdder();
+	}
+
+	/**
+	 * Record a duration.
+	 * @param nanos the duration in nanoseconds
+	 */
+	public void record(long nanos)
+	{
+		int bucket = 0;
+		while (bucket < BOUNDS.length && nanos > BOUNDS[bucket])
+		{ bucket++; }
+		this.counts[bucket].increment();
+		this.sum.add(nanos);
+	}
+
+	/**
+	 * @param bucket index of a bucket; BOUNDS.length for the unbounded bucket
+	 * @return number of durations no longer than the bucket's upper bound
+	 */
+	public long getCumulativeCount(int bucket)
+	{
+		long count = 0;
+		for (int i = 0; i <= bucket; i++)
+		{ count += this.counts[i].sum(); }
+		return count;
+	}
+
+	/**
+	 * @return number of durations recorded
+	 */
+	public long getCount()
+	{ return this.getCumulativeCount(BOUNDS.length); }
+
+	/**
+	 * @return sum of the durations recorded, in nanoseconds
+	 */
+	public long getSum()
+	{ return this.sum.sum(); }
+
+	/**
+	 * Estimate a quantile of the durations recorded, as the upper bound of
+	 * the bucket it falls in.
+	 * @param q the quantile, between 0 and 1
+	 * @return upper bound (in nanoseconds) of the quantile; 0 if no durations
+	 *         were recorded, Long.MAX_VALUE if it is beyond the last bound
+	 */
+	public long getQuantile(double q)
+	{
+		long[] counts = new long[this.counts.length];
+		long total = 0;
+		for (int i = 0; i < counts.length; i++)
+		{
+			counts[i] = this.counts[i].sum();
+			total += counts[i];
+		}
+		if (0 == total)
+		{ return 0; }
+		long rank = Math.max(1, (long)Math.ceil(q * total));
+		long count = 0;
+		for (int i = 0; i < BOUNDS.length; i++)
+		{
+			count += counts[i];
+			if (count >= rank)
+			{ return BOUNDS[i]; }
+		}
+		return Long.MAX_VALUE;
+	}
+}
@@ -0,0 +1,217 @@
+package edu.wisc.cs.sdn.sr.metrics;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Registry of named counters, gauges, and histograms. Counters are 
+ * {@link LongAdder}s, so incrementing them from several packet processing
+ * threads does not contend on a single cache line; values are only summed
+ * when the registry is read by an exporter.
+ */
+public class MetricRegistry
+{
+	/** Kind of a metric family */
+	public enum Type { COUNTER, GAUGE, HISTOGRAM }
+
+	/** A metric name with its help text and samples */
+	private static class Family
+	{
+		String name;
+		String help;
+		Type type;
+		List<Sample> samples = new ArrayList<Sample>();
+	}
+
+	/** One labelled time series of a metric family */
+	private static class Sample
+	{
+		String suffix;
+		String labels;
+		LongSupplier value;
+	}
+
+	/** Metric families in registration order; maps names to families */
+	private Map<String,Family> families;
+
+	/**
+	 * Create an empty registry.
+	 */
+	public MetricRegistry()
+	{ this.families = new LinkedHashMap<String,Family>(); }
+
+	/**
+	 * Register a counter.
+	 * @param name metric name, e.g., sr_packets_received_total
+	 * @param help description of the metric
+	 * @param labels alternating label names and values
+	 * @return the counter to increment
+	 */
+	public LongAdder counter(String name, String help, String... labels)
+	{
+		final LongAdder adder = new LongAdder();
+		this.register(name, help, Type.COUNTER, "", labels, adder::sum);
+		return adder;
+	}
+
+	/**
+	 * Register a gauge whose value is computed when it is read.
+	 * @param name metric name
+	 * @param help description of the metric
+	 * @param value supplies the current value
+	 * @param labels alternating label names and values
+	 */
+	public void gauge(String name, String help, LongSupplier value,
+			String... labels)
+	{ this.register(name, help, Type.GAUGE, "", labels, value); }
+
+	/**
+	 * Register a histogram, exported as cumulative bucket counts (labelled
+	 * with their upper bounds in nanoseconds), a sum, and a count.
+	 * @param name metric name, e.g., sr_packet_latency_nanoseconds
+	 * @param help description of the metric
+	 * @param labels alternating label names and values
+	 * @return the histogram to record durations in
+	 */
+	public Histogram histogram(String name, String help, String... labels)
+	{
+		final Histogram histogram = new Histogram();
+		String[] bucketLabels = new String[labels.length + 2];
+		System.arraycopy(labels, 0, bucketLabels, 0, labels.length);
+		bucketLabels[labels.length] = "le";
+		for (int i = 0; i <= Histogram.BOUNDS.length; i++)
+		{
+			final int bucket = i;
+			bucketLabels[labels.length + 1] = (i < Histogram.BOUNDS.length)
+					? Long.toString(Histogram.BOUNDS[i]) : "+Inf";
+			this.register(name, help, Type.HISTOGRAM, "_bucket", bucketLabels,
+					() -> histogram.getCumulativeCount(bucket));
+		}
+		this.register(name, help, Type.HISTOGRAM, "_sum", labels,
+				histogram::getSum);
+		this.register(name, help, Type.HISTOGRAM, "_count", labels,
+				histogram::getCount);
+		return histogram;
+	}
+
+	private synchronized void register(String name, String help, Type type,
+			String suffix, String[] labels, LongSupplier value)
+	{
+		Family family = this.families.get(name);
+		if (null == family)
+		{
+			family = new Family();
+			family.name = name;
+			family.help = help;
+			family.type = type;
+			this.families.put(name, family);
+		}
+		else if (family.type != type)
+		{
+			throw new IllegalArgumentException(
+					"Metric " + name + " registered as " + family.type);
+		}
+
+		Sample sample = new Sample();
+		sample.suffix = suffix;
+		sample.labels = formatLabels(labels);
+		sample.value = value;
+		family.samples.add(sample);
+	}
+
+	/**
+	 * Write all metrics in the Prometheus text exposition format.
+	 * @param sb builder to append to
+	 */
+	public synchronized void writePrometheus(StringBuilder sb)
+	{
+		for (Family family : this.families.values())
+		{
+			sb.append("# HELP ").append(family.name).append(' ')
+					.append(family.help).append('\n');
+			sb.append("# TYPE ").append(family.name).append(' ')
+					.append(family.type.name().toLowerCase()).append('\n');
+			for (Sample sample : family.samples)
+			{
+				sb.append(family.name).append(sample.suffix)
+						.append(sample.labels).append(' ')
+						.append(sample.value.getAsLong()).append('\n');
+			}
+		}
+	}
+
+	/**
+	 * @return current values of all samples; maps a sample's name and labels,
+	 *         as in the Prometheus format, to its value
+	 */
+	public synchronized Map<String,Long> snapshot()
+	{
+		Map<String,Long> values = new LinkedHashMap<String,Long>();
+		for (Family family : this.families.values())
+		{
+			for (Sample sample : family.samples)
+			{
+				values.put(family.name + sample.suffix + sample.labels,
+						sample.value.getAsLong());
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * @param name a sample's name and labels, as returned by snapshot()
+	 * @return help text of the sample's metric family; null if unknown
+	 */
+	public synchronized String getHelp(String name)
+	{
+		int brace = name.indexOf('{');
+		String familyName = (brace < 0) ? name : name.substring(0, brace);
+		Family family = this.families.get(familyName);
+		if (null == family)
+		{
+			// Histogram samples append a suffix to their family's name
+			int underscore = familyName.lastIndexOf('_');
+			if (underscore > 0)
+			{
+				family = this.families.get(
+						familyName.substring(0, underscore));
+			}
+		}
+		return (null == family) ? null : family.help;
+	}
+
+	private static String formatLabels(String[] labels)
+	{
+		if (0 == labels.length)
+		{ return ""; }
+		if (labels.length % 2 != 0)
+		{
+			throw new IllegalArgumentException(
+					"Labels must be name/value pairs");
+		}
+		StringBuilder sb = new StringBuilder("{");
+		for (int i = 0; i < labels.length; i += 2)
+		{
+			if (i > 0)
+			{ sb.append(','); }
+			sb.append(labels[i]).append("=\"");
+			String value = labels[i + 1];
+			for (int j = 0; j < value.length(); j++)
+			{
+				char c = value.charAt(j);
+				if ('\\' == c || '"' == c)
+				{ sb.append('\\'); }
+				if ('\n' == c)
+				{ sb.append("\\n"); }
+				else
+				{ sb.append(c); }
+			}
+			sb.append('"');
+		}
+		return sb.append('}').toString();
+	}
+}
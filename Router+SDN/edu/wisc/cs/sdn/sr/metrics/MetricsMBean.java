@@ -0,0 +1,78 @@
+package edu.wisc.cs.sdn.sr.metrics;
+
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+
+/**
+ * Read-only MBean with one Long attribute per sample in a metric registry,
+ * named as in the Prometheus format (e.g.,
+ * sr_packets_received_total{iface="eth0"}).
+ */
+public class MetricsMBean implements DynamicMBean
+{
+	/** Registry whose samples are exposed */
+	private MetricRegistry registry;
+
+	/**
+	 * Create an MBean for a registry.
+	 * @param registry registry whose samples are exposed
+	 */
+	public MetricsMBean(MetricRegistry registry)
+	{ this.registry = registry; }
+
+	public Object getAttribute(String attribute)
+			throws AttributeNotFoundException
+	{
+		Long value = this.registry.snapshot().get(attribute);
+		if (null == value)
+		{ throw new AttributeNotFoundException(attribute); }
+		return value;
+	}
+
+	public AttributeList getAttributes(String[] attributes)
+	{
+		Map<String,Long> values = this.registry.snapshot();
+		AttributeList list = new AttributeList();
+		for (String attribute : attributes)
+		{
+			Long value = values.get(attribute);
+			if (value != null)
+			{ list.add(new Attribute(attribute, value)); }
+		}
+		return list;
+	}
+
+	public void setAttribute(Attribute attribute)
+			throws AttributeNotFoundException
+	{ throw new AttributeNotFoundException("Metrics are read-only"); }
+
+	public AttributeList setAttributes(AttributeList attributes)
+	{ return new AttributeList(); }
+
+	public Object invoke(String actionName, Object[] params,
+			String[] signature)
+	{ throw new UnsupportedOperationException(actionName); }
+
+	public MBeanInfo getMBeanInfo()
+	{
+		Map<String,Long> values = this.registry.snapshot();
+		MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+		int i = 0;
+		for (String name : values.keySet())
+		{
+			attributes[i++] = new MBeanAttributeInfo(name,
+					Long.class.getName(), this.registry.getHelp(name),
+					true, false, false);
+		}
+		return new MBeanInfo(this.getClass().getName(),
+				"Simple router metrics", attributes, null,
+				new MBeanOperationInfo[0], null);
+	}
+}
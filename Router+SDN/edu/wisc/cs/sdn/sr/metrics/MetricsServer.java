@@ -0,0 +1,123 @@
+package edu.wisc.cs.sdn.sr.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Exposes a metric registry over HTTP, in the Prometheus text format at
+ * /metrics, and as an MBean on the platform MBean server.
+ */
+public class MetricsServer
+{
+	/** Path at which metrics are served */
+	public static final String PATH = "/metrics";
+
+	/** Name under which the registry is exposed through JMX */
+	public static final String OBJECT_NAME = "edu.wisc.cs.sdn.sr:type=Metrics";
+
+	/** Content type of the Prometheus text format */
+	private static final String CONTENT_TYPE =
+			"text/plain; version=0.0.4; charset=utf-8";
+
+	/** Registry whose metrics are exposed */
+	private MetricRegistry registry;
+
+	/** HTTP server; null if not started */
+	private HttpServer httpServer;
+
+	/**
+	 * Create a server for a registry.
+	 * @param registry registry whose metrics are exposed
+	 */
+	public MetricsServer(MetricRegistry registry)
+	{
+		this.registry = registry;
+		this.httpServer = null;
+	}
+
+	/**
+	 * Register the registry with the platform MBean server.
+	 * @return true if the registry was registered, otherwise false
+	 */
+	public boolean registerMBean()
+	{
+		try
+		{
+			ManagementFactory.getPlatformMBeanServer().registerMBean(
+					new MetricsMBean(this.registry),
+					new ObjectName(OBJECT_NAME));
+		}
+		catch (JMException e)
+		{
+			System.err.println("Error registering metrics MBean: " + e);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Start serving metrics over HTTP on the loopback interface. Requests are
+	 * handled on a single daemon thread.
+	 * @param port TCP port to listen on
+	 * @return true if the server was started, otherwise false
+	 */
+	public boolean startHttp(int port)
+	{
+		try
+		{
+			this.httpServer = HttpServer.create(new InetSocketAddress(
+					InetAddress.getLoopbackAddress(), port), 0);
+		}
+		catch (IOException e)
+		{
+			System.err.println("Error starting metrics server on port "
+					+ port + ": " + e.getMessage());
+			return false;
+		}
+		this.httpServer.createContext(PATH, new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException
+			{ serve(exchange); }
+		});
+		this.httpServer.setExecutor(Executors.newSingleThreadExecutor(r -> {
+			Thread thread = new Thread(r, "sr-metrics");
+			thread.setDaemon(true);
+			return thread;
+		}));
+		this.httpServer.start();
+		return true;
+	}
+
+	/**
+	 * Stop serving metrics over HTTP.
+	 */
+	public void stopHttp()
+	{
+		if (this.httpServer != null)
+		{ this.httpServer.stop(0); }
+		this.httpServer = null;
+	}
+
+	private void serve(HttpExchange exchange) throws IOException
+	{
+		StringBuilder sb = new StringBuilder();
+		this.registry.writePrometheus(sb);
+		byte[] body = sb.toString().getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+		exchange.sendResponseHeaders(200, body.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(body);
+		out.close();
+	}
+}
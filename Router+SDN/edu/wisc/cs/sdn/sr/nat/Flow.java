@@ -0,0 +1,72 @@
+package edu.wisc.cs.sdn.sr.nat;
+
+/**
+ * A NAPT mapping: a connection from an inside address and port to a remote
+ * address and port, translated to an external port of the outside
+ * interface's address. For ICMP queries the ports are the query identifier
+ * (inside and external) and 0 (remote). The addresses and ports never change,
+ * so a flow can be read without locking once it has been found.
+ */
+public class Flow
+{
+	/** IP protocol number */
+	final int protocol;
+
+	final int insideAddress;
+	final int insidePort;
+	final int remoteAddress;
+	final int remotePort;
+	final int externalPort;
+
+	/** Time at which a packet of the flow was last translated (in ms) */
+	volatile long lastSeen;
+
+	/** Time after lastSeen at which the flow expires (in ms) */
+	volatile int timeout;
+
+	/** Next flow in the timing wheel slot; guarded by the stripe */
+	Flow next;
+
+	Flow(int protocol, int insideAddress, int insidePort, int remoteAddress,
+			int remotePort, int externalPort)
+	{
+		this.protocol = protocol;
+		this.insideAddress = insideAddress;
+		this.insidePort = insidePort;
+		this.remoteAddress = remoteAddress;
+		this.remotePort = remotePort;
+		this.externalPort = externalPort;
+	}
+
+	public int getProtocol()
+	{ return this.protocol; }
+
+	public int getInsideAddress()
+	{ return this.insideAddress; }
+
+	public int getInsidePort()
+	{ return this.insidePort; }
+
+	public int getRemoteAddress()
+	{ return this.remoteAddress; }
+
+	public int getRemotePort()
+	{ return this.remotePort; }
+
+	public int getExternalPort()
+	{ return this.externalPort; }
+
+	/**
+	 * Record that a packet of the flow was translated.
+	 * @param now current time (in ms)
+	 * @param timeout time after now at which the flow expires (in ms)
+	 */
+	void touch(long now, int timeout)
+	{
+		// Avoid writing shared cache lines when nothing changes
+		if (this.lastSeen != now)
+		{ this.lastSeen = now; }
+		if (this.timeout != timeout)
+		{ this.timeout = timeout; }
+	}
+}
@@ -0,0 +1,338 @@
+package edu.wisc.cs.sdn.sr.nat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Connection table for NAPT. Outbound lookups go through a hash table keyed
+ * by the primitive 5-tuple (protocol, inside address and port, remote address
+ * and port), split into independently locked stripes; each stripe is an open
+ * addressing table of long keys, so lookups neither box keys nor allocate.
+ * Inbound lookups index an array per protocol by external port and read it
+ * without locking. External ports are unique per protocol, so an external
+ * port identifies at most one flow.
+ * <p>
+ * Each stripe keeps its flows on a timing wheel. Translating a packet only
+ * updates the flow's last seen time; flows are moved on the wheel lazily,
+ * when their slot comes up, and removed once their timeout has passed, so
+ * the wheel is only ever walked slot by slot and needs no back links.
+ */
+class FlowTable
+{
+	/** Number of stripes */
+	static final int STRIPE_BITS = 6;
+	static final int STRIPES = 1 << STRIPE_BITS;
+
+	/** Granularity of expiry (in ms) */
+	static final int TICK = 1000;
+
+	/** Number of slots on each stripe's timing wheel */
+	static final int WHEEL_SLOTS = 256;
+
+	/** Lowest external port handed out */
+	static final int FIRST_PORT = 1024;
+
+	/** Protocols with their own port space */
+	static final int ICMP = 1;
+	static final int TCP = 6;
+	static final int UDP = 17;
+
+	/** Part of the outbound table, with its own lock and timing wheel */
+	private static class Stripe
+	{
+		/** Keys of the hash table, two longs per slot */
+		long[] keys = new long[2 * 16];
+
+		/** Flows of the hash table; null for empty slots */
+		Flow[] flows = new Flow[16];
+
+		int size;
+
+		/** Flows, linked by the slot of their deadline */
+		Flow[] wheel = new Flow[WHEEL_SLOTS];
+	}
+
+	private Stripe[] stripes;
+
+	/** Flows indexed by protocol (ICMP, TCP, UDP) and external port */
+	private List<AtomicReferenceArray<Flow>> byExternalPort;
+
+	/** Where the search for a free external port starts, per protocol */
+	private int[] nextPort;
+
+	/** Number of flows in the table, and created so far */
+	private LongAdder size;
+	private LongAdder created;
+
+	/** Time of the last expiry tick */
+	private long lastTick;
+
+	FlowTable(long now)
+	{
+		this.stripes = new Stripe[STRIPES];
+		for (int i = 0; i < STRIPES; i++)
+		{ this.stripes[i] = new Stripe(); }
+		this.byExternalPort = new ArrayList<AtomicReferenceArray<Flow>>(3);
+		for (int i = 0; i < 3; i++)
+		{ this.byExternalPort.add(new AtomicReferenceArray<Flow>(0x10000)); }
+		this.nextPort = new int[] { FIRST_PORT, FIRST_PORT, FIRST_PORT };
+		this.size = new LongAdder();
+		this.created = new LongAdder();
+		this.lastTick = now;
+	}
+
+	/**
+	 * @return number of flows in the table
+	 */
+	long size()
+	{ return this.size.sum(); }
+
+	/**
+	 * @return number of flows created so far
+	 */
+	long getCreated()
+	{ return this.created.sum(); }
+
+	/**
+	 * Find the flow for an outbound packet, creating it if there is none.
+	 * @param now current time (in ms)
+	 * @param timeout timeout of a new flow (in ms)
+	 * @return the flow, or null if the protocol has no free external port
+	 */
+	Flow outbound(int protocol, int insideAddress, int insidePort,
+			int remoteAddress, int remotePort, long now, int timeout)
+	{
+		long hi = keyHi(insideAddress, remoteAddress);
+		long lo = keyLo(protocol, insidePort, remotePort);
+		int hash = hash(hi, lo);
+		Stripe stripe = this.stripes[hash >>> (32 - STRIPE_BITS)];
+		synchronized (stripe)
+		{
+			int mask = stripe.flows.length - 1;
+			int slot = hash & mask;
+			Flow flow;
+			while ((flow = stripe.flows[slot]) != null)
+			{
+				if (stripe.keys[2 * slot] == hi && stripe.keys[2 * slot + 1] == lo)
+				{ return flow; }
+				slot = (slot + 1) & mask;
+			}
+
+			flow = this.allocate(protocol, insideAddress, insidePort,
+					remoteAddress, remotePort);
+			if (null == flow)
+			{ return null; }
+			flow.lastSeen = now;
+			flow.timeout = timeout;
+			stripe.keys[2 * slot] = hi;
+			stripe.keys[2 * slot + 1] = lo;
+			stripe.flows[slot] = flow;
+			stripe.size++;
+			if (2 * stripe.size > stripe.flows.length)
+			{ resize(stripe); }
+			schedule(stripe, flow, now + timeout);
+			this.size.increment();
+			this.created.increment();
+			return flow;
+		}
+	}
+
+	/**
+	 * Find the flow for an inbound packet.
+	 * @return the flow to which the external port is mapped, if the packet
+	 *         comes from the flow's remote address and port; otherwise null
+	 */
+	Flow inbound(int protocol, int externalPort, int remoteAddress,
+			int remotePort)
+	{
+		int space = portSpace(protocol);
+		if (space < 0)
+		{ return null; }
+		Flow flow = this.byExternalPort.get(space).get(externalPort);
+		if (null == flow || flow.remoteAddress != remoteAddress
+				|| flow.remotePort != remotePort)
+		{ return null; }
+		return flow;
+	}
+
+	/**
+	 * Remove flows whose timeout has passed.
+	 * @param now current time (in ms)
+	 * @return number of flows removed
+	 */
+	int expire(long now)
+	{
+		long fromTick = this.lastTick / TICK;
+		long toTick = now / TICK;
+		if (toTick - fromTick >= WHEEL_SLOTS)
+		{ fromTick = toTick - WHEEL_SLOTS + 1; }
+		this.lastTick = now;
+
+		int expired = 0;
+		for (Stripe stripe : this.stripes)
+		{
+			synchronized (stripe)
+			{
+				for (long tick = fromTick; tick <= toTick; tick++)
+				{
+					int slot = (int)(tick % WHEEL_SLOTS);
+					Flow flow = stripe.wheel[slot];
+					stripe.wheel[slot] = null;
+					while (flow != null)
+					{
+						Flow next = flow.next;
+						long deadline = flow.lastSeen + flow.timeout;
+						if (deadline / TICK <= toTick)
+						{
+							this.remove(stripe, flow);
+							expired++;
+						}
+						else
+						{ schedule(stripe, flow, deadline); }
+						flow = next;
+					}
+				}
+			}
+		}
+		return expired;
+	}
+
+	/**
+	 * Create a flow with a free external port, preferring the inside port.
+	 */
+	private Flow allocate(int protocol, int insideAddress, int insidePort,
+			int remoteAddress, int remotePort)
+	{
+		int space = portSpace(protocol);
+		AtomicReferenceArray<Flow> ports = this.byExternalPort.get(space);
+		if (insidePort >= FIRST_PORT)
+		{
+			Flow flow = claim(ports, insidePort, protocol, insideAddress,
+					insidePort, remoteAddress, remotePort);
+			if (flow != null)
+			{ return flow; }
+		}
+
+		// Continue after the last port handed out, so the search does not
+		// walk over the same run of busy ports every time
+		int port = this.nextPort[space];
+		for (int tries = 0x10000 - FIRST_PORT; tries > 0; tries--)
+		{
+			Flow flow = claim(ports, port, protocol, insideAddress,
+					insidePort, remoteAddress, remotePort);
+			if (flow != null)
+			{
+				// Racy, but only a hint for where to start searching
+				this.nextPort[space] = nextPort(port);
+				return flow;
+			}
+			port = nextPort(port);
+		}
+		return null;
+	}
+
+	/**
+	 * Create a flow with an external port, if the port is free.
+	 */
+	private static Flow claim(AtomicReferenceArray<Flow> ports, int port,
+			int protocol, int insideAddress, int insidePort,
+			int remoteAddress, int remotePort)
+	{
+		if (ports.get(port) != null)
+		{ return null; }
+		Flow flow = new Flow(protocol, insideAddress, insidePort,
+				remoteAddress, remotePort, port);
+		return ports.compareAndSet(port, null, flow) ? flow : null;
+	}
+
+	private static int nextPort(int port)
+	{ return (0xffff == port) ? FIRST_PORT : port + 1; }
+
+	private void remove(Stripe stripe, Flow flow)
+	{
+		this.byExternalPort.get(portSpace(flow.protocol)).compareAndSet(
+				flow.externalPort, flow, null);
+		this.size.decrement();
+
+		// Find the flow's slot, then shift later entries of its cluster back
+		int mask = stripe.flows.length - 1;
+		int slot = hash(keyHi(flow.insideAddress, flow.remoteAddress),
+				keyLo(flow.protocol, flow.insidePort, flow.remotePort)) & mask;
+		while (stripe.flows[slot] != flow)
+		{ slot = (slot + 1) & mask; }
+		int hole = slot;
+		slot = (slot + 1) & mask;
+		while (stripe.flows[slot] != null)
+		{
+			int home = hash(stripe.keys[2 * slot], stripe.keys[2 * slot + 1])
+					& mask;
+			if (((slot - home) & mask) >= ((slot - hole) & mask))
+			{
+				stripe.flows[hole] = stripe.flows[slot];
+				stripe.keys[2 * hole] = stripe.keys[2 * slot];
+				stripe.keys[2 * hole + 1] = stripe.keys[2 * slot + 1];
+				hole = slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		stripe.flows[hole] = null;
+		stripe.size--;
+	}
+
+	private static void resize(Stripe stripe)
+	{
+		long[] oldKeys = stripe.keys;
+		Flow[] oldFlows = stripe.flows;
+		stripe.keys = new long[2 * 2 * oldFlows.length];
+		stripe.flows = new Flow[2 * oldFlows.length];
+		int mask = stripe.flows.length - 1;
+		for (int i = 0; i < oldFlows.length; i++)
+		{
+			if (null == oldFlows[i])
+			{ continue; }
+			int slot = hash(oldKeys[2 * i], oldKeys[2 * i + 1]) & mask;
+			while (stripe.flows[slot] != null)
+			{ slot = (slot + 1) & mask; }
+			stripe.keys[2 * slot] = oldKeys[2 * i];
+			stripe.keys[2 * slot + 1] = oldKeys[2 * i + 1];
+			stripe.flows[slot] = oldFlows[i];
+		}
+	}
+
+	private static void schedule(Stripe stripe, Flow flow, long deadline)
+	{
+		int slot = (int)((deadline / TICK) % WHEEL_SLOTS);
+		flow.next = stripe.wheel[slot];
+		stripe.wheel[slot] = flow;
+	}
+
+	private static long keyHi(int insideAddress, int remoteAddress)
+	{ return ((long)insideAddress << 32) | (remoteAddress & 0xffffffffL); }
+
+	private static long keyLo(int protocol, int insidePort, int remotePort)
+	{ return ((long)protocol << 32) | ((long)insidePort << 16) | remotePort; }
+
+	private static int portSpace(int protocol)
+	{
+		switch (protocol)
+		{
+		case ICMP:
+			return 0;
+		case TCP:
+			return 1;
+		case UDP:
+			return 2;
+		default:
+			return -1;
+		}
+	}
+
+	private static int hash(long hi, long lo)
+	{
+		long h = (hi * 0x9e3779b97f4a7c15L) ^ lo;
+		h *= 0xc2b2ae3d27d4eb4fL;
+		return (int)(h ^ (h >>> 32));
+	}
+}
@@ -0,0 +1,639 @@
+package edu.wisc.cs.sdn.sr.nat;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.LongAdder;
+
+import edu.wisc.cs.sdn.sr.Checksum;
+import edu.wisc.cs.sdn.sr.Iface;
+import net.floodlightcontroller.packet.Data;
+import net.floodlightcontroller.packet.ICMP;
+import net.floodlightcontroller.packet.IPacket;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.TCP;
+import net.floodlightcontroller.packet.UDP;
+
+/**
+ * Network address and port translation (source NAT) between inside
+ * interfaces and one outside interface. TCP and UDP packets forwarded from an
+ * inside to the outside interface get the outside interface's address and an
+ * external port; ICMP echo requests get an external query identifier. Packets
+ * received on the outside interface for a mapped external port, from the
+ * flow's remote address and port, are translated back, as are ICMP errors
+ * quoting a translated packet. Checksums are patched incrementally (RFC
+ * 1624), except for ICMP errors, whose checksum covers the rewritten quote.
+ * <p>
+ * Translation is available for serialized packets (used by the fast path)
+ * and for deserialized packets. Non-initial fragments carry no ports: outbound
+ * ones only get the external address, inbound ones are not translated.
+ */
+public class Napt implements Runnable
+{
+	/** Idle time after which flows expire (in ms) */
+	public static final int UDP_TIMEOUT = 300 * 1000;
+	public static final int TCP_ESTABLISHED_TIMEOUT = 7440 * 1000;
+	public static final int TCP_TRANSITORY_TIMEOUT = 240 * 1000;
+	public static final int ICMP_TIMEOUT = 60 * 1000;
+
+	/** TCP flags that end a connection: FIN and RST */
+	private static final int TCP_FIN_RST = 0x05;
+
+	private static final int ICMP_ECHO_REPLY = 0;
+	private static final int ICMP_DEST_UNREACHABLE = 3;
+	private static final int ICMP_ECHO_REQUEST = 8;
+	private static final int ICMP_TIME_EXCEEDED = 11;
+	private static final int ICMP_PARAMETER_PROBLEM = 12;
+
+	/** Index of the outside interface */
+	private int outside;
+
+	/** Inside interfaces, by index */
+	private boolean[] inside;
+
+	/** Address of the outside interface, used for all translated packets */
+	private int externalAddress;
+
+	/** Connection table */
+	private FlowTable flows;
+
+	/** Current time, advanced every FlowTable.TICK (in ms) */
+	private volatile long now;
+
+	/** Flows expired, for statistics */
+	private LongAdder flowsExpired;
+
+	/** Thread for expiring flows */
+	private Thread expiryThread;
+
+	/**
+	 * Set up translation and start expiring flows.
+	 * @param outside outside interface; its address is the external address
+	 * @param inside interfaces whose traffic to the outside is translated
+	 */
+	public Napt(Iface outside, Collection<Iface> inside)
+	{
+		this.outside = outside.getIndex();
+		int maxIndex = this.outside;
+		for (Iface iface : inside)
+		{ maxIndex = Math.max(maxIndex, iface.getIndex()); }
+		this.inside = new boolean[maxIndex + 1];
+		for (Iface iface : inside)
+		{ this.inside[iface.getIndex()] = (iface != outside); }
+		this.externalAddress = outside.getIpAddress();
+		this.now = System.currentTimeMillis();
+		this.flows = new FlowTable(this.now);
+		this.flowsExpired = new LongAdder();
+		this.expiryThread = new Thread(this, "sr-napt");
+		this.expiryThread.setDaemon(true);
+		this.expiryThread.start();
+	}
+
+	/**
+	 * @return true if traffic received on the interface is translated when it
+	 *         is forwarded out the outside interface
+	 */
+	public boolean isInside(Iface iface)
+	{
+		int index = iface.getIndex();
+		return index < this.inside.length && this.inside[index];
+	}
+
+	/**
+	 * @return true if the interface is the outside interface
+	 */
+	public boolean isOutside(Iface iface)
+	{ return iface.getIndex() == this.outside; }
+
+	/**
+	 * @return address translated packets are sent from
+	 */
+	public int getExternalAddress()
+	{ return this.externalAddress; }
+
+	/**
+	 * @return number of flows in the connection table
+	 */
+	public long getFlowCount()
+	{ return this.flows.size(); }
+
+	/**
+	 * @return number of flows created so far
+	 */
+	public long getFlowsCreated()
+	{ return this.flows.getCreated(); }
+
+	/**
+	 * @return number of flows expired so far
+	 */
+	public long getFlowsExpired()
+	{ return this.flowsExpired.sum(); }
+
+	/**
+	 * Advance the clock and expire flows, every FlowTable.TICK ms.
+	 */
+	public void run()
+	{
+		while (true)
+		{
+			try
+			{ Thread.sleep(FlowTable.TICK); }
+			catch (InterruptedException e)
+			{ break; }
+			this.now = System.currentTimeMillis();
+			this.flowsExpired.add(this.flows.expire(this.now));
+		}
+	}
+
+	/*********************************************************************/
+	/* Serialized packets                                                */
+	/*********************************************************************/
+
+	/**
+	 * Find the flow for a serialized TCP, UDP or ICMP echo reply packet
+	 * received on the outside interface. Nothing is modified.
+	 * @param buf buffer containing the packet
+	 * @param ip offset of the IPv4 header in the buffer
+	 * @param length length of the packet
+	 * @return the flow, or null if the packet is not for a flow (or is an
+	 *         ICMP error or fragment, which only the deserialized path handles)
+	 */
+	public Flow inbound(byte[] buf, int ip, int length)
+	{
+		int l4 = transportOffset(buf, ip, length);
+		if (l4 < 0 || getInt(buf, ip + 16) != this.externalAddress)
+		{ return null; }
+		int protocol = buf[ip + 9] & 0xff;
+		int remoteAddress = getInt(buf, ip + 12);
+		Flow flow;
+		switch (protocol)
+		{
+		case FlowTable.TCP:
+		case FlowTable.UDP:
+			flow = this.flows.inbound(protocol, getShort(buf, l4 + 2),
+					remoteAddress, getShort(buf, l4));
+			break;
+		case FlowTable.ICMP:
+			if ((buf[l4] & 0xff) != ICMP_ECHO_REPLY)
+			{ return null; }
+			flow = this.flows.inbound(protocol, getShort(buf, l4 + 4),
+					remoteAddress, 0);
+			break;
+		default:
+			return null;
+		}
+		if (flow != null)
+		{
+			flow.touch(this.now, this.timeout(flow,
+					tcpFlags(buf, l4, protocol), true));
+		}
+		return flow;
+	}
+
+	/**
+	 * Find or create the flow for a serialized TCP, UDP or ICMP echo request
+	 * packet to be forwarded from an inside to the outside interface. Nothing
+	 * is modified.
+	 * @param buf buffer containing the packet
+	 * @param ip offset of the IPv4 header in the buffer
+	 * @param length length of the packet
+	 * @return the flow, or null if the packet cannot be translated here
+	 */
+	public Flow outbound(byte[] buf, int ip, int length)
+	{
+		int l4 = transportOffset(buf, ip, length);
+		if (l4 < 0)
+		{ return null; }
+		int protocol = buf[ip + 9] & 0xff;
+		int insidePort;
+		int remotePort;
+		switch (protocol)
+		{
+		case FlowTable.TCP:
+		case FlowTable.UDP:
+			insidePort = getShort(buf, l4);
+			remotePort = getShort(buf, l4 + 2);
+			break;
+		case FlowTable.ICMP:
+			if ((buf[l4] & 0xff) != ICMP_ECHO_REQUEST)
+			{ return null; }
+			insidePort = getShort(buf, l4 + 4);
+			remotePort = 0;
+			break;
+		default:
+			return null;
+		}
+		return this.outbound(protocol, getInt(buf, ip + 12), insidePort,
+				getInt(buf, ip + 16), remotePort, tcpFlags(buf, l4, protocol));
+	}
+
+	/**
+	 * Translate a serialized packet for a flow found by inbound or outbound.
+	 * @param buf buffer containing the packet
+	 * @param ip offset of the IPv4 header in the buffer
+	 * @param flow the packet's flow
+	 * @param outbound true if the flow was found by outbound
+	 */
+	public void translate(byte[] buf, int ip, Flow flow, boolean outbound)
+	{
+		int protocol = buf[ip + 9] & 0xff;
+		int l4 = ip + (buf[ip] & 0x0f) * 4;
+		int addressOffset = ip + (outbound ? 12 : 16);
+		int oldAddress = getInt(buf, addressOffset);
+		int newAddress = outbound ? this.externalAddress : flow.insideAddress;
+		putInt(buf, addressOffset, newAddress);
+		putShort(buf, ip + 10, Checksum.adjust32(getShort(buf, ip + 10),
+				oldAddress, newAddress));
+		rewriteTransport(buf, l4, protocol, outbound, oldAddress, newAddress,
+				outbound ? flow.externalPort : flow.insidePort);
+	}
+
+	/*********************************************************************/
+	/* Deserialized packets                                              */
+	/*********************************************************************/
+
+	/**
+	 * Translate a deserialized packet received on the outside interface, if
+	 * it belongs to a flow.
+	 * @param packet the packet
+	 * @return true if the packet was translated; false if it is not for a
+	 *         flow, i.e., it is for the router itself
+	 */
+	public boolean translateInbound(IPv4 packet)
+	{
+		if (packet.getDestinationAddress() != this.externalAddress
+				|| packet.getFragmentOffset() != 0)
+		{ return false; }
+		int protocol = packet.getProtocol() & 0xff;
+		int remoteAddress = packet.getSourceAddress();
+		IPacket payload = packet.getPayload();
+		Flow flow;
+		if (payload instanceof TCP)
+		{
+			TCP tcp = (TCP)payload;
+			flow = this.flows.inbound(protocol,
+					tcp.getDestinationPort() & 0xffff, remoteAddress,
+					tcp.getSourcePort() & 0xffff);
+			if (null == flow)
+			{ return false; }
+			flow.touch(this.now, this.timeout(flow, (byte)tcp.getFlags(), true));
+			tcp.setChecksum((short)adjustTransport(tcp.getChecksum(),
+					this.externalAddress, flow.insideAddress,
+					tcp.getDestinationPort(), flow.insidePort));
+			tcp.setDestinationPort((short)flow.insidePort);
+		}
+		else if (payload instanceof UDP)
+		{
+			UDP udp = (UDP)payload;
+			flow = this.flows.inbound(protocol,
+					udp.getDestinationPort() & 0xffff, remoteAddress,
+					udp.getSourcePort() & 0xffff);
+			if (null == flow)
+			{ return false; }
+			flow.touch(this.now, UDP_TIMEOUT);
+			if (udp.getChecksum() != 0)
+			{
+				udp.setChecksum((short)adjustTransport(udp.getChecksum(),
+						this.externalAddress, flow.insideAddress,
+						udp.getDestinationPort(), flow.insidePort));
+			}
+			udp.setDestinationPort((short)flow.insidePort);
+		}
+		else if (payload instanceof ICMP)
+		{
+			flow = this.translateInboundIcmp((ICMP)payload, remoteAddress);
+			if (null == flow)
+			{ return false; }
+		}
+		else if (payload instanceof Data)
+		{
+			// First fragment, whose transport header is not parsed
+			byte[] data = ((Data)payload).getData();
+			if (data.length < 4 || (protocol != FlowTable.TCP
+					&& protocol != FlowTable.UDP))
+			{ return false; }
+			flow = this.flows.inbound(protocol, getShort(data, 2),
+					remoteAddress, getShort(data, 0));
+			if (null == flow)
+			{ return false; }
+			rewriteTransport(data, 0, protocol, false, this.externalAddress,
+					flow.insideAddress, flow.insidePort);
+		}
+		else
+		{ return false; }
+
+		packet.setDestinationAddress(flow.insideAddress);
+		packet.setChecksum((short)Checksum.adjust32(
+				packet.getChecksum() & 0xffff, this.externalAddress,
+				flow.insideAddress));
+		return true;
+	}
+
+	/**
+	 * Translate a deserialized packet to be forwarded from an inside to the
+	 * outside interface.
+	 * @param packet the packet
+	 * @return true if the packet was translated; false if it must be dropped,
+	 *         because its protocol is not supported or no external port is
+	 *         free
+	 */
+	public boolean translateOutbound(IPv4 packet)
+	{
+		int protocol = packet.getProtocol() & 0xff;
+		int insideAddress = packet.getSourceAddress();
+		int remoteAddress = packet.getDestinationAddress();
+		IPacket payload = packet.getPayload();
+		if (packet.getFragmentOffset() != 0)
+		{
+			// Only the address can be translated
+			if (protocol != FlowTable.TCP && protocol != FlowTable.UDP
+					&& protocol != FlowTable.ICMP)
+			{ return false; }
+		}
+		else if (payload instanceof TCP)
+		{
+			TCP tcp = (TCP)payload;
+			Flow flow = this.outbound(protocol, insideAddress,
+					tcp.getSourcePort() & 0xffff, remoteAddress,
+					tcp.getDestinationPort() & 0xffff, (byte)tcp.getFlags());
+			if (null == flow)
+			{ return false; }
+			tcp.setChecksum((short)adjustTransport(tcp.getChecksum(),
+					insideAddress, this.externalAddress, tcp.getSourcePort(),
+					flow.externalPort));
+			tcp.setSourcePort((short)flow.externalPort);
+		}
+		else if (payload instanceof UDP)
+		{
+			UDP udp = (UDP)payload;
+			Flow flow = this.outbound(protocol, insideAddress,
+					udp.getSourcePort() & 0xffff, remoteAddress,
+					udp.getDestinationPort() & 0xffff, (byte)0);
+			if (null == flow)
+			{ return false; }
+			if (udp.getChecksum() != 0)
+			{
+				udp.setChecksum((short)adjustTransport(udp.getChecksum(),
+						insideAddress, this.externalAddress,
+						udp.getSourcePort(), flow.externalPort));
+			}
+			udp.setSourcePort((short)flow.externalPort);
+		}
+		else if (payload instanceof ICMP)
+		{
+			ICMP icmp = (ICMP)payload;
+			byte[] data = ((Data)icmp.getPayload()).getData();
+			if (icmp.getIcmpType() != ICMP_ECHO_REQUEST || data.length < 4)
+			{ return false; }
+			Flow flow = this.outbound(protocol, insideAddress,
+					getShort(data, 0), remoteAddress, 0, (byte)0);
+			if (null == flow)
+			{ return false; }
+			icmp.setChecksum((short)Checksum.adjust(icmp.getChecksum() & 0xffff,
+					getShort(data, 0), flow.externalPort));
+			putShort(data, 0, flow.externalPort);
+		}
+		else if (payload instanceof Data)
+		{
+			// First fragment, whose transport header is not parsed
+			byte[] data = ((Data)payload).getData();
+			if (data.length < 8)
+			{ return false; }
+			Flow flow;
+			if (FlowTable.ICMP == protocol)
+			{
+				if ((data[0] & 0xff) != ICMP_ECHO_REQUEST)
+				{ return false; }
+				flow = this.outbound(protocol, insideAddress,
+						getShort(data, 4), remoteAddress, 0, (byte)0);
+			}
+			else if (FlowTable.TCP == protocol || FlowTable.UDP == protocol)
+			{
+				flow = this.outbound(protocol, insideAddress,
+						getShort(data, 0), remoteAddress, getShort(data, 2),
+						(data.length > 13) ? data[13] : 0);
+			}
+			else
+			{ return false; }
+			if (null == flow)
+			{ return false; }
+			rewriteTransport(data, 0, protocol, true, insideAddress,
+					this.externalAddress, flow.externalPort);
+		}
+		else
+		{ return false; }
+
+		packet.setSourceAddress(this.externalAddress);
+		packet.setChecksum((short)Checksum.adjust32(
+				packet.getChecksum() & 0xffff, insideAddress,
+				this.externalAddress));
+		return true;
+	}
+
+	/**
+	 * Translate an ICMP echo reply or an ICMP error quoting a translated
+	 * packet.
+	 * @return the flow, or null if the message does not belong to one
+	 */
+	private Flow translateInboundIcmp(ICMP icmp, int remoteAddress)
+	{
+		byte[] data = ((Data)icmp.getPayload()).getData();
+		int type = icmp.getIcmpType() & 0xff;
+		if (ICMP_ECHO_REPLY == type)
+		{
+			if (data.length < 4)
+			{ return null; }
+			Flow flow = this.flows.inbound(FlowTable.ICMP, getShort(data, 0),
+					remoteAddress, 0);
+			if (null == flow)
+			{ return null; }
+			flow.touch(this.now, ICMP_TIMEOUT);
+			icmp.setChecksum((short)Checksum.adjust(icmp.getChecksum() & 0xffff,
+					flow.externalPort, flow.insidePort));
+			putShort(data, 0, flow.insidePort);
+			return flow;
+		}
+		if (type != ICMP_DEST_UNREACHABLE && type != ICMP_TIME_EXCEEDED
+				&& type != ICMP_PARAMETER_PROBLEM)
+		{ return null; }
+
+		// The quoted packet was sent by us: its source is the external
+		// address and port, its destination the flow's remote end
+		int quote = 4;
+		if (data.length < quote + 20)
+		{ return null; }
+		int quoteHeaderLength = (data[quote] & 0x0f) * 4;
+		int l4 = quote + quoteHeaderLength;
+		int protocol = data[quote + 9] & 0xff;
+		if (data.length < l4 + 8
+				|| getInt(data, quote + 12) != this.externalAddress)
+		{ return null; }
+		int quoteRemote = getInt(data, quote + 16);
+		Flow flow;
+		if (FlowTable.ICMP == protocol)
+		{
+			flow = this.flows.inbound(protocol, getShort(data, l4 + 4),
+					quoteRemote, 0);
+		}
+		else
+		{
+			flow = this.flows.inbound(protocol, getShort(data, l4),
+					quoteRemote, getShort(data, l4 + 2));
+		}
+		if (null == flow)
+		{ return null; }
+
+		putInt(data, quote + 12, flow.insideAddress);
+		putShort(data, quote + 10, Checksum.adjust32(
+				getShort(data, quote + 10), this.externalAddress,
+				flow.insideAddress));
+		rewriteTransport(data, l4, protocol, true, this.externalAddress,
+				flow.insideAddress, flow.insidePort);
+		icmp.setChecksum((short)0);
+		return flow;
+	}
+
+	/**
+	 * Find or create an outbound flow and refresh it.
+	 */
+	private Flow outbound(int protocol, int insideAddress, int insidePort,
+			int remoteAddress, int remotePort, byte tcpFlags)
+	{
+		long now = this.now;
+		int initialTimeout;
+		switch (protocol)
+		{
+		case FlowTable.TCP:
+			initialTimeout = TCP_TRANSITORY_TIMEOUT;
+			break;
+		case FlowTable.UDP:
+			initialTimeout = UDP_TIMEOUT;
+			break;
+		default:
+			initialTimeout = ICMP_TIMEOUT;
+		}
+		Flow flow = this.flows.outbound(protocol, insideAddress, insidePort,
+				remoteAddress, remotePort, now, initialTimeout);
+		if (null == flow)
+		{ return null; }
+		flow.touch(now, this.timeout(flow, tcpFlags, false));
+		return flow;
+	}
+
+	/**
+	 * @return timeout of a flow after a packet; TCP connections are
+	 *         established once the remote end answers, and transitory again
+	 *         once either end sends FIN or RST
+	 */
+	private int timeout(Flow flow, byte tcpFlags, boolean inbound)
+	{
+		switch (flow.protocol)
+		{
+		case FlowTable.TCP:
+			if ((tcpFlags & TCP_FIN_RST) != 0)
+			{ return TCP_TRANSITORY_TIMEOUT; }
+			return inbound ? TCP_ESTABLISHED_TIMEOUT : flow.timeout;
+		case FlowTable.UDP:
+			return UDP_TIMEOUT;
+		default:
+			return ICMP_TIMEOUT;
+		}
+	}
+
+	private static byte tcpFlags(byte[] buf, int l4, int protocol)
+	{ return (FlowTable.TCP == protocol) ? buf[l4 + 13] : 0; }
+
+	/**
+	 * @return offset of the transport header of a packet that is not a
+	 *         fragment and has a complete TCP header, or at least 8 bytes of
+	 *         another transport header; otherwise -1
+	 */
+	private static int transportOffset(byte[] buf, int ip, int length)
+	{
+		int flagsOffset = getShort(buf, ip + 6);
+		if ((flagsOffset & 0x3fff) != 0)
+		{ return -1; }
+		int headerLength = (buf[ip] & 0x0f) * 4;
+		int protocol = buf[ip + 9] & 0xff;
+		int minimum = (FlowTable.TCP == protocol) ? 20 : 8;
+		if (length < headerLength + minimum)
+		{ return -1; }
+		return ip + headerLength;
+	}
+
+	/**
+	 * Rewrite the source or destination port (or ICMP query identifier) of a
+	 * transport header in a buffer, and patch its checksum for the port and
+	 * for the address change in the pseudo header.
+	 * @param source true to rewrite the source port, false for the
+	 *        destination port
+	 */
+	private static void rewriteTransport(byte[] buf, int l4, int protocol,
+			boolean source, int oldAddress, int newAddress, int newPort)
+	{
+		int portOffset;
+		int checksumOffset;
+		switch (protocol)
+		{
+		case FlowTable.TCP:
+			portOffset = l4 + (source ? 0 : 2);
+			checksumOffset = l4 + 16;
+			break;
+		case FlowTable.UDP:
+			portOffset = l4 + (source ? 0 : 2);
+			checksumOffset = l4 + 6;
+			break;
+		case FlowTable.ICMP:
+			// No pseudo header; a quoted ICMP header may be truncated
+			portOffset = l4 + 4;
+			checksumOffset = l4 + 2;
+			oldAddress = newAddress;
+			break;
+		default:
+			return;
+		}
+		int oldPort = getShort(buf, portOffset);
+		putShort(buf, portOffset, newPort);
+		if (checksumOffset + 2 > buf.length
+				|| (FlowTable.UDP == protocol && 0 == getShort(buf, checksumOffset)))
+		{ return; }
+		putShort(buf, checksumOffset, adjustTransport(
+				(short)getShort(buf, checksumOffset), oldAddress, newAddress,
+				(short)oldPort, newPort));
+	}
+
+	/**
+	 * @return a TCP or UDP checksum patched for an address in the pseudo
+	 *         header and a port changing
+	 */
+	private static int adjustTransport(short checksum, int oldAddress,
+			int newAddress, short oldPort, int newPort)
+	{
+		int adjusted = Checksum.adjust32(checksum & 0xffff, oldAddress,
+				newAddress);
+		adjusted = Checksum.adjust(adjusted, oldPort & 0xffff, newPort);
+		// A computed UDP checksum of zero is sent as all ones
+		return (0 == adjusted) ? 0xffff : adjusted;
+	}
+
+	private static int getShort(byte[] buf, int offset)
+	{ return ((buf[offset] & 0xff) << 8) | (buf[offset + 1] & 0xff); }
+
+	private static void putShort(byte[] buf, int offset, int value)
+	{
+		buf[offset] = (byte)(value >> 8);
+		buf[offset + 1] = (byte)value;
+	}
+
+	private static int getInt(byte[] buf, int offset)
+	{
+		return ((buf[offset] & 0xff) << 24) | ((buf[offset + 1] & 0xff) << 16)
+				| ((buf[offset + 2] & 0xff) << 8) | (buf[offset + 3] & 0xff);
+	}
+
+	private static void putInt(byte[] buf, int offset, int value)
+	{
+		buf[offset] = (byte)(value >> 24);
+		buf[offset + 1] = (byte)(value >> 16);
+		buf[offset + 2] = (byte)(value >> 8);
+		buf[offset + 3] = (byte)value;
+	}
+}
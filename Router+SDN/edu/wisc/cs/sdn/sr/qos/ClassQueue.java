@@ -0,0 +1,169 @@
+package edu.wisc.cs.sdn.sr.qos;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+import edu.wisc.cs.sdn.sr.metrics.MetricRegistry;
+
+/**
+ * Queue of one traffic class on one interface: a ring of serialized commands
+ * with their enqueue times, the class's drop policy, round robin state, and
+ * statistics. Guarded by the owning {@link OutputQueue}.
+ */
+class ClassQueue
+{
+	/** Weight of the current length in the RED average (Floyd and Jacobson) */
+	static final double RED_WEIGHT = 0.002;
+
+	/** Nominal time to send one packet, used to age the RED average while
+	 * the queue is idle (in ns) */
+	static final long RED_IDLE_PACKET_TIME = 10 * 1000;
+
+	final TrafficClass trafficClass;
+
+	/** Commands in arrival order, and when they were queued (in ns) */
+	private ByteBuffer[] ring;
+	private long[] enqueuedAt;
+	private int head;
+	private int count;
+
+	/** Deficit round robin: bytes that may be sent this turn, and whether
+	 * the turn's quantum was added */
+	int deficit;
+	boolean quantumAdded;
+
+	/** RED: average queue length, packets since the last early drop (-1 while
+	 * below the minimum threshold), and when the queue went idle (in ns) */
+	private double average;
+	private int sinceDrop;
+	private long idleSince;
+
+	private LongAdder enqueued;
+	private LongAdder dequeued;
+	private LongAdder tailDrops;
+	private LongAdder redDrops;
+	private LongAdder delayMicros;
+
+	ClassQueue(TrafficClass trafficClass, String ifaceName,
+			MetricRegistry registry)
+	{
+		this.trafficClass = trafficClass;
+		this.ring = new ByteBuffer[trafficClass.getLimit()];
+		this.enqueuedAt = new long[trafficClass.getLimit()];
+		this.sinceDrop = -1;
+		this.idleSince = System.nanoTime();
+
+		String name = trafficClass.getName();
+		this.enqueued = registry.counter("sr_qos_enqueued_total",
+				"Packets queued for output", "iface", ifaceName, "class", name);
+		this.dequeued = registry.counter("sr_qos_dequeued_total",
+				"Packets taken from output queues to be sent", "iface",
+				ifaceName, "class", name);
+		this.tailDrops = registry.counter("sr_qos_dropped_total",
+				"Packets dropped by output queues", "iface", ifaceName,
+				"class", name, "policy", "tail");
+		this.redDrops = registry.counter("sr_qos_dropped_total",
+				"Packets dropped by output queues", "iface", ifaceName,
+				"class", name, "policy", "red");
+		this.delayMicros = registry.counter("sr_qos_delay_microseconds_total",
+				"Time packets spent in output queues", "iface", ifaceName,
+				"class", name);
+		registry.gauge("sr_qos_queue_length", "Packets in output queues",
+				() -> this.count, "iface", ifaceName, "class", name);
+	}
+
+	boolean isEmpty()
+	{ return 0 == this.count; }
+
+	/**
+	 * @return length of the command at the head of the queue
+	 */
+	int headLength()
+	{ return this.ring[this.head].remaining(); }
+
+	/**
+	 * Queue a command, unless the drop policy drops it.
+	 * @param now current time (in ns)
+	 * @return true if the command was queued
+	 */
+	boolean offer(ByteBuffer command, long now)
+	{
+		if (this.trafficClass.isRed() && this.earlyDrop(now))
+		{
+			this.redDrops.increment();
+			return false;
+		}
+		if (this.count == this.ring.length)
+		{
+			this.tailDrops.increment();
+			return false;
+		}
+		int tail = (this.head + this.count) % this.ring.length;
+		this.ring[tail] = command;
+		this.enqueuedAt[tail] = now;
+		this.count++;
+		this.enqueued.increment();
+		return true;
+	}
+
+	/**
+	 * Take the command at the head of the queue.
+	 * @param now current time (in ns)
+	 */
+	ByteBuffer poll(long now)
+	{
+		ByteBuffer command = this.ring[this.head];
+		this.delayMicros.add((now - this.enqueuedAt[this.head]) / 1000);
+		this.ring[this.head] = null;
+		this.head = (this.head + 1) % this.ring.length;
+		this.count--;
+		if (0 == this.count)
+		{ this.idleSince = now; }
+		this.dequeued.increment();
+		return command;
+	}
+
+	/**
+	 * Update the average queue length and decide whether to drop an arriving
+	 * packet early (RED, with the count-based spacing of drops).
+	 */
+	private boolean earlyDrop(long now)
+	{
+		TrafficClass c = this.trafficClass;
+		if (this.count > 0)
+		{
+			this.average += RED_WEIGHT * (this.count - this.average);
+		}
+		else
+		{
+			// Age the average as if small packets had been sent while idle
+			double idlePackets = (now - this.idleSince)
+					/ (double)RED_IDLE_PACKET_TIME;
+			this.average *= Math.pow(1 - RED_WEIGHT, idlePackets);
+		}
+
+		if (this.average < c.getMinThreshold())
+		{
+			this.sinceDrop = -1;
+			return false;
+		}
+		if (this.average >= c.getMaxThreshold())
+		{
+			this.sinceDrop = 0;
+			return true;
+		}
+		this.sinceDrop++;
+		double base = c.getMaxProbability()
+				* (this.average - c.getMinThreshold())
+				/ (c.getMaxThreshold() - c.getMinThreshold());
+		double denominator = 1 - this.sinceDrop * base;
+		double probability = (denominator <= 0) ? 1 : base / denominator;
+		if (ThreadLocalRandom.current().nextDouble() < probability)
+		{
+			this.sinceDrop = 0;
+			return true;
+		}
+		return false;
+	}
+}
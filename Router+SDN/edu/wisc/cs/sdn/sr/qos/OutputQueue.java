@@ -0,0 +1,267 @@
+package edu.wisc.cs.sdn.sr.qos;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import edu.wisc.cs.sdn.sr.metrics.MetricRegistry;
+import edu.wisc.cs.sdn.sr.vns.CommandPacket;
+
+/**
+ * Output queues of one interface, one per traffic class. Frames are
+ * classified by the DSCP of their IPv4 header. Strict priority classes are
+ * served first, lowest level first; the remaining classes share what is left
+ * by deficit round robin, in proportion to their quanta. If the interface
+ * is shaped, the frame chosen waits until the token bucket allows it to be
+ * sent; frames behind it wait as well, as they would on a slow link.
+ */
+public class OutputQueue
+{
+	/** Classes served by strict priority, highest priority first */
+	private ClassQueue[] priorityQueues;
+
+	/** Classes served by deficit round robin */
+	private ClassQueue[] roundRobinQueues;
+
+	/** Queues by class index */
+	private ClassQueue[] queues;
+
+	/** Configuration mapping DSCP values to classes */
+	private QosConfig config;
+
+	/** Round robin class whose turn it is */
+	private int turn;
+
+	/** Number of commands in the round robin classes */
+	private int roundRobinBacklog;
+
+	/** Number of commands in all classes */
+	private volatile int backlog;
+
+	/** Bytes in the frames of all queued commands */
+	private volatile long backlogBytes;
+
+	/** Scheduler to wake when a command is queued */
+	private QosScheduler scheduler;
+
+	/** Limits the rate at which frames are sent; null if not shaped */
+	private volatile TokenBucket shaper;
+
+	/** When the shaper will allow the next frame to be sent (in ns) */
+	private long readyAt;
+
+	/** Whether the next frame had to wait for the shaper */
+	private boolean held;
+
+	/** Frames that had to wait for the shaper */
+	private LongAdder delayed;
+
+	OutputQueue(String ifaceName, QosConfig config, MetricRegistry registry,
+			QosScheduler scheduler)
+	{
+		this.config = config;
+		this.scheduler = scheduler;
+		List<TrafficClass> classes = config.getClasses();
+		this.queues = new ClassQueue[classes.size()];
+		List<ClassQueue> priority = new ArrayList<ClassQueue>();
+		List<ClassQueue> roundRobin = new ArrayList<ClassQueue>();
+		for (int i = 0; i < classes.size(); i++)
+		{
+			this.queues[i] = new ClassQueue(classes.get(i), ifaceName,
+					registry);
+			if (classes.get(i).isStrictPriority())
+			{ priority.add(this.queues[i]); }
+			else
+			{ roundRobin.add(this.queues[i]); }
+		}
+		Collections.sort(priority, new Comparator<ClassQueue>() {
+			public int compare(ClassQueue a, ClassQueue b)
+			{
+				return Integer.compare(a.trafficClass.getPriority(),
+						b.trafficClass.getPriority());
+			}
+		});
+		this.priorityQueues = priority.toArray(new ClassQueue[0]);
+		this.roundRobinQueues = roundRobin.toArray(new ClassQueue[0]);
+
+		registry.gauge("sr_qos_backlog_bytes", "Bytes in output queues",
+				() -> this.backlogBytes, "iface", ifaceName);
+		registry.gauge("sr_shaper_rate_bits", 
+				"Rate output is shaped to (in bits per second); 0 if not shaped",
+				() -> (null == this.shaper) ? 0 : this.shaper.getRate(),
+				"iface", ifaceName);
+		this.delayed = registry.counter("sr_shaper_delayed_total",
+				"Frames that waited for the output shaper", "iface", ifaceName);
+	}
+
+	/**
+	 * @return limits the rate at which frames are sent; null if not shaped
+	 */
+	public TokenBucket getShaper()
+	{ return this.shaper; }
+
+	/**
+	 * @param shaper limits the rate at which frames are sent; null to send
+	 *        frames as fast as the connection allows
+	 */
+	public synchronized void setShaper(TokenBucket shaper)
+	{ this.shaper = shaper; }
+
+	/**
+	 * Queue a serialized command for output.
+	 * @param command the command, which carries an Ethernet frame at
+	 *        CommandPacket.FRAME_OFFSET from its position
+	 * @return true if the command was queued, false if it was dropped
+	 */
+	public boolean enqueue(ByteBuffer command)
+	{
+		int queued;
+		synchronized (this)
+		{
+			ClassQueue queue = this.queues[this.config.classify(dscp(command))];
+			if (!queue.offer(command, System.nanoTime()))
+			{ return false; }
+			if (!queue.trafficClass.isStrictPriority())
+			{ this.roundRobinBacklog++; }
+			queued = ++this.backlog;
+			this.backlogBytes += frameLength(command);
+		}
+		if (1 == queued)
+		{ this.scheduler.wakeup(); }
+		return true;
+	}
+
+	/**
+	 * @return true if no commands are queued
+	 */
+	public boolean isEmpty()
+	{ return 0 == this.backlog; }
+
+	/**
+	 * @return number of commands queued
+	 */
+	public int getBacklog()
+	{ return this.backlog; }
+
+	/**
+	 * @return bytes in the frames of all queued commands
+	 */
+	public long getBacklogBytes()
+	{ return this.backlogBytes; }
+
+	/**
+	 * @return when the shaper will allow the next frame to be sent (in ns);
+	 *         only meaningful after poll returned null while commands were
+	 *         queued
+	 */
+	synchronized long getReadyAt()
+	{ return this.readyAt; }
+
+	/**
+	 * Take the next command to send.
+	 * @param now current time (in ns)
+	 * @param shape false to ignore the shaper (e.g., when draining)
+	 * @return the command, or null if none is queued or the shaper does not
+	 *         allow the next frame to be sent yet
+	 */
+	synchronized ByteBuffer poll(long now, boolean shape)
+	{
+		if (0 == this.backlog)
+		{ return null; }
+		for (ClassQueue queue : this.priorityQueues)
+		{
+			if (!queue.isEmpty())
+			{
+				if (shape && !this.conforms(queue, now))
+				{ return null; }
+				return this.take(queue, now);
+			}
+		}
+
+		// Deficit round robin; a class keeps its turn while its deficit
+		// covers the packet at its head
+		while (this.roundRobinBacklog > 0)
+		{
+			ClassQueue queue = this.roundRobinQueues[this.turn];
+			if (queue.isEmpty())
+			{
+				queue.deficit = 0;
+				queue.quantumAdded = false;
+				this.turn = (this.turn + 1) % this.roundRobinQueues.length;
+				continue;
+			}
+			if (!queue.quantumAdded)
+			{
+				queue.deficit += queue.trafficClass.getQuantum();
+				queue.quantumAdded = true;
+			}
+			int length = queue.headLength() - CommandPacket.FRAME_OFFSET;
+			if (length <= queue.deficit)
+			{
+				if (shape && !this.conforms(queue, now))
+				{ return null; }
+				queue.deficit -= length;
+				this.roundRobinBacklog--;
+				return this.take(queue, now);
+			}
+			queue.quantumAdded = false;
+			this.turn = (this.turn + 1) % this.roundRobinQueues.length;
+		}
+		return null;
+	}
+
+	/**
+	 * Check whether the shaper allows the frame at the head of a queue to be
+	 * sent now; if not, note when it will.
+	 */
+	private boolean conforms(ClassQueue queue, long now)
+	{
+		TokenBucket shaper = this.shaper;
+		if (null == shaper)
+		{ return true; }
+		long wait = shaper.delay(queue.headLength() - CommandPacket.FRAME_OFFSET,
+				now);
+		if (0 == wait)
+		{ return true; }
+		this.readyAt = now + wait;
+		this.held = true;
+		return false;
+	}
+
+	private ByteBuffer take(ClassQueue queue, long now)
+	{
+		ByteBuffer command = queue.poll(now);
+		int length = frameLength(command);
+		this.backlog--;
+		this.backlogBytes -= length;
+		if (this.shaper != null)
+		{ this.shaper.consume(length); }
+		if (this.held)
+		{
+			this.delayed.increment();
+			this.held = false;
+		}
+		return command;
+	}
+
+	private static int frameLength(ByteBuffer command)
+	{ return command.remaining() - CommandPacket.FRAME_OFFSET; }
+
+	/**
+	 * @return DSCP of the IPv4 packet in a command's frame; frames without
+	 *         IPv4 (e.g., ARP) count as network control
+	 */
+	private static int dscp(ByteBuffer command)
+	{
+		byte[] buf = command.array();
+		int frame = command.arrayOffset() + command.position()
+				+ CommandPacket.FRAME_OFFSET;
+		if (command.remaining() < CommandPacket.FRAME_OFFSET + 16
+				|| buf[frame + 12] != 0x08 || buf[frame + 13] != 0x00)
+		{ return QosConfig.DSCP_NETWORK_CONTROL; }
+		return (buf[frame + 15] & 0xff) >> 2;
+	}
+}
@@ -0,0 +1,221 @@
+package edu.wisc.cs.sdn.sr.qos;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Traffic classes for the output queues, and the mapping of DSCP values to
+ * classes. Each DSCP value maps to the first class that matches it, or to
+ * the last class if none does.
+ */
+public class QosConfig
+{
+	/** DSCP of network control traffic; also used for non-IPv4 frames */
+	public static final int DSCP_NETWORK_CONTROL = 48;
+
+	/** Classes, in the order they were configured */
+	private List<TrafficClass> classes;
+
+	/** Index of the class each DSCP value maps to */
+	private byte[] classByDscp;
+
+	/**
+	 * @param classes traffic classes; at least one
+	 */
+	public QosConfig(List<TrafficClass> classes)
+	{
+		this.classes = Collections.unmodifiableList(
+				new ArrayList<TrafficClass>(classes));
+		this.classByDscp = new byte[64];
+		for (int dscp = 0; dscp < 64; dscp++)
+		{
+			int index = classes.size() - 1;
+			for (int i = 0; i < classes.size(); i++)
+			{
+				if (classes.get(i).matches(dscp))
+				{
+					index = i;
+					break;
+				}
+			}
+			this.classByDscp[dscp] = (byte)index;
+		}
+	}
+
+	/**
+	 * @return traffic classes, in the order they were configured
+	 */
+	public List<TrafficClass> getClasses()
+	{ return this.classes; }
+
+	/**
+	 * @param dscp a DSCP value, 0 to 63
+	 * @return index of the class the value maps to
+	 */
+	public int classify(int dscp)
+	{ return this.classByDscp[dscp]; }
+
+	/**
+	 * Four classes: network control (CS6, CS7) and expedited forwarding (EF,
+	 * VOICE-ADMIT) with strict priority, then assured forwarding (AF1x-AF4x)
+	 * and everything else sharing the remaining capacity 2:1 by deficit round
+	 * robin, with RED.
+	 */
+	public static QosConfig defaults()
+	{
+		List<TrafficClass> classes = new ArrayList<TrafficClass>();
+		classes.add(new TrafficClass("control", dscpMask("48,56"), 0, 0, 64));
+		classes.add(new TrafficClass("expedited", dscpMask("44,46"), 1, 0,
+				128));
+		TrafficClass assured = new TrafficClass("assured",
+				dscpMask("10,12,14,18,20,22,26,28,30,34,36,38"), -1, 3000,
+				512);
+		assured.setRed(64, 384, 0.1);
+		classes.add(assured);
+		TrafficClass bestEffort = new TrafficClass("default", -1L, -1, 1500,
+				1024);
+		bestEffort.setRed(128, 768, 0.1);
+		classes.add(bestEffort);
+		return new QosConfig(classes);
+	}
+
+	/**
+	 * One class for all traffic, sent first come first served and dropped at
+	 * the tail; used to shape interfaces without differentiating traffic.
+	 */
+	public static QosConfig fifo()
+	{
+		List<TrafficClass> classes = new ArrayList<TrafficClass>();
+		classes.add(new TrafficClass("default", -1L, -1, 1500, 1000));
+		return new QosConfig(classes);
+	}
+
+	/**
+	 * Load classes from a file. Each line configures one class:
+	 * <pre>
+	 * name dscp scheduling limit drop
+	 * </pre>
+	 * where dscp is any or a comma separated list of values and low-high
+	 * ranges; scheduling is priority=level (0 is served first) or drr=quantum
+	 * (in bytes); limit is the queue length in packets; and drop is tail or
+	 * red=min:max:probability (thresholds in packets). Blank lines and text
+	 * following # are ignored.
+	 * @param filename name of the file
+	 * @return the configuration, or null if the file could not be read or
+	 *         contains an invalid line
+	 */
+	public static QosConfig load(String filename)
+	{
+		List<TrafficClass> classes = new ArrayList<TrafficClass>();
+		BufferedReader reader = null;
+		try
+		{
+			reader = new BufferedReader(new FileReader(filename));
+			int lineNumber = 0;
+			String line;
+			while ((line = reader.readLine()) != null)
+			{
+				lineNumber++;
+				int comment = line.indexOf('#');
+				if (comment >= 0)
+				{ line = line.substring(0, comment); }
+				line = line.trim();
+				if (line.isEmpty())
+				{ continue; }
+
+				TrafficClass trafficClass = parseClass(line.split("\\s+"));
+				if (null == trafficClass)
+				{
+					System.err.println("Invalid entry in QoS file " + filename
+							+ " line " + lineNumber);
+					return null;
+				}
+				classes.add(trafficClass);
+			}
+		}
+		catch (IOException e)
+		{
+			System.err.println(e.toString());
+			return null;
+		}
+		finally
+		{
+			if (reader != null)
+			{ try { reader.close(); } catch (IOException f) {}; }
+		}
+		if (classes.isEmpty())
+		{
+			System.err.println("No classes in QoS file " + filename);
+			return null;
+		}
+		return new QosConfig(classes);
+	}
+
+	private static TrafficClass parseClass(String[] fields)
+	{
+		if (fields.length != 5)
+		{ return null; }
+		try
+		{
+			long mask = dscpMask(fields[1]);
+			int priority = -1;
+			int quantum = 0;
+			if (fields[2].startsWith("priority="))
+			{ priority = Integer.parseInt(fields[2].substring(9)); }
+			else if (fields[2].startsWith("drr="))
+			{ quantum = Integer.parseInt(fields[2].substring(4)); }
+			else
+			{ return null; }
+			int limit = Integer.parseInt(fields[3]);
+			if (0 == mask || (priority < 0 && quantum <= 0) || limit <= 0)
+			{ return null; }
+			TrafficClass trafficClass = new TrafficClass(fields[0], mask,
+					priority, quantum, limit);
+
+			if (fields[4].startsWith("red="))
+			{
+				String[] red = fields[4].substring(4).split(":");
+				if (red.length != 3)
+				{ return null; }
+				int min = Integer.parseInt(red[0]);
+				int max = Integer.parseInt(red[1]);
+				double probability = Double.parseDouble(red[2]);
+				if (min < 0 || max <= min || probability <= 0
+						|| probability > 1)
+				{ return null; }
+				trafficClass.setRed(min, max, probability);
+			}
+			else if (!fields[4].equals("tail"))
+			{ return null; }
+			return trafficClass;
+		}
+		catch (NumberFormatException e)
+		{ return null; }
+	}
+
+	/**
+	 * @return DSCP values in a list, one bit per value
+	 * @throws NumberFormatException if the list is invalid
+	 */
+	private static long dscpMask(String list)
+	{
+		if (list.equals("any"))
+		{ return -1L; }
+		long mask = 0;
+		for (String item : list.split(","))
+		{
+			String[] range = item.split("-", 2);
+			int low = Integer.parseInt(range[0]);
+			int high = (2 == range.length) ? Integer.parseInt(range[1]) : low;
+			if (low < 0 || high > 63 || low > high)
+			{ throw new NumberFormatException(item); }
+			for (int dscp = low; dscp <= high; dscp++)
+			{ mask |= 1L << dscp; }
+		}
+		return mask;
+	}
+}
@@ -0,0 +1,145 @@
+package edu.wisc.cs.sdn.sr.qos;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+import edu.wisc.cs.sdn.sr.Iface;
+import edu.wisc.cs.sdn.sr.metrics.MetricRegistry;
+
+/**
+ * Drains the output queues of all interfaces into the connection to the VNS
+ * server from a dedicated thread, taking one command per interface in turn.
+ * When the connection cannot keep up, the sink blocks and commands back up in
+ * the output queues, where the classes' scheduling and drop policies apply.
+ * Queues of shaped interfaces hold frames until their token buckets allow
+ * them to be sent; the thread sleeps until the first of them does.
+ */
+public class QosScheduler implements Runnable
+{
+	/** Output queues, one per interface */
+	private OutputQueue[] queues;
+
+	/** Where commands taken from the queues are written */
+	private Consumer<ByteBuffer> sink;
+
+	/** Thread draining the queues */
+	private Thread thread;
+
+	/** Set while the thread is about to park because all queues are empty */
+	private volatile boolean idle;
+
+	/** Cleared to stop the thread once the queues are empty */
+	private volatile boolean running;
+
+	/**
+	 * Create output queues for interfaces and attach them to the interfaces.
+	 * @param config traffic classes
+	 * @param interfaces interfaces that get output queues
+	 * @param registry registry for the queues' statistics
+	 * @param sink where commands taken from the queues are written
+	 */
+	public QosScheduler(QosConfig config, Iterable<Iface> interfaces,
+			MetricRegistry registry, Consumer<ByteBuffer> sink)
+	{
+		List<OutputQueue> queues = new ArrayList<OutputQueue>();
+		for (Iface iface : interfaces)
+		{
+			OutputQueue queue = new OutputQueue(iface.getName(), config,
+					registry, this);
+			iface.setOutputQueue(queue);
+			queues.add(queue);
+		}
+		this.queues = queues.toArray(new OutputQueue[0]);
+		this.sink = sink;
+		this.thread = new Thread(this, "sr-qos");
+	}
+
+	/**
+	 * Start draining the queues.
+	 */
+	public void start()
+	{
+		this.running = true;
+		this.thread.start();
+	}
+
+	/**
+	 * Send all queued commands and stop the thread.
+	 */
+	public void shutdown()
+	{
+		this.running = false;
+		LockSupport.unpark(this.thread);
+		try
+		{ this.thread.join(); }
+		catch (InterruptedException e)
+		{ Thread.currentThread().interrupt(); }
+	}
+
+	/**
+	 * Wake the thread if it is waiting for commands.
+	 */
+	void wakeup()
+	{
+		if (this.idle)
+		{
+			this.idle = false;
+			LockSupport.unpark(this.thread);
+		}
+	}
+
+	public void run()
+	{
+		while (true)
+		{
+			// Shapers no longer apply once we are draining the queues
+			boolean shape = this.running;
+			long now = System.nanoTime();
+			boolean sent = false;
+			boolean empty = true;
+			long readyAt = Long.MAX_VALUE;
+			for (OutputQueue queue : this.queues)
+			{
+				ByteBuffer command = queue.poll(now, shape);
+				if (command != null)
+				{
+					this.sink.accept(command);
+					sent = true;
+				}
+				else if (!queue.isEmpty())
+				{
+					empty = false;
+					readyAt = Math.min(readyAt, queue.getReadyAt());
+				}
+			}
+			if (sent)
+			{
+				this.idle = false;
+				continue;
+			}
+
+			// Announce that we are about to park, then check again, so a
+			// command queued in between is not missed
+			if (!this.idle)
+			{
+				this.idle = true;
+				continue;
+			}
+			if (empty)
+			{
+				if (!this.running)
+				{ break; }
+				LockSupport.park(this);
+			}
+			else if (shape)
+			{
+				// Wait for the first shaper to allow a frame to be sent
+				LockSupport.parkNanos(this, readyAt - now);
+			}
+			this.idle = false;
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package edu.wisc.cs.sdn.sr.qos;
+
+/**
+ * Token bucket limiting the rate at which an interface sends: tokens (bytes)
+ * accumulate at the configured rate up to the burst size, and a frame may be
+ * sent once the bucket holds as many tokens as the frame is long, or is full.
+ * A frame longer than the burst size thus leaves the bucket in debt, which
+ * later frames wait out. Guarded by the owning {@link OutputQueue}.
+ */
+public class TokenBucket
+{
+	private static final long NANOS_PER_SECOND = 1000L * 1000 * 1000;
+
+	/** Rate (in bytes per second) */
+	private long rate;
+
+	/** Burst size (in bytes, scaled by NANOS_PER_SECOND) */
+	private long capacity;
+
+	/** Tokens in the bucket (in bytes, scaled by NANOS_PER_SECOND); negative
+	 * while in debt */
+	private long tokens;
+
+	/** When tokens were last added (in ns) */
+	private long updated;
+
+	/**
+	 * Create a full bucket.
+	 * @param bitsPerSecond rate; at least 8
+	 * @param burst burst size (in bytes); at least 1
+	 */
+	public TokenBucket(long bitsPerSecond, int burst)
+	{
+		this.rate = bitsPerSecond / 8;
+		this.capacity = burst * NANOS_PER_SECOND;
+		this.tokens = this.capacity;
+		this.updated = System.nanoTime();
+	}
+
+	/**
+	 * @return rate (in bits per second)
+	 */
+	public long getRate()
+	{ return this.rate * 8; }
+
+	/**
+	 * @return burst size (in bytes)
+	 */
+	public int getBurst()
+	{ return (int)(this.capacity / NANOS_PER_SECOND); }
+
+	/**
+	 * Determine how long a frame must wait before it may be sent.
+	 * @param length length of the frame (in bytes)
+	 * @param now current time (in ns)
+	 * @return time to wait (in ns); 0 if the frame may be sent now
+	 */
+	long delay(int length, long now)
+	{
+		this.refill(now);
+		long needed = Math.min(length * NANOS_PER_SECOND, this.capacity);
+		if (this.tokens >= needed)
+		{ return 0; }
+		return (needed - this.tokens + this.rate - 1) / this.rate;
+	}
+
+	/**
+	 * Take the tokens for a frame being sent.
+	 * @param length length of the frame (in bytes)
+	 */
+	void consume(int length)
+	{ this.tokens -= length * NANOS_PER_SECOND; }
+
+	private void refill(long now)
+	{
+		long elapsed = now - this.updated;
+		this.updated = now;
+		// Avoid overflow after long idle periods; the bucket is full anyway
+		if (elapsed >= (this.capacity - this.tokens) / this.rate)
+		{ this.tokens = this.capacity; }
+		else
+		{ this.tokens += elapsed * this.rate; }
+	}
+}
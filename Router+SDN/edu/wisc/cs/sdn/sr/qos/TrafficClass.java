@@ -0,0 +1,98 @@
+package edu.wisc.cs.sdn.sr.qos;
+
+/**
+ * A class of traffic with its own output queue on every interface: the DSCP
+ * values it matches, how it is scheduled (strict priority or deficit round
+ * robin), how many packets its queue holds, and whether packets are dropped
+ * early (RED) or only when the queue is full (tail drop).
+ */
+public class TrafficClass
+{
+	/** Name, used in statistics */
+	private String name;
+
+	/** DSCP values matched, one bit per value */
+	private long dscpMask;
+
+	/** Strict priority level (0 is served first); -1 for round robin */
+	private int priority;
+
+	/** Bytes added to the deficit per round robin turn */
+	private int quantum;
+
+	/** Maximum number of packets queued */
+	private int limit;
+
+	/** RED thresholds (in packets, of the average queue length) and maximum
+	 * early drop probability; maxThreshold 0 for tail drop only */
+	private int minThreshold;
+	private int maxThreshold;
+	private double maxProbability;
+
+	/**
+	 * Create a class.
+	 * @param name name, used in statistics
+	 * @param dscpMask DSCP values matched, one bit per value
+	 * @param priority strict priority level, or -1 for round robin
+	 * @param quantum bytes per round robin turn; ignored for strict priority
+	 * @param limit maximum number of packets queued
+	 */
+	public TrafficClass(String name, long dscpMask, int priority, int quantum,
+			int limit)
+	{
+		this.name = name;
+		this.dscpMask = dscpMask;
+		this.priority = priority;
+		this.quantum = quantum;
+		this.limit = limit;
+	}
+
+	/**
+	 * Drop packets early, with a probability that grows from 0 to
+	 * maxProbability as the average queue length grows from minThreshold to
+	 * maxThreshold; all packets are dropped above maxThreshold.
+	 */
+	public void setRed(int minThreshold, int maxThreshold,
+			double maxProbability)
+	{
+		this.minThreshold = minThreshold;
+		this.maxThreshold = maxThreshold;
+		this.maxProbability = maxProbability;
+	}
+
+	public String getName()
+	{ return this.name; }
+
+	public long getDscpMask()
+	{ return this.dscpMask; }
+
+	/**
+	 * @return true if the class matches a DSCP value
+	 */
+	public boolean matches(int dscp)
+	{ return (this.dscpMask & (1L << dscp)) != 0; }
+
+	public boolean isStrictPriority()
+	{ return this.priority >= 0; }
+
+	public int getPriority()
+	{ return this.priority; }
+
+	public int getQuantum()
+	{ return this.quantum; }
+
+	public int getLimit()
+	{ return this.limit; }
+
+	public boolean isRed()
+	{ return this.maxThreshold > 0; }
+
+	public int getMinThreshold()
+	{ return this.minThreshold; }
+
+	public int getMaxThreshold()
+	{ return this.maxThreshold; }
+
+	public double getMaxProbability()
+	{ return this.maxProbability; }
+}
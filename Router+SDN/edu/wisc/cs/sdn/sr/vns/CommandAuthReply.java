@@ -20,6 +20,10 @@ public class CommandAuthReply extends Command
 		byte[] tmpBytes = new byte[this.usernameLen];
 		buf.get(tmpBytes);
 		this.username = new String(tmpBytes);
+		
+		this.key = new int[5];
+		for (int i = 0; i < 5; i++)
+		{ this.key[i] = buf.getInt(); }
 						
 		return this;
 	}
@@ -19,4 +19,19 @@ public class CommandAuthRequest extends Command
 						
 		return this;
 	}
+	
+	protected int getSize()
+	{ return super.getSize() + ((null == this.salt) ? 0 : this.salt.length()); }
+	
+	protected byte[] serialize()
+	{
+		byte[] data = new byte[this.getSize()];
+        ByteBuffer bb = ByteBuffer.wrap(data);
+        this.mLen = this.getSize();
+        
+        bb.put(super.serialize());
+        bb.put(this.salt.getBytes());
+        
+        return data;
+	}
 }
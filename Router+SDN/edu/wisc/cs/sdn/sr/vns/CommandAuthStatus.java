@@ -22,4 +22,21 @@ public class CommandAuthStatus extends Command
 						
 		return this;
 	}
+	
+	protected int getSize()
+	{ return super.getSize() + 1 + ((null == this.msg) ? 0 : this.msg.length()); }
+	
+	protected byte[] serialize()
+	{
+		byte[] data = new byte[this.getSize()];
+        ByteBuffer bb = ByteBuffer.wrap(data);
+        this.mLen = this.getSize();
+        
+        bb.put(super.serialize());
+        bb.put((byte)(this.authOk ? 1 : 0));
+        if (this.msg != null)
+        { bb.put(this.msg.getBytes()); }
+        
+        return data;
+	}
 }
@@ -19,4 +19,20 @@ public class CommandBanner extends Command
 		
 		return this;
 	}
+	
+	protected int getSize()
+	{ return super.getSize() + 256; }
+	
+	protected byte[] serialize()
+	{
+		byte[] data = new byte[this.getSize()];
+        ByteBuffer bb = ByteBuffer.wrap(data);
+        this.mLen = this.getSize();
+        
+        bb.put(super.serialize());
+        byte[] tmp = this.mBannerMessage.getBytes();
+        bb.put(tmp, 0, Math.min(tmp.length, 255));
+        
+        return data;
+	}
 }
@@ -16,6 +16,30 @@ public class CommandHwEntry
 	protected int mKey;
 	protected byte [] value;
 	
+	/** Size of an entry on the wire */
+	public static final int SIZE = 4 + 32;
+	
+	protected CommandHwEntry()
+	{ }
+	
+	/**
+	 * @param key kind of entry, e.g., HW_INTERFACE
+	 * @param value value; at most 32 bytes, padded with zeros
+	 */
+	protected CommandHwEntry(int key, byte[] value)
+	{
+		this.mKey = key;
+		this.value = new byte[32];
+		System.arraycopy(value, 0, this.value, 0, 
+				Math.min(value.length, this.value.length));
+	}
+	
+	protected void serialize(ByteBuffer bb)
+	{
+		bb.putInt(this.mKey);
+		bb.put(this.value);
+	}
+	
 	protected CommandHwEntry deserialize(ByteBuffer buf)
 	{
 		this.mKey = buf.getInt();
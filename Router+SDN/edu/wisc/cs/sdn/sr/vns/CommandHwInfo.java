@@ -27,4 +27,24 @@ public class CommandHwInfo extends Command
 						
 		return this;
 	}
+	
+	protected int getSize()
+	{
+		return super.getSize() 
+				+ ((null == this.mHwInfo) ? 0 : this.mHwInfo.size()) 
+				* CommandHwEntry.SIZE;
+	}
+	
+	protected byte[] serialize()
+	{
+		byte[] data = new byte[this.getSize()];
+        ByteBuffer bb = ByteBuffer.wrap(data);
+        this.mLen = this.getSize();
+        
+        bb.put(super.serialize());
+        for (CommandHwEntry hwEntry : this.mHwInfo)
+        { hwEntry.serialize(bb); }
+        
+        return data;
+	}
 }
@@ -47,10 +47,15 @@ public class CommandOpenTemplate extends Command
         byte[] parentData = super.serialize();
         
         bb.put(parentData);
+        // NUL-padded; the template name keeps a terminating NUL
         byte[] tmp = new byte[30];
-        System.arraycopy(this.templateName.getBytes(), 0, tmp, 0, tmp.length-1);
+        byte[] name = this.templateName.getBytes();
+        System.arraycopy(name, 0, tmp, 0, Math.min(name.length, tmp.length-1));
+        bb.put(tmp);
+        tmp = new byte[Command.ID_SIZE];
+        name = this.mVirtualHostId.getBytes();
+        System.arraycopy(name, 0, tmp, 0, Math.min(name.length, tmp.length));
         bb.put(tmp);
-        bb.put(this.mVirtualHostId.getBytes(),0,Command.ID_SIZE);
         
         return data;
 	}
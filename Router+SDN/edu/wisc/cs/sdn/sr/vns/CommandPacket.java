@@ -2,25 +2,71 @@ package edu.wisc.cs.sdn.sr.vns;
 
 import java.nio.ByteBuffer;
 
+import edu.wisc.cs.sdn.sr.Iface;
+import edu.wisc.cs.sdn.sr.InterfaceIndex;
+
 import net.floodlightcontroller.packet.Ethernet;
 
 public class CommandPacket extends Command
 {
-	protected String mInterfaceName;
+	/** Offset of the interface name within a VNS_PACKET command */
+	public static final int IFACE_NAME_OFFSET = 4 + 4;
+	
+	/** Offset of the Ethernet frame within a VNS_PACKET command */
+	public static final int FRAME_OFFSET = IFACE_NAME_OFFSET 
+			+ InterfaceIndex.WIRE_NAME_LENGTH;
+	
+	/** Interface name as carried in the command: NUL-padded to 
+	 * InterfaceIndex.WIRE_NAME_LENGTH bytes */
+	protected byte[] mInterfaceName;
 	protected Ethernet etherPacket;
 	
 	public CommandPacket()
 	{ super(Command.VNS_PACKET); }
 	
+	/**
+	 * Create a command that reuses the packet objects and buffers of each 
+	 * frame it deserializes for the next; the packet of a frame is only 
+	 * valid until the next frame is deserialized.
+	 * @return the command
+	 */
+	protected static CommandPacket recycling()
+	{
+		CommandPacket cmdPkt = new CommandPacket();
+		cmdPkt.etherPacket = new Ethernet();
+		cmdPkt.etherPacket.setRecycle(true);
+		return cmdPkt;
+	}
+	
 	protected CommandPacket deserialize(ByteBuffer buf)
 	{
 		super.deserialize(buf);
-				
-		byte[] tmpBytes = new byte[16];
-		buf.get(tmpBytes);
-		this.mInterfaceName = new String(tmpBytes).trim();
-		
-        this.etherPacket = new Ethernet();
+		this.mInterfaceName = new byte[InterfaceIndex.WIRE_NAME_LENGTH];
+		buf.get(this.mInterfaceName);
+		return this.deserializeFrame(buf);
+	}
+	
+	/**
+	 * Read the command header and skip the interface name, leaving the 
+	 * buffer positioned at the start of the Ethernet frame. The name stays
+	 * in the buffer at IFACE_NAME_OFFSET.
+	 */
+	protected CommandPacket deserializeHeader(ByteBuffer buf)
+	{
+		super.deserialize(buf);
+		buf.position(buf.position() + InterfaceIndex.WIRE_NAME_LENGTH);
+		return this;
+	}
+	
+	/**
+	 * Build the Ethernet packet from the rest of the buffer. If the command
+	 * recycles its packet, the packet objects and buffers of the previous 
+	 * frame are reused where possible.
+	 */
+	protected CommandPacket deserializeFrame(ByteBuffer buf)
+	{
+		if (null == this.etherPacket || !this.etherPacket.isRecycle())
+		{ this.etherPacket = new Ethernet(); }
 		this.etherPacket.deserialize(buf.array(), buf.position(),
 				buf.capacity() - buf.position());
 		
@@ -37,17 +83,30 @@ public class CommandPacket extends Command
 		this.mLen = size;
 		
 		byte[] data = new byte[size];
-        ByteBuffer bb = ByteBuffer.wrap(data);
-        
-        byte[] parentData = super.serialize();
-        
-        bb.put(parentData);
-        byte[] tmp = new byte[16];
-        System.arraycopy(this.mInterfaceName.getBytes(), 0, tmp, 0, 
-                this.mInterfaceName.length());
-        bb.put(tmp);
-        bb.put(packet);
+        System.arraycopy(packet, 0, data, FRAME_OFFSET, packet.length);
+        writeHeader(data, FRAME_OFFSET, packet.length, this.mInterfaceName);
         
         return data;
 	}
+	
+	/**
+	 * Write a VNS_PACKET command header into the bytes directly preceding an
+	 * already serialized Ethernet frame.
+	 * @param buf buffer containing the frame
+	 * @param frameOffset offset of the frame; must be at least FRAME_OFFSET
+	 * @param frameLength length of the frame
+	 * @param ifaceName interface out which the frame should be sent, as 
+	 *        returned by {@link Iface#getWireName()}
+	 * @return offset at which the complete command starts
+	 */
+	protected static int writeHeader(byte[] buf, int frameOffset, 
+			int frameLength, byte[] ifaceName)
+	{
+		int start = frameOffset - FRAME_OFFSET;
+		ByteBuffer bb = ByteBuffer.wrap(buf, start, FRAME_OFFSET);
+		bb.putInt(FRAME_OFFSET + frameLength);
+		bb.putInt(Command.VNS_PACKET);
+		bb.put(ifaceName, 0, InterfaceIndex.WIRE_NAME_LENGTH);
+		return start;
+	}
 }
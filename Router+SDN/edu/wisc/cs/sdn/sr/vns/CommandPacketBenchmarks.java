@@ -0,0 +1,129 @@
+package edu.wisc.cs.sdn.sr.vns;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.util.MACAddress;
+
+import edu.wisc.cs.sdn.sr.Iface;
+import edu.wisc.cs.sdn.sr.Router;
+import edu.wisc.cs.sdn.sr.Util;
+import edu.wisc.cs.sdn.sr.bench.Benchmark;
+import edu.wisc.cs.sdn.sr.bench.Frames;
+
+/**
+ * Benchmarks of VNS_PACKET framing, which lives here because the members of
+ * {@link CommandPacket} are protected: decoding a received command up to the
+ * router's Ethernet packet (with new or reused packet objects), encoding a
+ * packet the router sends, and writing the header in front of an already
+ * serialized frame.
+ */
+public class CommandPacketBenchmarks
+{
+	private static final int BATCH_SIZE = 256;
+
+	private CommandPacketBenchmarks()
+	{ }
+
+	/**
+	 * @return the benchmarks
+	 */
+	public static List<Benchmark> create()
+	{
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		benchmarks.add(new Framing("commandPacket.decode") {
+			@Override
+			public long run(int i)
+			{
+				// As VNSComm.processPacket, for a frame off the fast path
+				ByteBuffer buf = ByteBuffer.wrap(this.command);
+				CommandPacket cmdPkt = new CommandPacket();
+				cmdPkt.deserializeHeader(buf);
+				Iface inIface = this.router.getInterfaceIndex().get(
+						this.command, CommandPacket.IFACE_NAME_OFFSET);
+				cmdPkt.deserializeFrame(buf);
+				return cmdPkt.etherPacket.getEtherType() + inIface.getIndex();
+			}
+		});
+		benchmarks.add(new Framing("commandPacket.decodePooled") {
+			private CommandPacket cmdPkt = CommandPacket.recycling();
+
+			@Override
+			public long run(int i)
+			{
+				// As VNSComm.processPacket, reusing the thread's packet objects
+				ByteBuffer buf = ByteBuffer.wrap(this.command);
+				this.cmdPkt.deserializeHeader(buf);
+				Iface inIface = this.router.getInterfaceIndex().get(
+						this.command, CommandPacket.IFACE_NAME_OFFSET);
+				this.cmdPkt.deserializeFrame(buf);
+				return this.cmdPkt.etherPacket.getEtherType()
+						+ inIface.getIndex();
+			}
+		});
+		benchmarks.add(new Framing("commandPacket.encode") {
+			@Override
+			public long run(int i)
+			{
+				// As VNSComm.sendPacket
+				CommandPacket cmdPkt = new CommandPacket();
+				cmdPkt.mInterfaceName = this.iface.getWireName();
+				cmdPkt.etherPacket = this.etherPacket;
+				return cmdPkt.serialize().length;
+			}
+		});
+		benchmarks.add(new Framing("commandPacket.writeHeader") {
+			@Override
+			public long run(int i)
+			{
+				// As VNSComm.sendFrame
+				return CommandPacket.writeHeader(this.command,
+						CommandPacket.FRAME_OFFSET,
+						this.command.length - CommandPacket.FRAME_OFFSET,
+						this.iface.getWireName());
+			}
+		});
+		return benchmarks;
+	}
+
+	/** Framing of a 64-byte UDP datagram received or sent on eth0 */
+	private static abstract class Framing extends Benchmark
+	{
+		protected Router router;
+		protected Iface iface;
+		protected byte[] command;
+		protected Ethernet etherPacket;
+
+		Framing(String name)
+		{ super(name, BATCH_SIZE); }
+
+		@Override
+		public void setUp()
+		{
+			this.router = new Router((short)0, "bench", "bench", null);
+			this.iface = this.router.addInterface("eth0");
+			this.iface.setIpAddress(Util.dottedDecimalToInt("10.0.1.1"));
+			this.iface.setSubnetMask(Util.dottedDecimalToInt("255.255.255.0"));
+			this.iface.setMacAddress(MACAddress.valueOf("02:00:00:00:01:01"));
+			this.router.indexInterfaces();
+
+			byte[] frame = Frames.udp(MACAddress.valueOf("02:00:00:00:01:0a"),
+					this.iface.getMacAddress(),
+					Util.dottedDecimalToInt("10.0.1.10"),
+					Util.dottedDecimalToInt("10.0.2.10"), (byte)64, 64);
+			this.command = new byte[CommandPacket.FRAME_OFFSET + frame.length];
+			System.arraycopy(frame, 0, this.command, CommandPacket.FRAME_OFFSET,
+					frame.length);
+			CommandPacket.writeHeader(this.command, CommandPacket.FRAME_OFFSET,
+					frame.length, this.iface.getWireName());
+			this.etherPacket = new Ethernet();
+			this.etherPacket.deserialize(frame, 0, frame.length);
+		}
+
+		@Override
+		public void tearDown()
+		{ this.router.destroy(); }
+	}
+}
@@ -24,4 +24,26 @@ public class CommandRtable extends Command
 						
 		return this;
 	}
+	
+	protected int getSize()
+	{
+		return super.getSize() + Command.ID_SIZE 
+				+ ((null == this.rtable) ? 0 : this.rtable.length());
+	}
+	
+	protected byte[] serialize()
+	{
+		byte[] data = new byte[this.getSize()];
+        ByteBuffer bb = ByteBuffer.wrap(data);
+        this.mLen = this.getSize();
+        
+        bb.put(super.serialize());
+        byte[] tmp = new byte[Command.ID_SIZE];
+        byte[] id = this.mVIrtualHostId.getBytes();
+        System.arraycopy(id, 0, tmp, 0, Math.min(id.length, tmp.length));
+        bb.put(tmp);
+        bb.put(this.rtable.getBytes());
+        
+        return data;
+	}
 }
@@ -0,0 +1,495 @@
+package edu.wisc.cs.sdn.sr.vns;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.floodlightcontroller.packet.ARP;
+import net.floodlightcontroller.packet.Data;
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.ICMP;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.UDP;
+import net.floodlightcontroller.util.MACAddress;
+
+import edu.wisc.cs.sdn.sr.Fragmentation;
+import edu.wisc.cs.sdn.sr.Reassembler;
+import edu.wisc.cs.sdn.sr.RouterStats;
+import edu.wisc.cs.sdn.sr.Util;
+import edu.wisc.cs.sdn.sr.metrics.MetricRegistry;
+
+/**
+ * End host of the VNS emulator, attached to a single link. The host answers
+ * ARP requests and pings, resolves the addresses of its next hops with ARP,
+ * and sends and receives the test traffic of {@link Flow}s. Probes carry the
+ * flow, a sequence number, and the time they were sent, so the receiver (or,
+ * for pings, the sender) can measure loss, reordering, and latency.
+ * Fragmented datagrams are reassembled, as the router reassembles those
+ * addressed to it, so probes larger than a link's MTU can be received.
+ */
+public class EmulatedHost implements EmulatedLink.Endpoint
+{
+	/** Traffic sent by a host to an address */
+	public static class Flow
+	{
+		public static final byte PROTOCOL_UDP = IPv4.PROTOCOL_UDP;
+		public static final byte PROTOCOL_ICMP = IPv4.PROTOCOL_ICMP;
+
+		/** UDP port to which probes are sent */
+		public static final short PROBE_PORT = 9;
+
+		/** Bytes of a probe's payload that identify it */
+		public static final int PROBE_HEADER_LENGTH = 4 + 4 + 8;
+
+		private int id;
+		private String description;
+		private byte protocol;
+		private int destination;
+		private int payloadLength;
+
+		private long sent;
+		private long received;
+		private long reordered;
+		private long errors;
+
+		/** Highest sequence number received */
+		private int highestReceived = -1;
+
+		/** One-way latency of UDP probes, or round-trip time of pings */
+		private ReplayComm.Samples latency;
+
+		/**
+		 * @param id identifies the flow's probes
+		 * @param description name used in reports
+		 * @param protocol PROTOCOL_UDP or PROTOCOL_ICMP
+		 * @param destination address to which probes are sent
+		 * @param payloadLength bytes of UDP or ICMP echo payload; at least
+		 *        PROBE_HEADER_LENGTH
+		 */
+		public Flow(int id, String description, byte protocol,
+				int destination, int payloadLength)
+		{
+			this.id = id;
+			this.description = description;
+			this.protocol = protocol;
+			this.destination = destination;
+			this.payloadLength = Math.max(payloadLength, PROBE_HEADER_LENGTH);
+			this.latency = new ReplayComm.Samples(
+					(PROTOCOL_ICMP == protocol) ? "rtt" : "latency");
+		}
+
+		public int getId()
+		{ return this.id; }
+
+		public int getDestination()
+		{ return this.destination; }
+
+		/**
+		 * @return the next sequence number, counting the probe as sent
+		 */
+		synchronized int nextSequence()
+		{ return (int)this.sent++; }
+
+		synchronized void probeReceived(int sequence, long sentAt)
+		{
+			this.received++;
+			if (sequence < this.highestReceived)
+			{ this.reordered++; }
+			else
+			{ this.highestReceived = sequence; }
+			this.latency.add(System.nanoTime() - sentAt);
+		}
+
+		synchronized void errorReceived()
+		{ this.errors++; }
+
+		public synchronized String toString()
+		{
+			long lost = this.sent - this.received;
+			return String.format("%s: %d sent, %d received (%.2f%% lost), "
+					+ "%d reordered, %d ICMP errors; %s (us) mean %d p50 %d "
+					+ "p99 %d max %d", this.description, this.sent,
+					this.received, (0 == this.sent) ? 0.0
+							: 100.0 * lost / this.sent,
+					this.reordered, this.errors, this.latency.getName(),
+					this.latency.getMean() / 1000,
+					this.latency.getPercentile(50) / 1000,
+					this.latency.getPercentile(99) / 1000,
+					this.latency.getPercentile(100) / 1000);
+		}
+	}
+
+	private static final byte ICMP_ECHO_REPLY = 0;
+
+	/** How long to wait before repeating an ARP request (in ns) */
+	private static final long ARP_RETRY_INTERVAL = 1000L * 1000 * 1000;
+
+	/** Frames that may wait for a single address to be resolved */
+	private static final int MAX_PENDING_PER_ADDRESS = 100;
+
+	private String name;
+	private MACAddress macAddress;
+	private int ipAddress;
+	private int subnetMask;
+	private int gateway;
+	private EmulatedLink link;
+
+	/** Flows sent by the host, by ID; flows sent to the host are looked up
+	 * in the shared map given to the constructor */
+	private Map<Integer,Flow> flows;
+
+	/** Resolved addresses */
+	private Map<Integer,MACAddress> arpCache;
+
+	/** Frames (without destination address) waiting for addresses to be
+	 * resolved, and when each address was last requested */
+	private Map<Integer,List<Ethernet>> pending;
+	private Map<Integer,Long> requested;
+
+	/** Reassembles fragmented datagrams addressed to the host */
+	private Reassembler reassembler;
+
+	/** Frames received, and frames not for the host's addresses */
+	private long framesReceived;
+	private long framesIgnored;
+
+	/** Fragments received, and datagrams reassembled from them */
+	private long fragmentsReceived;
+	private long datagramsReassembled;
+
+	/**
+	 * @param name name used in reports
+	 * @param macAddress MAC address
+	 * @param ipAddress IP address
+	 * @param subnetMask mask of the host's subnet
+	 * @param gateway address of the router to which frames to other subnets
+	 *        are sent
+	 * @param flows all flows in the emulation, by ID
+	 */
+	public EmulatedHost(String name, MACAddress macAddress, int ipAddress,
+			int subnetMask, int gateway, Map<Integer,Flow> flows)
+	{
+		this.name = name;
+		this.macAddress = macAddress;
+		this.ipAddress = ipAddress;
+		this.subnetMask = subnetMask;
+		this.gateway = gateway;
+		this.flows = flows;
+		this.arpCache = new HashMap<Integer,MACAddress>();
+		this.pending = new HashMap<Integer,List<Ethernet>>();
+		this.requested = new HashMap<Integer,Long>();
+		this.reassembler = new Reassembler(
+				new RouterStats(new MetricRegistry()),
+				Reassembler.DEFAULT_MEMORY_LIMIT);
+	}
+
+	public String getName()
+	{ return this.name; }
+
+	public MACAddress getMacAddress()
+	{ return this.macAddress; }
+
+	public int getIpAddress()
+	{ return this.ipAddress; }
+
+	public EmulatedLink getLink()
+	{ return this.link; }
+
+	/**
+	 * @param link link to which the host is attached
+	 */
+	public void setLink(EmulatedLink link)
+	{ this.link = link; }
+
+	/**
+	 * Send the next probe of a flow.
+	 */
+	public void sendProbe(Flow flow)
+	{
+		int sequence = flow.nextSequence();
+		byte[] payload = new byte[flow.payloadLength];
+		ByteBuffer bb = ByteBuffer.wrap(payload);
+		bb.putInt(flow.id);
+		bb.putInt(sequence);
+		bb.putLong(System.nanoTime());
+
+		IPv4 ipPacket = new IPv4();
+		ipPacket.setTtl((byte)64);
+		ipPacket.setProtocol(flow.protocol);
+		ipPacket.setSourceAddress(this.ipAddress);
+		ipPacket.setDestinationAddress(flow.destination);
+		if (Flow.PROTOCOL_UDP == flow.protocol)
+		{
+			UDP udpPacket = new UDP();
+			udpPacket.setSourcePort((short)(10000 + flow.id));
+			udpPacket.setDestinationPort(Flow.PROBE_PORT);
+			udpPacket.setPayload(new Data(payload));
+			ipPacket.setPayload(udpPacket);
+		}
+		else
+		{
+			ICMP icmpPacket = new ICMP();
+			icmpPacket.setIcmpType(ICMP.TYPE_ECHO_REQUEST);
+			// Identifier and sequence number, then the probe
+			byte[] echo = new byte[4 + payload.length];
+			ByteBuffer.wrap(echo).putShort((short)flow.id)
+					.putShort((short)sequence).put(payload);
+			icmpPacket.setPayload(new Data(echo));
+			ipPacket.setPayload(icmpPacket);
+		}
+		this.sendIp(ipPacket);
+	}
+
+	/**
+	 * Handle a frame that crossed the host's link.
+	 */
+	public void receive(byte[] frame)
+	{
+		Ethernet etherPacket = new Ethernet();
+		etherPacket.deserialize(frame, 0, frame.length);
+		synchronized (this)
+		{ this.framesReceived++; }
+		if (!etherPacket.isBroadcast()
+				&& !etherPacket.getDestinationMAC().equals(this.macAddress))
+		{
+			this.ignored();
+			return;
+		}
+
+		switch (etherPacket.getEtherType())
+		{
+		case Ethernet.TYPE_ARP:
+			this.handleArp((ARP)etherPacket.getPayload());
+			break;
+		case Ethernet.TYPE_IPv4:
+			IPv4 ipPacket = (IPv4)etherPacket.getPayload();
+			if (ipPacket.getDestinationAddress() != this.ipAddress)
+			{
+				this.ignored();
+				break;
+			}
+			if (Fragmentation.isFragment(ipPacket))
+			{
+				ipPacket = this.reassembler.add(ipPacket);
+				synchronized (this)
+				{
+					this.fragmentsReceived++;
+					if (ipPacket != null)
+					{ this.datagramsReassembled++; }
+				}
+				if (null == ipPacket)
+				{ break; } // Incomplete, or a bad fragment
+			}
+			if (IPv4.PROTOCOL_ICMP == ipPacket.getProtocol())
+			{ this.handleIcmp(ipPacket, (ICMP)ipPacket.getPayload()); }
+			else if (IPv4.PROTOCOL_UDP == ipPacket.getProtocol())
+			{ this.handleUdp((UDP)ipPacket.getPayload()); }
+			else
+			{ this.ignored(); }
+			break;
+		default:
+			this.ignored();
+		}
+	}
+
+	private synchronized void ignored()
+	{ this.framesIgnored++; }
+
+	private void handleArp(ARP arpPacket)
+	{
+		int senderIp = ByteBuffer.wrap(
+				arpPacket.getSenderProtocolAddress()).getInt();
+		int targetIp = ByteBuffer.wrap(
+				arpPacket.getTargetProtocolAddress()).getInt();
+		MACAddress senderMac = MACAddress.valueOf(
+				arpPacket.getSenderHardwareAddress());
+		if (targetIp != this.ipAddress)
+		{
+			this.ignored();
+			return;
+		}
+
+		// Learn the sender's address, and send frames waiting for it
+		List<Ethernet> waiting;
+		synchronized (this)
+		{
+			this.arpCache.put(senderIp, senderMac);
+			this.requested.remove(senderIp);
+			waiting = this.pending.remove(senderIp);
+		}
+		if (waiting != null)
+		{
+			for (Ethernet etherPacket : waiting)
+			{
+				etherPacket.setDestinationMACAddress(senderMac.toBytes());
+				this.link.transmit(this, etherPacket.serialize());
+			}
+		}
+
+		if (ARP.OP_REQUEST == arpPacket.getOpCode())
+		{
+			ARP reply = new ARP();
+			reply.setHardwareType(ARP.HW_TYPE_ETHERNET);
+			reply.setProtocolType(ARP.PROTO_TYPE_IP);
+			reply.setHardwareAddressLength((byte)Ethernet.DATALAYER_ADDRESS_LENGTH);
+			reply.setProtocolAddressLength((byte)4);
+			reply.setOpCode(ARP.OP_REPLY);
+			reply.setSenderHardwareAddress(this.macAddress.toBytes());
+			reply.setSenderProtocolAddress(this.ipAddress);
+			reply.setTargetHardwareAddress(senderMac.toBytes());
+			reply.setTargetProtocolAddress(senderIp);
+			Ethernet etherPacket = new Ethernet();
+			etherPacket.setEtherType(Ethernet.TYPE_ARP);
+			etherPacket.setSourceMACAddress(this.macAddress.toBytes());
+			etherPacket.setDestinationMACAddress(senderMac.toBytes());
+			etherPacket.setPayload(reply);
+			this.link.transmit(this, etherPacket.serialize());
+		}
+	}
+
+	private void handleIcmp(IPv4 ipPacket, ICMP icmpPacket)
+	{
+		byte[] body = ((Data)icmpPacket.getPayload()).getData();
+		if (ICMP.TYPE_ECHO_REQUEST == icmpPacket.getIcmpType())
+		{
+			ICMP reply = new ICMP();
+			reply.setIcmpType(ICMP_ECHO_REPLY);
+			reply.setPayload(new Data(body));
+			IPv4 replyPacket = new IPv4();
+			replyPacket.setTtl((byte)64);
+			replyPacket.setProtocol(IPv4.PROTOCOL_ICMP);
+			replyPacket.setSourceAddress(this.ipAddress);
+			replyPacket.setDestinationAddress(ipPacket.getSourceAddress());
+			replyPacket.setPayload(reply);
+			this.sendIp(replyPacket);
+		}
+		else if (ICMP_ECHO_REPLY == icmpPacket.getIcmpType())
+		{
+			if (body.length >= 4 + Flow.PROBE_HEADER_LENGTH)
+			{ this.probeReceived(ByteBuffer.wrap(body, 4, body.length - 4)); }
+		}
+		else if (body.length >= 4 + 20 + 8)
+		{
+			// An error quoting the header of one of our probes, after the
+			// 4 unused bytes
+			ByteBuffer quoted = ByteBuffer.wrap(body);
+			int headerLength = (quoted.get(4) & 0xf) * 4;
+			byte protocol = quoted.get(4 + 9);
+			int transport = 4 + headerLength;
+			int flowId = -1;
+			if (IPv4.PROTOCOL_UDP == protocol && body.length >= transport + 2)
+			{ flowId = (quoted.getShort(transport) & 0xffff) - 10000; }
+			else if (IPv4.PROTOCOL_ICMP == protocol
+					&& body.length >= transport + 6)
+			{ flowId = quoted.getShort(transport + 4) & 0xffff; }
+			Flow flow = this.flows.get(flowId);
+			if (flow != null)
+			{ flow.errorReceived(); }
+		}
+	}
+
+	private void handleUdp(UDP udpPacket)
+	{
+		if (udpPacket.getDestinationPort() != Flow.PROBE_PORT)
+		{
+			this.ignored();
+			return;
+		}
+		byte[] body = ((Data)udpPacket.getPayload()).getData();
+		if (body.length >= Flow.PROBE_HEADER_LENGTH)
+		{ this.probeReceived(ByteBuffer.wrap(body)); }
+	}
+
+	private void probeReceived(ByteBuffer probe)
+	{
+		int flowId = probe.getInt();
+		int sequence = probe.getInt();
+		long sentAt = probe.getLong();
+		Flow flow = this.flows.get(flowId);
+		if (flow != null)
+		{ flow.probeReceived(sequence, sentAt); }
+	}
+
+	/**
+	 * Send an IP packet to its next hop, resolving the next hop's address
+	 * first if needed.
+	 */
+	private void sendIp(IPv4 ipPacket)
+	{
+		int destination = ipPacket.getDestinationAddress();
+		int nextHop = ((destination & this.subnetMask)
+				== (this.ipAddress & this.subnetMask)) ? destination
+						: this.gateway;
+
+		Ethernet etherPacket = new Ethernet();
+		etherPacket.setEtherType(Ethernet.TYPE_IPv4);
+		etherPacket.setSourceMACAddress(this.macAddress.toBytes());
+		etherPacket.setPayload(ipPacket);
+
+		MACAddress nextHopMac;
+		boolean request = false;
+		synchronized (this)
+		{
+			nextHopMac = this.arpCache.get(nextHop);
+			if (null == nextHopMac)
+			{
+				List<Ethernet> waiting = this.pending.get(nextHop);
+				if (null == waiting)
+				{
+					waiting = new ArrayList<Ethernet>();
+					this.pending.put(nextHop, waiting);
+				}
+				if (waiting.size() < MAX_PENDING_PER_ADDRESS)
+				{ waiting.add(etherPacket); }
+
+				long now = System.nanoTime();
+				Long last = this.requested.get(nextHop);
+				if (null == last || now - last >= ARP_RETRY_INTERVAL)
+				{
+					this.requested.put(nextHop, now);
+					request = true;
+				}
+			}
+		}
+
+		if (nextHopMac != null)
+		{
+			etherPacket.setDestinationMACAddress(nextHopMac.toBytes());
+			this.link.transmit(this, etherPacket.serialize());
+		}
+		else if (request)
+		{ this.sendArpRequest(nextHop); }
+	}
+
+	private void sendArpRequest(int address)
+	{
+		ARP request = new ARP();
+		request.setHardwareType(ARP.HW_TYPE_ETHERNET);
+		request.setProtocolType(ARP.PROTO_TYPE_IP);
+		request.setHardwareAddressLength((byte)Ethernet.DATALAYER_ADDRESS_LENGTH);
+		request.setProtocolAddressLength((byte)4);
+		request.setOpCode(ARP.OP_REQUEST);
+		request.setSenderHardwareAddress(this.macAddress.toBytes());
+		request.setSenderProtocolAddress(this.ipAddress);
+		request.setTargetHardwareAddress(new byte[6]);
+		request.setTargetProtocolAddress(address);
+		Ethernet etherPacket = new Ethernet();
+		etherPacket.setEtherType(Ethernet.TYPE_ARP);
+		etherPacket.setSourceMACAddress(this.macAddress.toBytes());
+		etherPacket.setDestinationMACAddress(MACAddress.valueOf(
+				"ff:ff:ff:ff:ff:ff").toBytes());
+		etherPacket.setPayload(request);
+		this.link.transmit(this, etherPacket.serialize());
+	}
+
+	public synchronized String toString()
+	{
+		return String.format("%s %s %s: %d frames received, %d ignored, "
+				+ "%d fragments received, %d datagrams reassembled",
+				this.name, Util.intToDottedDecimal(this.ipAddress),
+				this.macAddress, this.framesReceived, this.framesIgnored,
+				this.fragmentsReceived, this.datagramsReassembled);
+	}
+}
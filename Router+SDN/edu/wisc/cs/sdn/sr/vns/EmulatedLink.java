@@ -0,0 +1,160 @@
+package edu.wisc.cs.sdn.sr.vns;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Point-to-point link of the VNS emulator. Each direction serializes frames
+ * at the link's bandwidth, delays them by the link's propagation delay, and
+ * drops them at random with the link's loss probability or when more than
+ * queueLimit frames are waiting to be serialized.
+ */
+public class EmulatedLink
+{
+	/** Something attached to one end of a link */
+	public interface Endpoint
+	{
+		/**
+		 * @return name used in reports, e.g., r1:eth0
+		 */
+		String getName();
+
+		/**
+		 * Receive a frame that crossed the link.
+		 */
+		void receive(byte[] frame);
+	}
+
+	/** One direction of the link, with its state and statistics */
+	private class Direction
+	{
+		private final Endpoint to;
+
+		/** When the last frame queued will have been serialized (in ns) */
+		private long busyUntil;
+
+		/** Frames queued or being serialized */
+		private int backlog;
+
+		private long sent;
+		private long lost;
+		private long overflowed;
+		private long bytes;
+
+		private Direction(Endpoint to)
+		{ this.to = to; }
+	}
+
+	private Endpoint a;
+	private Endpoint b;
+	private Direction toA;
+	private Direction toB;
+
+	/** Propagation delay (in ns) */
+	private long delay;
+
+	/** Bandwidth (in bits per second); 0 for unlimited */
+	private long bandwidth;
+
+	/** Probability that a frame is lost */
+	private double loss;
+
+	/** Frames that may wait to be serialized in each direction */
+	private int queueLimit;
+
+	/** Schedules the delivery of frames */
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * Create a link.
+	 * @param a one end
+	 * @param b the other end
+	 * @param delay propagation delay (in ns)
+	 * @param bandwidth bandwidth (in bits per second); 0 for unlimited
+	 * @param loss probability that a frame is lost
+	 * @param queueLimit frames that may wait to be serialized in each
+	 *        direction
+	 * @param scheduler schedules the delivery of frames
+	 */
+	public EmulatedLink(Endpoint a, Endpoint b, long delay, long bandwidth,
+			double loss, int queueLimit, ScheduledExecutorService scheduler)
+	{
+		this.a = a;
+		this.b = b;
+		this.toA = new Direction(a);
+		this.toB = new Direction(b);
+		this.delay = delay;
+		this.bandwidth = bandwidth;
+		this.loss = loss;
+		this.queueLimit = queueLimit;
+		this.scheduler = scheduler;
+	}
+
+	/**
+	 * @return the end other than the given one
+	 */
+	public Endpoint getPeer(Endpoint end)
+	{ return (end == this.a) ? this.b : this.a; }
+
+	/**
+	 * Send a frame from one end to the other.
+	 * @param from end sending the frame
+	 * @param frame the frame; must not be modified afterwards
+	 */
+	public void transmit(Endpoint from, byte[] frame)
+	{
+		final Direction direction = (from == this.a) ? this.toB : this.toA;
+		long now = System.nanoTime();
+		long deliverAt;
+		synchronized (direction)
+		{
+			if (this.loss > 0
+					&& ThreadLocalRandom.current().nextDouble() < this.loss)
+			{
+				direction.lost++;
+				return;
+			}
+			if (direction.backlog >= this.queueLimit)
+			{
+				direction.overflowed++;
+				return;
+			}
+			long start = Math.max(now, direction.busyUntil);
+			long serialization = (0 == this.bandwidth) ? 0
+					: frame.length * 8L * 1000 * 1000 * 1000 / this.bandwidth;
+			direction.busyUntil = start + serialization;
+			direction.backlog++;
+			direction.sent++;
+			direction.bytes += frame.length;
+			deliverAt = direction.busyUntil + this.delay;
+		}
+
+		final byte[] delivered = frame;
+		this.scheduler.schedule(new Runnable() {
+			public void run()
+			{
+				synchronized (direction)
+				{ direction.backlog--; }
+				direction.to.receive(delivered);
+			}
+		}, deliverAt - now, TimeUnit.NANOSECONDS);
+	}
+
+	public String toString()
+	{
+		return String.format("%s -> %s: %s\n%s -> %s: %s", this.a.getName(),
+				this.b.getName(), describe(this.toB), this.b.getName(),
+				this.a.getName(), describe(this.toA));
+	}
+
+	private static String describe(Direction direction)
+	{
+		synchronized (direction)
+		{
+			return String.format("%d frames (%d bytes) sent, %d lost, "
+					+ "%d dropped by a full queue", direction.sent,
+					direction.bytes, direction.lost, direction.overflowed);
+		}
+	}
+}
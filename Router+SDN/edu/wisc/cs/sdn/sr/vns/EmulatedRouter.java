@@ -0,0 +1,405 @@
+package edu.wisc.cs.sdn.sr.vns;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import net.floodlightcontroller.util.MACAddress;
+
+import edu.wisc.cs.sdn.sr.InterfaceIndex;
+import edu.wisc.cs.sdn.sr.Util;
+
+/**
+ * Router of the VNS emulator: the interfaces and routing table of a router
+ * in the topology, and the server side of the session with the router
+ * process (see {@link VNSComm}) that plays it. Frames the router sends out an
+ * interface cross the interface's link; frames crossing the link towards the
+ * interface are sent to the router as VNS_PACKET commands.
+ */
+public class EmulatedRouter
+{
+	/** Interface of the router, attached to a link */
+	public class Port implements EmulatedLink.Endpoint
+	{
+		private String ifaceName;
+		private byte[] wireName;
+		private int ipAddress;
+		private int subnetMask;
+		private MACAddress macAddress;
+		private EmulatedLink link;
+
+		private Port(String ifaceName, int ipAddress, int subnetMask,
+				MACAddress macAddress)
+		{
+			this.ifaceName = ifaceName;
+			this.wireName = new byte[InterfaceIndex.WIRE_NAME_LENGTH];
+			byte[] name = ifaceName.getBytes();
+			System.arraycopy(name, 0, this.wireName, 0,
+					Math.min(name.length, this.wireName.length - 1));
+			this.ipAddress = ipAddress;
+			this.subnetMask = subnetMask;
+			this.macAddress = macAddress;
+		}
+
+		public String getName()
+		{ return EmulatedRouter.this.name + ":" + this.ifaceName; }
+
+		public int getIpAddress()
+		{ return this.ipAddress; }
+
+		public MACAddress getMacAddress()
+		{ return this.macAddress; }
+
+		public EmulatedLink getLink()
+		{ return this.link; }
+
+		/**
+		 * @param link link to which the interface is attached
+		 */
+		public void setLink(EmulatedLink link)
+		{ this.link = link; }
+
+		/**
+		 * Send a frame that crossed the link to the router.
+		 */
+		public void receive(byte[] frame)
+		{ EmulatedRouter.this.sendPacket(this.wireName, frame); }
+	}
+
+	/** Longest command accepted from a router, as {@link VNSComm} does */
+	private static final int MAX_COMMAND_LENGTH = 10000;
+
+	private String name;
+
+	/** Interfaces, by name, in the order they are given to the router */
+	private Map<String,Port> ports;
+
+	/** Routing table entries, as lines of a routing table file */
+	private List<String> routes;
+
+	/** Connection to the router process; null until it connects */
+	private Socket socket;
+	private OutputStream outStream;
+
+	/** Whether the router has been given its interfaces */
+	private volatile boolean ready;
+
+	/** Frames sent to and received from the router, and frames dropped
+	 * because the router was not connected or sent them out an interface
+	 * without a link */
+	private long framesToRouter;
+	private long framesFromRouter;
+	private long framesDropped;
+
+	public EmulatedRouter(String name)
+	{
+		this.name = name;
+		this.ports = new LinkedHashMap<String,Port>();
+		this.routes = new ArrayList<String>();
+	}
+
+	public String getName()
+	{ return this.name; }
+
+	/**
+	 * Add an interface.
+	 * @return the interface, or null if the router already has one with the
+	 *         name
+	 */
+	public Port addPort(String ifaceName, int ipAddress, int subnetMask,
+			MACAddress macAddress)
+	{
+		if (this.ports.containsKey(ifaceName))
+		{ return null; }
+		Port port = new Port(ifaceName, ipAddress, subnetMask, macAddress);
+		this.ports.put(ifaceName, port);
+		return port;
+	}
+
+	/**
+	 * @return the interface with a name; null if there is none
+	 */
+	public Port getPort(String ifaceName)
+	{ return this.ports.get(ifaceName); }
+
+	/**
+	 * Add a routing table entry, sent to routers that open a template.
+	 */
+	public void addRoute(int destination, int gateway, int mask,
+			String ifaceName)
+	{
+		this.routes.add(String.format("%s %s %s %s",
+				Util.intToDottedDecimal(destination),
+				Util.intToDottedDecimal(gateway),
+				Util.intToDottedDecimal(mask), ifaceName));
+	}
+
+	/**
+	 * @return true once the router has been given its interfaces
+	 */
+	public boolean isReady()
+	{ return this.ready; }
+
+	/**
+	 * @return true if a router process has connected
+	 */
+	public synchronized boolean isConnected()
+	{ return this.socket != null; }
+
+	/**
+	 * Serve a router process that connected as this router: hardware
+	 * information was sent, and the router's frames are relayed until it
+	 * disconnects.
+	 * @param socket connection to the router, after authentication
+	 * @param in stream from which commands are read
+	 * @param template whether the router opened a template, and so expects
+	 *        its routing table
+	 * @return false if another router process is already connected
+	 */
+	boolean serve(Socket socket, DataInputStream in, boolean template)
+			throws IOException
+	{
+		synchronized (this)
+		{
+			if (this.socket != null)
+			{ return false; }
+			this.socket = socket;
+			this.outStream = socket.getOutputStream();
+		}
+
+		if (template)
+		{
+			CommandRtable cmdRtable = new CommandRtable();
+			cmdRtable.mVIrtualHostId = this.name;
+			StringBuilder rtable = new StringBuilder();
+			for (String route : this.routes)
+			{ rtable.append(route).append('\n'); }
+			cmdRtable.rtable = rtable.toString();
+			this.write(cmdRtable.serialize());
+		}
+
+		CommandHwInfo cmdHwInfo = new CommandHwInfo();
+		cmdHwInfo.mHwInfo = new ArrayList<CommandHwEntry>();
+		for (Port port : this.ports.values())
+		{
+			cmdHwInfo.mHwInfo.add(new CommandHwEntry(
+					CommandHwEntry.HW_INTERFACE, port.ifaceName.getBytes()));
+			cmdHwInfo.mHwInfo.add(new CommandHwEntry(
+					CommandHwEntry.HW_ETHER, port.macAddress.toBytes()));
+			cmdHwInfo.mHwInfo.add(new CommandHwEntry(
+					CommandHwEntry.HW_ETH_IP,
+					ByteBuffer.allocate(4).putInt(port.ipAddress).array()));
+			cmdHwInfo.mHwInfo.add(new CommandHwEntry(
+					CommandHwEntry.HW_MASK,
+					ByteBuffer.allocate(4).putInt(port.subnetMask).array()));
+		}
+		this.write(cmdHwInfo.serialize());
+		this.ready = true;
+		System.out.println(String.format("Router %s connected from %s",
+				this.name, socket.getRemoteSocketAddress()));
+
+		try
+		{
+			ByteBuffer command;
+			while ((command = readCommand(in)) != null)
+			{
+				if (command.getInt(4) != Command.VNS_PACKET
+						|| command.capacity() < CommandPacket.FRAME_OFFSET)
+				{ continue; }
+				this.relay(command.array());
+			}
+		}
+		finally
+		{
+			synchronized (this)
+			{
+				this.ready = false;
+				this.socket = null;
+				this.outStream = null;
+			}
+			System.out.println(String.format("Router %s disconnected",
+					this.name));
+		}
+		return true;
+	}
+
+	/**
+	 * Send a frame the router sent out an interface across the interface's
+	 * link.
+	 * @param command VNS_PACKET command
+	 */
+	private void relay(byte[] command)
+	{
+		String ifaceName = new String(command, CommandPacket.IFACE_NAME_OFFSET,
+				InterfaceIndex.WIRE_NAME_LENGTH).trim();
+		Port port = this.ports.get(ifaceName);
+		synchronized (this)
+		{
+			if (null == port || null == port.link)
+			{
+				this.framesDropped++;
+				return;
+			}
+			this.framesFromRouter++;
+		}
+		port.link.transmit(port, Arrays.copyOfRange(command,
+				CommandPacket.FRAME_OFFSET, command.length));
+	}
+
+	/**
+	 * Send a frame to the router as a VNS_PACKET command.
+	 */
+	private void sendPacket(byte[] wireName, byte[] frame)
+	{
+		byte[] command = new byte[CommandPacket.FRAME_OFFSET + frame.length];
+		System.arraycopy(frame, 0, command, CommandPacket.FRAME_OFFSET,
+				frame.length);
+		CommandPacket.writeHeader(command, CommandPacket.FRAME_OFFSET,
+				frame.length, wireName);
+		synchronized (this)
+		{
+			if (!this.ready)
+			{
+				this.framesDropped++;
+				return;
+			}
+			this.framesToRouter++;
+		}
+		try
+		{ this.write(command); }
+		catch (IOException e)
+		{ this.close("Error sending to router: " + e.getMessage()); }
+	}
+
+	/**
+	 * End the session with the router, if it is connected.
+	 * @param reason reason given to the router
+	 */
+	public void close(String reason)
+	{
+		Socket socket;
+		synchronized (this)
+		{
+			socket = this.socket;
+			this.ready = false;
+		}
+		if (null == socket)
+		{ return; }
+		CommandClose cmdClose = new CommandClose();
+		cmdClose.mErrorMessage = reason;
+		try
+		{ this.write(cmdClose.serialize()); }
+		catch (IOException e) { }
+		try
+		{ socket.close(); }
+		catch (IOException e) { }
+	}
+
+	private void write(byte[] command) throws IOException
+	{
+		OutputStream outStream;
+		synchronized (this)
+		{ outStream = this.outStream; }
+		if (null == outStream)
+		{ return; }
+		synchronized (outStream)
+		{
+			outStream.write(command);
+			outStream.flush();
+		}
+	}
+
+	/**
+	 * Authenticate a router process that connected: send a salt, and check
+	 * that the router replied with the SHA-1 digest of the salt followed by
+	 * the key.
+	 * @param key key the router must have; null to accept any router
+	 * @return the name of the user the router authenticated as, or null if
+	 *         authentication failed
+	 */
+	static String authenticate(DataInputStream in, OutputStream out,
+			String key) throws IOException
+	{
+		CommandAuthRequest cmdAuthRequest = new CommandAuthRequest();
+		cmdAuthRequest.salt = Long.toHexString(new Random().nextLong());
+		out.write(cmdAuthRequest.serialize());
+		out.flush();
+
+		ByteBuffer command = readCommand(in);
+		if (null == command || command.getInt(4) != Command.VNS_AUTH_REPLY)
+		{ return null; }
+		CommandAuthReply cmdAuthReply = new CommandAuthReply();
+		cmdAuthReply.deserialize(command);
+
+		boolean authOk = true;
+		if (key != null)
+		{
+			try
+			{
+				MessageDigest md = MessageDigest.getInstance("SHA-1");
+				ByteBuffer sha1 = ByteBuffer.wrap(md.digest(
+						(cmdAuthRequest.salt + key).getBytes()));
+				for (int i = 0; i < 5; i++)
+				{ authOk &= (sha1.getInt() == cmdAuthReply.key[i]); }
+			}
+			catch (NoSuchAlgorithmException e)
+			{ authOk = false; }
+		}
+
+		CommandAuthStatus cmdAuthStatus = new CommandAuthStatus();
+		cmdAuthStatus.authOk = authOk;
+		cmdAuthStatus.msg = authOk ? "authenticated by the VNS emulator"
+				: "invalid key";
+		out.write(cmdAuthStatus.serialize());
+		out.flush();
+		return authOk ? cmdAuthReply.username : null;
+	}
+
+	/**
+	 * Read a command.
+	 * @return the command, including its length and type, or null at the
+	 *         end of the stream
+	 * @throws IOException if the command could not be read or is too long
+	 */
+	static ByteBuffer readCommand(DataInputStream in) throws IOException
+	{
+		int len;
+		try
+		{ len = in.readInt(); }
+		catch (EOFException e)
+		{ return null; }
+		if (len < 8 || len > MAX_COMMAND_LENGTH)
+		{ throw new IOException("Invalid command length " + len); }
+		byte[] command = new byte[len];
+		ByteBuffer.wrap(command).putInt(len);
+		in.readFully(command, 4, len - 4);
+		return ByteBuffer.wrap(command);
+	}
+
+	public synchronized String toString()
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%s: %d frames to the router, %d from it, "
+				+ "%d dropped", this.name, this.framesToRouter,
+				this.framesFromRouter, this.framesDropped));
+		for (Port port : this.ports.values())
+		{
+			sb.append(String.format("\n  %s %s/%s %s", port.ifaceName,
+					Util.intToDottedDecimal(port.ipAddress),
+					Util.intToDottedDecimal(port.subnetMask),
+					port.macAddress));
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,223 @@
+package edu.wisc.cs.sdn.sr.vns;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import net.floodlightcontroller.packet.IPacket;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.TCP;
+import net.floodlightcontroller.packet.UDP;
+
+/**
+ * Multi-threaded processing of VNS_PACKET commands. The thread reading from
+ * the VNS server hands each command to one of several worker threads, chosen
+ * by a hash of the frame's flow (IPv4 addresses, protocol and ports), so the
+ * packets of a flow are processed in the order they arrived.
+ * <p>
+ * Frames that wait for an ARP reply are sent by the worker that processes the
+ * reply; newer packets to the same next hop wait behind them until all have
+ * been sent (see ArpCache.resolve), so they keep their order too.
+ */
+public class PacketPipeline
+{
+	/** Maximum number of commands queued for each worker */
+	public static final int QUEUE_CAPACITY = 1024;
+
+	/** A received command waiting to be processed */
+	private static class Received
+	{
+		final ByteBuffer command;
+		final long nanos;
+
+		Received(ByteBuffer command, long nanos)
+		{
+			this.command = command;
+			this.nanos = nanos;
+		}
+	}
+
+	/** Marker telling worker threads to exit */
+	private static final Received SHUTDOWN = new Received(null, 0);
+
+	/** Communication manager whose commands are processed */
+	private VNSComm vnsComm;
+
+	/** Commands waiting to be processed; one queue per worker */
+	private List<BlockingQueue<Received>> inputQueues;
+
+	/** Threads processing received commands */
+	private Thread[] workers;
+
+	/**
+	 * Create a pipeline for a VNS communication manager.
+	 * @param vnsComm communication manager whose commands are processed
+	 * @param numWorkers number of worker threads
+	 */
+	public PacketPipeline(VNSComm vnsComm, int numWorkers)
+	{
+		this.vnsComm = vnsComm;
+		this.inputQueues = new ArrayList<BlockingQueue<Received>>(numWorkers);
+		this.workers = new Thread[numWorkers];
+		for (int i = 0; i < numWorkers; i++)
+		{
+			final BlockingQueue<Received> queue =
+					new ArrayBlockingQueue<Received>(QUEUE_CAPACITY);
+			this.inputQueues.add(queue);
+			this.workers[i] = new Thread(new Runnable() {
+				public void run() { processLoop(queue); }
+			}, "sr-worker-" + i);
+		}
+	}
+
+	/**
+	 * Start the worker threads.
+	 */
+	public void start()
+	{
+		for (Thread worker : this.workers)
+		{ worker.start(); }
+	}
+
+	/**
+	 * Stop accepting commands, wait for queued commands to be processed, and
+	 * stop all threads.
+	 */
+	public void shutdown()
+	{
+		try
+		{
+			for (BlockingQueue<Received> queue : this.inputQueues)
+			{ queue.put(SHUTDOWN); }
+			for (Thread worker : this.workers)
+			{ worker.join(); }
+		}
+		catch (InterruptedException e)
+		{ Thread.currentThread().interrupt(); }
+	}
+
+	/**
+	 * Queue a received VNS_PACKET command for processing. Blocks if the
+	 * responsible worker has fallen behind.
+	 * @param command the complete command, positioned at its start
+	 * @param received time (System.nanoTime()) the command was read
+	 */
+	public void submit(ByteBuffer command, long received)
+	{
+		int worker = (flowHash(command.array(), CommandPacket.FRAME_OFFSET,
+				command.capacity() - CommandPacket.FRAME_OFFSET) & 0x7fffffff)
+				% this.workers.length;
+		try
+		{ this.inputQueues.get(worker).put(new Received(command, received)); }
+		catch (InterruptedException e)
+		{ Thread.currentThread().interrupt(); }
+	}
+
+	private void processLoop(BlockingQueue<Received> queue)
+	{
+		while (true)
+		{
+			Received received;
+			try
+			{ received = queue.take(); }
+			catch (InterruptedException e)
+			{ break; }
+			if (received == SHUTDOWN)
+			{ break; }
+
+			// One bad packet should not take the worker down
+			try
+			{
+				this.vnsComm.processPacket(received.command, received.nanos);
+			}
+			catch (RuntimeException e)
+			{ e.printStackTrace(); }
+		}
+	}
+
+	/**
+	 * Hash the flow an Ethernet frame belongs to. IPv4 frames hash on their
+	 * addresses and protocol, plus TCP/UDP ports unless the packet is a
+	 * fragment (later fragments carry no ports). ARP frames hash on the
+	 * sender's protocol address.
+	 * @param buf buffer containing the frame
+	 * @param offset offset of the frame in the buffer
+	 * @param length length of the frame
+	 * @return hash of the frame's flow
+	 */
+	public static int flowHash(byte[] buf, int offset, int length)
+	{
+		if (length < 14)
+		{ return 0; }
+		int etherType = ((buf[offset + 12] & 0xff) << 8)
+				| (buf[offset + 13] & 0xff);
+		int ip = offset + 14;
+		int h;
+		if (0x0806 == etherType && length >= 14 + 28)
+		{ h = getInt(buf, ip + 14); }
+		else if (0x0800 == etherType && length >= 14 + 20)
+		{
+			int protocol = buf[ip + 9] & 0xff;
+			h = getInt(buf, ip + 12);
+			h = h * 31 + getInt(buf, ip + 16);
+			h = h * 31 + protocol;
+			int headerLength = (buf[ip] & 0x0f) * 4;
+			boolean fragment = (getInt(buf, ip + 4) & 0x3fff) != 0;
+			if ((6 == protocol || 17 == protocol) && !fragment
+					&& length >= 14 + headerLength + 4)
+			{ h = h * 31 + getInt(buf, ip + headerLength); }
+		}
+		else
+		{ return 0; }
+		return mix(h);
+	}
+
+	/**
+	 * Hash the flow an IPv4 packet belongs to; the same as the hash of the 
+	 * frame carrying the packet.
+	 * @param packet the packet
+	 * @return hash of the packet's flow
+	 */
+	public static int flowHash(IPv4 packet)
+	{
+		int protocol = packet.getProtocol() & 0xff;
+		int h = packet.getSourceAddress();
+		h = h * 31 + packet.getDestinationAddress();
+		h = h * 31 + protocol;
+		boolean fragment = (packet.getFlags() & IPv4.IPV4_FLAGS_MOREFRAG) != 0
+				|| packet.getFragmentOffset() != 0;
+		IPacket payload = packet.getPayload();
+		if (!fragment && payload instanceof TCP)
+		{
+			TCP tcp = (TCP)payload;
+			h = h * 31 + (((tcp.getSourcePort() & 0xffff) << 16)
+					| (tcp.getDestinationPort() & 0xffff));
+		}
+		else if (!fragment && payload instanceof UDP)
+		{
+			UDP udp = (UDP)payload;
+			h = h * 31 + (((udp.getSourcePort() & 0xffff) << 16)
+					| (udp.getDestinationPort() & 0xffff));
+		}
+		return mix(h);
+	}
+
+	/**
+	 * Spread the bits, so the modulo by the worker count is fair.
+	 */
+	private static int mix(int h)
+	{
+		h ^= (h >>> 16);
+		h *= 0x85ebca6b;
+		h ^= (h >>> 13);
+		return h;
+	}
+
+	private static int getInt(byte[] buf, int offset)
+	{
+		return ((buf[offset] & 0xff) << 24) | ((buf[offset + 1] & 0xff) << 16)
+				| ((buf[offset + 2] & 0xff) << 8) | (buf[offset + 3] & 0xff);
+	}
+}
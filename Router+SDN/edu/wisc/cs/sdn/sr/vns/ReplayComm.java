@@ -0,0 +1,219 @@
+package edu.wisc.cs.sdn.sr.vns;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import edu.wisc.cs.sdn.sr.DumpFile;
+import edu.wisc.cs.sdn.sr.Iface;
+import edu.wisc.cs.sdn.sr.Router;
+
+/**
+ * Stand-in for the connection to the VNS server that feeds frames to the
+ * router directly and captures the frames it sends, timing each stage of
+ * packet processing. Frames are processed as {@link VNSComm} processes
+ * VNS_PACKET commands, on the calling thread.
+ */
+public class ReplayComm extends VNSComm
+{
+	/** Latency samples of one stage (in ns) */
+	public static class Samples
+	{
+		private String name;
+		private long[] values;
+		private int count;
+		private long total;
+
+		Samples(String name)
+		{
+			this.name = name;
+			this.values = new long[1024];
+		}
+
+		void add(long value)
+		{
+			if (this.count == this.values.length)
+			{ this.values = Arrays.copyOf(this.values, 2 * this.count); }
+			this.values[this.count++] = value;
+			this.total += value;
+		}
+
+		void clear()
+		{
+			this.count = 0;
+			this.total = 0;
+		}
+
+		public String getName()
+		{ return this.name; }
+
+		public int getCount()
+		{ return this.count; }
+
+		public long getMean()
+		{ return (0 == this.count) ? 0 : this.total / this.count; }
+
+		/**
+		 * @param percentile 0 to 100
+		 * @return the sample at the percentile; 0 if there are none
+		 */
+		public long getPercentile(double percentile)
+		{
+			if (0 == this.count)
+			{ return 0; }
+			Arrays.sort(this.values, 0, this.count);
+			int index = (int)Math.ceil(percentile / 100 * this.count) - 1;
+			return this.values[Math.max(0, Math.min(index, this.count - 1))];
+		}
+	}
+
+	/** Copying a frame into a command buffer, as if it had been read from
+	 * the server */
+	private Samples receive = new Samples("receive");
+
+	/** Attempting the fast path */
+	private Samples fastPath = new Samples("fast path");
+
+	/** Deserializing frames the fast path did not handle */
+	private Samples deserialize = new Samples("deserialize");
+
+	/** Router.handlePacket */
+	private Samples handle = new Samples("handle");
+
+	/** From receiving a frame to sending each frame caused by it */
+	private Samples egress = new Samples("egress");
+
+	/** Whole processing of frames forwarded by the fast path, and of other
+	 * frames */
+	private Samples fastTotal = new Samples("total (fast path)");
+	private Samples slowTotal = new Samples("total (slow path)");
+
+	/** When processing of the current frame started (in ns), and the thread
+	 * processing it */
+	private long started;
+	private Thread injecting;
+
+	/** Frames and bytes sent by the router */
+	private long framesSent;
+	private long bytesSent;
+
+	/** Where frames sent by the router are written; null if they are only
+	 * counted */
+	private DumpFile output;
+
+	public ReplayComm(Router router)
+	{ super(router); }
+
+	/**
+	 * @param output where frames sent by the router are written; null to
+	 *        only count them
+	 */
+	public void setOutput(DumpFile output)
+	{ this.output = output; }
+
+	/**
+	 * @return where frames sent by the router are written; null if they are
+	 *         only counted
+	 */
+	public DumpFile getOutput()
+	{ return this.output; }
+
+	/**
+	 * @return latency samples of each stage
+	 */
+	public Samples[] getSamples()
+	{
+		return new Samples[] { this.receive, this.fastPath, this.deserialize,
+				this.handle, this.fastTotal, this.slowTotal, this.egress };
+	}
+
+	/**
+	 * Discard latency samples and counts, e.g., after warming up.
+	 */
+	public synchronized void reset()
+	{
+		for (Samples samples : this.getSamples())
+		{ samples.clear(); }
+		this.framesSent = 0;
+		this.bytesSent = 0;
+	}
+
+	/**
+	 * @return frames sent by the router
+	 */
+	public long getFramesSent()
+	{ return this.framesSent; }
+
+	/**
+	 * @return bytes in the frames sent by the router
+	 */
+	public long getBytesSent()
+	{ return this.bytesSent; }
+
+	/**
+	 * Process a frame as if it had been received on an interface.
+	 * @param frame the frame; not modified
+	 * @param inIface interface on which the frame is received
+	 * @return true if the frame was forwarded by the fast path
+	 */
+	public boolean inject(byte[] frame, Iface inIface)
+	{
+		Router router = this.getRouter();
+		long start = System.nanoTime();
+		this.started = start;
+		this.injecting = Thread.currentThread();
+		byte[] buf = new byte[CommandPacket.FRAME_OFFSET + frame.length];
+		CommandPacket.writeHeader(buf, CommandPacket.FRAME_OFFSET,
+				frame.length, inIface.getWireName());
+		System.arraycopy(frame, 0, buf, CommandPacket.FRAME_OFFSET,
+				frame.length);
+		inIface.getCounters().received(frame.length);
+		long received = System.nanoTime();
+		this.receive.add(received - start);
+
+		boolean forwarded = router.getFastPath().forward(buf,
+				CommandPacket.FRAME_OFFSET, frame.length, inIface);
+		long fastPathDone = System.nanoTime();
+		this.fastPath.add(fastPathDone - received);
+		if (forwarded)
+		{
+			this.fastTotal.add(fastPathDone - start);
+			return true;
+		}
+
+		CommandPacket cmdPkt = this.receiveCommand();
+		ByteBuffer command = ByteBuffer.wrap(buf);
+		cmdPkt.deserializeHeader(command);
+		cmdPkt.deserializeFrame(command);
+		long deserialized = System.nanoTime();
+		this.deserialize.add(deserialized - fastPathDone);
+
+		if (!this.arpRequestNotForUs(cmdPkt.etherPacket, inIface))
+		{ router.handlePacket(cmdPkt.etherPacket, inIface); }
+		long handled = System.nanoTime();
+		this.handle.add(handled - deserialized);
+		this.slowTotal.add(handled - start);
+		return false;
+	}
+
+	/**
+	 * Capture a command instead of writing it to the server. Commands are
+	 * also written by the router's own threads (e.g., ARP requests), which
+	 * are counted but not timed.
+	 */
+	@Override
+	synchronized boolean writeToServer(ByteBuffer command)
+	{
+		if (Thread.currentThread() == this.injecting)
+		{ this.egress.add(System.nanoTime() - this.started); }
+		int length = command.remaining() - CommandPacket.FRAME_OFFSET;
+		this.framesSent++;
+		this.bytesSent += length;
+		if (this.output != null)
+		{
+			this.output.dump(command.array(), command.arrayOffset()
+					+ command.position() + CommandPacket.FRAME_OFFSET, length);
+		}
+		command.position(command.limit());
+		return true;
+	}
+}
@@ -0,0 +1,195 @@
+package edu.wisc.cs.sdn.sr.vns;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import edu.wisc.cs.sdn.sr.RouterStats;
+
+/**
+ * Coalesces serialized commands bound for the VNS server and writes them in
+ * batches with a single gathering write. A dedicated thread takes the first
+ * queued command, then collects the commands queued behind it until the
+ * batch reaches MAX_BATCH_COMMANDS or MAX_BATCH_BYTES. By default the batch
+ * is written as soon as the queue is empty, so batches only form while the
+ * writer is busy and a lone frame is not delayed; with a flush delay, the
+ * writer also waits up to that long for further commands. Commands are
+ * written in the order they were queued. Commands that cannot be written are
+ * counted as dropped.
+ */
+public class SendQueue
+{
+	/** Maximum number of commands waiting to be written */
+	public static final int QUEUE_CAPACITY = 1024;
+
+	/** Maximum number of commands written by one gathering write */
+	public static final int MAX_BATCH_COMMANDS = 64;
+
+	/** Size at which a batch is written without waiting for more */
+	public static final int MAX_BATCH_BYTES = 64 * 1024;
+
+	/** Default time to wait for more commands before writing a batch: none,
+	 * write as soon as the queue is empty */
+	public static final int DEFAULT_FLUSH_DELAY_MICROS = 0;
+
+	/** Marker telling the writer thread to exit */
+	private static final ByteBuffer SHUTDOWN = ByteBuffer.allocate(0);
+
+	/** Channel commands are written to */
+	private GatheringByteChannel channel;
+
+	/** Time to wait for more commands before writing a batch */
+	private long flushDelayNanos;
+
+	/** Counters of the router, for commands that could not be written */
+	private RouterStats stats;
+
+	/** Commands waiting to be written */
+	private BlockingQueue<ByteBuffer> queue;
+
+	/** Thread writing batches to the channel */
+	private Thread writer;
+
+	/** Number of gathering writes and commands written, for statistics */
+	private volatile long batches;
+	private volatile long commands;
+
+	/**
+	 * Create a send queue for a channel.
+	 * @param channel channel commands are written to; must be in blocking
+	 *        mode
+	 * @param flushDelayMicros time to wait for more commands before writing
+	 *        a batch that is below the size threshold; 0 to write whatever is
+	 *        queued right away
+	 * @param stats counters commands that cannot be written are dropped in
+	 */
+	public SendQueue(GatheringByteChannel channel, int flushDelayMicros,
+			RouterStats stats)
+	{
+		this.channel = channel;
+		this.flushDelayNanos = TimeUnit.MICROSECONDS.toNanos(flushDelayMicros);
+		this.stats = stats;
+		this.queue = new ArrayBlockingQueue<ByteBuffer>(QUEUE_CAPACITY);
+		this.writer = new Thread(new Runnable() {
+			public void run() { writeLoop(); }
+		}, "sr-writer");
+	}
+
+	/**
+	 * Start the writer thread.
+	 */
+	public void start()
+	{ this.writer.start(); }
+
+	/**
+	 * Write all queued commands and stop the writer thread.
+	 */
+	public void shutdown()
+	{
+		try
+		{
+			this.queue.put(SHUTDOWN);
+			this.writer.join();
+		}
+		catch (InterruptedException e)
+		{ Thread.currentThread().interrupt(); }
+	}
+
+	/**
+	 * Queue a serialized command to be written. Blocks if the writer has
+	 * fallen behind.
+	 * @param command the complete command, between position and limit; must
+	 *        not be modified afterwards
+	 */
+	public void send(ByteBuffer command)
+	{
+		try
+		{ this.queue.put(command); }
+		catch (InterruptedException e)
+		{ Thread.currentThread().interrupt(); }
+	}
+
+	/**
+	 * @return number of gathering writes issued so far
+	 */
+	public long getBatches()
+	{ return this.batches; }
+
+	/**
+	 * @return number of commands written so far
+	 */
+	public long getCommands()
+	{ return this.commands; }
+
+	private void writeLoop()
+	{
+		ByteBuffer[] batch = new ByteBuffer[MAX_BATCH_COMMANDS];
+		boolean running = true;
+		while (running)
+		{
+			int count = 0;
+			int bytes = 0;
+			try
+			{
+				ByteBuffer command = this.queue.take();
+				long deadline = System.nanoTime() + this.flushDelayNanos;
+				while (command != null)
+				{
+					if (command == SHUTDOWN)
+					{
+						running = false;
+						break;
+					}
+					batch[count++] = command;
+					bytes += command.remaining();
+					if (count == MAX_BATCH_COMMANDS || bytes >= MAX_BATCH_BYTES)
+					{ break; }
+
+					// Take what is already queued; wait for more only until
+					// the batch's deadline
+					command = this.queue.poll();
+					if (null == command)
+					{
+						long wait = deadline - System.nanoTime();
+						if (wait > 0)
+						{ command = this.queue.poll(wait, TimeUnit.NANOSECONDS); }
+					}
+				}
+			}
+			catch (InterruptedException e)
+			{ running = false; }
+
+			if (count > 0)
+			{ this.write(batch, count); }
+			for (int i = 0; i < count; i++)
+			{ batch[i] = null; }
+		}
+	}
+
+	private void write(ByteBuffer[] batch, int count)
+	{
+		int first = 0;
+		try
+		{
+			while (first < count)
+			{
+				this.channel.write(batch, first, count - first);
+				while (first < count && !batch[first].hasRemaining())
+				{ first++; }
+			}
+		}
+		catch (IOException e)
+		{
+			// The senders were told the commands were sent; count the ones
+			// that were not as dropped
+			this.stats.dropped(RouterStats.Drop.SEND_FAILED, count - first);
+			System.err.println("Error writing packets, " + (count - first)
+					+ " dropped: " + e.getMessage());
+		}
+		this.batches++;
+		this.commands += first;
+	}
+}
@@ -8,27 +8,160 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 
 import net.floodlightcontroller.packet.ARP;
 import net.floodlightcontroller.packet.Ethernet;
 import net.floodlightcontroller.util.MACAddress;
 
 import edu.wisc.cs.sdn.sr.Router;
+import edu.wisc.cs.sdn.sr.RouterStats;
+import edu.wisc.cs.sdn.sr.metrics.MetricRegistry;
+import edu.wisc.cs.sdn.sr.qos.OutputQueue;
+import edu.wisc.cs.sdn.sr.qos.QosConfig;
+import edu.wisc.cs.sdn.sr.qos.QosScheduler;
 import edu.wisc.cs.sdn.sr.Iface;
+import edu.wisc.cs.sdn.sr.PacketClock;
 
 public class VNSComm 
 {
 	private Socket socket;
 	private Router router;
 	
+	/** Channel underlying the socket, for gathering writes */
+	private SocketChannel channel;
+	
+	/** Worker threads for packets; null if packets are processed by the 
+	 * thread reading from the server */
+	private PacketPipeline pipeline;
+	
+	/** Batches commands written to the server; null if commands are written
+	 * by the thread producing them */
+	private SendQueue sendQueue;
+	
+	/** Drains the interfaces' output queues; null if frames are not queued
+	 * per interface */
+	private QosScheduler qosScheduler;
+	
+	/** Whether each thread reuses the packet objects of the frames it
+	 * receives; see setPooled */
+	private volatile boolean pooled;
+	
+	/** Commands each thread deserializes received frames into, when pooled */
+	private final ThreadLocal<CommandPacket> pooledCommands =
+			ThreadLocal.withInitial(CommandPacket::recycling);
+	
 	public VNSComm(Router router)
 	{ this.router = router; }
 	
+	Router getRouter()
+	{ return this.router; }
+	
+	/**
+	 * Process received packets on worker threads from now on.
+	 * @param numWorkers number of worker threads
+	 */
+	public void startPipeline(int numWorkers)
+	{
+		this.pipeline = new PacketPipeline(this, numWorkers);
+		this.pipeline.start();
+	}
+	
+	/**
+	 * Set whether each thread reuses the Ethernet, IP, and transport objects,
+	 * and the payload buffers, of the frames it receives for the next frame,
+	 * instead of allocating new ones. The packet passed to 
+	 * Router.handlePacket, and everything reachable from it, then belongs to
+	 * the receiving thread and is overwritten by the next frame it receives:
+	 * code keeping any of it after handlePacket returns must copy it, as
+	 * ArpCache does by serializing frames waiting for ARP into buffers of 
+	 * their own.
+	 * @param pooled true to reuse packet objects
+	 */
+	public void setPooled(boolean pooled)
+	{ this.pooled = pooled; }
+	
+	/**
+	 * @return true if threads reuse the packet objects of received frames
+	 */
+	public boolean isPooled()
+	{ return this.pooled; }
+	
+	/**
+	 * @return command to deserialize a received frame into: the current 
+	 *         thread's own if packet objects are reused, otherwise a new one
+	 */
+	CommandPacket receiveCommand()
+	{ return this.pooled ? this.pooledCommands.get() : new CommandPacket(); }
+	
+	/**
+	 * Finish processing queued packets and stop the worker threads, if they
+	 * were started.
+	 */
+	public void stopPipeline()
+	{
+		if (this.pipeline != null)
+		{ this.pipeline.shutdown(); }
+	}
+	
+	/**
+	 * Write commands to the server in batches from a dedicated writer thread
+	 * from now on.
+	 * @param flushDelayMicros time to wait for more commands before writing a
+	 *        small batch; 0 to write as soon as no more commands are queued
+	 */
+	public void startSendQueue(int flushDelayMicros)
+	{
+		SendQueue queue = new SendQueue(this.channel, flushDelayMicros,
+				this.router.getStats());
+		MetricRegistry registry = this.router.getStats().getRegistry();
+		registry.gauge("sr_send_batches",
+				"Gathering writes to the VNS server", queue::getBatches);
+		registry.gauge("sr_send_commands",
+				"Commands written to the VNS server in batches",
+				queue::getCommands);
+		queue.start();
+		this.sendQueue = queue;
+	}
+	
+	/**
+	 * Write queued commands and stop the writer thread, if it was started.
+	 */
+	public void stopSendQueue()
+	{
+		if (this.sendQueue != null)
+		{ this.sendQueue.shutdown(); }
+	}
+	
+	/**
+	 * Queue frames in per-interface, per-class output queues from now on.
+	 * @param config traffic classes
+	 */
+	public void startQos(QosConfig config)
+	{
+		this.qosScheduler = new QosScheduler(config, 
+				this.router.getInterfaces().values(),
+				this.router.getStats().getRegistry(), this::writeCommand);
+		this.qosScheduler.start();
+	}
+	
+	/**
+	 * Send the frames in the output queues and stop draining them, if output
+	 * queues were set up.
+	 */
+	public void stopQos()
+	{
+		if (this.qosScheduler != null)
+		{ this.qosScheduler.shutdown(); }
+	}
+	
 	public boolean connectToServer(short port, String server)
 	{
 		// Grab server address from name
@@ -43,7 +176,10 @@ public class VNSComm
 		
 		// Create socket and attempt to connect to the server
 		try 
-		{ socket = new Socket(addr, port); }
+		{
+			channel = SocketChannel.open(new InetSocketAddress(addr, port));
+			socket = channel.socket();
+		}
 		catch (IOException e) 
 		{
 			e.printStackTrace();
@@ -141,13 +277,16 @@ public class VNSComm
 			for (Iface iface : this.router.getInterfaces().values())
 			{ System.out.println(iface.toString()); }
 		}
+		this.router.indexInterfaces();
 		
 		return true;
 	}
 	
 	public boolean handleRtable(CommandRtable cmdRtable)
 	{
-		String filename = String.format("rtable.%s.", cmdRtable.mVIrtualHostId);
+		// The host ID is NUL-padded; Main loads "rtable." + host
+		String filename = String.format("rtable.%s", 
+				cmdRtable.mVIrtualHostId.trim());
 		try
 		{
 			BufferedWriter writer = new BufferedWriter(new FileWriter(filename));
@@ -301,6 +440,8 @@ public class VNSComm
 			}
 		}
 		
+		long received = System.nanoTime();
+		
 		// Make sure the command is what we expected if we were expecting something
 		int command = buf.getInt();
 		if (expectedCmd != 0 && command != expectedCmd)
@@ -318,21 +459,10 @@ public class VNSComm
 		switch(command)
 		{
 		case Command.VNS_PACKET:
-			CommandPacket cmdPkt = new CommandPacket();
-			cmdPkt.deserialize(buf);
-			
-			// Check if it is an ARP to another router if so drop
-			if (this.arpRequestNotForUs(cmdPkt.etherPacket, 
-					cmdPkt.mInterfaceName))
-			{ break; }
-			
-			// Log packet
-            if (this.router.getLogFile() != null)
-            { this.router.getLogFile().dump(cmdPkt.etherPacket); }
-			
-			// Pass to router, student's code should take over here
-			this.router.handlePacket(cmdPkt.etherPacket, 
-					this.router.getInterface(cmdPkt.mInterfaceName));
+			if (this.pipeline != null)
+			{ this.pipeline.submit(buf, received); }
+			else
+			{ this.processPacket(buf, received); }
 			break;
 			
 		case Command.VNS_CLOSE:
@@ -389,14 +519,66 @@ public class VNSComm
 		return true;
 	}
 	
+	/**
+	 * Handle a VNS_PACKET command, measuring the time until the router sends
+	 * the first frame the packet causes.
+	 * @param buf the complete command, positioned at its start
+	 * @param received time (System.nanoTime()) the command was read
+	 */
+	void processPacket(ByteBuffer buf, long received)
+	{
+		PacketClock.received(received);
+		try
+		{ this.processPacket(buf); }
+		finally
+		{ PacketClock.clear(); }
+	}
+	
+	/**
+	 * Handle a VNS_PACKET command: forward the frame on the fast path if 
+	 * possible, otherwise deserialize it and pass it to the router.
+	 * @param buf the complete command, positioned at its start
+	 */
+	private void processPacket(ByteBuffer buf)
+	{
+		int len = buf.capacity();
+		CommandPacket cmdPkt = this.receiveCommand();
+		cmdPkt.deserializeHeader(buf);
+		
+		// Forward transit traffic straight from the receive buffer
+		Iface inIface = this.router.getInterfaceIndex().get(buf.array(),
+				CommandPacket.IFACE_NAME_OFFSET);
+		if (null == inIface)
+		{
+			this.router.getStats().dropped(RouterStats.Drop.NO_INTERFACE);
+			return;
+		}
+		inIface.getCounters().received(len - CommandPacket.FRAME_OFFSET);
+		if (this.router.getFastPath().forward(
+				buf.array(), CommandPacket.FRAME_OFFSET, 
+				len - CommandPacket.FRAME_OFFSET, inIface))
+		{ return; }
+		cmdPkt.deserializeFrame(buf);
+		
+		// Check if it is an ARP to another router if so drop
+		if (this.arpRequestNotForUs(cmdPkt.etherPacket, inIface))
+		{ return; }
+		
+		// Log packet
+        if (this.router.getLogFile() != null)
+        { this.router.getLogFile().dump(cmdPkt.etherPacket); }
+		
+		// Pass to router, student's code should take over here
+		this.router.handlePacket(cmdPkt.etherPacket, inIface);
+	}
+	
 	// sr_arp_req_not_for_us
-	private boolean arpRequestNotForUs(Ethernet etherPacket, String ifaceName)
+	boolean arpRequestNotForUs(Ethernet etherPacket, Iface iface)
 	{
 		// Check if it's an ARP packet
 		if (etherPacket.getEtherType() != Ethernet.TYPE_ARP)
 		{ return false; }
 		
-		Iface iface = this.router.getInterface(ifaceName);
 		ARP arpPacket = (ARP)etherPacket.getPayload();
 		int targetIp = ByteBuffer.wrap(arpPacket.getTargetProtocolAddress()).getInt();
 		
@@ -419,7 +601,14 @@ public class VNSComm
 					+ ", does not exist");
 			return false;
 		}
-		if (!iface.getMacAddress().equals(etherPacket.getSourceMAC()))
+		return this.etherAddrsMatchInterface(etherPacket, iface);
+	}
+	
+	private boolean etherAddrsMatchInterface(Ethernet etherPacket, 
+			Iface iface)
+	{
+		if (!Arrays.equals(iface.getMacAddress().toBytes(), 
+				etherPacket.getSourceMACAddress()))
 		{
 			System.err.println("** Error, source address does not match interface"); 
 			return false;
@@ -430,31 +619,121 @@ public class VNSComm
 	// sr_send_packet
 	public boolean sendPacket(Ethernet etherPacket, String ifaceName)
 	{
-		CommandPacket cmdPacket = new CommandPacket();
-		cmdPacket.mInterfaceName = ifaceName;
-		cmdPacket.etherPacket = etherPacket;
-		
-		byte[] buf = cmdPacket.serialize();
-		
-		if (!etherAddrsMatchInterface(etherPacket, ifaceName))
+		Iface iface = this.router.getInterface(ifaceName);
+		if (null == iface)
+		{
+			System.err.println("** Error, interface " + ifaceName 
+					+ ", does not exist");
+			return false;
+		}
+		return this.sendPacket(etherPacket, iface);
+	}
+	
+	/**
+	 * Send an Ethernet packet out a specific interface.
+	 * @param etherPacket the packet
+	 * @param iface interface out which the packet should be sent
+	 * @return true if the packet was sent successfully, otherwise false
+	 */
+	public boolean sendPacket(Ethernet etherPacket, Iface iface)
+	{ return this.sendPacket(etherPacket, etherPacket.serialize(), iface); }
+	
+	/**
+	 * Send an Ethernet packet that has already been serialized out a 
+	 * specific interface.
+	 * @param etherPacket the packet
+	 * @param frame the packet, serialized
+	 * @param iface interface out which the packet should be sent
+	 * @return true if the packet was sent successfully, otherwise false
+	 */
+	public boolean sendPacket(Ethernet etherPacket, byte[] frame, Iface iface)
+	{
+		if (!etherAddrsMatchInterface(etherPacket, iface))
 		{
 			System.err.println("*** Error: problem with ethernet header, check log");
 			return false;
 		}
 		
+		byte[] buf = new byte[CommandPacket.FRAME_OFFSET + frame.length];
+		System.arraycopy(frame, 0, buf, CommandPacket.FRAME_OFFSET, 
+				frame.length);
+		CommandPacket.writeHeader(buf, CommandPacket.FRAME_OFFSET, 
+				frame.length, iface.getWireName());
+		
+		// Log packet
+        if (this.router.getLogFile() != null)
+        { this.router.getLogFile().dump(frame, 0, frame.length); }
+		
+		if (!this.writePacket(buf, 0, buf.length, iface))
+		{ return false; }
+		iface.getCounters().sent(frame.length);
+		PacketClock.sent(this.router.getStats());
+		return true;
+	}
+	
+	/**
+	 * Send an already serialized Ethernet frame. The VNS command header is
+	 * written into the CommandPacket.FRAME_OFFSET bytes preceding the frame,
+	 * so the frame is sent without being copied.
+	 * @param buf buffer containing the frame
+	 * @param offset offset of the frame; must be at least 
+	 *        CommandPacket.FRAME_OFFSET
+	 * @param length length of the frame
+	 * @param iface interface out which the frame should be sent
+	 * @return true if the frame was sent successfully, otherwise false
+	 */
+	public boolean sendFrame(byte[] buf, int offset, int length, Iface iface)
+	{
+		int start = CommandPacket.writeHeader(buf, offset, length, 
+				iface.getWireName());
+		
 		// Log packet
         if (this.router.getLogFile() != null)
-        { this.router.getLogFile().dump(etherPacket); }
+        { this.router.getLogFile().dump(buf, offset, length); }
 		
+		if (!this.writePacket(buf, start, offset + length - start, iface))
+		{ return false; }
+		iface.getCounters().sent(length);
+		PacketClock.sent(this.router.getStats());
+		return true;
+	}
+	
+	private boolean writePacket(byte[] buf, int offset, int length, 
+			Iface iface)
+	{
+		ByteBuffer command = ByteBuffer.wrap(buf, offset, length);
+		OutputQueue outputQueue = iface.getOutputQueue();
+		if (outputQueue != null)
+		{ return outputQueue.enqueue(command); }
+		return this.writeCommand(command);
+	}
+	
+	private boolean writeCommand(ByteBuffer command)
+	{
+		if (this.sendQueue != null)
+		{
+			this.sendQueue.send(command);
+			return true;
+		}
+		return this.writeToServer(command);
+	}
+	
+	/**
+	 * Write a serialized command to the server.
+	 * @param command the command, between position and limit
+	 * @return true if the command was written, otherwise false
+	 */
+	boolean writeToServer(ByteBuffer command)
+	{
 	    try
 		{
-			OutputStream outStream = socket.getOutputStream();
-			outStream.write(buf);
-            outStream.flush();
+			while (command.hasRemaining())
+			{ this.channel.write(command); }
 		}
 		catch(IOException e)
 		{
 			System.err.println("Error writing packet");
+			this.router.getStats().dropped(RouterStats.Drop.SEND_FAILED);
 			return false;
 		}
 		return true;
@@ -0,0 +1,651 @@
+package edu.wisc.cs.sdn.sr.vns;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import net.floodlightcontroller.util.MACAddress;
+
+import edu.wisc.cs.sdn.sr.Util;
+
+/**
+ * Stand-in for the VNS server, for testing routers without one. The emulator
+ * reads a topology of routers, hosts, and the links between them, and serves
+ * router processes (edu.wisc.cs.sdn.sr.Main) that connect to it: it
+ * authenticates them, gives each the interfaces (and, for templates, the
+ * routing table) of the router named by its host ID, and relays the frames
+ * they send across {@link EmulatedLink}s with the configured delay,
+ * bandwidth, and loss. Once the routers have connected and routing has
+ * settled, the hosts send test traffic, and loss, reordering, and latency
+ * are reported at the end.
+ * <p>
+ * Topology file lines:
+ * <pre>
+ * router NAME
+ * iface ROUTER IFACE IP MASK
+ * route ROUTER DEST GW MASK IFACE
+ * host NAME IP MASK GW
+ * link END END [delay=ms] [bw=rate] [loss=p] [queue=frames]
+ * flow HOST DEST_IP udp|icmp [rate=pps] [size=bytes] [count=n] [start=s]
+ * </pre>
+ * where END is a host NAME or ROUTER:IFACE, and rates may end in k, M, or G.
+ * Blank lines and text following # are ignored.
+ */
+public class VNSEmulator
+{
+	private static final int DEFAULT_PORT = 8001;
+
+	/** Frames that may wait to be serialized on a link by default */
+	private static final int DEFAULT_QUEUE_LIMIT = 1000;
+
+	/** Time allowed for the last probes to arrive (in ms) */
+	private static final long DRAIN_MILLIS = 1000;
+
+	/** Routers, hosts, and links of the topology */
+	private Map<String,EmulatedRouter> routers;
+	private Map<String,EmulatedHost> hosts;
+	private List<EmulatedLink> links;
+
+	/** Flows, by ID, and what sends each */
+	private Map<Integer,EmulatedHost.Flow> flows;
+	private List<FlowSender> senders;
+
+	/** Delivers frames and sends probes */
+	private ScheduledExecutorService scheduler;
+
+	/** Key routers must authenticate with; null to accept any */
+	private String key;
+
+	/** Last automatically assigned MAC address */
+	private int lastMac;
+
+	/** Sends the probes of a flow at a fixed rate */
+	private class FlowSender implements Runnable
+	{
+		private EmulatedHost host;
+		private EmulatedHost.Flow flow;
+		private double rate;
+		private long remaining;
+		private double start;
+		private ScheduledFuture<?> future;
+
+		public void run()
+		{
+			if (this.remaining <= 0)
+			{
+				this.future.cancel(false);
+				return;
+			}
+			this.remaining--;
+			this.host.sendProbe(this.flow);
+		}
+	}
+
+	private VNSEmulator(String key)
+	{
+		this.routers = new LinkedHashMap<String,EmulatedRouter>();
+		this.hosts = new LinkedHashMap<String,EmulatedHost>();
+		this.links = new ArrayList<EmulatedLink>();
+		this.flows = new ConcurrentHashMap<Integer,EmulatedHost.Flow>();
+		this.senders = new ArrayList<FlowSender>();
+		// A single thread keeps frames on each link in order
+		this.scheduler = Executors.newSingleThreadScheduledExecutor();
+		this.key = key;
+	}
+
+	public static void main(String[] args)
+	{
+		int port = DEFAULT_PORT;
+		String topologyFile = null;
+		String keyFile = null;
+		int waitSeconds = 30;
+		double settleSeconds = 2;
+		double durationSeconds = 10;
+
+		// Parse arguments
+		for (int i = 0; i < args.length; i++)
+		{
+			String arg = args[i];
+			if (arg.equals("-h"))
+			{
+				usage();
+				System.exit(0);
+			}
+			else if (arg.equals("-p"))
+			{ port = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-t"))
+			{ topologyFile = args[++i]; }
+			else if (arg.equals("-k"))
+			{ keyFile = args[++i]; }
+			else if (arg.equals("-w"))
+			{ waitSeconds = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-s"))
+			{ settleSeconds = Double.parseDouble(args[++i]); }
+			else if (arg.equals("-d"))
+			{ durationSeconds = Double.parseDouble(args[++i]); }
+		}
+		if (null == topologyFile || waitSeconds < 0 || settleSeconds < 0
+				|| durationSeconds < 0)
+		{
+			usage();
+			System.exit(1);
+		}
+
+		String key = null;
+		if (keyFile != null)
+		{
+			try
+			{
+				BufferedReader reader = new BufferedReader(
+						new FileReader(keyFile));
+				key = reader.readLine().trim();
+				reader.close();
+			}
+			catch (IOException e)
+			{
+				System.err.println("Unable to read key from " + keyFile);
+				System.exit(1);
+			}
+		}
+
+		VNSEmulator emulator = new VNSEmulator(key);
+		if (!emulator.load(topologyFile))
+		{ System.exit(1); }
+		if (!emulator.run(port, waitSeconds, settleSeconds, durationSeconds))
+		{ System.exit(1); }
+		System.exit(0);
+	}
+
+	/**
+	 * Accept routers, wait for them to connect and for routing to settle,
+	 * send the test traffic, and report the results.
+	 * @return false if the emulator could not listen, or not all routers
+	 *         connected in time
+	 */
+	private boolean run(int port, int waitSeconds, double settleSeconds,
+			double durationSeconds)
+	{
+		final ServerSocket serverSocket;
+		try
+		{ serverSocket = new ServerSocket(port); }
+		catch (IOException e)
+		{
+			System.err.println("Unable to listen on port " + port + ": "
+					+ e.getMessage());
+			return false;
+		}
+		System.out.println(String.format(
+				"Listening on port %d for %d routers", port,
+				this.routers.size()));
+
+		Thread acceptor = new Thread(new Runnable() {
+			public void run()
+			{
+				while (!serverSocket.isClosed())
+				{
+					final Socket socket;
+					try
+					{ socket = serverSocket.accept(); }
+					catch (IOException e)
+					{ return; }
+					Thread session = new Thread(new Runnable() {
+						public void run()
+						{ VNSEmulator.this.serve(socket); }
+					});
+					session.setDaemon(true);
+					session.start();
+				}
+			}
+		});
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		// Wait for all routers to be given their interfaces
+		long deadline = System.currentTimeMillis() + waitSeconds * 1000L;
+		while (!this.allRoutersReady())
+		{
+			if (System.currentTimeMillis() > deadline)
+			{
+				System.err.println("Not all routers connected within "
+						+ waitSeconds + " s");
+				this.close(serverSocket, "Not all routers connected");
+				return false;
+			}
+			sleep(100);
+		}
+
+		// Let routers and hosts resolve addresses and exchange routes, then
+		// send the test traffic
+		System.out.println("All routers connected");
+		sleep((long)(settleSeconds * 1000));
+		long start = System.nanoTime();
+		for (FlowSender sender : this.senders)
+		{
+			long period = (long)(1e9 / sender.rate);
+			long count = (sender.remaining > 0) ? sender.remaining
+					: (long)(sender.rate * (durationSeconds - sender.start));
+			sender.remaining = count;
+			if (count <= 0)
+			{ continue; }
+			sender.future = this.scheduler.scheduleAtFixedRate(sender,
+					(long)(sender.start * 1e9), Math.max(period, 1),
+					TimeUnit.NANOSECONDS);
+		}
+		sleep((long)(durationSeconds * 1000) + DRAIN_MILLIS);
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		for (FlowSender sender : this.senders)
+		{
+			if (sender.future != null)
+			{ sender.future.cancel(false); }
+		}
+
+		System.out.println(String.format("Results after %.1f s:", elapsed));
+		System.out.println("Flows");
+		for (FlowSender sender : this.senders)
+		{ System.out.println("  " + sender.flow); }
+		System.out.println("Links");
+		for (EmulatedLink link : this.links)
+		{ System.out.println("  " + link.toString().replace("\n", "\n  ")); }
+		System.out.println("Hosts");
+		for (EmulatedHost host : this.hosts.values())
+		{ System.out.println("  " + host); }
+		System.out.println("Routers");
+		for (EmulatedRouter router : this.routers.values())
+		{ System.out.println("  " + router.toString().replace("\n", "\n  ")); }
+
+		this.close(serverSocket, "Emulation complete");
+		return true;
+	}
+
+	private boolean allRoutersReady()
+	{
+		for (EmulatedRouter router : this.routers.values())
+		{
+			if (!router.isReady())
+			{ return false; }
+		}
+		return true;
+	}
+
+	private void close(ServerSocket serverSocket, String reason)
+	{
+		try
+		{ serverSocket.close(); }
+		catch (IOException e) { }
+		for (EmulatedRouter router : this.routers.values())
+		{ router.close(reason); }
+		this.scheduler.shutdownNow();
+	}
+
+	/**
+	 * Serve a router process: authenticate it, find the router it opens, and
+	 * relay its frames until it disconnects.
+	 */
+	private void serve(Socket socket)
+	{
+		try
+		{
+			socket.setTcpNoDelay(true);
+			DataInputStream in = new DataInputStream(
+					new BufferedInputStream(socket.getInputStream()));
+			OutputStream out = socket.getOutputStream();
+			String user = EmulatedRouter.authenticate(in, out, this.key);
+			if (null == user)
+			{
+				System.err.println("Router from "
+						+ socket.getRemoteSocketAddress()
+						+ " failed to authenticate");
+				return;
+			}
+
+			ByteBuffer command = EmulatedRouter.readCommand(in);
+			if (null == command)
+			{ return; }
+			String host;
+			boolean template;
+			if (Command.VNS_OPEN == command.getInt(4))
+			{
+				CommandOpen cmdOpen = new CommandOpen();
+				cmdOpen.deserialize(command);
+				host = cmdOpen.mVirtualHostId.trim();
+				template = false;
+			}
+			else if (Command.VNS_OPEN_TEMPLATE == command.getInt(4))
+			{
+				CommandOpenTemplate cmdOpenTemplate = new CommandOpenTemplate();
+				cmdOpenTemplate.deserialize(command);
+				host = cmdOpenTemplate.mVirtualHostId.trim();
+				template = true;
+			}
+			else
+			{
+				reject(out, "Expected VNS_OPEN or VNS_OPEN_TEMPLATE");
+				return;
+			}
+
+			EmulatedRouter router = this.routers.get(host);
+			if (null == router)
+			{
+				reject(out, "No router " + host + " in the topology");
+				return;
+			}
+			if (!router.serve(socket, in, template))
+			{ reject(out, "Router " + host + " is already connected"); }
+		}
+		catch (IOException e)
+		{ }
+		finally
+		{
+			try
+			{ socket.close(); }
+			catch (IOException e) { }
+		}
+	}
+
+	private static void reject(OutputStream out, String reason)
+			throws IOException
+	{
+		System.err.println(reason);
+		CommandClose cmdClose = new CommandClose();
+		cmdClose.mErrorMessage = reason;
+		out.write(cmdClose.serialize());
+		out.flush();
+	}
+
+	/**
+	 * Read the topology from a file.
+	 * @return true if the file was read, otherwise false
+	 */
+	private boolean load(String filename)
+	{
+		BufferedReader reader = null;
+		int lineNumber = 0;
+		try
+		{
+			reader = new BufferedReader(new FileReader(filename));
+			String line;
+			while ((line = reader.readLine()) != null)
+			{
+				lineNumber++;
+				int comment = line.indexOf('#');
+				if (comment >= 0)
+				{ line = line.substring(0, comment); }
+				line = line.trim();
+				if (line.isEmpty())
+				{ continue; }
+
+				if (!this.addEntry(line.split("\\s+")))
+				{
+					System.err.println("Invalid entry in topology file "
+							+ filename + " line " + lineNumber);
+					return false;
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			System.err.println(e.toString());
+			return false;
+		}
+		catch (IllegalArgumentException e)
+		{
+			System.err.println("Invalid value in topology file " + filename
+					+ " line " + lineNumber + ": " + e.getMessage());
+			return false;
+		}
+		finally
+		{
+			if (reader != null)
+			{ try { reader.close(); } catch (IOException f) {}; }
+		}
+
+		if (this.routers.isEmpty())
+		{
+			System.err.println("No routers in topology file " + filename);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Add an entry of the topology.
+	 * @param fields fields of the entry's line
+	 * @return false if the entry is invalid
+	 * @throws IllegalArgumentException if a value is invalid
+	 */
+	private boolean addEntry(String[] fields)
+	{
+		String kind = fields[0];
+		if (kind.equals("router") && 2 == fields.length)
+		{
+			if (this.routers.containsKey(fields[1]))
+			{ return false; }
+			this.routers.put(fields[1], new EmulatedRouter(fields[1]));
+		}
+		else if (kind.equals("iface") && 5 == fields.length)
+		{
+			EmulatedRouter router = this.routers.get(fields[1]);
+			if (null == router)
+			{ return false; }
+			return (router.addPort(fields[2], Util.dottedDecimalToInt(fields[3]),
+					Util.dottedDecimalToInt(fields[4]), this.nextMac()) != null);
+		}
+		else if (kind.equals("route") && 6 == fields.length)
+		{
+			EmulatedRouter router = this.routers.get(fields[1]);
+			if (null == router || null == router.getPort(fields[5]))
+			{ return false; }
+			router.addRoute(Util.dottedDecimalToInt(fields[2]),
+					Util.dottedDecimalToInt(fields[3]),
+					Util.dottedDecimalToInt(fields[4]), fields[5]);
+		}
+		else if (kind.equals("host") && 5 == fields.length)
+		{
+			if (this.hosts.containsKey(fields[1]))
+			{ return false; }
+			this.hosts.put(fields[1], new EmulatedHost(fields[1],
+					this.nextMac(), Util.dottedDecimalToInt(fields[2]),
+					Util.dottedDecimalToInt(fields[3]),
+					Util.dottedDecimalToInt(fields[4]), this.flows));
+		}
+		else if (kind.equals("link") && fields.length >= 3)
+		{ return this.addLink(fields); }
+		else if (kind.equals("flow") && fields.length >= 4)
+		{ return this.addFlow(fields); }
+		else
+		{ return false; }
+		return true;
+	}
+
+	private boolean addLink(String[] fields)
+	{
+		EmulatedLink.Endpoint a = this.findEndpoint(fields[1]);
+		EmulatedLink.Endpoint b = this.findEndpoint(fields[2]);
+		if (null == a || null == b || a == b)
+		{ return false; }
+
+		long delay = 0;
+		long bandwidth = 0;
+		double loss = 0;
+		int queueLimit = DEFAULT_QUEUE_LIMIT;
+		for (int i = 3; i < fields.length; i++)
+		{
+			String[] option = fields[i].split("=", 2);
+			if (option.length != 2)
+			{ return false; }
+			if (option[0].equals("delay"))
+			{ delay = (long)(Double.parseDouble(option[1]) * 1000 * 1000); }
+			else if (option[0].equals("bw"))
+			{ bandwidth = parseRate(option[1]); }
+			else if (option[0].equals("loss"))
+			{ loss = Double.parseDouble(option[1]); }
+			else if (option[0].equals("queue"))
+			{ queueLimit = Integer.parseInt(option[1]); }
+			else
+			{ return false; }
+		}
+		if (delay < 0 || bandwidth < 0 || loss < 0 || loss > 1
+				|| queueLimit < 1)
+		{ return false; }
+
+		EmulatedLink link = new EmulatedLink(a, b, delay, bandwidth, loss,
+				queueLimit, this.scheduler);
+		if (!this.attach(a, link) || !this.attach(b, link))
+		{ return false; }
+		this.links.add(link);
+		return true;
+	}
+
+	/**
+	 * @return a host NAME or router interface ROUTER:IFACE; null if there is
+	 *         none
+	 */
+	private EmulatedLink.Endpoint findEndpoint(String name)
+	{
+		int colon = name.indexOf(':');
+		if (colon < 0)
+		{ return this.hosts.get(name); }
+		EmulatedRouter router = this.routers.get(name.substring(0, colon));
+		return (null == router) ? null
+				: router.getPort(name.substring(colon + 1));
+	}
+
+	/**
+	 * Attach an end of a link.
+	 * @return false if the end is already attached to another link
+	 */
+	private boolean attach(EmulatedLink.Endpoint end, EmulatedLink link)
+	{
+		if (end instanceof EmulatedHost)
+		{
+			EmulatedHost host = (EmulatedHost)end;
+			if (host.getLink() != null)
+			{ return false; }
+			host.setLink(link);
+		}
+		else
+		{
+			EmulatedRouter.Port port = (EmulatedRouter.Port)end;
+			if (port.getLink() != null)
+			{ return false; }
+			port.setLink(link);
+		}
+		return true;
+	}
+
+	private boolean addFlow(String[] fields)
+	{
+		EmulatedHost host = this.hosts.get(fields[1]);
+		if (null == host)
+		{ return false; }
+		byte protocol;
+		if (fields[3].equals("udp"))
+		{ protocol = EmulatedHost.Flow.PROTOCOL_UDP; }
+		else if (fields[3].equals("icmp"))
+		{ protocol = EmulatedHost.Flow.PROTOCOL_ICMP; }
+		else
+		{ return false; }
+
+		FlowSender sender = new FlowSender();
+		sender.rate = 100;
+		int size = 64;
+		for (int i = 4; i < fields.length; i++)
+		{
+			String[] option = fields[i].split("=", 2);
+			if (option.length != 2)
+			{ return false; }
+			if (option[0].equals("rate"))
+			{ sender.rate = parseRate(option[1]); }
+			else if (option[0].equals("size"))
+			{ size = Integer.parseInt(option[1]); }
+			else if (option[0].equals("count"))
+			{ sender.remaining = Long.parseLong(option[1]); }
+			else if (option[0].equals("start"))
+			{ sender.start = Double.parseDouble(option[1]); }
+			else
+			{ return false; }
+		}
+		if (sender.rate <= 0 || size < 0 || size > 1400
+				|| sender.remaining < 0 || sender.start < 0)
+		{ return false; }
+
+		int id = this.senders.size();
+		sender.host = host;
+		sender.flow = new EmulatedHost.Flow(id, String.format("%s -> %s %s",
+				fields[1], fields[2], fields[3]), protocol,
+				Util.dottedDecimalToInt(fields[2]), size);
+		this.flows.put(id, sender.flow);
+		this.senders.add(sender);
+		return true;
+	}
+
+	/**
+	 * @return a locally administered MAC address not yet assigned
+	 */
+	private MACAddress nextMac()
+	{
+		this.lastMac++;
+		return new MACAddress(new byte[] { 0x02, 0, 0, 0,
+				(byte)(this.lastMac >> 8), (byte)this.lastMac });
+	}
+
+	/**
+	 * @return a number, optionally followed by k, M, or G
+	 * @throws NumberFormatException if the number is invalid
+	 */
+	private static long parseRate(String rate)
+	{
+		long multiplier = 1;
+		char unit = rate.isEmpty() ? ' ' : rate.charAt(rate.length() - 1);
+		if ('k' == unit || 'K' == unit)
+		{ multiplier = 1000L; }
+		else if ('M' == unit || 'm' == unit)
+		{ multiplier = 1000L * 1000; }
+		else if ('G' == unit || 'g' == unit)
+		{ multiplier = 1000L * 1000 * 1000; }
+		if (multiplier > 1)
+		{ rate = rate.substring(0, rate.length() - 1); }
+		return (long)(Double.parseDouble(rate) * multiplier);
+	}
+
+	private static void sleep(long millis)
+	{
+		try
+		{ Thread.sleep(millis); }
+		catch (InterruptedException e) { }
+	}
+
+	static void usage()
+	{
+		System.out.println("VNS Emulator");
+		System.out.println("VNSEmulator -t topology_file [-p port] [-k key_file]");
+		System.out.println("            [-w connect_timeout_s] [-s settle_s] [-d duration_s]");
+		System.out.println("  topology file lines:");
+		System.out.println("    router NAME");
+		System.out.println("    iface ROUTER IFACE IP MASK");
+		System.out.println("    route ROUTER DEST GW MASK IFACE");
+		System.out.println("    host NAME IP MASK GW");
+		System.out.println("    link END END [delay=ms] [bw=rate] [loss=p] [queue=frames]");
+		System.out.println("    flow HOST DEST_IP udp|icmp [rate=pps] [size=bytes]");
+		System.out.println("         [count=n] [start=s]");
+		System.out.println("  END is a host NAME or ROUTER:IFACE; routers connect with");
+		System.out.println("  Main -s localhost -p port -v ROUTER [-T template | -r rtable]");
+		System.out.println("  without -k, routers may authenticate with any key");
+		System.out.println(String.format("  defaults port=%d", DEFAULT_PORT));
+	}
+}
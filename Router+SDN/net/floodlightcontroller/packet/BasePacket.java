@@ -26,6 +26,50 @@ public abstract class BasePacket implements IPacket {
     protected IPacket parent;
     protected IPacket payload;
 
+    /**
+     * Whether deserialize may reuse this packet's payload object, and the
+     * buffers it holds, instead of allocating new ones. Only for packets
+     * owned by a single thread, whose previous contents nobody still uses.
+     */
+    protected boolean recycle;
+
+    /**
+     * @return true if deserialize may reuse the payload objects
+     */
+    public boolean isRecycle() {
+        return recycle;
+    }
+
+    /**
+     * @param recycle whether deserialize may reuse the payload objects; the
+     *        payloads it creates inherit the setting
+     */
+    public BasePacket setRecycle(boolean recycle) {
+        this.recycle = recycle;
+        return this;
+    }
+
+    /**
+     * Get an object to deserialize the payload into: the current payload if
+     * recycling and it is of the given class, otherwise a new instance.
+     * @param clazz class of the payload
+     * @return the payload object
+     */
+    protected IPacket newPayload(Class<? extends IPacket> clazz) {
+        IPacket payload = this.payload;
+        if (!recycle || payload == null || payload.getClass() != clazz) {
+            try {
+                payload = (clazz == Data.class) ? new Data()
+                        : clazz.getDeclaredConstructor().newInstance();
+            } catch (Exception e) {
+                throw new RuntimeException("Failure instantiating class", e);
+            }
+        }
+        if (payload instanceof BasePacket)
+            ((BasePacket) payload).recycle = recycle;
+        return payload;
+    }
+
     /**
      * @return the parent
      */
@@ -101,7 +145,7 @@ public abstract class BasePacket implements IPacket {
     public Object clone() {
         IPacket pkt;
         try {
-            pkt = this.getClass().newInstance();
+            pkt = this.getClass().getDeclaredConstructor().newInstance();
         } catch (Exception e) {
             throw new RuntimeException("Could not clone packet");
         }
@@ -60,7 +60,12 @@ public class Data extends BasePacket {
 
     @Override
     public IPacket deserialize(byte[] data, int offset, int length) {
-        this.data = Arrays.copyOfRange(data, offset, data.length);
+        if (recycle && this.data != null
+                && this.data.length == data.length - offset) {
+            System.arraycopy(data, offset, this.data, 0, this.data.length);
+        } else {
+            this.data = Arrays.copyOfRange(data, offset, data.length);
+        }
         return this;
     }
 
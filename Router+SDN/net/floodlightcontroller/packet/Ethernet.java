@@ -56,6 +56,12 @@ public class Ethernet extends BasePacket {
     protected short etherType;
     protected boolean pad = false;
 
+    /** Number of addresses kept for reuse when recycling; a power of two */
+    private static final int RECYCLED_MACS = 16;
+
+    /** Addresses seen when recycling, indexed by their last byte */
+    private MACAddress[] recycledMACs;
+
     /**
      * By default, set Ethernet to untagged
      */
@@ -101,6 +107,14 @@ public class Ethernet extends BasePacket {
         return this;
     }
 
+    /**
+     * @param destinationMACAddress the destination MAC to set
+     */
+    public Ethernet setDestinationMACAddress(MACAddress destinationMACAddress) {
+        this.destinationMACAddress = destinationMACAddress;
+        return this;
+    }
+
     /**
      * @return the source MACAddress as a byte array
      */
@@ -131,6 +145,14 @@ public class Ethernet extends BasePacket {
         return this;
     }
 
+    /**
+     * @param sourceMACAddress the source MAC to set
+     */
+    public Ethernet setSourceMACAddress(MACAddress sourceMACAddress) {
+        this.sourceMACAddress = sourceMACAddress;
+        return this;
+    }
+
     /**
      * @return the priorityCode
      */
@@ -240,17 +262,25 @@ public class Ethernet extends BasePacket {
         if (length <= 0)
             return null;
         ByteBuffer bb = ByteBuffer.wrap(data, offset, length);
-        if (this.destinationMACAddress == null)
-            this.destinationMACAddress = MACAddress.valueOf(new byte[6]);
-        byte[] dstAddr = new byte[MACAddress.MAC_ADDRESS_LENGTH];
-        bb.get(dstAddr);
-        this.destinationMACAddress = MACAddress.valueOf(dstAddr);
-
-        if (this.sourceMACAddress == null)
-            this.sourceMACAddress = MACAddress.valueOf(new byte[6]);
-        byte[] srcAddr = new byte[MACAddress.MAC_ADDRESS_LENGTH];
-        bb.get(srcAddr);
-        this.sourceMACAddress = MACAddress.valueOf(srcAddr);
+        if (this.recycle) {
+            // Addresses are immutable, so ones seen before can be shared
+            this.destinationMACAddress = recycledMAC(data, bb.position());
+            this.sourceMACAddress = recycledMAC(data,
+                    bb.position() + MACAddress.MAC_ADDRESS_LENGTH);
+            bb.position(bb.position() + 2 * MACAddress.MAC_ADDRESS_LENGTH);
+        } else {
+            if (this.destinationMACAddress == null)
+                this.destinationMACAddress = MACAddress.valueOf(new byte[6]);
+            byte[] dstAddr = new byte[MACAddress.MAC_ADDRESS_LENGTH];
+            bb.get(dstAddr);
+            this.destinationMACAddress = MACAddress.valueOf(dstAddr);
+
+            if (this.sourceMACAddress == null)
+                this.sourceMACAddress = MACAddress.valueOf(new byte[6]);
+            byte[] srcAddr = new byte[MACAddress.MAC_ADDRESS_LENGTH];
+            bb.get(srcAddr);
+            this.sourceMACAddress = MACAddress.valueOf(srcAddr);
+        }
 
         short etherType = bb.getShort();
         if (etherType == (short) 0x8100) {
@@ -259,6 +289,7 @@ public class Ethernet extends BasePacket {
             this.vlanID = (short) (tci & 0x0fff);
             etherType = bb.getShort();
         } else {
+            this.priorityCode = 0;
             this.vlanID = VLAN_UNTAGGED;
         }
         this.etherType = etherType;
@@ -266,19 +297,33 @@ public class Ethernet extends BasePacket {
         IPacket payload;
         if (Ethernet.etherTypeClassMap.containsKey(this.etherType)) {
             Class<? extends IPacket> clazz = Ethernet.etherTypeClassMap.get(this.etherType);
-            try {
-                payload = clazz.newInstance();
-            } catch (Exception e) {
-                throw new RuntimeException("Error parsing payload for Ethernet packet", e);
-            }
+            payload = newPayload(clazz);
         } else {
-            payload = new Data();
+            payload = newPayload(Data.class);
         }
         this.payload = payload.deserialize(data, bb.position(), bb.limit()-bb.position());
         this.payload.setParent(this);
         return this;
     }
 
+    /**
+     * Get the address at an offset in a buffer from the addresses seen
+     * before, or add it to them.
+     */
+    private MACAddress recycledMAC(byte[] data, int offset) {
+        if (this.recycledMACs == null)
+            this.recycledMACs = new MACAddress[RECYCLED_MACS];
+        int slot = data[offset + MACAddress.MAC_ADDRESS_LENGTH - 1]
+                & (RECYCLED_MACS - 1);
+        MACAddress address = this.recycledMACs[slot];
+        if (address == null || !address.equals(data, offset)) {
+            address = MACAddress.valueOf(Arrays.copyOfRange(data, offset,
+                    offset + MACAddress.MAC_ADDRESS_LENGTH));
+            this.recycledMACs[slot] = address;
+        }
+        return address;
+    }
+
     /**
      * Checks to see if a string is a valid MAC address.
      * @param macAddress
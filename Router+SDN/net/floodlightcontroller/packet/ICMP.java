@@ -164,7 +164,7 @@ public class ICMP extends BasePacket {
         this.icmpCode = bb.get();
         this.checksum = bb.getShort();
         
-        this.payload = new Data();
+        this.payload = newPayload(Data.class);
         this.payload = payload.deserialize(data, bb.position(), bb.limit()-bb.position());
         this.payload.setParent(this);
         return this;
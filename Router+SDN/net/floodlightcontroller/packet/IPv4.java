@@ -34,6 +34,8 @@ public class IPv4 extends BasePacket {
     public static final byte PROTOCOL_ICMP = 0x1;
     public static final byte PROTOCOL_TCP = 0x6;
     public static final byte PROTOCOL_UDP = 0x11;
+    public static final byte IPV4_FLAGS_MOREFRAG = 0x1;
+    public static final byte IPV4_FLAGS_DONTFRAG = 0x2;
     public static Map<Byte, Class<? extends IPacket>> protocolClassMap;
 
     static {
@@ -358,18 +360,19 @@ public class IPv4 extends BasePacket {
             int optionsLength = (this.headerLength - 5) * 4;
             this.options = new byte[optionsLength];
             bb.get(this.options);
+        } else {
+            this.options = null;
         }
 
+        // Fragments do not carry a complete transport header
+        boolean isFragment = (this.fragmentOffset != 0)
+                || ((this.flags & IPV4_FLAGS_MOREFRAG) != 0);
         IPacket payload;
-        if (IPv4.protocolClassMap.containsKey(this.protocol)) {
+        if (IPv4.protocolClassMap.containsKey(this.protocol) && !isFragment) {
             Class<? extends IPacket> clazz = IPv4.protocolClassMap.get(this.protocol);
-            try {
-                payload = clazz.newInstance();
-            } catch (Exception e) {
-                throw new RuntimeException("Error parsing payload for IPv4 packet", e);
-            }
+            payload = newPayload(clazz);
         } else {
-            payload = new Data();
+            payload = newPayload(Data.class);
         }
         this.payload = payload.deserialize(data, bb.position(), bb.limit()-bb.position());
         this.payload.setParent(this);
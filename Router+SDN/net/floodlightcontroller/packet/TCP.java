@@ -280,9 +280,11 @@ public class TCP extends BasePacket {
             } catch (IndexOutOfBoundsException e) {
                 this.options = null;
             }
+        } else {
+            this.options = null;
         }
         
-        this.payload = new Data();
+        this.payload = newPayload(Data.class);
         this.payload = payload.deserialize(data, bb.position(), bb.limit()-bb.position());
         this.payload.setParent(this);
         return this;
@@ -211,19 +211,11 @@ public class UDP extends BasePacket {
         this.checksum = bb.getShort();
 
         if (UDP.decodeMap.containsKey(this.destinationPort)) {
-            try {
-                this.payload = UDP.decodeMap.get(this.destinationPort).getConstructor().newInstance();
-            } catch (Exception e) {
-                throw new RuntimeException("Failure instantiating class", e);
-            }
+            this.payload = newPayload(UDP.decodeMap.get(this.destinationPort));
         } else if (UDP.decodeMap.containsKey(this.sourcePort)) {
-            try {
-                this.payload = UDP.decodeMap.get(this.sourcePort).getConstructor().newInstance();
-            } catch (Exception e) {
-                throw new RuntimeException("Failure instantiating class", e);
-            }
+            this.payload = newPayload(UDP.decodeMap.get(this.sourcePort));
         } else {
-            this.payload = new Data();
+            this.payload = newPayload(Data.class);
         }
         this.payload = payload.deserialize(data, bb.position(), bb.limit()-bb.position());
         this.payload.setParent(this);
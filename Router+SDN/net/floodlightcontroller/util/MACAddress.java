@@ -138,6 +138,22 @@ public class MACAddress {
         return Arrays.equals(this.address, other.address);
     }
 
+    /**
+     * Returns {@code true} if the MAC address is the one at an offset in a
+     * byte array.
+     * @param data the byte array
+     * @param offset offset of the MAC address in the array
+     * @return {@code true} if the MAC address is the one in the array.
+     */
+    public boolean equals(byte[] data, int offset) {
+        for (int i = 0; i < MAC_ADDRESS_LENGTH; i++) {
+            if (address[i] != data[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     @Override
     public int hashCode() {
         return Arrays.hashCode(this.address);